@@ -108,6 +108,43 @@ Java_org_jitsi_impl_neomedia_transform_srtp_OpenSSLHMAC_HMAC_1Final
     return i;
 }
 
+/*
+ * Class:     org_jitsi_impl_neomedia_transform_srtp_OpenSSLHMAC
+ * Method:    HMAC_Final_reset
+ * Signature: (J[BII)I
+ *
+ * Finishes the message authentication code and resets the ctx in a single
+ * invocation from Java. The reset copies the state of the digest after the
+ * inner key pad (which HMAC_Init_ex computed once when it was given the key)
+ * i.e. the pads are not processed again.
+ */
+JNIEXPORT jint JNICALL
+Java_org_jitsi_impl_neomedia_transform_srtp_OpenSSLHMAC_HMAC_1Final_1reset
+    (JNIEnv *env, jclass clazz, jlong ctx, jbyteArray md, jint mdOff,
+        jint mdLen)
+{
+    HMAC_CTX *ctx_ = (HMAC_CTX *) (intptr_t) ctx;
+    jbyte *md_ = (*env)->GetPrimitiveArrayCritical(env, md, NULL);
+    int i;
+
+    if (md_)
+    {
+        unsigned int len = mdLen;
+
+        i = HMAC_Final(ctx_, (unsigned char *) (md_ + mdOff), &len);
+        (*env)->ReleasePrimitiveArrayCritical(env, md, md_, 0);
+        if (i && HMAC_Init_ex(ctx_, NULL, 0, NULL, NULL))
+            i = len;
+        else
+            i = -1;
+    }
+    else
+    {
+        i = -1;
+    }
+    return i;
+}
+
 /*
  * Class:     org_jitsi_impl_neomedia_transform_srtp_OpenSSLHMAC
  * Method:    HMAC_Init_ex
@@ -47,6 +47,14 @@ JNIEXPORT void JNICALL Java_org_jitsi_impl_neomedia_transform_srtp_OpenSSLHMAC_H
 JNIEXPORT jint JNICALL Java_org_jitsi_impl_neomedia_transform_srtp_OpenSSLHMAC_HMAC_1Final
   (JNIEnv *, jclass, jlong, jbyteArray, jint, jint);
 
+/*
+ * Class:     org_jitsi_impl_neomedia_transform_srtp_OpenSSLHMAC
+ * Method:    HMAC_Final_reset
+ * Signature: (J[BII)I
+ */
+JNIEXPORT jint JNICALL Java_org_jitsi_impl_neomedia_transform_srtp_OpenSSLHMAC_HMAC_1Final_1reset
+  (JNIEnv *, jclass, jlong, jbyteArray, jint, jint);
+
 /*
  * Class:     org_jitsi_impl_neomedia_transform_srtp_OpenSSLHMAC
  * Method:    HMAC_Init_ex
@@ -342,6 +342,14 @@ else if (MediaDeviceSession.SSRC_LIST.equals(propertyName))
      */
     private TransformEngineChain transformEngineChain;
 
+    /**
+     * Whether the per-engine instrumentation of {@link #transformEngineChain}
+     * has been enabled or disabled through
+     * {@link #setTransformEngineInstrumentationEnabled(boolean)} or
+     * <tt>null</tt> to use the default of <tt>TransformEngineChain</tt>.
+     */
+    private Boolean transformEngineInstrumentationEnabled;
+
     /**
      * The {@code RetransmissionRequesterImpl} instance for this
      * {@code MediaStream} which will request missing packets by sending
@@ -350,6 +358,19 @@ else if (MediaDeviceSession.SSRC_LIST.equals(propertyName))
     private final RetransmissionRequesterImpl retransmissionRequester
         = createRetransmissionRequester();
 
+    /**
+     * The {@code RtxTransformer} instance for this {@code MediaStream} which
+     * will retransmit the packets requested by the received RTCP NACKs.
+     */
+    private final RtxTransformer rtxTransformer = createRtxTransformer();
+
+    /**
+     * The {@code FECController} which adapts the ulpfec protection of the
+     * packets sent by this {@code MediaStream} to the conditions reported by
+     * the receivers or {@code null}.
+     */
+    private FECController fecController;
+
     /**
      * Initializes a new <tt>MediaStreamImpl</tt> instance which will use the
      * specified <tt>MediaDevice</tt> for both capture and playback of media.
@@ -414,6 +435,17 @@ public MediaStreamImpl(
             setConnector(connector);
 
         this.mediaStreamStatsImpl = new MediaStreamStats2Impl(this);
+        if (rtxTransformer != null)
+            mediaStreamStatsImpl.addNackListener(rtxTransformer);
+        // The transform engine chain has been created by setConnector above
+        // before the FECController could listen to the statistics.
+        if (transformEngineChain != null)
+        {
+            FECTransformEngine fecTransformEngine = getFecTransformEngine();
+
+            if (fecTransformEngine != null)
+                createFecController(fecTransformEngine);
+        }
 
         if (logger.isTraceEnabled())
         {
@@ -472,6 +504,31 @@ else if (Constants.ULPFEC.equals(encoding))
                     fecTransformEngine.setOutgoingPT(rtpPayloadType);
                 }
             }
+            else if (Constants.RTX.equals(encoding))
+            {
+                if (rtxTransformer != null)
+                {
+                    // The apt parameter specifies the payload type of the
+                    // packets which are retransmitted with this one.
+                    String apt = format.getFormatParameters().get("apt");
+
+                    try
+                    {
+                        if (apt != null)
+                        {
+                            rtxTransformer.addRtxPayloadType(
+                                    rtpPayloadType,
+                                    Byte.parseByte(apt.trim()));
+                        }
+                    }
+                    catch (NumberFormatException nfe)
+                    {
+                        logger.warn(
+                                "Ignoring the RTX payload type "
+                                    + rtpPayloadType + " with apt=" + apt);
+                    }
+                }
+            }
 
             if (rtpManager != null)
             {
@@ -508,6 +565,9 @@ public void clearDynamicRTPPayloadTypes()
                 fecTransformEngine.setIncomingPT((byte) -1);
                 fecTransformEngine.setOutgoingPT((byte) -1);
             }
+
+            if (rtxTransformer != null)
+                rtxTransformer.clearRtxPayloadTypes();
         }
     }
 
@@ -711,6 +771,17 @@ public void close()
             retransmissionRequester.close();
         }
 
+        if (rtxTransformer != null)
+        {
+            rtxTransformer.close();
+        }
+
+        if (fecController != null)
+        {
+            fecController.close();
+            fecController = null;
+        }
+
         if (transformEngineChain != null)
         {
             PacketTransformer t = transformEngineChain.getRTPTransformer();
@@ -988,6 +1059,31 @@ protected RetransmissionRequesterImpl createRetransmissionRequester()
         return null;
     }
 
+    /**
+     * Creates the {@link RtxTransformer} for this {@code MediaStream}.
+     * @return the created {@link RtxTransformer}.
+     */
+    protected RtxTransformer createRtxTransformer()
+    {
+        return null;
+    }
+
+    /**
+     * Creates the {@link FECController} which adapts the protection of a
+     * specific <tt>FECTransformEngine</tt> of this stream if
+     * {@link FECController#isEnabled()} and it does not exist yet. Requires
+     * {@link #mediaStreamStatsImpl} because the <tt>FECController</tt>
+     * listens to the RTCP reports and NACKs.
+     *
+     * @param fecTransformEngine the <tt>FECTransformEngine</tt> of this
+     * stream
+     */
+    private void createFecController(FECTransformEngine fecTransformEngine)
+    {
+        if (fecController == null && FECController.isEnabled())
+            fecController = new FECController(this, fecTransformEngine);
+    }
+
     /**
      * Creates a chain of transform engines for use with this stream. Note
      * that this is the only place where the <tt>TransformEngineChain</tt> is
@@ -1022,7 +1118,13 @@ private TransformEngineChain createTransformEngineChain()
         // FEC
         FECTransformEngine fecTransformEngine = getFecTransformEngine();
         if (fecTransformEngine != null)
+        {
             engineChain.add(fecTransformEngine);
+            // Unless invoked by the constructor before the statistics exist
+            // (which will create the FECController then).
+            if (mediaStreamStatsImpl != null)
+                createFecController(fecTransformEngine);
+        }
 
         // RED
         REDTransformEngine redTransformEngine = getRedTransformEngine();
@@ -1052,6 +1154,13 @@ private TransformEngineChain createTransformEngineChain()
             engineChain.add(cachingTransformer);
         }
 
+        // The retransmissions are served from the cache and go through the
+        // engines after this one only.
+        if (rtxTransformer != null)
+        {
+            engineChain.add(rtxTransformer);
+        }
+
         absSendTimeEngine = createAbsSendTimeEngine();
         if (absSendTimeEngine != null)
         {
@@ -1070,7 +1179,14 @@ private TransformEngineChain createTransformEngineChain()
             engineChain.add(discardEngine);
 
         // SRTP
-        engineChain.add(srtpControl.getTransformEngine());
+        TransformEngine srtpEngine = srtpControl.getTransformEngine();
+
+        // The SDES and DTLS-SRTP transformers may run concurrently for
+        // distinct SSRCs so optionally fan them out over multiple threads.
+        if (ParallelTransformEngine.isEnabled()
+                && ParallelTransformEngine.isParallelizable(srtpControl))
+            srtpEngine = new ParallelTransformEngine(srtpEngine);
+        engineChain.add(srtpEngine);
 
         // SSRC audio levels
         /*
@@ -1086,10 +1202,17 @@ private TransformEngineChain createTransformEngineChain()
         // configuration.
         enableRTPExtensions();
 
-        return
-            new TransformEngineChain(
+        TransformEngineChain transformEngineChain
+            = new TransformEngineChain(
                     engineChain.toArray(
                             new TransformEngine[engineChain.size()]));
+
+        if (transformEngineInstrumentationEnabled != null)
+        {
+            transformEngineChain.setInstrumentationEnabled(
+                    transformEngineInstrumentationEnabled);
+        }
+        return transformEngineChain;
     }
 
     /**
@@ -3746,6 +3869,40 @@ public RetransmissionRequester getRetransmissionRequester()
         return retransmissionRequester;
     }
 
+    /**
+     * Gets the {@link RtxTransformer} which retransmits the packets requested
+     * by the RTCP NACKs received by this {@code MediaStream}.
+     *
+     * @return the {@link RtxTransformer} of this {@code MediaStream} or
+     * {@code null}.
+     */
+    public RtxTransformer getRtxTransformer()
+    {
+        return rtxTransformer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setRtxSsrcs(Map<Long, Long> ssrcs)
+    {
+        if (rtxTransformer != null)
+            rtxTransformer.setRtxSsrcs(ssrcs);
+    }
+
+    /**
+     * Gets the {@link FECController} which adapts the ulpfec protection of the
+     * packets sent by this {@code MediaStream}.
+     *
+     * @return the {@link FECController} of this {@code MediaStream} or
+     * {@code null}.
+     */
+    public FECController getFecController()
+    {
+        return fecController;
+    }
+
     /**
      * {@inheritDoc}
      * <br/>
@@ -3761,6 +3918,48 @@ public TransformEngineChain getTransformEngineChain()
         return transformEngineChain;
     }
 
+    /**
+     * Gets the statistics (i.e. the packet counts, the drop counts and the
+     * latencies in either direction) of the <tt>TransformEngine</tt>s of the
+     * <tt>TransformEngineChain</tt> of this <tt>MediaStream</tt>.
+     *
+     * @return the statistics of the <tt>TransformEngine</tt>s of the
+     * <tt>TransformEngineChain</tt> of this <tt>MediaStream</tt> or
+     * <tt>null</tt> if the chain is not initialized or its instrumentation is
+     * disabled
+     * @see #setTransformEngineInstrumentationEnabled(boolean)
+     */
+    public TransformEngineStats[] getTransformEngineStats()
+    {
+        TransformEngineChain transformEngineChain = this.transformEngineChain;
+
+        return
+            (transformEngineChain == null)
+                ? null
+                : transformEngineChain.getEngineStats();
+    }
+
+    /**
+     * Enables or disables the per-engine instrumentation of the
+     * <tt>TransformEngineChain</tt> of this <tt>MediaStream</tt> (including
+     * the chains which it will initialize later on). The instrumentation is
+     * disabled by default unless
+     * {@link TransformEngineChain#ENABLE_INSTRUMENTATION_PNAME} says
+     * otherwise.
+     *
+     * @param enabled <tt>true</tt> to enable the instrumentation or
+     * <tt>false</tt> to disable it
+     */
+    public void setTransformEngineInstrumentationEnabled(boolean enabled)
+    {
+        transformEngineInstrumentationEnabled = enabled;
+
+        TransformEngineChain transformEngineChain = this.transformEngineChain;
+
+        if (transformEngineChain != null)
+            transformEngineChain.setInstrumentationEnabled(enabled);
+    }
+
     /**
      * Creates the {@link DiscardTransformEngine} for this stream. Allows
      * extenders to override.
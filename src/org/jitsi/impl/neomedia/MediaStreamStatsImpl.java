@@ -20,6 +20,7 @@
 import java.net.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 
 import javax.media.control.*;
 import javax.media.format.*;
@@ -305,8 +306,11 @@ public void rtcpReportSent(RTCPReport report)
 
     /**
      * The list of listeners to be notified when NACK packets are received.
+     * Copied on write because the listeners may be removed while a NACK is
+     * being dispatched to them.
      */
-    private final List<NACKListener> nackListeners = new LinkedList<>();
+    private final List<NACKListener> nackListeners
+        = new CopyOnWriteArrayList<>();
 
     /**
      * The list of listeners to be notified when REMB packets are received.
@@ -1516,6 +1520,21 @@ public void addNackListener(NACKListener listener)
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeNackListener(NACKListener listener)
+    {
+        if (listener != null)
+        {
+            synchronized (nackListeners)
+            {
+                nackListeners.remove(listener);
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
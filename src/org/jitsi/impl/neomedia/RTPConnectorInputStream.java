@@ -17,10 +17,13 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
 
 import javax.media.*;
+import javax.media.Buffer;
 import javax.media.protocol.*;
 
 import net.sf.fmj.media.util.*;
@@ -28,6 +31,7 @@
 import org.ice4j.socket.*;
 import org.jitsi.impl.neomedia.jmfext.media.protocol.*;
 import org.jitsi.impl.neomedia.protocol.*;
+import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.packetlogging.*;
 import org.jitsi.util.*;
@@ -48,6 +52,13 @@
      */
     private static final Object[] EMPTY_CONTROLS = new Object[0];
 
+    /**
+     * An empty <tt>byte</tt> array used to initialize the
+     * <tt>DatagramPacket</tt> of {@link #receiveThread} before it is pointed
+     * to the buffer of a pooled <tt>RawPacket</tt>.
+     */
+    private static final byte[] EMPTY_BUFFER = new byte[0];
+
     /**
      * The <tt>Logger</tt> used by the <tt>RTPConnectorInputStream</tt> class
      * and its instances to print debug information.
@@ -61,6 +72,37 @@
      */
     public static final int PACKET_RECEIVE_BUFFER_LENGTH = 4 * 1024;
 
+    /**
+     * The lengths of the buffers of the size classes of {@link ByteArrayPool}
+     * ordered by increasing length.
+     */
+    private static final int[] SIZE_CLASS_LENGTHS
+        = ByteArrayPool.getSizeClassLengths();
+
+    /**
+     * The flag which controls whether <tt>RTPConnectorInputStream</tt>s whose
+     * sockets are backed by <tt>DatagramChannel</tt>s are to be served by the
+     * shared {@link SelectorReceiveEngine} instead of starting their own
+     * {@link #receiveThread}s. <tt>RTPConnectorInputStream</tt>s without a
+     * <tt>DatagramChannel</tt> always use a receive thread.
+     */
+    private static final boolean USE_SELECTOR_RECEIVE;
+
+    /**
+     * The name of the property which controls the value of {@link
+     * #USE_SELECTOR_RECEIVE}.
+     */
+    private static final String USE_SELECTOR_RECEIVE_PNAME
+        = RTPConnectorInputStream.class.getName() + ".USE_SELECTOR_RECEIVE";
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        USE_SELECTOR_RECEIVE
+            = ConfigUtils.getBoolean(cfg, USE_SELECTOR_RECEIVE_PNAME, false);
+    }
+
     /**
      * Sets a specific priority on a specific <tt>Thread</tt>.
      * 
@@ -103,11 +145,6 @@ public static void setThreadPriority(Thread thread, int priority)
         }
     }
 
-    /**
-     * Packet receive buffer
-     */
-    private final byte[] buffer = new byte[PACKET_RECEIVE_BUFFER_LENGTH];
-
     /**
      * Whether this stream is closed. Used to control the termination of worker
      * thread.
@@ -160,6 +197,15 @@ public static void setThreadPriority(Thread thread, int priority)
      */
     private PacketLoggingService pktLogging;
 
+    /**
+     * The single-element array returned by
+     * {@link #createRawPacket(DatagramPacket)}. Reused because packets are
+     * received by a single thread at a time and
+     * {@link #transferData(RawPacket[])} clears its elements once they have
+     * been handed over.
+     */
+    private final RawPacket[] pkts = new RawPacket[1];
+
     /**
      * The <tt>Object</tt> which synchronizes the access to {@link #pkt}.
      */
@@ -172,11 +218,18 @@ public static void setThreadPriority(Thread thread, int priority)
     private final PushBufferStream pushBufferStream;
 
     /**
-     * The pool of <tt>RawPacket</tt> instances to reduce their allocations and
-     * garbage collection.
+     * The <tt>ByteBuffer</tt> view of the buffer of {@link #receivePkt} used
+     * by the {@link SelectorReceiveEngine} to receive into it.
      */
-    private final Queue<RawPacket> rawPacketPool
-            = new LinkedBlockingQueue<>(RTPConnectorOutputStream.POOL_CAPACITY);
+    private ByteBuffer receiveByteBuffer;
+
+    /**
+     * The pooled <tt>RawPacket</tt> into the buffer of which the next datagram
+     * is to be received. Once a datagram too long for a smaller size class is
+     * accepted, the <tt>RawPacket</tt> itself is handed to the transform chain
+     * without copying its data.
+     */
+    private RawPacket receivePkt;
 
     /**
      * The background/daemon <tt>Thread</tt> which invokes
@@ -184,6 +237,14 @@ public static void setThreadPriority(Thread thread, int priority)
      */
     private Thread receiveThread;
 
+    /**
+     * The <tt>DatagramChannel</tt> registered with the shared
+     * {@link SelectorReceiveEngine} in place of starting
+     * {@link #receiveThread} or <tt>null</tt> if this instance does not use
+     * the <tt>SelectorReceiveEngine</tt>.
+     */
+    private DatagramChannel selectorChannel;
+
     protected final T socket;
 
     /**
@@ -380,6 +441,19 @@ public synchronized void addDatagramPacketListener(
     public synchronized void close()
     {
         closed = true;
+        if (selectorChannel != null)
+        {
+            try
+            {
+                SelectorReceiveEngine.getInstance().unregister(
+                        selectorChannel);
+            }
+            catch (IOException ioe)
+            {
+                // The SelectorReceiveEngine was initialized when
+                // selectorChannel was registered with it.
+            }
+        }
         if(socket != null)
         {
             /*
@@ -414,6 +488,14 @@ else if (socket instanceof Socket)
      * <tt>RawPacket</tt> with the created packet as its first element (and
      * <tt>null</tt> for the other elements).
      *
+     * If the packet data was received directly into the buffer of
+     * {@link #receivePkt} and does not fit into a buffer of a smaller size
+     * class of {@link ByteArrayPool}, that <tt>RawPacket</tt> is returned as
+     * is and the packet data is not copied. Otherwise the packet data is
+     * copied into a pooled buffer fitting its length so that the
+     * <tt>RawPacket</tt>s queued downstream do not each hold a receive
+     * buffer.
+     *
      * Allows extenders to intercept the packet data and possibly filter and/or
      * modify it.
      *
@@ -421,33 +503,38 @@ else if (socket instanceof Socket)
      * data
      * @return an array of <tt>RawPacket</tt> containing the <tt>RawPacket</tt>
      * which contains the packet data of the
-     * specified <tt>DatagramPacket</tt> as its first element.
+     * specified <tt>DatagramPacket</tt> as its first element. The array is
+     * reused by subsequent invocations.
      */
     protected RawPacket[] createRawPacket(DatagramPacket datagramPacket)
     {
-        RawPacket[] pkts = new RawPacket[1];
-
-        RawPacket pkt = rawPacketPool.poll();
-        if (pkt == null)
-            pkt = new RawPacket();
-
-        byte[] buffer = pkt.getBuffer();
+        RawPacket pkt = receivePkt;
         int length = datagramPacket.getLength();
-        if (buffer == null || buffer.length < length)
+
+        if (pkt != null
+                && pkt.getBuffer() == datagramPacket.getData()
+                && !fitsSmallerSizeClass(length, pkt.getBuffer().length))
         {
-            buffer = new byte[length];
-            pkt.setBuffer(buffer);
+            // The packet data was received in place. The next datagram will be
+            // received into another pooled RawPacket.
+            receivePkt = null;
+            receiveByteBuffer = null;
+
+            pkt.setOffset(datagramPacket.getOffset());
+            pkt.setLength(length);
+            pkt.setFlags(0);
+        }
+        else
+        {
+            // The buffer of receivePkt (if any) is reused by the next
+            // datagram.
+            pkt = RawPacket.createPooled(length);
+            System.arraycopy(
+                    datagramPacket.getData(), datagramPacket.getOffset(),
+                    pkt.getBuffer(), 0,
+                    length);
+            pkt.setLength(length);
         }
-
-        System.arraycopy(
-                datagramPacket.getData(), datagramPacket.getOffset(),
-                buffer, 0,
-                length);
-
-        pkt.setBuffer(buffer);
-        pkt.setOffset(0);
-        pkt.setLength(length);
-        pkt.setFlags(0);
 
         pkts[0] = pkt;
         return pkts;
@@ -472,6 +559,28 @@ public boolean endOfStream()
         return false;
     }
 
+    /**
+     * Determines whether a specific number of bytes fits into a buffer of a
+     * size class of {@link ByteArrayPool} shorter than a specific length.
+     *
+     * @param length the number of bytes to fit
+     * @param bufferLength the length of the buffer which the size class is to
+     * be shorter than
+     * @return <tt>true</tt> if <tt>length</tt> bytes fit into a pooled buffer
+     * shorter than <tt>bufferLength</tt>; otherwise, <tt>false</tt>
+     */
+    private static boolean fitsSmallerSizeClass(int length, int bufferLength)
+    {
+        for (int sizeClassLength : SIZE_CLASS_LENGTHS)
+        {
+            if (sizeClassLength >= bufferLength)
+                break;
+            if (length <= sizeClassLength)
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Provides a dummy implementation of {@link
      * PushSourceStream#getContentDescriptor()} that always returns
@@ -557,6 +666,20 @@ protected synchronized DatagramPacketListener[] getDatagramPacketListeners()
         return datagramPacketListeners;
     }
 
+    /**
+     * Gets the <tt>DatagramChannel</tt> which backs the socket of this
+     * <tt>RTPConnectorInputStream</tt>, if any. If the returned value is not
+     * <tt>null</tt>, this instance may be served by the shared
+     * {@link SelectorReceiveEngine} instead of a receive thread of its own.
+     *
+     * @return the <tt>DatagramChannel</tt> which backs the socket of this
+     * <tt>RTPConnectorInputStream</tt> or <tt>null</tt>
+     */
+    protected DatagramChannel getDatagramChannel()
+    {
+        return null;
+    }
+
     /**
      * Provides a dummy implementation of {@link
      * PushSourceStream#getMinimumTransferSize()} that always returns
@@ -570,6 +693,45 @@ public int getMinimumTransferSize()
         return 2 * 1024; // twice the MTU size, just to be safe.
     }
 
+    /**
+     * Gets the <tt>ByteBuffer</tt> view of the buffer of the <tt>RawPacket</tt>
+     * into which the next datagram is to be received by the
+     * {@link SelectorReceiveEngine}.
+     *
+     * @return the <tt>ByteBuffer</tt> into which the next datagram is to be
+     * received
+     */
+    ByteBuffer getReceiveByteBuffer()
+    {
+        RawPacket pkt = getReceivePacket();
+
+        if (receiveByteBuffer == null)
+            receiveByteBuffer = ByteBuffer.wrap(pkt.getBuffer());
+        return receiveByteBuffer;
+    }
+
+    /**
+     * Gets the pooled <tt>RawPacket</tt> into the buffer of which the next
+     * datagram is to be received. The same <tt>RawPacket</tt> is returned
+     * until a datagram received into it is accepted by
+     * {@link #createRawPacket(DatagramPacket)}.
+     *
+     * @return the <tt>RawPacket</tt> into the buffer of which the next
+     * datagram is to be received
+     */
+    RawPacket getReceivePacket()
+    {
+        RawPacket pkt = receivePkt;
+
+        if (pkt == null)
+        {
+            pkt = RawPacket.createPooled(PACKET_RECEIVE_BUFFER_LENGTH);
+            receivePkt = pkt;
+            receiveByteBuffer = null;
+        }
+        return pkt;
+    }
+
     /**
      * Returns the number of received bytes for the stream.
      * @return the number of received bytes
@@ -594,10 +756,13 @@ protected PacketLoggingService getPacketLoggingService()
 
     private synchronized void maybeStartReceiveThread()
     {
-        if (receiveThread == null)
+        if (receiveThread == null && selectorChannel == null)
         {
             if ((socket != null) && !closed && (transferHandler != null))
             {
+                if (USE_SELECTOR_RECEIVE && maybeRegisterWithSelector())
+                    return;
+
                 receiveThread
                     = new Thread()
                     {
@@ -626,17 +791,49 @@ public void run()
     }
 
     /**
-     * Pools the specified <tt>RawPacket</tt> in order to avoid future
-     * allocations and to reduce the effects of garbage collection.
+     * Attempts to have this instance served by the shared
+     * {@link SelectorReceiveEngine} instead of a receive thread of its own.
+     *
+     * @return <tt>true</tt> if this instance was registered with the
+     * <tt>SelectorReceiveEngine</tt>; otherwise, <tt>false</tt>
+     */
+    private boolean maybeRegisterWithSelector()
+    {
+        DatagramChannel channel = getDatagramChannel();
+
+        if (channel == null)
+            return false;
+
+        try
+        {
+            SelectorReceiveEngine.getInstance().register(channel, this);
+            selectorChannel = channel;
+            return true;
+        }
+        catch (IOException ioe)
+        {
+            logger.warn(
+                    "Failed to use the SelectorReceiveEngine, falling back to"
+                        + " a receive thread: " + ioe);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the buffer of the specified <tt>RawPacket</tt> to the
+     * {@link ByteArrayPool} (or to the {@link DirectByteBufferPool} if it is
+     * off the heap) in order to avoid future allocations and to reduce the
+     * effects of garbage collection.
      *
-     * @param pkt the <tt>RawPacket</tt> to be offered to {@link #rawPacketPool}
+     * @param pkt the <tt>RawPacket</tt> the buffer of which is to be returned
+     * to its pool
      */
     private void poolRawPacket(RawPacket pkt)
     {
+        pkt.releaseBuffer();
         pkt.setFlags(0);
         pkt.setLength(0);
         pkt.setOffset(0);
-        rawPacketPool.offer(pkt);
     }
 
     /**
@@ -781,13 +978,18 @@ protected abstract void receive(DatagramPacket p)
     private void runInReceiveThread()
     {
         DatagramPacket p
-            = new DatagramPacket(buffer, 0, PACKET_RECEIVE_BUFFER_LENGTH);
+            = new DatagramPacket(EMPTY_BUFFER, 0, 0);
 
         while (!closed)
         {
-            // http://code.google.com/p/android/issues/detail?id=24765
-            if (OSUtils.IS_ANDROID)
-                p.setLength(PACKET_RECEIVE_BUFFER_LENGTH);
+            // Receive directly into the buffer of a pooled RawPacket. Setting
+            // the data also resets the length of p which is necessary on
+            // Android (http://code.google.com/p/android/issues/detail?id=24765)
+            // and after a shorter datagram was received.
+            p.setData(
+                    getReceivePacket().getBuffer(),
+                    0,
+                    PACKET_RECEIVE_BUFFER_LENGTH);
 
             try
             {
@@ -795,32 +997,54 @@ private void runInReceiveThread()
             }
             catch (IOException e)
             {
-                ioError = true;
+                setIOError();
                 break;
             }
 
-            numberOfReceivedBytes += (long) p.getLength();
+            receivePacket(p);
+        }
+    }
 
-            try
-            {
-                // Do the DatagramPacketFilters accept the received DatagramPacket?
+    /**
+     * Handles a <tt>DatagramPacket</tt> received by {@link #receiveThread} or
+     * by the {@link SelectorReceiveEngine}: filters it, converts it into
+     * <tt>RawPacket</tt>s, notifies the <tt>DatagramPacketListener</tt>s and
+     * pushes the <tt>RawPacket</tt>s out of this <tt>PushSourceStream</tt>.
+     *
+     * @param p the received <tt>DatagramPacket</tt>
+     */
+    void receivePacket(DatagramPacket p)
+    {
+        numberOfReceivedBytes += (long) p.getLength();
 
-                if (accept(p))
-                {
-                    RawPacket[] pkts = createRawPacket(p);
+        try
+        {
+            // Do the DatagramPacketFilters accept the received DatagramPacket?
 
-                    updateDatagramPacketListeners(p);
-                    transferData(pkts);
-                }
-            }
-            catch (Exception e)
+            if (accept(p))
             {
-                // The receive thread should not die as a result of a failure in
-                // the packetization (converting to RawPacket[] and transforming)
-                // or a failure in any of the DatagramPacketFilters.
-                logger.error("Failed to receive a packet: ", e);
+                RawPacket[] pkts = createRawPacket(p);
+
+                updateDatagramPacketListeners(p);
+                transferData(pkts);
             }
         }
+        catch (Exception e)
+        {
+            // The receive thread should not die as a result of a failure in
+            // the packetization (converting to RawPacket[] and transforming)
+            // or a failure in any of the DatagramPacketFilters.
+            logger.error("Failed to receive a packet: ", e);
+        }
+    }
+
+    /**
+     * Notes that an I/O error occurred while receiving through the socket of
+     * this instance. Subsequent reads will indicate the end of the stream.
+     */
+    void setIOError()
+    {
+        ioError = true;
     }
 
     /**
@@ -25,6 +25,7 @@
 
 import net.sf.fmj.media.util.*;
 import org.ice4j.util.*;
+import org.jitsi.impl.neomedia.transform.*;
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.packetlogging.*;
@@ -67,6 +68,14 @@
      */
     private static final int AVERAGE_BITRATE_WINDOW_MS;
 
+    /**
+     * The maximum number of packets which the send thread takes out of
+     * {@link #queue} at once. Taking the packets which are already queued in
+     * batches acquires the lock of the queue once per batch rather than once
+     * per packet.
+     */
+    private static final int SEND_BATCH_SIZE;
+
     /**
      * The flag which controls whether this {@link RTPConnectorOutputStream}
      * should create its own thread which will perform the packetization
@@ -104,6 +113,13 @@
     private static final String POOL_CAPACITY_PNAME
         = RTPConnectorOutputStream.class.getName() + ".POOL_CAPACITY";
 
+    /**
+     * The name of the property which specifies the value of {@link
+     * #SEND_BATCH_SIZE}.
+     */
+    private static final String SEND_BATCH_SIZE_PNAME
+        = RTPConnectorOutputStream.class.getName() + ".SEND_BATCH_SIZE";
+
     /**
      * The name of the property which specifies the value of {@link
      * #AVERAGE_BITRATE_WINDOW_MS}.
@@ -125,6 +141,9 @@
         AVERAGE_BITRATE_WINDOW_MS
             = ConfigUtils.getInt(cfg, AVERAGE_BITRATE_WINDOW_MS_PNAME, 5000);
 
+        SEND_BATCH_SIZE
+            = Math.max(1, ConfigUtils.getInt(cfg, SEND_BATCH_SIZE_PNAME, 16));
+
         // Set PACKET_QUEUE_CAPACITY
         int packetQueueCapacity
             = ConfigUtils.getInt(cfg, PACKET_QUEUE_CAPACITY_PNAME, -1);
@@ -148,6 +167,7 @@
                          + "Send thread: " + USE_SEND_THREAD
                          + ". Pool capacity: " + POOL_CAPACITY
                          + ". Queue capacity: " + PACKET_QUEUE_CAPACITY
+                         + ". Send batch size: " + SEND_BATCH_SIZE
                          + ". Avg bitrate window: " + AVERAGE_BITRATE_WINDOW_MS);
 
         }
@@ -219,13 +239,6 @@ static boolean logPacket(long numOfPacket)
      */
     private PacketLoggingService pktLogging;
 
-    /**
-     * The pool of <tt>RawPacket</tt> instances which reduces the number of
-     * allocations performed by {@link #packetize(byte[], int, int, Object)}.
-     */
-    private final LinkedBlockingQueue<RawPacket> rawPacketPool
-        = new LinkedBlockingQueue<>(POOL_CAPACITY);
-
     /**
      * Stream targets' IP addresses and ports.
      */
@@ -320,38 +333,38 @@ protected RawPacket[] packetize(
     {
         RawPacket[] pkts = new RawPacket[1];
 
-        RawPacket pkt = rawPacketPool.poll();
-        byte[] pktBuffer;
-
-        if (pkt == null)
-        {
-            pktBuffer = new byte[len];
-            pkt = new RawPacket();
-        }
-        else
-        {
-            pktBuffer = pkt.getBuffer();
-        }
+        pkts[0] = createRawPacket(buf, off, len);
+        return pkts;
+    }
 
-        if (pktBuffer.length < len)
-        {
-            /*
-             * XXX It may be argued that if the buffer length is insufficient
-             * once, it will be insufficient more than once. That is why we
-             * recreate it without returning a packet to the pool.
-             */
-            pktBuffer = new byte[len];
-        }
+    /**
+     * Creates a <tt>RawPacket</tt> with a copy of specific packet data in a
+     * buffer from the {@link ByteArrayPool}.
+     *
+     * @param buf the packet data
+     * @param off the offset of the packet data in <tt>buf</tt>
+     * @param len the length of the packet data in <tt>buf</tt>
+     * @return a new <tt>RawPacket</tt> with a copy of the packet data
+     */
+    private static RawPacket createRawPacket(byte[] buf, int off, int len)
+    {
+        RawPacket pkt = RawPacket.createPooled(len);
 
-        pkt.setBuffer(pktBuffer);
-        pkt.setFlags(0);
+        System.arraycopy(buf, off, pkt.getBuffer(), 0, len);
         pkt.setLength(len);
-        pkt.setOffset(0);
-
-        System.arraycopy(buf, off, pktBuffer, 0, len);
+        return pkt;
+    }
 
-        pkts[0] = pkt;
-        return pkts;
+    /**
+     * Returns the buffer of a specific <tt>RawPacket</tt> which has been
+     * consumed to the {@link ByteArrayPool} (or to the
+     * {@link DirectByteBufferPool} if it is off the heap).
+     *
+     * @param pkt the <tt>RawPacket</tt> which has been consumed
+     */
+    private static void poolRawPacket(RawPacket pkt)
+    {
+        pkt.releaseBuffer();
     }
 
     /**
@@ -387,6 +400,27 @@ protected PacketLoggingService getPacketLoggingService()
         return pktLogging;
     }
 
+    /**
+     * Determines whether the send thread of this instance is to transform the
+     * packets which it takes out of its queue at once in a
+     * <tt>PacketBatch</tt> through {@link #transform(PacketBatch, Object)}
+     * rather than one by one through
+     * {@link #packetize(byte[], int, int, Object)}. An extender which returns
+     * <tt>true</tt> is to give a <tt>PacketBatch</tt> the treatment which it
+     * gives the packets of <tt>packetize</tt>.
+     *
+     * The implementation of <tt>RTPConnectorOutputStream</tt> returns
+     * <tt>false</tt>.
+     *
+     * @return <tt>true</tt> if the send thread of this instance is to
+     * transform the packets which it takes out of its queue in a
+     * <tt>PacketBatch</tt>; otherwise, <tt>false</tt>
+     */
+    protected boolean isBatchTransformEnabled()
+    {
+        return false;
+    }
+
     /**
      * Returns whether or not this <tt>RTPConnectorOutputStream</tt> has a valid
      * socket.
@@ -447,7 +481,7 @@ private boolean send(RawPacket packet)
     {
         if(!isSocketValid())
         {
-            rawPacketPool.offer(packet);
+            poolRawPacket(packet);
             return false;
         }
 
@@ -476,13 +510,13 @@ private boolean send(RawPacket packet)
             }
             catch (IOException ioe)
             {
-                rawPacketPool.offer(packet);
+                poolRawPacket(packet);
                 logger.error(
                     "Failed to send a packet to target " + target + ":" + ioe);
                 return false;
             }
         }
-        rawPacketPool.offer(packet);
+        poolRawPacket(packet);
         return true;
     }
 
@@ -657,6 +691,22 @@ protected int write(byte[] buf, int off, int len, Object context)
         return len;
     }
 
+    /**
+     * Transforms in place the packets which the send thread of this instance
+     * has taken out of its queue at once if
+     * {@link #isBatchTransformEnabled()}. The packets of the batch have been
+     * written with the same <tt>context</tt>.
+     *
+     * The implementation of <tt>RTPConnectorOutputStream</tt> does nothing.
+     *
+     * @param batch the packets to transform
+     * @param context the {@code Object} provided to
+     * {@link #write(byte[], int, int, java.lang.Object)}
+     */
+    protected void transform(PacketBatch batch, Object context)
+    {
+    }
+
     /**
      * Sends an array of {@link RawPacket}s to this
      * {@link RTPConnectorOutputStream}'s targets.
@@ -697,7 +747,7 @@ private boolean write(RawPacket[] pkts)
                 }
                 else
                 {
-                    rawPacketPool.offer(pkt);
+                    poolRawPacket(pkt);
                 }
             }
         }
@@ -739,6 +789,19 @@ public long getOutputBitrate(long now)
         final ArrayBlockingQueue<Buffer> pool
             = new ArrayBlockingQueue<>(15);
 
+        /**
+         * The batch of {@link Buffer}s taken out of {@link #queue} at once by
+         * {@link #sendThread}. Reused in order to not allocate per batch.
+         */
+        private final List<Buffer> batch = new ArrayList<>(SEND_BATCH_SIZE);
+
+        /**
+         * The packets of the {@link Buffer}s of {@link #batch} which are
+         * transformed at once if {@link #isBatchTransformEnabled()}. Reused in
+         * order to not allocate per batch.
+         */
+        private final PacketBatch pktBatch = new PacketBatch(SEND_BATCH_SIZE);
+
         /**
          * The maximum number of {@link Buffer}s to be processed by {@link
          * #sendThread} per {@link #perNanos} nanoseconds.
@@ -902,70 +965,189 @@ private void runInSendThread()
                         continue;
                     }
 
-                    if (queueStats != null)
-                    {
-                        queueStats.remove(System.currentTimeMillis());
-                    }
+                    // Take the Buffers which are already queued along with the
+                    // one we have waited for.
+                    batch.add(buffer);
+                    if (SEND_BATCH_SIZE > 1)
+                        queue.drainTo(batch, SEND_BATCH_SIZE - 1);
 
-                    RawPacket[] pkts;
                     try
                     {
-                        // We will sooner or later process the Buffer. Since this
-
-                        // may take a non-negligible amount of time, do it
-                        // before
-                        // taking pacing into account.
-                        pkts
-                            = packetize(
-                                buffer.buf, 0, buffer.len,
-                                buffer.context);
-                    }
-                    catch (Exception e)
-                    {
-                        // The sending thread must not die because of a failure
-                        // in the conversion to RawPacket[] or any of the
-                        // transformations (because of e.g. parsing errors).
-                        logger.error("Failed to handle an outgoing packet: ", e);
-                        continue;
+                        // Pacing is accounted per Buffer.
+                        if (perNanos <= 0 && isBatchTransformEnabled())
+                        {
+                            sendBatch(batch);
+                        }
+                        else
+                        {
+                            for (int i = 0, end = batch.size(); i < end; i++)
+                            {
+                                Buffer b = batch.get(i);
+
+                                if (closed)
+                                    pool.offer(b);
+                                else
+                                    sendBuffer(b);
+                            }
+                        }
                     }
                     finally
                     {
-                        pool.offer(buffer);
+                        batch.clear();
                     }
+                }
+            }
+            finally
+            {
+                queue.clear();
+            }
+        }
+
+        /**
+         * "Packetizes" a specific {@link Buffer} taken out of {@link #queue}
+         * through {@link RTPConnectorOutputStream#packetize(byte[], int, int,
+         * Object)} and sends the resulting packets to this {@link
+         * RTPConnectorOutputStream}'s targets, respecting the pacing policy
+         * if one is configured. Returns {@code buffer} to {@link #pool}.
+         *
+         * @param buffer the {@link Buffer} to send
+         */
+        private void sendBuffer(Buffer buffer)
+        {
+            if (queueStats != null)
+            {
+                queueStats.remove(System.currentTimeMillis());
+            }
+
+            RawPacket[] pkts;
+            try
+            {
+                // We will sooner or later process the Buffer. Since this
+                // may take a non-negligible amount of time, do it before
+                // taking pacing into account.
+                pkts
+                    = packetize(
+                        buffer.buf, 0, buffer.len,
+                        buffer.context);
+            }
+            catch (Exception e)
+            {
+                // The sending thread must not die because of a failure
+                // in the conversion to RawPacket[] or any of the
+                // transformations (because of e.g. parsing errors).
+                logger.error("Failed to handle an outgoing packet: ", e);
+                return;
+            }
+            finally
+            {
+                pool.offer(buffer);
+            }
+
+            if (perNanos > 0 && maxBuffers > 0)
+            {
+                long time = System.nanoTime();
+                long nanosRemainingTime = time - intervalStartTimeNanos;
+
+                if (nanosRemainingTime >= perNanos)
+                {
+                    intervalStartTimeNanos = time;
+                    buffersProcessedInCurrentInterval = 0;
+                }
+                else if (buffersProcessedInCurrentInterval >= maxBuffers)
+                {
+                    LockSupport.parkNanos(nanosRemainingTime);
+                }
+            }
+
+            try
+            {
+                RTPConnectorOutputStream.this.write(pkts);
+            }
+            catch (Exception e)
+            {
+                logger.error("Failed to send a packet: ", e);
+                return;
+            }
 
-                    if (perNanos > 0 && maxBuffers > 0)
+            buffersProcessedInCurrentInterval++;
+        }
+
+        /**
+         * Packetizes the {@link Buffer}s of a specific batch taken out of
+         * {@link #queue}, transforms the resulting packets through
+         * {@link RTPConnectorOutputStream#transform(PacketBatch, Object)} in
+         * one {@link PacketBatch} per run of {@code Buffer}s with the same
+         * context and sends them to this {@link RTPConnectorOutputStream}'s
+         * targets in order. Returns the {@code Buffer}s to {@link #pool}.
+         *
+         * @param buffers the {@link Buffer}s to send
+         */
+        private void sendBatch(List<Buffer> buffers)
+        {
+            for (int i = 0, end = buffers.size(); i < end;)
+            {
+                // A PacketBatch is transformed starting after one
+                // TransformEngine i.e. with one context.
+                Object context = buffers.get(i).context;
+
+                do
+                {
+                    Buffer buffer = buffers.get(i++);
+
+                    if (queueStats != null)
+                    {
+                        queueStats.remove(System.currentTimeMillis());
+                    }
+                    if (!closed)
                     {
-                        long time = System.nanoTime();
-                        long nanosRemainingTime = time - intervalStartTimeNanos;
+                        pktBatch.add(
+                                createRawPacket(buffer.buf, 0, buffer.len));
+                    }
+                    pool.offer(buffer);
+                }
+                while (i < end && buffers.get(i).context == context);
 
-                        if (nanosRemainingTime >= perNanos)
-                        {
-                            intervalStartTimeNanos = time;
-                            buffersProcessedInCurrentInterval = 0;
-                        }
-                        else if (buffersProcessedInCurrentInterval >= maxBuffers)
+                if (pktBatch.size() == 0)
+                    continue;
+
+                try
+                {
+                    try
+                    {
+                        transform(pktBatch, context);
+                    }
+                    catch (Exception e)
+                    {
+                        // The sending thread must not die because of a
+                        // failure in any of the transformations (because of
+                        // e.g. parsing errors).
+                        logger.error(
+                                "Failed to handle an outgoing packet: ", e);
+
+                        // The packets will not be written so their pooled
+                        // buffers are not returned by write.
+                        for (int j = 0, size = pktBatch.size(); j < size; j++)
                         {
-                            LockSupport.parkNanos(nanosRemainingTime);
+                            if (pktBatch.isValid(j))
+                                poolRawPacket(pktBatch.get(j));
                         }
+                        continue;
                     }
 
                     try
                     {
-                        RTPConnectorOutputStream.this.write(pkts);
+                        RTPConnectorOutputStream.this.write(
+                                pktBatch.getPackets());
                     }
                     catch (Exception e)
                     {
                         logger.error("Failed to send a packet: ", e);
-                        continue;
                     }
-
-                    buffersProcessedInCurrentInterval++;
-
                 }
-            }
-            finally
-            {
-                queue.clear();
+                finally
+                {
+                    pktBatch.clear();
+                }
             }
         }
 
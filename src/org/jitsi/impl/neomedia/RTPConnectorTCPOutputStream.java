@@ -83,6 +83,11 @@ protected void doLogPacket(RawPacket packet, InetSocketAddress target)
 
         if (pktLogging != null)
         {
+            // Log a copy of an off-heap packet rather than move it onto the
+            // heap (which getBuffer would do) before it is sent.
+            boolean direct = packet.isDirect();
+            int length = packet.getLength();
+
             pktLogging.logPacket(
                     PacketLoggingService.ProtocolName.RTP,
                     socket.getLocalAddress().getAddress(),
@@ -91,9 +96,9 @@ protected void doLogPacket(RawPacket packet, InetSocketAddress target)
                     target.getPort(),
                     PacketLoggingService.TransportName.TCP,
                     true,
-                    packet.getBuffer(),
-                    packet.getOffset(),
-                    packet.getLength());
+                    direct ? packet.readRegion(0, length) : packet.getBuffer(),
+                    direct ? 0 : packet.getOffset(),
+                    length);
         }
     }
 
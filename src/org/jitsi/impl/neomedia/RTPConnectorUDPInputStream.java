@@ -17,6 +17,7 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 
 import org.ice4j.socket.*;
 import org.jitsi.impl.neomedia.transform.*;
@@ -75,6 +76,18 @@ protected void doLogPacket(DatagramPacket p)
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Returns the <tt>DatagramChannel</tt> of the UDP socket of this instance,
+     * if the socket was created by a <tt>DatagramChannel</tt>.
+     */
+    @Override
+    protected DatagramChannel getDatagramChannel()
+    {
+        return socket.getChannel();
+    }
+
     /**
      * Receive packet.
      *
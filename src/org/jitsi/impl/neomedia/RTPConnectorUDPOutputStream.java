@@ -17,9 +17,13 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
 
 import org.ice4j.socket.*;
 import org.jitsi.service.packetlogging.*;
+import org.jitsi.util.*;
 
 /**
  * RTPConnectorOutputStream implementation for UDP protocol.
@@ -29,6 +33,35 @@
 public class RTPConnectorUDPOutputStream
     extends RTPConnectorOutputStream
 {
+    /**
+     * The <tt>Logger</tt> used by the <tt>RTPConnectorUDPOutputStream</tt>
+     * class and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RTPConnectorUDPOutputStream.class);
+
+    /**
+     * The <tt>DatagramPacket</tt> reused by {@link #sendToTarget(RawPacket,
+     * InetSocketAddress)} to send through {@link #socket} in order to not
+     * allocate one per packet and target.
+     */
+    private final DatagramPacket datagramPacket
+        = new DatagramPacket(new byte[0], 0);
+
+    /**
+     * The number of packets which were not sent because the send buffer of
+     * the non-blocking <tt>DatagramChannel</tt> of {@link #socket} was full.
+     */
+    private final AtomicInteger numSendBufferDrops = new AtomicInteger();
+
+    /**
+     * The direct <tt>ByteBuffer</tt> reused by {@link #sendToTarget(RawPacket,
+     * InetSocketAddress)} to send through the <tt>DatagramChannel</tt> of
+     * {@link #socket}, if any. A direct buffer spares the
+     * <tt>DatagramChannel</tt> the allocation of a temporary one.
+     */
+    private ByteBuffer sendByteBuffer;
+
     /**
      * UDP socket used to send packet data
      */
@@ -44,6 +77,41 @@ public RTPConnectorUDPOutputStream(DatagramSocket socket)
         this.socket = socket;
     }
 
+    /**
+     * Sends a datagram through a specific non-blocking
+     * <tt>DatagramChannel</tt>. The channel sends either the whole datagram or
+     * nothing if its send buffer is full in which case the datagram is retried
+     * once and then dropped.
+     *
+     * @param channel the non-blocking <tt>DatagramChannel</tt> to send through
+     * @param src the <tt>ByteBuffer</tt> with the datagram to send
+     * @param target the <tt>InetSocketAddress</tt> to send to
+     * @throws IOException if <tt>channel</tt> fails to send
+     */
+    private void send(
+            DatagramChannel channel,
+            ByteBuffer src,
+            InetSocketAddress target)
+        throws IOException
+    {
+        if (channel.send(src, target) != 0)
+            return;
+
+        // Give the kernel a chance to drain the send buffer.
+        Thread.yield();
+        if (channel.send(src, target) != 0)
+            return;
+
+        int numDrops = numSendBufferDrops.incrementAndGet();
+
+        if (logDroppedPacket(numDrops))
+        {
+            logger.warn(
+                    "Packets dropped because of a full send buffer (hashCode="
+                        + hashCode() + "): " + numDrops);
+        }
+    }
+
     /**
      * Sends a specific <tt>RawPacket</tt> through this
      * <tt>OutputDataStream</tt> to a specific <tt>InetSocketAddress</tt>.
@@ -60,13 +128,61 @@ public RTPConnectorUDPOutputStream(DatagramSocket socket)
     protected void sendToTarget(RawPacket packet, InetSocketAddress target)
         throws IOException
     {
-        socket.send(
-                new DatagramPacket(
+        DatagramChannel channel = socket.getChannel();
+
+        // Send through the DatagramChannel if it is in non-blocking mode (e.g.
+        // when it is served by the SelectorReceiveEngine) because its socket
+        // adaptor refuses to send then.
+        if (channel != null && !channel.isBlocking())
+        {
+            int length = packet.getLength();
+
+            if (packet.isDirect())
+            {
+                // The packet is off the heap already, send it without
+                // copying.
+                ByteBuffer src = packet.getByteBuffer().duplicate();
+                int offset = packet.getOffset();
+
+                src.limit(offset + length);
+                src.position(offset);
+                send(channel, src, target);
+                return;
+            }
+
+            synchronized (this)
+            {
+                ByteBuffer byteBuffer = sendByteBuffer;
+
+                if (byteBuffer == null || byteBuffer.capacity() < length)
+                {
+                    byteBuffer
+                        = ByteBuffer.allocateDirect(
+                                Math.max(
+                                        length,
+                                        RTPConnectorInputStream
+                                            .PACKET_RECEIVE_BUFFER_LENGTH));
+                    sendByteBuffer = byteBuffer;
+                }
+
+                byteBuffer.clear();
+                byteBuffer.put(packet.getBuffer(), packet.getOffset(), length);
+                byteBuffer.flip();
+                send(channel, byteBuffer, target);
+            }
+        }
+        else
+        {
+            synchronized (datagramPacket)
+            {
+                datagramPacket.setData(
                         packet.getBuffer(),
                         packet.getOffset(),
-                        packet.getLength(),
-                        target.getAddress(),
-                        target.getPort()));
+                        packet.getLength());
+                datagramPacket.setSocketAddress(target);
+                socket.send(datagramPacket);
+            }
+        }
     }
 
     /**
@@ -89,6 +205,11 @@ protected void doLogPacket(RawPacket packet, InetSocketAddress target)
 
         if (pktLogging != null)
         {
+            // Log a copy of an off-heap packet rather than move it onto the
+            // heap (which getBuffer would do) before it is sent.
+            boolean direct = packet.isDirect();
+            int length = packet.getLength();
+
             pktLogging.logPacket(
                     PacketLoggingService.ProtocolName.RTP,
                     socket.getLocalAddress().getAddress(),
@@ -97,9 +218,9 @@ protected void doLogPacket(RawPacket packet, InetSocketAddress target)
                     target.getPort(),
                     PacketLoggingService.TransportName.UDP,
                     true,
-                    packet.getBuffer(),
-                    packet.getOffset(),
-                    packet.getLength());
+                    direct ? packet.readRegion(0, length) : packet.getBuffer(),
+                    direct ? 0 : packet.getOffset(),
+                    length);
         }
     }
 
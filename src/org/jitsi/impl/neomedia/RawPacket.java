@@ -15,6 +15,10 @@
  */
 package org.jitsi.impl.neomedia;
 
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.util.*;
 
 /**
  * When using TransformConnector, a RTP/RTCP packet is represented using
@@ -27,6 +31,14 @@
  * Besides packet info storage, RawPacket also provides some other operations
  * such as readInt() to ease the development process.
  *
+ * The content of a RawPacket is stored either in a <tt>byte</tt> array on the
+ * heap or in a direct <tt>ByteBuffer</tt> off the heap (e.g. a slice of a slab
+ * of {@link DirectByteBufferPool}). The accessors of the RTP/RTCP header
+ * fields and the read/write methods work on either storage. The methods which
+ * hand out or restructure the <tt>byte</tt> array (e.g. {@link #getBuffer()},
+ * {@link #addExtension(byte[], int)}) move an off-heap content onto the heap
+ * first.
+ *
  * FIXME This class needs to be split/merged into RTPHeader, RTCPHeader,
  * ByteBufferUtils, etc.
  *
@@ -50,11 +62,40 @@
      */
     public static final int FIXED_HEADER_SIZE = 12;
 
+    /**
+     * The number of times the content of a <tt>RawPacket</tt> has been moved
+     * from off the heap onto the heap.
+     */
+    private static final AtomicLong heapMoves = new AtomicLong();
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>RawPacket</tt> class and its
+     * instances to print debug information.
+     */
+    private static final Logger logger = Logger.getLogger(RawPacket.class);
+
     /**
      * Byte array storing the content of this Packet
      */
     private byte[] buffer;
 
+    /**
+     * The indicator which determines whether {@link #buffer} has been taken
+     * from {@link ByteArrayPool} for this packet and is to be returned to it
+     * when it is replaced or released. <tt>false</tt> for the arrays which
+     * are owned by the creator of the packet (e.g. the arrays passed to
+     * {@link #RawPacket(byte[], int, int)} and {@link #setBuffer(byte[])}).
+     */
+    private boolean bufferPooled;
+
+    /**
+     * The direct <tt>ByteBuffer</tt> storing the content of this packet if
+     * the content is off the heap. At most one of {@link #buffer} and
+     * <tt>byteBuffer</tt> is non-<tt>null</tt>. The offsets into
+     * <tt>byteBuffer</tt> are absolute i.e. independent of its position.
+     */
+    private ByteBuffer byteBuffer;
+
     /**
      * The bitmap/flag mask that specifies the set of boolean attributes enabled
      * for this <tt>RawPacket</tt>. The value is the logical sum of all of the
@@ -100,6 +141,59 @@ public RawPacket(byte[] buffer, int offset, int length)
         this.length = length;
     }
 
+    /**
+     * Initializes a new <tt>RawPacket</tt> instance which stores its content
+     * off the heap in a specific direct <tt>ByteBuffer</tt>.
+     *
+     * @param byteBuffer the direct <tt>ByteBuffer</tt> to be the storage of
+     * the new instance
+     * @param offset the (absolute) index in <tt>byteBuffer</tt> at which the
+     * actual data to be represented by the new instance starts
+     * @param length the number of <tt>byte</tt>s in <tt>byteBuffer</tt> which
+     * constitute the actual data to be represented by the new instance
+     */
+    public RawPacket(ByteBuffer byteBuffer, int offset, int length)
+    {
+        this.byteBuffer = byteBuffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Initializes a new empty <tt>RawPacket</tt> instance which stores its
+     * content off the heap in a slice of a slab of
+     * {@link DirectByteBufferPool}.
+     *
+     * @param capacity the minimum number of <tt>byte</tt>s which the new
+     * instance is to be able to store
+     * @return a new empty <tt>RawPacket</tt> instance which stores its content
+     * off the heap
+     */
+    public static RawPacket createDirect(int capacity)
+    {
+        return new RawPacket(DirectByteBufferPool.getBuffer(capacity), 0, 0);
+    }
+
+    /**
+     * Initializes a new empty <tt>RawPacket</tt> instance which stores its
+     * content in a <tt>byte</tt> array taken from {@link ByteArrayPool}. The
+     * array is owned by the new instance i.e. it is returned to the pool when
+     * the new instance replaces it (e.g. in {@link #grow(int)}) or
+     * {@link #releaseBuffer()} is invoked.
+     *
+     * @param capacity the minimum number of <tt>byte</tt>s which the new
+     * instance is to be able to store
+     * @return a new empty <tt>RawPacket</tt> instance which stores its content
+     * in a pooled <tt>byte</tt> array
+     */
+    public static RawPacket createPooled(int capacity)
+    {
+        RawPacket pkt = new RawPacket(ByteArrayPool.getBuffer(capacity), 0, 0);
+
+        pkt.bufferPooled = true;
+        return pkt;
+    }
+
     /**
      * Adds the <tt>extBuff</tt> buffer as an extension of this packet
      * according the rules specified in RFC 5285. Note that this method does
@@ -112,6 +206,8 @@ public RawPacket(byte[] buffer, int offset, int length)
      */
     public void addExtension(byte[] extBuff, int newExtensionLen)
     {
+        moveToHeap();
+
         int bufferOffset = offset;
         int newBufferOffset = 0;
         boolean extensionBit = getExtensionBit();
@@ -134,7 +230,7 @@ public void addExtension(byte[] extBuff, int newExtensionLen)
         byte[] newBuffer = buffer;
         if (newBuffer.length < newBuffLen)
         {
-            newBuffer = new byte[newBuffLen];
+            newBuffer = ByteArrayPool.getBuffer(newBuffLen);
         }
 
         // Copy the header, CSRC list and the leading two bytes of the
@@ -194,7 +290,8 @@ public void addExtension(byte[] extBuff, int newExtensionLen)
         System.arraycopy(extBuff, 0,
             newBuffer, newBufferOffset, newExtensionLen);
 
-        buffer = newBuffer;
+        if (newBuffer != buffer)
+            setPooledBuffer(newBuffer);
         this.length = this.length + extraBytes;
         this.offset = 0;
     }
@@ -215,7 +312,18 @@ public void append(byte[] data, int len) {
         // method grow will re-allocate the internal buffer if it's too short.)
         grow(len);
         // Append data.
-        System.arraycopy(data, 0, buffer, length + offset, len);
+        if (buffer == null)
+        {
+            ByteBuffer dst = byteBuffer.duplicate();
+
+            dst.clear();
+            dst.position(length + offset);
+            dst.put(data, 0, len);
+        }
+        else
+        {
+            System.arraycopy(data, 0, buffer, length + offset, len);
+        }
         length += len;
     }
 
@@ -360,8 +468,8 @@ private int findExtension(int extensionID)
                 //      |  ID   |  len  |
                 //      +-+-+-+-+-+-+-+-+
 
-                currType = buffer[extOffset] >> 4;
-                currLen = (buffer[extOffset] & 0x0F) + 1; //add one as per 5285
+                currType = byteAt(extOffset) >> 4;
+                currLen = (byteAt(extOffset) & 0x0F) + 1; //add one as per 5285
 
                 //now skip the header
                 extOffset ++;
@@ -376,8 +484,8 @@ private int findExtension(int extensionID)
                 //      |       ID      |     length    |
                 //      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 
-                currType = buffer[extOffset];
-                currLen = buffer[extOffset + 1];
+                currType = byteAt(extOffset);
+                currLen = byteAt(extOffset + 1);
 
                 //now skip the header
                 extOffset += 2;
@@ -395,15 +503,83 @@ private int findExtension(int extensionID)
     }
 
     /**
-     * Get buffer containing the content of this packet
+     * Reads the <tt>byte</tt> at a specific index of the storage of this
+     * packet regardless of whether the storage is on or off the heap.
+     *
+     * @param index the index in the storage of this packet (i.e. not relative
+     * to {@link #offset}) of the <tt>byte</tt> to read
+     * @return the <tt>byte</tt> at <tt>index</tt>
+     */
+    private byte byteAt(int index)
+    {
+        return (buffer == null) ? byteBuffer.get(index) : buffer[index];
+    }
+
+    /**
+     * Gets the number of <tt>byte</tt>s of the storage of this packet
+     * regardless of whether the storage is on or off the heap.
+     *
+     * @return the number of <tt>byte</tt>s of the storage of this packet or
+     * <tt>0</tt> if this packet has no storage
+     */
+    private int capacity()
+    {
+        if (buffer != null)
+            return buffer.length;
+        else if (byteBuffer != null)
+            return byteBuffer.capacity();
+        else
+            return 0;
+    }
+
+    /**
+     * Get buffer containing the content of this packet. If the content of this
+     * packet is off the heap, it is moved onto the heap first i.e. it is
+     * copied into a buffer from {@link ByteArrayPool}, its direct
+     * <tt>ByteBuffer</tt> is returned to {@link DirectByteBufferPool} and the
+     * packet stays on the heap from then on. The move is counted by
+     * {@link #getHeapMoveCount()} and logged (with the stack trace of the
+     * caller) at the trace level. Code which may handle off-heap packets on a
+     * hot path should use the accessors which work on either storage (e.g.
+     * {@link #readByte(int)}, {@link #writeByte(int, byte)},
+     * {@link #readRegionToBuff(int, int, byte[])} or
+     * {@link #getByteBuffer()}) instead.
      *
      * @return buffer containing the content of this packet
      */
     public byte[] getBuffer()
     {
+        moveToHeap();
         return this.buffer;
     }
 
+    /**
+     * Gets the direct <tt>ByteBuffer</tt> which stores the content of this
+     * packet off the heap. The offsets into the returned
+     * <tt>ByteBuffer</tt> are absolute i.e. {@link #getOffset()} is an index
+     * into it independent of its position.
+     *
+     * @return the direct <tt>ByteBuffer</tt> which stores the content of this
+     * packet off the heap or <tt>null</tt> if the content of this packet is on
+     * the heap
+     */
+    public ByteBuffer getByteBuffer()
+    {
+        return byteBuffer;
+    }
+
+    /**
+     * Determines whether the content of this packet is stored off the heap in
+     * a direct <tt>ByteBuffer</tt>.
+     *
+     * @return <tt>true</tt> if the content of this packet is stored off the
+     * heap; otherwise, <tt>false</tt>
+     */
+    public boolean isDirect()
+    {
+        return byteBuffer != null;
+    }
+
 
     /**
      * Returns the CSRC level at the specified index or <tt>defaultValue</tt>
@@ -439,12 +615,12 @@ private byte getCsrcAudioLevel(byte csrcExtID, int index, byte defaultValue)
                     }
                     else
                     {
-                        level = (byte) (0x7F & buffer[levelsStart + index]);
+                        level = (byte) (0x7F & byteAt(levelsStart + index));
                     }
                 }
             }
         }
-        catch (ArrayIndexOutOfBoundsException e)
+        catch (IndexOutOfBoundsException e)
         {
             // While ideally we should check the bounds everywhere and not
             // attempt to access the packet's buffer at invalid indexes, there
@@ -464,7 +640,10 @@ private byte getCsrcAudioLevel(byte csrcExtID, int index, byte defaultValue)
      */
     public int getCsrcCount()
     {
-        return getCsrcCount(buffer, offset, length);
+        int cc = byteAt(offset) & 0x0f;
+        if (FIXED_HEADER_SIZE + cc * 4 > length)
+            cc = 0;
+        return cc;
     }
 
     /**
@@ -492,7 +671,7 @@ public static int getCsrcCount(byte[] buffer, int offset, int length)
      */
     public boolean getExtensionBit()
     {
-        return getExtensionBit(buffer, offset, length);
+        return (byteAt(offset) & 0x10) == 0x10;
     }
 
     /**
@@ -529,13 +708,13 @@ private int getExtensionHeaderLength()
         int extLenIndex =  offset + FIXED_HEADER_SIZE + getCsrcCount()*4;
 
         //0xBEDE means short extension header.
-        if (buffer[extLenIndex] == (byte)0xBE
-            && buffer[extLenIndex + 1] == (byte)0xDE)
+        if (byteAt(extLenIndex) == (byte)0xBE
+            && byteAt(extLenIndex + 1) == (byte)0xDE)
                 return 1;
 
         //0x100 means a two-byte extension header.
-        if (buffer[extLenIndex]== (byte)0x10
-            && (buffer[extLenIndex + 1] >> 4)== 0)
+        if (byteAt(extLenIndex)== (byte)0x10
+            && (byteAt(extLenIndex + 1) >> 4)== 0)
                 return 2;
 
         return -1;
@@ -548,7 +727,24 @@ private int getExtensionHeaderLength()
      */
     public int getExtensionLength()
     {
-        return getExtensionLength(buffer, offset, length);
+        if (!getExtensionBit())
+            return 0;
+
+        // The extension length comes after the RTP header, the CSRC list, and
+        // two bytes in the extension header called "defined by profile".
+        int csrcCount = getCsrcCount();
+        int len = readShort(FIXED_HEADER_SIZE + csrcCount * 4 + 2) * 4;
+
+        if (len < 0 || len > (length - FIXED_HEADER_SIZE - EXT_HEADER_SIZE -
+            csrcCount*4))
+        {
+            // This is not a valid length. Together with the rest of the
+            // header it exceeds the packet length. So be safe and assume
+            // that there is no extension.
+            len = 0;
+        }
+
+        return len;
     }
 
     /**
@@ -597,6 +793,18 @@ public int getFlags()
         return flags;
     }
 
+    /**
+     * Gets the number of times the content of a <tt>RawPacket</tt> has been
+     * moved from off the heap onto the heap (e.g. by {@link #getBuffer()}).
+     *
+     * @return the number of times the content of a <tt>RawPacket</tt> has
+     * been moved from off the heap onto the heap
+     */
+    public static long getHeapMoveCount()
+    {
+        return heapMoves.get();
+    }
+
     /**
      * Return the define by profile part of the extension header.
      * @return the starting two bytes of extension header.
@@ -618,7 +826,25 @@ public int getHeaderExtensionType()
      */
     public int getHeaderLength()
     {
-        return getHeaderLength(buffer, offset, length);
+        int headerLength = FIXED_HEADER_SIZE + 4 * getCsrcCount();
+
+        // Make sure that the header length doesn't exceed the packet length.
+        if (headerLength > length)
+        {
+            headerLength = length;
+        }
+
+        if (getExtensionBit())
+        {
+            // Make sure that the header length doesn't exceed the packet
+            // length.
+            if (headerLength + EXT_HEADER_SIZE <= length)
+            {
+                headerLength += EXT_HEADER_SIZE + getExtensionLength();
+            }
+        }
+
+        return headerLength;
     }
 
     /**
@@ -683,9 +909,9 @@ private int getLengthForExtension(int contentStart)
         int hdrLen = getExtensionHeaderLength();
 
         if( hdrLen == 1 )
-            return (buffer[contentStart - 1] & 0x0F) + 1;
+            return (byteAt(contentStart - 1) & 0x0F) + 1;
         else
-            return buffer[contentStart - 1];
+            return byteAt(contentStart - 1);
     }
 
     /**
@@ -704,7 +930,7 @@ public int getOffset()
      */
     public int getVersion()
     {
-        return (buffer[offset] & 0xC0) >>> 6;
+        return (byteAt(offset) & 0xC0) >>> 6;
     }
 
     /**
@@ -714,7 +940,10 @@ public int getVersion()
      */
     public int getPaddingSize()
     {
-        return getPaddingSize(buffer, offset, length);
+        if ((byteAt(offset) & 0x20) == 0)
+            return 0;
+        else
+            return 0xFF & byteAt(offset + length - 1);
     }
 
     /**
@@ -759,7 +988,7 @@ public byte[] getPayload()
      */
     public int getPayloadLength()
     {
-        return getPayloadLength(buffer, offset, length);
+        return length - getHeaderLength();
     }
 
     /**
@@ -786,7 +1015,7 @@ public static int getPayloadLength(byte[] buffer, int offset, int length)
      */
     public int getPayloadOffset()
     {
-        return getPayloadOffset(buffer, offset, length);
+        return offset + getHeaderLength();
     }
 
     /**
@@ -810,7 +1039,7 @@ public static int getPayloadOffset(byte[] buffer, int offset, int length)
      */
     public byte getPayloadType()
     {
-        return getPayloadType(buffer, offset, length);
+        return (byte) (byteAt(offset + 1) & (byte)0x7F);
     }
 
     /**
@@ -850,7 +1079,7 @@ public long getRTCPSSRCAsLong()
      */
     public int getRTCPPacketType()
     {
-        return 0xff & buffer[offset + 1];
+        return 0xff & byteAt(offset + 1);
     }
 
     /**
@@ -860,7 +1089,7 @@ public int getRTCPPacketType()
      */
     public int getSequenceNumber()
     {
-        return getSequenceNumber(buffer, offset, length);
+        return readUnsignedShortAsInt(2);
     }
 
     /**
@@ -929,7 +1158,7 @@ public int getSRTCPIndex(int authTagLen)
      */
     public int getSSRC()
     {
-        return getSSRC(buffer, offset, length);
+        return readInt(8);
     }
 
     /**
@@ -951,7 +1180,7 @@ public static int getSSRC(byte[] buffer, int offset, int length)
      */
     public long getSSRCAsLong()
     {
-        return getSSRCAsLong(buffer, offset, length);
+        return getSSRC() & 0xffffffffL;
     }
 
     /**
@@ -974,7 +1203,7 @@ public static long getSSRCAsLong(byte[] buffer, int offset, int length)
      */
     public long getTimestamp()
     {
-        return getTimestamp(buffer, offset, length);
+        return readInt(4) & 0xffffffffL;
     }
 
     /**
@@ -1008,12 +1237,14 @@ public void grow(int howMuch) {
 
         int newLength = length + howMuch;
 
-        if (newLength > buffer.length - offset) {
-            byte[] newBuffer = new byte[newLength];
+        if (newLength > capacity() - offset) {
+            moveToHeap();
+
+            byte[] newBuffer = ByteArrayPool.getBuffer(newLength);
 
             System.arraycopy(buffer, offset, newBuffer, 0, length);
+            setPooledBuffer(newBuffer);
             offset = 0;
-            buffer = newBuffer;
         }
     }
 
@@ -1028,8 +1259,8 @@ public void grow(int howMuch) {
     public boolean isInvalid()
     {
         return
-            (buffer == null)
-                || (buffer.length < offset + length)
+            (buffer == null && byteBuffer == null)
+                || (capacity() < offset + length)
                 || (length < FIXED_HEADER_SIZE);
     }
 
@@ -1040,7 +1271,7 @@ public boolean isInvalid()
      */
     public boolean isPacketMarked()
     {
-        return (buffer[offset + 1] & 0x80) != 0;
+        return (byteAt(offset + 1) & 0x80) != 0;
     }
 
     /**
@@ -1051,7 +1282,7 @@ public boolean isPacketMarked()
      */
     public byte readByte(int off)
     {
-        return buffer[offset + off];
+        return byteAt(offset + off);
     }
 
     /**
@@ -1062,7 +1293,10 @@ public byte readByte(int off)
      */
     public int readInt(int off)
     {
-        return readInt(buffer, offset + off, length);
+        if (buffer == null)
+            return byteBuffer.getInt(offset + off);
+        else
+            return readInt(buffer, offset + off, length);
     }
 
     /**
@@ -1092,12 +1326,12 @@ public static int readInt(byte[] buffer, int offset, int length)
     public byte[] readRegion(int off, int len)
     {
         int startOffset = this.offset + off;
-        if (off < 0 || len <= 0 || startOffset + len > this.buffer.length)
+        if (off < 0 || len <= 0 || startOffset + len > capacity())
             return null;
 
         byte[] region = new byte[len];
 
-        System.arraycopy(this.buffer, startOffset, region, 0, len);
+        copyRegion(startOffset, region, len);
 
         return region;
     }
@@ -1113,13 +1347,38 @@ public byte[] readRegion(int off, int len)
     public void readRegionToBuff(int off, int len, byte[] outBuff)
     {
         int startOffset = this.offset + off;
-        if (off < 0 || len <= 0 || startOffset + len > this.buffer.length)
+        if (off < 0 || len <= 0 || startOffset + len > capacity())
             return;
 
         if (outBuff.length < len)
             return;
 
-        System.arraycopy(this.buffer, startOffset, outBuff, 0, len);
+        copyRegion(startOffset, outBuff, len);
+    }
+
+    /**
+     * Copies a region of the storage of this packet into a <tt>byte</tt>
+     * array regardless of whether the storage is on or off the heap.
+     *
+     * @param index the index in the storage of this packet (i.e. not relative
+     * to {@link #offset}) at which the region starts
+     * @param dst the <tt>byte</tt> array to copy the region into
+     * @param len the length of the region
+     */
+    private void copyRegion(int index, byte[] dst, int len)
+    {
+        if (buffer == null)
+        {
+            ByteBuffer src = byteBuffer.duplicate();
+
+            src.clear();
+            src.position(index);
+            src.get(dst, 0, len);
+        }
+        else
+        {
+            System.arraycopy(buffer, index, dst, 0, len);
+        }
     }
 
     /**
@@ -1130,6 +1389,9 @@ public void readRegionToBuff(int off, int len, byte[] outBuff)
      */
     public short readShort(int off)
     {
+        if (buffer == null)
+            return byteBuffer.getShort(offset + off);
+
         return (short) ((this.buffer[this.offset + off + 0] << 8) |
                         (this.buffer[this.offset + off + 1] & 0xff));
     }
@@ -1142,6 +1404,12 @@ public short readShort(int off)
      */
     public void writeShort(int off, short val)
     {
+        if (buffer == null)
+        {
+            byteBuffer.putShort(offset + off, val);
+            return;
+        }
+
         writeByte(off, (byte) (val>>8 & 0xff));
         writeByte(off + 1, (byte) (val & 0xff));
     }
@@ -1164,6 +1432,9 @@ public byte[] readTimeStampIntoByteArray()
      */
     public long readUnsignedIntAsLong(int off)
     {
+        if (buffer == null)
+            return byteBuffer.getInt(offset + off) & 0xFFFFFFFFL;
+
         int b0 = (0x000000FF & (this.buffer[this.offset + off + 0]));
         int b1 = (0x000000FF & (this.buffer[this.offset + off + 1]));
         int b2 = (0x000000FF & (this.buffer[this.offset + off + 2]));
@@ -1180,7 +1451,7 @@ public long readUnsignedIntAsLong(int off)
      */
     public int readUnsignedShortAsInt(int off)
     {
-        return readUnsignedShortAsInt(buffer, offset + off, length);
+        return readShort(off) & 0xFFFF;
     }
 
     /**
@@ -1209,6 +1480,8 @@ public void removeExtension()
         if(!getExtensionBit())
             return;
 
+        moveToHeap();
+
         int payloadOffset = offset + getHeaderLength();
 
         int extHeaderLen = getExtensionLength() + EXT_HEADER_SIZE;
@@ -1221,12 +1494,81 @@ public void removeExtension()
         setExtensionBit(false);
     }
 
+    /**
+     * Moves the content of this packet onto the heap if it is off the heap.
+     * The direct <tt>ByteBuffer</tt> which stored the content is returned to
+     * {@link DirectByteBufferPool}.
+     */
+    private void moveToHeap()
+    {
+        if (byteBuffer != null)
+        {
+            ByteBuffer src = byteBuffer.duplicate();
+            byte[] newBuffer = ByteArrayPool.getBuffer(src.capacity());
+
+            src.clear();
+            src.get(newBuffer, 0, src.capacity());
+            buffer = newBuffer;
+            bufferPooled = true;
+
+            DirectByteBufferPool.returnBuffer(byteBuffer);
+            byteBuffer = null;
+
+            heapMoves.incrementAndGet();
+            if (logger.isTraceEnabled())
+            {
+                logger.trace(
+                        "Moved the content of a packet onto the heap.",
+                        new Throwable());
+            }
+        }
+    }
+
+    /**
+     * Returns the storage of this packet to {@link ByteArrayPool} or to
+     * {@link DirectByteBufferPool} (depending on whether it is on or off the
+     * heap) and leaves this packet without storage. Neither this packet nor
+     * any reference to its former storage is to be accessed afterwards until a
+     * new storage is set. A <tt>byte</tt> array which this packet has not
+     * taken from <tt>ByteArrayPool</tt> is left to its owner.
+     */
+    public void releaseBuffer()
+    {
+        if (buffer != null)
+        {
+            if (bufferPooled)
+                ByteArrayPool.returnBuffer(buffer);
+            buffer = null;
+            bufferPooled = false;
+        }
+        if (byteBuffer != null)
+        {
+            DirectByteBufferPool.returnBuffer(byteBuffer);
+            byteBuffer = null;
+        }
+    }
+
     /**
      * @param buffer the buffer to set
      */
     public void setBuffer(byte[] buffer)
     {
         this.buffer = buffer;
+        this.bufferPooled = false;
+        this.byteBuffer = null;
+    }
+
+    /**
+     * Sets a direct <tt>ByteBuffer</tt> to store the content of this packet
+     * off the heap.
+     *
+     * @param byteBuffer the direct <tt>ByteBuffer</tt> to set
+     */
+    public void setByteBuffer(ByteBuffer byteBuffer)
+    {
+        this.byteBuffer = byteBuffer;
+        this.buffer = null;
+        this.bufferPooled = false;
     }
 
     /**
@@ -1239,6 +1581,8 @@ public void setBuffer(byte[] buffer)
      */
     public void setCsrcList(long[] newCsrcList)
     {
+        moveToHeap();
+
         int newCsrcCount = newCsrcList.length;
         byte[] csrcBuff = new byte[newCsrcCount * 4];
         int csrcOffset = 0;
@@ -1305,9 +1649,9 @@ public void setCsrcList(long[] newCsrcList)
     private void setExtensionBit(boolean extBit)
     {
         if(extBit)
-            buffer[offset] |= 0x10;
+            writeByte(0, (byte) (byteAt(offset) | 0x10));
         else
-            buffer[offset] &= 0xEF;
+            writeByte(0, (byte) (byteAt(offset) & 0xEF));
     }
 
     /**
@@ -1340,11 +1684,11 @@ public void setMarker(boolean marker)
     {
         if(marker)
         {
-             buffer[offset + 1] |= (byte) 0x80;
+            writeByte(1, (byte) (byteAt(offset + 1) | 0x80));
         }
         else
         {
-            buffer[offset + 1] &= (byte) 0x7F;
+            writeByte(1, (byte) (byteAt(offset + 1) & 0x7F));
         }
     }
 
@@ -1368,7 +1712,25 @@ public void setPayloadType(byte payload)
         //bit is 0 so that we don't accidentally overwrite the marker.
         payload &= (byte)0x7F;
 
-        buffer[offset + 1] = (byte)((buffer[offset + 1] & 0x80) | payload);
+        writeByte(1, (byte)((byteAt(offset + 1) & 0x80) | payload));
+    }
+
+    /**
+     * Replaces the <tt>byte</tt> array of this packet with one which this
+     * packet has taken from {@link ByteArrayPool}. The replaced array is
+     * returned to the pool only if this packet has taken it from the pool as
+     * well because the arrays of the creators of packets (e.g. a recorder or
+     * a file reader) may still be in use by them.
+     *
+     * @param newBuffer the pooled <tt>byte</tt> array to store the content of
+     * this packet in
+     */
+    private void setPooledBuffer(byte[] newBuffer)
+    {
+        if (bufferPooled && buffer != null)
+            ByteArrayPool.returnBuffer(buffer);
+        buffer = newBuffer;
+        bufferPooled = true;
     }
 
     /**
@@ -1378,7 +1740,7 @@ public void setPayloadType(byte payload)
       */
     public void setSequenceNumber(int seq)
     {
-        RawPacket.setSequenceNumber(buffer, offset, seq);
+        writeShort(2, (short) seq);
     }
 
     /**
@@ -1397,7 +1759,7 @@ public void setSSRC(int ssrc)
      */
     public void setTimestamp(long timestamp)
     {
-        setTimestamp(buffer, offset, length, timestamp);
+        writeInt(4, (int) timestamp);
     }
 
     /**
@@ -1423,7 +1785,10 @@ public void shrink(int len)
      */
     public void writeByte(int off, byte b)
     {
-        buffer[offset + off] = b;
+        if (buffer == null)
+            byteBuffer.put(offset + off, b);
+        else
+            buffer[offset + off] = b;
     }
 
     /**
@@ -1434,6 +1799,12 @@ public void writeByte(int off, byte b)
      */
     public void writeInt(int off, int data)
     {
+        if (buffer == null)
+        {
+            byteBuffer.putInt(offset + off, data);
+            return;
+        }
+
         buffer[offset + off++] = (byte)(data>>24);
         buffer[offset + off++] = (byte)(data>>16);
         buffer[offset + off++] = (byte)(data>>8);
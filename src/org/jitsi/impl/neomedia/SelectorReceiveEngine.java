@@ -0,0 +1,432 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.sf.fmj.media.util.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+import org.jitsi.util.Logger; // Disambiguation.
+
+/**
+ * Implements a receive engine which serves the <tt>DatagramChannel</tt>s of
+ * many <tt>RTPConnectorInputStream</tt>s with a small, fixed number of
+ * <tt>Selector</tt>-driven I/O threads instead of one blocking receive thread
+ * per <tt>RTPConnectorInputStream</tt>. The number of threads scales with the
+ * number of available processors rather than with the number of streams.
+ *
+ * Each channel is registered with exactly one I/O thread so the packets of an
+ * <tt>RTPConnectorInputStream</tt> are still delivered by a single thread at a
+ * time and in the order of their receipt. The received packets are handed to
+ * {@link RTPConnectorInputStream#receivePacket(DatagramPacket)} i.e. they go
+ * through the same <tt>DatagramPacketFilter</tt>s,
+ * <tt>DatagramPacketListener</tt>s and <tt>SourceTransferHandler</tt> as the
+ * packets received by a dedicated receive thread.
+ */
+public class SelectorReceiveEngine
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>SelectorReceiveEngine</tt> class and
+     * its instances to print debug information.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SelectorReceiveEngine.class);
+
+    /**
+     * The maximum number of datagrams to be read from a single ready channel
+     * before the I/O thread moves on to the next ready channel. Keeps a single
+     * busy channel from starving the others served by the same thread.
+     */
+    private static final int MAX_PACKETS_PER_SELECT = 16;
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> and/or <tt>System</tt>
+     * integer property which specifies the number of I/O threads of the
+     * (single) <tt>SelectorReceiveEngine</tt> instance. The default value is
+     * the number of available processors.
+     */
+    public static final String THREAD_COUNT_PNAME
+        = SelectorReceiveEngine.class.getName() + ".THREAD_COUNT";
+
+    /**
+     * The (single) <tt>SelectorReceiveEngine</tt> instance shared by all
+     * <tt>RTPConnectorInputStream</tt>s.
+     */
+    private static SelectorReceiveEngine instance;
+
+    /**
+     * Gets the (single) <tt>SelectorReceiveEngine</tt> instance shared by all
+     * <tt>RTPConnectorInputStream</tt>s, initializing it if necessary.
+     *
+     * @return the <tt>SelectorReceiveEngine</tt> instance shared by all
+     * <tt>RTPConnectorInputStream</tt>s
+     * @throws IOException if a <tt>Selector</tt> cannot be opened
+     */
+    public static synchronized SelectorReceiveEngine getInstance()
+        throws IOException
+    {
+        if (instance == null)
+        {
+            ConfigurationService cfg = LibJitsi.getConfigurationService();
+            int threadCount
+                = ConfigUtils.getInt(
+                        cfg,
+                        THREAD_COUNT_PNAME,
+                        Runtime.getRuntime().availableProcessors());
+
+            instance = new SelectorReceiveEngine(threadCount);
+        }
+        return instance;
+    }
+
+    /**
+     * The I/O threads of this <tt>SelectorReceiveEngine</tt>.
+     */
+    private final IOThread[] ioThreads;
+
+    /**
+     * Initializes a new <tt>SelectorReceiveEngine</tt> instance with a
+     * specific number of I/O threads.
+     *
+     * @param threadCount the number of I/O threads of the new instance
+     * @throws IOException if a <tt>Selector</tt> cannot be opened
+     */
+    public SelectorReceiveEngine(int threadCount)
+        throws IOException
+    {
+        if (threadCount < 1)
+            threadCount = 1;
+
+        ioThreads = new IOThread[threadCount];
+        for (int i = 0; i < threadCount; i++)
+        {
+            IOThread ioThread = new IOThread(i);
+
+            ioThreads[i] = ioThread;
+            ioThread.start();
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Started " + threadCount + " I/O threads.");
+    }
+
+    /**
+     * Gets the number of I/O threads of this <tt>SelectorReceiveEngine</tt>.
+     *
+     * @return the number of I/O threads of this
+     * <tt>SelectorReceiveEngine</tt>
+     */
+    public int getThreadCount()
+    {
+        return ioThreads.length;
+    }
+
+    /**
+     * Registers a specific <tt>DatagramChannel</tt> with this
+     * <tt>SelectorReceiveEngine</tt> so that the datagrams received through it
+     * are delivered to a specific <tt>RTPConnectorInputStream</tt>. Puts the
+     * channel in non-blocking mode.
+     *
+     * @param channel the <tt>DatagramChannel</tt> to register
+     * @param stream the <tt>RTPConnectorInputStream</tt> to deliver the
+     * datagrams received through <tt>channel</tt> to
+     * @throws IOException if <tt>channel</tt> cannot be put in non-blocking
+     * mode
+     */
+    void register(DatagramChannel channel, RTPConnectorInputStream<?> stream)
+        throws IOException
+    {
+        channel.configureBlocking(false);
+
+        // Serve the new channel on the least loaded I/O thread.
+        IOThread ioThread = ioThreads[0];
+
+        for (int i = 1; i < ioThreads.length; i++)
+        {
+            if (ioThreads[i].channelCount.get()
+                    < ioThread.channelCount.get())
+                ioThread = ioThreads[i];
+        }
+        ioThread.register(channel, stream);
+    }
+
+    /**
+     * Unregisters a specific <tt>DatagramChannel</tt> from this
+     * <tt>SelectorReceiveEngine</tt>.
+     *
+     * @param channel the <tt>DatagramChannel</tt> to unregister
+     */
+    void unregister(DatagramChannel channel)
+    {
+        for (IOThread ioThread : ioThreads)
+        {
+            if (ioThread.unregister(channel))
+                break;
+        }
+    }
+
+    /**
+     * Represents a <tt>Thread</tt> which selects the ready
+     * <tt>DatagramChannel</tt>s registered with it and reads their datagrams.
+     */
+    private static class IOThread
+        extends Thread
+    {
+        /**
+         * The number of channels currently served by this thread.
+         */
+        private final AtomicInteger channelCount = new AtomicInteger();
+
+        /**
+         * The <tt>DatagramPacket</tt> which describes the most recently read
+         * datagram to the <tt>RTPConnectorInputStream</tt>s.
+         */
+        private final DatagramPacket p = new DatagramPacket(new byte[0], 0);
+
+        /**
+         * The channels (with their associated streams) to be registered with
+         * {@link #selector} on this thread. Polled under the monitor of this
+         * instance so that {@link #unregister(DatagramChannel)} finds a
+         * channel either here or registered with <tt>selector</tt>.
+         */
+        private final Queue<Object[]> registrations
+            = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The <tt>Selector</tt> which selects the ready channels served by
+         * this thread.
+         */
+        private final Selector selector;
+
+        /**
+         * Initializes a new <tt>IOThread</tt> instance.
+         *
+         * @param index the index of the new instance in its
+         * <tt>SelectorReceiveEngine</tt>
+         * @throws IOException if a <tt>Selector</tt> cannot be opened
+         */
+        IOThread(int index)
+            throws IOException
+        {
+            selector = Selector.open();
+
+            setDaemon(true);
+            setName(SelectorReceiveEngine.class.getName() + ".ioThread-"
+                        + index);
+            RTPConnectorInputStream.setThreadPriority(
+                    this,
+                    MediaThread.getNetworkPriority());
+        }
+
+        /**
+         * Reads the datagrams available on the channel of a specific ready
+         * <tt>SelectionKey</tt> and delivers them to the associated
+         * <tt>RTPConnectorInputStream</tt>. The datagrams are read directly
+         * into the buffers of the pooled <tt>RawPacket</tt>s of the
+         * <tt>RTPConnectorInputStream</tt>.
+         *
+         * @param key the ready <tt>SelectionKey</tt>
+         */
+        private void read(SelectionKey key)
+        {
+            DatagramChannel channel = (DatagramChannel) key.channel();
+            RTPConnectorInputStream<?> stream
+                = (RTPConnectorInputStream<?>) key.attachment();
+
+            for (int i = 0; i < MAX_PACKETS_PER_SELECT; i++)
+            {
+                ByteBuffer byteBuffer = stream.getReceiveByteBuffer();
+                SocketAddress from;
+
+                byteBuffer.clear();
+                try
+                {
+                    from = channel.receive(byteBuffer);
+                }
+                catch (IOException ioe)
+                {
+                    if (ioe instanceof ClosedChannelException
+                            || !channel.isOpen())
+                    {
+                        // The same as a dedicated receive thread, stop
+                        // receiving once the channel has been closed.
+                        cancel(key);
+                        stream.setIOError();
+                    }
+                    else
+                    {
+                        // Unlike DatagramSocket, DatagramChannel reports the
+                        // ICMP errors caused by previously sent datagrams
+                        // (e.g. PortUnreachableException) on receive. The
+                        // dedicated receive thread never saw them so keep
+                        // the channel registered and try again on the next
+                        // select.
+                        if (ioe instanceof PortUnreachableException)
+                        {
+                            if (logger.isDebugEnabled())
+                                logger.debug("Ignoring receive error: " + ioe);
+                        }
+                        else
+                        {
+                            logger.warn("Ignoring receive error: " + ioe);
+                        }
+                    }
+                    break;
+                }
+                if (from == null)
+                    break;
+
+                p.setData(byteBuffer.array(), 0, byteBuffer.position());
+                p.setSocketAddress(from);
+                stream.receivePacket(p);
+            }
+        }
+
+        /**
+         * Schedules a specific <tt>DatagramChannel</tt> for registration with
+         * {@link #selector}.
+         *
+         * @param channel the <tt>DatagramChannel</tt> to register
+         * @param stream the <tt>RTPConnectorInputStream</tt> to deliver the
+         * datagrams received through <tt>channel</tt> to
+         */
+        void register(
+                DatagramChannel channel,
+                RTPConnectorInputStream<?> stream)
+        {
+            channelCount.incrementAndGet();
+            registrations.add(new Object[] { channel, stream });
+            selector.wakeup();
+        }
+
+        /**
+         * Registers the channels scheduled for registration by
+         * {@link #register(DatagramChannel, RTPConnectorInputStream)}.
+         * Invoked on this thread because <tt>SelectableChannel.register</tt>
+         * blocks while the <tt>Selector</tt> is selecting.
+         */
+        private synchronized void processRegistrations()
+        {
+            Object[] registration;
+
+            while ((registration = registrations.poll()) != null)
+            {
+                DatagramChannel channel = (DatagramChannel) registration[0];
+
+                try
+                {
+                    channel.register(
+                            selector,
+                            SelectionKey.OP_READ,
+                            registration[1]);
+                }
+                catch (ClosedChannelException cce)
+                {
+                    // The stream was closed before it was registered.
+                    channelCount.decrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    selector.select();
+                    processRegistrations();
+
+                    Iterator<SelectionKey> keys
+                        = selector.selectedKeys().iterator();
+
+                    while (keys.hasNext())
+                    {
+                        SelectionKey key = keys.next();
+
+                        keys.remove();
+                        if (key.isValid() && key.isReadable())
+                            read(key);
+                    }
+                }
+                catch (Throwable t)
+                {
+                    // The I/O thread serves many streams and must not die as a
+                    // result of a failure of one of them.
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    else
+                        logger.error("Failed to select/receive: ", t);
+                }
+            }
+        }
+
+        /**
+         * Cancels a specific <tt>SelectionKey</tt> of {@link #selector}.
+         *
+         * @param key the <tt>SelectionKey</tt> to cancel
+         */
+        private synchronized void cancel(SelectionKey key)
+        {
+            if (key.isValid())
+            {
+                key.cancel();
+                channelCount.decrementAndGet();
+            }
+        }
+
+        /**
+         * Unregisters a specific <tt>DatagramChannel</tt> from
+         * {@link #selector} if it is registered with it or removes it from
+         * {@link #registrations} if it is still scheduled for registration.
+         *
+         * @param channel the <tt>DatagramChannel</tt> to unregister
+         * @return <tt>true</tt> if <tt>channel</tt> was registered with this
+         * thread; otherwise, <tt>false</tt>
+         */
+        synchronized boolean unregister(DatagramChannel channel)
+        {
+            for (Iterator<Object[]> i = registrations.iterator(); i.hasNext();)
+            {
+                if (i.next()[0] == channel)
+                {
+                    i.remove();
+                    channelCount.decrementAndGet();
+                    return true;
+                }
+            }
+
+            SelectionKey key = channel.keyFor(selector);
+
+            if (key == null)
+                return false;
+
+            cancel(key);
+            selector.wakeup();
+            return true;
+        }
+    }
+}
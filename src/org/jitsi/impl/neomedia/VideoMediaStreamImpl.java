@@ -1312,7 +1312,16 @@ public void updateQualityControl(Map<String, String> advancedParams)
     @Override
     protected CachingTransformer createCachingTransformer()
     {
-        return new CachingTransformer();
+        return new CachingTransformer(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected RtxTransformer createRtxTransformer()
+    {
+        return new RtxTransformer(this);
     }
 
     /**
@@ -129,6 +129,38 @@ public NACKPacket(long senderSSRC, long sourceSSRC,
         this.lostPackets = sorted;
     }
 
+    /**
+     * Initializes a new <tt>RawPacket</tt> which represents a NACK packet with
+     * specific "packet sender SSRC" and "media source SSRC" values and
+     * specific (packed) NACK entries. Allows the NACK entries to be built
+     * without the intermediate collections of the <tt>NACKPacket</tt>
+     * constructor.
+     *
+     * @param senderSSRC the value to use for the "packet sender SSRC" field.
+     * @param sourceSSRC the value to use for the "media source SSRC" field.
+     * @param fci the NACK entries (i.e. 16-bit PID followed by 16-bit BLP).
+     * @param fciLength the length in bytes of the NACK entries in
+     * <tt>fci</tt>. Must be a multiple of 4.
+     * @return a new <tt>RawPacket</tt> which represents the NACK packet
+     */
+    public static RawPacket toRawPacket(
+            long senderSSRC, long sourceSSRC,
+            byte[] fci, int fciLength)
+    {
+        int len = 12 + fciLength;
+        byte[] buf = new byte[len];
+
+        buf[0] = (byte) (0x80 /* version */ | FMT);
+        buf[1] = (byte) RTPFB;
+        buf[2] = (byte) (((len / 4 - 1) & 0xFF00) >> 8);
+        buf[3] = (byte) ((len / 4 - 1) & 0x00FF);
+        RTCPFeedbackMessagePacket.writeSSRC(senderSSRC, buf, 4);
+        RTCPFeedbackMessagePacket.writeSSRC(sourceSSRC, buf, 8);
+        System.arraycopy(fci, 0, buf, 12, fciLength);
+
+        return new RawPacket(buf, 0, len);
+    }
+
     /**
      * Gets the set of sequence numbers reported lost in this NACK packet.
      * @return
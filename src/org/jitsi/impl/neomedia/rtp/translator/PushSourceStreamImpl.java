@@ -24,6 +24,7 @@
 
 import org.ice4j.util.*;
 import org.jitsi.impl.neomedia.*;
+import org.jitsi.util.*;
 import org.jitsi.util.Logger; // Disambiguation.
 
 /**
@@ -83,7 +84,8 @@
 
     /**
      * The pool of <tt>SourcePacket</tt> instances to reduce their
-     * allocations and garbage collection.
+     * allocations and garbage collection. The buffers of the
+     * <tt>SourcePacket</tt>s come from the {@link ByteArrayPool}.
      */
     private final Queue<SourcePacket> sourcePacketPool
         = new LinkedBlockingQueue<>(RTPConnectorOutputStream.POOL_CAPACITY);
@@ -258,8 +260,7 @@ public int read(byte[] buffer, int offset, int length)
         int read = pktLength;
         int flags = pkt.getFlags();
 
-        pkt.streamDesc = null;
-        sourcePacketPool.offer(pkt);
+        poolSourcePacket(pkt);
 
         if (read > 0)
         {
@@ -402,18 +403,25 @@ public void transferData(PushSourceStream stream)
         SourcePacket pkt = sourcePacketPool.poll();
         byte[] buf;
 
-        if (pkt == null || (buf = pkt.getBuffer()).length < len)
+        if (pkt == null)
         {
-            buf = new byte[len];
+            buf = ByteArrayPool.getBuffer(len);
             pkt = new SourcePacket(buf, 0, 0);
         }
         else
         {
-            len = buf.length;
+            buf = pkt.getBuffer();
+            if (buf.length < len)
+            {
+                ByteArrayPool.returnBuffer(buf);
+                buf = ByteArrayPool.getBuffer(len);
+                pkt.setData(buf);
+            }
             pkt.setFlags(0);
             pkt.setLength(0);
             pkt.setOffset(0);
         }
+        len = buf.length;
 
         int read = 0;
 
@@ -479,7 +487,7 @@ else if (readQSize < readQCapacity)
                     long now = System.currentTimeMillis();
                     if (readQ.size() >= readQCapacity)
                     {
-                        readQ.remove();
+                        poolSourcePacket(readQ.remove());
                         if (readQStats != null)
                         {
                             readQStats.remove(now);
@@ -510,9 +518,23 @@ else if (readQSize < readQCapacity)
             }
             else
             {
-                pkt.streamDesc = null;
-                sourcePacketPool.offer(pkt);
+                poolSourcePacket(pkt);
             }
         }
     }
+
+    /**
+     * Pools a specific <tt>SourcePacket</tt> in order to avoid future
+     * allocations and to reduce the effects of garbage collection. If
+     * {@link #sourcePacketPool} is full, the buffer of <tt>pkt</tt> is returned
+     * to the {@link ByteArrayPool}.
+     *
+     * @param pkt the <tt>SourcePacket</tt> to pool
+     */
+    private void poolSourcePacket(SourcePacket pkt)
+    {
+        pkt.streamDesc = null;
+        if (!sourcePacketPool.offer(pkt))
+            ByteArrayPool.returnBuffer(pkt.getBuffer());
+    }
 }
@@ -95,6 +95,22 @@ public PacketTransformer getRTCPTransformer()
         return null;
     }
 
+    /**
+     * Gets the value of {@link System#nanoTime()} converted to the 24-bit
+     * fixed point (6.18) format specified in
+     * {@link "http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time"}.
+     *
+     * @return the current abs-send-time timestamp in the lower 24 bits
+     */
+    private int getTimestamp()
+    {
+        long ns = System.nanoTime();
+        int fraction = (int) ( (ns % b) * (1 << 18) / b );
+        int seconds = (int) ((ns / b) % 64); //6 bits only
+
+        return (seconds << 18 | fraction) & 0x00FFFFFF;
+    }
+
     /**
      * Tries to find an RTP header extensions with an ID of {@link #extensionID}
      * in <tt>pkt</tt> and tries to replace its timestamp with one
@@ -108,8 +124,11 @@ private boolean replaceExtension(RawPacket pkt)
         if (!pkt.getExtensionBit())
             return false;
 
-        byte[] buf = pkt.getBuffer();
-        int extensionOffset = pkt.getOffset();
+        // The packet is accessed through the RawPacket accessors (rather than
+        // its byte array) so that a packet stored off the heap is not moved
+        // onto the heap. The offsets are relative to the packet.
+        int length = pkt.getLength();
+        int extensionOffset = 0;
 
         // Skip the fixed header.
         extensionOffset += RawPacket.FIXED_HEADER_SIZE;
@@ -118,38 +137,45 @@ private boolean replaceExtension(RawPacket pkt)
 
         // We need at least 4 bytes for the "defined by profile" and "length"
         // fields.
-        if (buf.length < extensionOffset + 4)
+        if (length < extensionOffset + 4)
         {
             return false;
         }
 
         // We only understand the RFC5285 one-byte header format recognized
         // by the 0xBEDE value in the 'defined by profile' field.
-        if (buf[extensionOffset++] != (byte) 0xBE)
+        if (pkt.readByte(extensionOffset++) != (byte) 0xBE)
         {
             return false;
         }
-        if (buf[extensionOffset++] != (byte) 0xDE)
+        if (pkt.readByte(extensionOffset++) != (byte) 0xDE)
         {
             return false;
         }
 
-        int lengthInWords = (buf[extensionOffset++] & 0xFF) << 8
-            | (buf[extensionOffset++] & 0xFF);
+        int lengthInWords = pkt.readUnsignedShortAsInt(extensionOffset);
+
+        extensionOffset += 2;
 
         // Length in bytes of the header extensions
         int lengthInBytes = 4 * (1 + lengthInWords);
 
         int innerOffset = 0;
-        while (extensionOffset < buf.length && innerOffset < lengthInBytes)
+        while (extensionOffset < length && innerOffset < lengthInBytes)
         {
-            int id = (buf[extensionOffset] & 0xf0) >> 4;
-            int len = buf[extensionOffset] & 0x0f;
+            byte idAndLen = pkt.readByte(extensionOffset);
+            int id = (idAndLen & 0xf0) >> 4;
+            int len = idAndLen & 0x0f;
             if (id == extensionID)
             {
-                if (len == 2 && extensionOffset + 3 < buf.length)
+                if (len == 2 && extensionOffset + 3 < length)
                 {
-                    setTimestamp(buf, extensionOffset + 1);
+                    int timestamp = getTimestamp();
+                    int off = extensionOffset + 1;
+
+                    pkt.writeByte(off, (byte) (timestamp >> 16));
+                    pkt.writeByte(off + 1, (byte) (timestamp >> 8));
+                    pkt.writeByte(off + 2, (byte) timestamp);
                     return true;
                 }
                 else
@@ -201,11 +227,7 @@ private void addExtension(RawPacket pkt)
      */
     private void setTimestamp(byte[] buf, int off)
     {
-        long ns = System.nanoTime();
-        int fraction = (int) ( (ns % b) * (1 << 18) / b );
-        int seconds = (int) ((ns / b) % 64); //6 bits only
-
-        int timestamp = (seconds << 18 | fraction) & 0x00FFFFFF;
+        int timestamp = getTimestamp();
 
         buf[off] = (byte) (timestamp >> 16);
         buf[off+1] = (byte) (timestamp >> 8);
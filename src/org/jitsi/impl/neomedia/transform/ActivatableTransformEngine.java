@@ -0,0 +1,63 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import java.beans.*;
+
+/**
+ * Represents a <tt>TransformEngine</tt> which may be configured as a no-op
+ * (i.e. inactive) at times. A <tt>TransformEngineChain</tt> skips the inactive
+ * <tt>ActivatableTransformEngine</tt>s and is notified about changes of their
+ * activity through {@link #ACTIVE_PNAME} property change events.
+ */
+public interface ActivatableTransformEngine
+    extends TransformEngine
+{
+    /**
+     * The name of the property which indicates whether an
+     * <tt>ActivatableTransformEngine</tt> is active.
+     */
+    public static final String ACTIVE_PNAME
+        = ActivatableTransformEngine.class.getName() + ".active";
+
+    /**
+     * Adds a <tt>PropertyChangeListener</tt> to be notified about changes in
+     * the values of the properties of this instance (e.g.
+     * {@link #ACTIVE_PNAME}).
+     *
+     * @param listener the <tt>PropertyChangeListener</tt> to be notified
+     */
+    public void addPropertyChangeListener(PropertyChangeListener listener);
+
+    /**
+     * Determines whether this <tt>TransformEngine</tt> does any work i.e.
+     * whether its <tt>PacketTransformer</tt>s may modify or drop packets or
+     * otherwise need to see them.
+     *
+     * @return <tt>true</tt> if this <tt>TransformEngine</tt> is active or
+     * <tt>false</tt> if it passes every packet through untouched
+     */
+    public boolean isActive();
+
+    /**
+     * Removes a <tt>PropertyChangeListener</tt> from the listeners to be
+     * notified about changes in the values of the properties of this
+     * instance.
+     *
+     * @param listener the <tt>PropertyChangeListener</tt> to be removed
+     */
+    public void removePropertyChangeListener(PropertyChangeListener listener);
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+/**
+ * Extends the <tt>PacketTransformer</tt> interface with methods which
+ * transform a <tt>PacketBatch</tt> in place. Packets are dropped by
+ * invalidating their slots and added by appending them to the batch so that
+ * no <tt>RawPacket</tt> arrays are allocated.
+ *
+ * <tt>TransformEngineChain.PacketTransformerChain</tt> uses these methods for
+ * the <tt>PacketTransformer</tt>s which implement them and falls back to the
+ * <tt>RawPacket[]</tt>-based methods for the others.
+ */
+public interface BatchPacketTransformer
+    extends PacketTransformer
+{
+    /**
+     * Reverse-transforms each packet in a batch of packets in place. Invalid
+     * slots must be ignored.
+     *
+     * @param batch the transformed packets to be restored
+     */
+    public void reverseTransform(PacketBatch batch);
+
+    /**
+     * Transforms each packet in a batch of packets in place. Invalid slots
+     * must be ignored.
+     *
+     * @param batch the packets to be transformed
+     */
+    public void transform(PacketBatch batch);
+}
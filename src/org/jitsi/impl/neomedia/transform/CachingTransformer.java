@@ -18,10 +18,13 @@
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.*;
 import org.jitsi.service.neomedia.rtp.*;
 import org.jitsi.util.*;
 import org.jitsi.util.concurrent.*;
 
+import java.nio.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
@@ -75,6 +78,133 @@
     public final static String NACK_CACHE_SIZE_MILLIS
             = "org.jitsi.impl.neomedia.transform.CachingTransformer.CACHE_SIZE_MILLIS";
 
+    /**
+     * Configuration property which specifies whether the cached packets are to
+     * be stored off the heap.
+     */
+    public final static String NACK_CACHE_DIRECT
+            = "org.jitsi.impl.neomedia.transform.CachingTransformer.CACHE_DIRECT";
+
+    /**
+     * Configuration property for the size in bytes of the packets cached by
+     * all <tt>CachingTransformer</tt>s combined (i.e. node-wide).
+     */
+    public final static String NACK_CACHE_SIZE_BYTES
+            = "org.jitsi.impl.neomedia.transform.CachingTransformer.CACHE_SIZE_BYTES";
+
+    /**
+     * The upper bounds in milliseconds of the ranges of the ages of the
+     * requested packets by which the hits and the misses of all
+     * <tt>CachingTransformer</tt>s are counted. The last range is unbounded.
+     */
+    private static final int[] AGE_BUCKET_BOUNDS_MILLIS
+        = { 20, 50, 100, 200, 500, 1000 };
+
+    /**
+     * The number of hits of all <tt>CachingTransformer</tt>s by the age of the
+     * requested packets.
+     *
+     * @see #AGE_BUCKET_BOUNDS_MILLIS
+     */
+    private static final AtomicLongArray ageHits
+        = new AtomicLongArray(AGE_BUCKET_BOUNDS_MILLIS.length + 1);
+
+    /**
+     * The number of misses of all <tt>CachingTransformer</tt>s by the age of
+     * the requested packets. The age of a missed packet is known if the packet
+     * has been cached and removed (e.g. because it exceeded the age limit or
+     * the byte budget).
+     *
+     * @see #AGE_BUCKET_BOUNDS_MILLIS
+     */
+    private static final AtomicLongArray ageMisses
+        = new AtomicLongArray(AGE_BUCKET_BOUNDS_MILLIS.length + 1);
+
+    /**
+     * The number of misses of all <tt>CachingTransformer</tt>s of packets the
+     * age of which is not known (e.g. the packets have not been cached).
+     */
+    private static final AtomicLong unknownAgeMisses = new AtomicLong();
+
+    /**
+     * The <tt>Cache</tt>s of all <tt>CachingTransformer</tt>s among which the
+     * packets are evicted when the byte budget is exceeded.
+     */
+    private static final Set<Cache> allCaches
+        = Collections.newSetFromMap(new ConcurrentHashMap<Cache,Boolean>());
+
+    /**
+     * The (approximate) size in bytes of the packets cached by all
+     * <tt>CachingTransformer</tt>s combined. The <tt>Cache</tt>s report the
+     * changes of their sizes in batches of at least
+     * {@link #flushThresholdBytes}.
+     */
+    private static final AtomicLong globalSizeInBytes = new AtomicLong();
+
+    /**
+     * The number of packets which have been evicted from the caches of all
+     * <tt>CachingTransformer</tt>s because of the byte budget.
+     */
+    private static final AtomicLong globalEvictions = new AtomicLong();
+
+    /**
+     * The single thread which evicts packets because of the byte budget so
+     * that the threads which send packets do not scan the caches.
+     */
+    private static final ExecutorService evictor
+        = ExecutorUtils.newFixedThreadPool(
+                1,
+                true,
+                CachingTransformer.class.getName() + ".evictor");
+
+    /**
+     * The indicator which determines whether an eviction has been submitted
+     * to {@link #evictor} and has not completed yet.
+     */
+    private static final AtomicBoolean evictionScheduled = new AtomicBoolean();
+
+    /**
+     * The task which {@link #evictor} executes to evict packets because of
+     * the byte budget.
+     */
+    private static final Runnable evictionTask
+        = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    evict();
+                }
+                finally
+                {
+                    evictionScheduled.set(false);
+                }
+            }
+        };
+
+    /**
+     * The maximum of {@link #flushThresholdBytes}. Keeps the (node-wide)
+     * counter {@link #globalSizeInBytes} from being contended by every packet.
+     */
+    private static final int GLOBAL_SIZE_FLUSH_BYTES = 16 * 1024;
+
+    /**
+     * The minimum change in bytes of the size of a <tt>Cache</tt> which is
+     * reported to {@link #globalSizeInBytes}. Scaled down with the number of
+     * <tt>Cache</tt>s so that the changes which have not been reported by all
+     * of them combined stay within the hysteresis of the eviction (i.e.
+     * 1/16th of the byte budget).
+     */
+    private static volatile int flushThresholdBytes = GLOBAL_SIZE_FLUSH_BYTES;
+
+    /**
+     * The number of packets which are evicted from a <tt>Cache</tt> at a time
+     * when the byte budget is exceeded.
+     */
+    private static final int EVICTION_BATCH_PACKETS = 32;
+
     /**
      * The period of time between calls to {@link #process} will be requested
      * if this {@link CachingTransformer} is enabled.
@@ -88,15 +218,20 @@
     private static int SIZE_MILLIS = cfg.getInt(NACK_CACHE_SIZE_MILLIS, 500);
 
     /**
-     * Assumed rate of the RTP clock.
+     * The rate of the RTP clock which is assumed for the packets of SSRCs the
+     * format of which is not known.
      */
-    private static int RTP_CLOCK_RATE = 90000;
+    private static final int DEFAULT_RTP_CLOCK_RATE = 90000;
 
     /**
-     * <tt>SIZE_MILLIS</tt> expressed as a number of ticks on the RTP clock.
+     * The maximum size in bytes of the packets cached by all
+     * <tt>CachingTransformer</tt>s combined. When the size exceeds it, the
+     * oldest packets (i.e. the least likely to be requested) across all
+     * streams are evicted. A value less than or equal to <tt>0</tt> leaves the
+     * size bounded by the limits per SSRC only.
      */
-    private static int SIZE_RTP_CLOCK_TICKS
-            = (RTP_CLOCK_RATE / 1000) * SIZE_MILLIS;
+    private static long MAX_SIZE_BYTES
+        = cfg.getLong(NACK_CACHE_SIZE_BYTES, 64L * 1024 * 1024);
 
     /**
      * The maximum number of different SSRCs for which a cache will be created.
@@ -104,14 +239,19 @@
     private static int MAX_SSRC_COUNT = cfg.getInt(NACK_CACHE_SIZE_STREAMS, 50);
 
     /**
-     * The maximum number of packets cached for each SSRC.
+     * Whether the cached packets are stored off the heap in slices of the
+     * slabs of {@link DirectByteBufferPool} rather than in buffers of
+     * {@link ByteArrayPool}.
      */
-    private static int MAX_SIZE_PACKETS = cfg.getInt(NACK_CACHE_SIZE_PACKETS, 200);
+    private static boolean DIRECT = cfg.getBoolean(NACK_CACHE_DIRECT, false);
 
     /**
-     * The size of {@link #pool}.
+     * The maximum number of packets cached for each SSRC. The age limit and
+     * the byte budget bound the size of the cache so the default is high
+     * enough for high-bitrate streams.
      */
-    private static int POOL_SIZE = 100;
+    private static int MAX_SIZE_PACKETS
+        = cfg.getInt(NACK_CACHE_SIZE_PACKETS, 1024);
 
     /**
      * The amount of time, after which the cache for an SSRC will be cleared,
@@ -120,51 +260,241 @@
     private static int SSRC_TIMEOUT_MILLIS = SIZE_MILLIS + 50;
 
     /**
-     * Returns <tt>true</tt> iff <tt>a</tt> is less than <tt>b</tt> modulo 2^32.
+     * Evicts the oldest packets across the caches of all
+     * <tt>CachingTransformer</tt>s until their size falls under the byte
+     * budget (with a hysteresis of 1/16th of the budget). Executed by
+     * {@link #evictor} only.
      */
-    private static boolean lessThanTS(long a, long b)
+    private static void evict()
     {
-        if (a == b)
-            return false;
-        else if (a > b)
-            return a - b >= (1L << 31);
-        else //a < b
-            return b - a < (1L << 31);
+        long lowWatermark = MAX_SIZE_BYTES - MAX_SIZE_BYTES / 16;
+
+        while (globalSizeInBytes.get() > lowWatermark)
+        {
+            Cache oldest = null;
+            long oldestTime = Long.MAX_VALUE;
+
+            for (Cache cache : allCaches)
+            {
+                long time = cache.oldestInsertTime;
+
+                if (time < oldestTime)
+                {
+                    oldest = cache;
+                    oldestTime = time;
+                }
+            }
+            if (oldest == null || oldest.evictOldest() == 0)
+                break;
+        }
     }
 
     /**
-     * The pool of <tt>RawPacket</tt>s which we use to avoid allocation and GC.
+     * Updates {@link #flushThresholdBytes} with the number of the
+     * <tt>Cache</tt>s of all <tt>CachingTransformer</tt>s. Invoked whenever a
+     * <tt>Cache</tt> is added to or removed from {@link #allCaches}.
      */
-    private Queue<RawPacket> pool
-        = new LinkedBlockingQueue<>(POOL_SIZE);
+    private static void updateFlushThreshold()
+    {
+        if (MAX_SIZE_BYTES <= 0)
+            return;
+
+        long threshold = MAX_SIZE_BYTES / 16 / Math.max(1, allCaches.size());
+
+        flushThresholdBytes
+            = (int) Math.max(1, Math.min(GLOBAL_SIZE_FLUSH_BYTES, threshold));
+    }
 
     /**
-     * An object used to synchronize access to {@link #sizeInBytes},
-     * {@link #maxSizeInBytes}, {@link #sizeInPackets} and
-     * {@link #maxSizeInPackets}.
+     * Submits an eviction because of the byte budget to {@link #evictor}
+     * unless one is pending already.
      */
-    private final Object sizesSyncRoot = new Object();
+    private static void scheduleEviction()
+    {
+        if (evictionScheduled.compareAndSet(false, true))
+        {
+            try
+            {
+                evictor.execute(evictionTask);
+            }
+            catch (RejectedExecutionException ree)
+            {
+                evictionScheduled.set(false);
+                logger.error("Failed to schedule an eviction.", ree);
+            }
+        }
+    }
 
     /**
-     * The current size in bytes of the cache (for all SSRCs combined).
+     * Gets the index in {@link #ageHits} and {@link #ageMisses} of the range
+     * of a specific age.
+     *
+     * @param age the age in milliseconds
+     * @return the index of the range of <tt>age</tt>
      */
-    private int sizeInBytes = 0;
+    private static int getAgeBucket(long age)
+    {
+        int i = 0;
+
+        while (i < AGE_BUCKET_BOUNDS_MILLIS.length
+                && age >= AGE_BUCKET_BOUNDS_MILLIS[i])
+        {
+            i++;
+        }
+        return i;
+    }
 
     /**
-     * The maximum reached size in bytes of the cache (for all SSRCs combined).
+     * Gets the upper bounds in milliseconds of the ranges of the ages of the
+     * requested packets by which {@link #getHitsByAge()} and
+     * {@link #getMissesByAge()} count. The last range (i.e. the one after the
+     * last bound) is unbounded.
+     *
+     * @return the upper bounds in milliseconds of the ranges of ages
+     */
+    public static int[] getAgeBucketBoundsMillis()
+    {
+        return AGE_BUCKET_BOUNDS_MILLIS.clone();
+    }
+
+    /**
+     * Gets the number of packets which have been evicted from the caches of
+     * all <tt>CachingTransformer</tt>s because of the byte budget.
+     *
+     * @return the number of packets which have been evicted because of the
+     * byte budget
+     */
+    public static long getGlobalEvictions()
+    {
+        return globalEvictions.get();
+    }
+
+    /**
+     * Gets the (approximate) size in bytes of the packets cached by all
+     * <tt>CachingTransformer</tt>s combined.
+     *
+     * @return the size in bytes of the packets cached by all
+     * <tt>CachingTransformer</tt>s combined
+     */
+    public static long getGlobalSizeInBytes()
+    {
+        return globalSizeInBytes.get();
+    }
+
+    /**
+     * Gets the number of hits of all <tt>CachingTransformer</tt>s by the age
+     * of the requested packets.
+     *
+     * @return the number of hits by the age of the requested packets in the
+     * ranges of {@link #getAgeBucketBoundsMillis()}
      */
-    private int maxSizeInBytes = 0;
+    public static long[] getHitsByAge()
+    {
+        return toArray(ageHits);
+    }
+
+    /**
+     * Gets the number of misses of all <tt>CachingTransformer</tt>s by the age
+     * of the requested packets. Only the misses of packets which have been
+     * cached and removed are counted by age.
+     *
+     * @return the number of misses by the age of the requested packets in the
+     * ranges of {@link #getAgeBucketBoundsMillis()}
+     * @see #getUnknownAgeMisses()
+     */
+    public static long[] getMissesByAge()
+    {
+        return toArray(ageMisses);
+    }
+
+    /**
+     * Gets a human-readable summary of the hit ratios of all
+     * <tt>CachingTransformer</tt>s by the age of the requested packets.
+     *
+     * @return a human-readable summary of the hit ratios by age
+     */
+    public static String getHitRatioByAge()
+    {
+        StringBuilder s = new StringBuilder();
+
+        for (int i = 0; i < ageHits.length(); i++)
+        {
+            long hits = ageHits.get(i);
+            long requests = hits + ageMisses.get(i);
+
+            if (i > 0)
+                s.append(", ");
+            s.append(i < AGE_BUCKET_BOUNDS_MILLIS.length
+                        ? "<" + AGE_BUCKET_BOUNDS_MILLIS[i]
+                        : ">=" + AGE_BUCKET_BOUNDS_MILLIS[i - 1])
+                .append("ms ")
+                .append(hits).append('/').append(requests);
+        }
+        s.append(", unknown age 0/").append(unknownAgeMisses.get());
+        return s.toString();
+    }
 
     /**
-     * The current number of packets in the cache (for all SSRCs combined).
+     * Gets the number of misses of all <tt>CachingTransformer</tt>s of packets
+     * the age of which is not known (e.g. the packets have not been cached).
+     *
+     * @return the number of misses of packets the age of which is not known
      */
-    private int sizeInPackets = 0;
+    public static long getUnknownAgeMisses()
+    {
+        return unknownAgeMisses.get();
+    }
+
+    /**
+     * Copies the values of a specific <tt>AtomicLongArray</tt> into a new
+     * <tt>long</tt> array.
+     *
+     * @param a the <tt>AtomicLongArray</tt> to copy
+     * @return a new <tt>long</tt> array with the values of <tt>a</tt>
+     */
+    private static long[] toArray(AtomicLongArray a)
+    {
+        long[] array = new long[a.length()];
+
+        for (int i = 0; i < array.length; i++)
+            array[i] = a.get(i);
+        return array;
+    }
+
+    /**
+     * Returns <tt>true</tt> iff <tt>a</tt> is less than <tt>b</tt> modulo 2^32.
+     */
+    private static boolean lessThanTS(long a, long b)
+    {
+        if (a == b)
+            return false;
+        else if (a > b)
+            return a - b >= (1L << 31);
+        else //a < b
+            return b - a < (1L << 31);
+    }
+
+    /**
+     * The number of insertions into a {@link Cache} after which the maximum
+     * sizes of this instance are updated. A power of two.
+     */
+    private static final int MAX_SIZES_UPDATE_INTERVAL = 64;
+
+    /**
+     * The maximum reached size in bytes of the cache (for all SSRCs combined).
+     * The current size is striped over the {@link Cache}s (i.e. per SSRC) so
+     * the maximum is sampled every {@link #MAX_SIZES_UPDATE_INTERVAL}
+     * insertions into a <tt>Cache</tt>.
+     */
+    private final MonotonicAtomicLong maxSizeInBytes
+        = new MonotonicAtomicLong();
 
     /**
      * The maximum reached number of packets in the cache (for all SSRCs
-     * combined).
+     * combined). Sampled like {@link #maxSizeInBytes}.
      */
-    private int maxSizeInPackets = 0;
+    private final MonotonicAtomicLong maxSizeInPackets
+        = new MonotonicAtomicLong();
 
     /**
      * Counts the number of requests (calls to {@link #get(long, int)}) which
@@ -186,12 +516,14 @@ else if (a > b)
     /**
      * Whether or not this <tt>TransformEngine</tt> has been closed.
      */
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
     /**
-     * Contains a <tt>Cache</tt> instance for each SSRC.
+     * Contains a <tt>Cache</tt> instance for each SSRC. The lookups are
+     * lock-free; the creations and removals synchronize on the map.
      */
-    private final Map<Long, Cache> caches = new HashMap<>();
+    private final CopyOnWriteIntHashMap<Cache> caches
+        = new CopyOnWriteIntHashMap<>();
 
     /**
      * Whether caching packets is enabled or disabled. Note that the default
@@ -210,6 +542,34 @@ else if (a > b)
      */
     private MonotonicAtomicLong oldestHit = new MonotonicAtomicLong();
 
+    /**
+     * The <tt>MediaStream</tt> the packets of which are cached by this
+     * instance (i.e. which provides the clock rates of the SSRCs) or
+     * <tt>null</tt>.
+     */
+    private final MediaStream stream;
+
+    /**
+     * Initializes a new <tt>CachingTransformer</tt> instance which assumes
+     * an RTP clock rate of 90 kHz for all SSRCs.
+     */
+    public CachingTransformer()
+    {
+        this(null);
+    }
+
+    /**
+     * Initializes a new <tt>CachingTransformer</tt> instance.
+     *
+     * @param stream the <tt>MediaStream</tt> the packets of which are to be
+     * cached by the new instance. The age limit of the packets of an SSRC is
+     * measured with the clock rate of their format in <tt>stream</tt>.
+     */
+    public CachingTransformer(MediaStream stream)
+    {
+        this.stream = stream;
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -236,6 +596,7 @@ public void close()
         closed = true;
         if (totalPacketsAdded.get() > 0)
         {
+            updateMaxSizes();
             logger.info("Closing. Maximum size reached: "
                             + maxSizeInBytes + " bytes, "
                             + maxSizeInPackets + " packets; "
@@ -244,13 +605,20 @@ public void close()
                             + (totalHits.get() + totalMisses.get())
                             + " total requests); "
                             + totalPacketsAdded.get() + " total packets added, "
-                            + "oldest hit " + oldestHit + "ms.");
+                            + "oldest hit " + oldestHit + "ms; node-wide hits"
+                            + " by age " + getHitRatioByAge() + ".");
         }
 
         synchronized (caches)
         {
+            for (Cache cache : caches.values())
+            {
+                allCaches.remove(cache);
+                cache.close();
+            }
             caches.clear();
         }
+        updateFlushThreshold();
 
         recurringProcessibleExecutor.deRegisterRecurringProcessible(this);
     }
@@ -265,7 +633,12 @@ public RawPacket get(long ssrc, int seq)
     {
         Cache cache = getCache(ssrc & 0xffffffffL, false);
 
-        RawPacket pkt = cache != null ? cache.get(seq) : null;
+        RawPacket pkt = null;
+
+        if (cache != null)
+            pkt = cache.get(seq);
+        else
+            unknownAgeMisses.incrementAndGet();
 
         if (pkt != null)
         {
@@ -291,15 +664,43 @@ public RawPacket get(long ssrc, int seq)
      */
     private Cache getCache(long ssrc, boolean create)
     {
+        return getCache(ssrc, create ? DEFAULT_RTP_CLOCK_RATE : -1);
+    }
+
+    /**
+     * Gets the {@link Cache} instance which caches packets with SSRC
+     * <tt>ssrc</tt>, creating it with a specific RTP clock rate if
+     * <tt>clockRate</tt> is positive and creation is possible.
+     *
+     * @param ssrc the SSRC.
+     * @param clockRate the rate of the RTP clock of the packets with SSRC
+     * <tt>ssrc</tt> or <tt>-1</tt> not to create an instance if one doesn't
+     * already exist.
+     * @return the cache for <tt>ssrc</tt> or <tt>null</tt>.
+     */
+    private Cache getCache(long ssrc, int clockRate)
+    {
+        boolean create = clockRate > 0;
+        Cache cache = caches.get((int) ssrc);
+
+        if (cache != null || !create)
+            return cache;
+
         synchronized (caches)
         {
-            Cache cache = caches.get(ssrc);
-            if (cache == null && create)
+            // Do not create a Cache which close() would not remove anymore.
+            if (closed)
+                return null;
+
+            cache = caches.get((int) ssrc);
+            if (cache == null)
             {
                 if (caches.size() < MAX_SSRC_COUNT)
                 {
-                    cache = new Cache();
-                    caches.put(ssrc, cache);
+                    cache = new Cache(ssrc, clockRate);
+                    caches.put((int) ssrc, cache);
+                    allCaches.add(cache);
+                    updateFlushThreshold();
                 }
                 else
                 {
@@ -312,6 +713,31 @@ private Cache getCache(long ssrc, boolean create)
         }
     }
 
+    /**
+     * Gets the rate of the RTP clock of the format of a specific RTP packet
+     * in {@link #stream}.
+     *
+     * @param pkt the RTP packet
+     * @return the rate of the RTP clock of <tt>pkt</tt> or
+     * {@link #DEFAULT_RTP_CLOCK_RATE} if it is not known
+     */
+    private int getClockRate(RawPacket pkt)
+    {
+        MediaStream stream = this.stream;
+
+        if (stream != null)
+        {
+            MediaFormat format
+                = stream.getDynamicRTPPayloadTypes().get(pkt.getPayloadType());
+
+            if (format == null)
+                format = stream.getFormat();
+            if (format != null && format.getClockRate() >= 1000)
+                return (int) format.getClockRate();
+        }
+        return DEFAULT_RTP_CLOCK_RATE;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -321,7 +747,12 @@ public void cachePacket(RawPacket pkt)
         if (!enabled)
             return;
 
-        Cache cache = getCache(pkt.getSSRCAsLong(), true);
+        long ssrc = pkt.getSSRCAsLong();
+        Cache cache = getCache(ssrc, false);
+
+        // The clock rate is looked up once per SSRC.
+        if (cache == null)
+            cache = getCache(ssrc, getClockRate(pkt));
 
         if (cache != null)
         {
@@ -330,8 +761,19 @@ public void cachePacket(RawPacket pkt)
                 logger.trace("Caching a packet. SSRC=" + pkt.getSSRCAsLong()
                     + " seq=" + pkt.getSequenceNumber());
             }
-            cache.insert(pkt);
+            // The lookup of cache is lock-free so the cache may have been
+            // removed (e.g. by clean()) and closed since. The packet then goes
+            // into a new Cache.
+            if (!cache.insert(pkt))
+            {
+                cache = getCache(ssrc, getClockRate(pkt));
+                if (cache == null || !cache.insert(pkt))
+                    return;
+            }
             totalPacketsAdded.incrementAndGet();
+
+            if (MAX_SIZE_BYTES > 0 && globalSizeInBytes.get() > MAX_SIZE_BYTES)
+                scheduleEviction();
         }
     }
 
@@ -361,23 +803,19 @@ public void setEnabled(boolean enabled)
 
     /**
      * Gets an unused <tt>RawPacket</tt> with at least <tt>len</tt> bytes of
-     * buffer space.
+     * buffer space. The buffer is taken from the {@link DirectByteBufferPool}
+     * if the cached packets are stored off the heap or from the
+     * {@link ByteArrayPool} otherwise.
      * @param len the minimum available length
      * @return An unused <tt>RawPacket</tt> with at least <tt>len</tt> bytes of
      * buffer space.
      */
     private RawPacket getFreePacket(int len)
     {
-        RawPacket pkt = pool.poll();
-        if (pkt == null)
-            pkt = new RawPacket(new byte[len], 0, 0);
-
-        if (pkt.getBuffer() == null || pkt.getBuffer().length < len)
-            pkt.setBuffer(new byte[len]);
-        pkt.setOffset(0);
-        pkt.setLength(0);
-
-        return pkt;
+        return
+            DIRECT
+                ? RawPacket.createDirect(len)
+                : RawPacket.createPooled(len);
     }
 
     /**
@@ -435,117 +873,266 @@ private void clean(long now)
                 logger.debug("Cleaning CachingTransformer " + hashCode());
             }
 
-            Iterator<Map.Entry<Long,Cache>> iter
-                    = caches.entrySet().iterator();
-            while (iter.hasNext())
+            for (Cache cache : caches.values())
             {
-                Map.Entry<Long,Cache> entry = iter.next();
-                Cache cache = entry.getValue();
                 if (cache.lastInsertTime + SSRC_TIMEOUT_MILLIS < now)
                 {
                     if (logger.isDebugEnabled())
                     {
-                        logger.debug("Removing cache for SSRC " + entry
-                                .getKey());
+                        logger.debug("Removing cache for SSRC " + cache.ssrc);
                     }
-                    cache.empty();
-                    iter.remove();
+                    caches.remove((int) cache.ssrc);
+                    allCaches.remove(cache);
+                    cache.close();
+                    updateFlushThreshold();
                 }
             }
         }
     }
 
     /**
-     * Implements a cache for the packets of a specific SSRC.
+     * Updates {@link #maxSizeInBytes} and {@link #maxSizeInPackets} with the
+     * sums of the current sizes of the {@link Cache}s of this instance.
+     */
+    private void updateMaxSizes()
+    {
+        long sizeInBytes = 0;
+        long sizeInPackets = 0;
+
+        for (Cache cache : caches.values())
+        {
+            sizeInBytes += cache.sizeInBytes;
+            sizeInPackets += cache.sizeInPackets;
+        }
+        maxSizeInBytes.increase(sizeInBytes);
+        maxSizeInPackets.increase(sizeInPackets);
+    }
+
+    /**
+     * Implements a cache for the packets of a specific SSRC. The packets are
+     * stored in a ring with a capacity of a power of two (at least
+     * {@link #MAX_SIZE_PACKETS}) at the slots of their indices (based on their
+     * RTP sequence numbers in the same way as in SRTP (RFC3711)) masked with
+     * the capacity so that both the insertion and the lookup of a packet take
+     * constant time.
      */
     private class Cache
     {
         /**
-         * The underlying container. It maps a packet index (based on its RTP
-         * sequence number, in the same way as used in SRTP (RFC3711)) to the
-         * <tt>RawPacket</tt> with the packet contents.
+         * The rate of the RTP clock of the packets cached by this instance.
          */
-        private TreeMap<Integer, RawPacket> cache
-                = new TreeMap<>();
+        private final int clockRate;
+
+        /**
+         * The indices of the packets in {@link #packets} (i.e. the packets at
+         * the same slots).
+         */
+        private final int[] indices;
+
+        /**
+         * The bit mask which maps the index of a packet to its slot in
+         * {@link #packets}.
+         */
+        private final int mask;
+
+        /**
+         * The cached packets at the slots of their indices masked with
+         * {@link #mask}. An empty slot is <tt>null</tt>.
+         */
+        private final RawPacket[] packets;
+
+        /**
+         * {@link #SIZE_MILLIS} expressed as a number of ticks on the RTP clock
+         * of the packets cached by this instance.
+         */
+        private final long sizeRtpClockTicks;
+
+        /**
+         * The SSRC of the packets cached by this instance.
+         */
+        private final long ssrc;
+
+        /**
+         * The system times in milliseconds at which the packets at the same
+         * slots of {@link #packets} were inserted. Kept after the packets are
+         * removed in order to know the ages of the requested packets which are
+         * not in this cache anymore.
+         */
+        private final long[] times;
+
+        /**
+         * The highest index of a packet inserted into this cache or
+         * <tt>-1</tt> if no packet has been inserted yet.
+         */
+        private int head = -1;
+
+        /**
+         * The RTP timestamp of the packet with index {@link #head}.
+         */
+        private long headTimestamp;
+
+        /**
+         * The number of packets inserted into this cache.
+         */
+        private int insertCount = 0;
+
+        /**
+         * The indicator which determines whether this cache has been closed
+         * i.e. removed from its <tt>CachingTransformer</tt>. A closed cache
+         * does not take packets anymore.
+         */
+        private boolean closed = false;
 
         /**
          * Last system time of insertion of a packet in this cache.
          */
-        private long lastInsertTime = -1;
+        private volatile long lastInsertTime = -1;
 
         /**
-         * A Roll Over Counter (as in by RFC3711).
+         * The system time of insertion of the oldest packet in this cache or
+         * {@link Long#MAX_VALUE} if this cache is empty. Orders the caches
+         * of all <tt>CachingTransformer</tt>s for the eviction because of the
+         * byte budget.
          */
-        private int ROC = 0;
+        private volatile long oldestInsertTime = Long.MAX_VALUE;
 
         /**
-         * The highest received sequence number (as in RFC3711).
+         * The current size in bytes of this cache. A stripe of the size of the
+         * <tt>CachingTransformer</tt>.
          */
-        private int s_l = -1;
+        private volatile int sizeInBytes = 0;
+
+        /**
+         * The current number of packets in this cache. A stripe of the size of
+         * the <tt>CachingTransformer</tt>.
+         */
+        private volatile int sizeInPackets = 0;
+
+        /**
+         * The lowest index which may be occupied in {@link #packets} i.e. all
+         * packets with lower indices have been removed.
+         */
+        private int tail = 0;
+
+        /**
+         * The change in bytes of {@link #sizeInBytes} which has not been
+         * reported to {@link #globalSizeInBytes} yet.
+         */
+        private int unflushedBytes = 0;
+
+        /**
+         * Initializes a new <tt>Cache</tt> instance.
+         *
+         * @param ssrc the SSRC of the packets to be cached by the new instance
+         * @param clockRate the rate of the RTP clock of the packets to be
+         * cached by the new instance
+         */
+        private Cache(long ssrc, int clockRate)
+        {
+            this.ssrc = ssrc;
+            this.clockRate = clockRate;
+            sizeRtpClockTicks = (long) clockRate * SIZE_MILLIS / 1000;
+
+            int capacity = Integer.highestOneBit(Math.max(1, MAX_SIZE_PACKETS));
+
+            if (capacity < MAX_SIZE_PACKETS)
+                capacity <<= 1;
+            packets = new RawPacket[capacity];
+            indices = new int[capacity];
+            times = new long[capacity];
+            mask = capacity - 1;
+        }
 
         /**
          * Inserts a packet into this <tt>Cache</tt>.
          * @param pkt the packet to insert.
+         * @return <tt>false</tt> if this cache has been closed and the packet
+         * has not been inserted; otherwise, <tt>true</tt>
          */
-        private synchronized void insert(RawPacket pkt)
+        private synchronized boolean insert(RawPacket pkt)
         {
-            int len = pkt.getLength();
-            RawPacket cachePacket = getFreePacket(len);
-            System.arraycopy(pkt.getBuffer(), pkt.getOffset(),
-                             cachePacket.getBuffer(), 0,
-                             len);
-            cachePacket.setLength(len);
+            if (closed)
+                return false;
 
             int index = calculateIndex(pkt.getSequenceNumber());
-            cache.put(index, cachePacket);
 
-            synchronized (sizesSyncRoot)
+            // The packet is too old to be kept (e.g. it has been reordered
+            // behind packets which have pushed it out of the cache already).
+            if (index < tail)
+                return true;
+
+            int len = pkt.getLength();
+            RawPacket cachePacket = getFreePacket(len);
+            if (cachePacket.isDirect())
             {
-                sizeInPackets++;
-                sizeInBytes += len;
+                ByteBuffer byteBuffer = cachePacket.getByteBuffer();
 
-                if (sizeInPackets > maxSizeInPackets)
-                    maxSizeInPackets = sizeInPackets;
-                if (sizeInBytes > maxSizeInBytes)
-                    maxSizeInBytes = sizeInBytes;
+                byteBuffer.clear();
+                byteBuffer.put(pkt.getBuffer(), pkt.getOffset(), len);
             }
-            lastInsertTime = System.currentTimeMillis();
+            else
+            {
+                System.arraycopy(pkt.getBuffer(), pkt.getOffset(),
+                                 cachePacket.getBuffer(), 0,
+                                 len);
+            }
+            cachePacket.setLength(len);
+
+            int slot = index & mask;
+
+            // The slot may be occupied by a packet with the same index (e.g. a
+            // retransmission) or by an older packet (i.e. the ring is full).
+            long now = System.currentTimeMillis();
+
+            release(slot);
+            packets[slot] = cachePacket;
+            indices[slot] = index;
+            times[slot] = now;
+            sizeInPackets++;
+            sizeInBytes += len;
+            unflushedBytes += len;
+
+            if (index == head)
+                headTimestamp = 0xffffffffL & pkt.getTimestamp();
+
+            lastInsertTime = now;
             clean();
+            updateOldestInsertTime();
+            int flushThresholdBytes = CachingTransformer.flushThresholdBytes;
+
+            if (unflushedBytes >= flushThresholdBytes
+                    || unflushedBytes <= -flushThresholdBytes)
+            {
+                flushSize();
+            }
+
+            if ((++insertCount & (MAX_SIZES_UPDATE_INTERVAL - 1)) == 0)
+                updateMaxSizes();
+            return true;
         }
 
         /**
          * Calculates the index of an RTP packet based on its RTP sequence
-         * number and updates the <tt>s_l</tt> and <tt>ROC</tt> fields. Based
-         * on the procedure outlined in RFC3711
+         * number and updates {@link #head}. The index is the one of the
+         * possible extensions of the sequence number (i.e. with a roll over
+         * counter as in RFC3711) which is the closest to <tt>head</tt>.
          * @param seq the RTP sequence number of the RTP packet.
          * @return the index of the RTP sequence number with sequence number
          * <tt>seq</tt>.
          */
         private int calculateIndex(int seq)
         {
-            if (s_l == -1)
+            if (head == -1)
             {
-                s_l = seq;
+                head = tail = seq;
                 return seq;
             }
 
-            int v = ROC;
-            if (s_l < (1<<15))
-                if (seq - s_l > (1<<15))
-                    v = (int) ((ROC-1) % (1L<<32));
-            else if (s_l - (1<<16) > seq)
-                v = (int) ((ROC+1) % (1L<<32));
+            int index = guessIndex(seq);
 
-            if (v == ROC && seq > s_l)
-                s_l = seq;
-            else if (v == ((ROC + 1) % (1L<<32)))
-            {
-                s_l = seq;
-                ROC = v;
-            }
-
-
-            return seq + v * (1<<16);
+            if (index > head)
+                head = index;
+            return index;
         }
 
         /**
@@ -559,93 +1146,215 @@ else if (v == ((ROC + 1) % (1L<<32)))
          */
         private synchronized RawPacket get(int seq)
         {
+            if (head == -1)
+            {
+                unknownAgeMisses.incrementAndGet();
+                return null;
+            }
+
             // Since sequence numbers wrap at 2^16, we can't know with absolute
             // certainty which packet the request refers to. We assume that it
-            // is for the latest packet (i.e. the one with the highest index).
-            RawPacket pkt = cache.get(seq + ROC * (1 << 16));
+            // is for the packet with the index closest to the highest one.
+            // Since the cache only stores <tt>SIZE_MILLIS</tt> milliseconds of
+            // packets, it doesn't contain packets spanning more than 2^15
+            // sequence numbers.
+            int index = guessIndex(seq);
+            int slot = index & mask;
+            RawPacket pkt = packets[slot];
+
+            if (indices[slot] != index || times[slot] == 0)
+            {
+                // The packet has not been inserted or its slot has been
+                // reused since.
+                unknownAgeMisses.incrementAndGet();
+                return null;
+            }
 
-            // Maybe the ROC was just bumped recently.
-            if (pkt == null && ROC > 0)
-                pkt = cache.get(seq + (ROC-1)*(1<<16));
+            int ageBucket
+                = getAgeBucket(System.currentTimeMillis() - times[slot]);
 
-            // Since the cache only stores <tt>SIZE_MILLIS</tt> milliseconds of
-            // packets, we assume that it doesn't contain packets spanning
-            // more than one ROC.
-
-            return
-                    pkt == null
-                    ? null
-                    : new RawPacket(pkt.getBuffer().clone(),
-                                    pkt.getOffset(),
-                                    pkt.getLength());
+            if (pkt == null)
+            {
+                ageMisses.incrementAndGet(ageBucket);
+                return null;
+            }
+            ageHits.incrementAndGet(ageBucket);
+
+            // The cached packet may be off the heap, copy it onto the heap.
+            int len = pkt.getLength();
+            RawPacket copy = RawPacket.createPooled(len);
+
+            pkt.readRegionToBuff(0, len, copy.getBuffer());
+            copy.setLength(len);
+            return copy;
+        }
+
+        /**
+         * Gets the index closest to {@link #head} of a specific RTP sequence
+         * number.
+         *
+         * @param seq the RTP sequence number
+         * @return the index closest to <tt>head</tt> of <tt>seq</tt>
+         */
+        private int guessIndex(int seq)
+        {
+            return head + (short) (seq - head);
         }
 
         /**
          * Drops the oldest packets from the cache until:
-         * 1. The cache contains at most {@link #MAX_SIZE_PACKETS} packets, and
+         * 1. The cache contains only packets with indices within
+         * {@link #MAX_SIZE_PACKETS} of the highest one, and
          * 2. The cache only contains packets at most {@link #SIZE_MILLIS}
          * milliseconds older than the newest packet in the cache.
          */
-        private synchronized void clean()
+        private void clean()
         {
-            int size = cache.size();
-            if (size <= 0)
-                return;
-
-            long lastTimestamp = 0xffffffffL & cache.lastEntry().getValue().getTimestamp();
-            long cleanBefore = getCleanBefore(lastTimestamp);
+            int minIndex = head - MAX_SIZE_PACKETS + 1;
 
-            Iterator<Map.Entry<Integer,RawPacket>> iter
-                    = cache.entrySet().iterator();
-            int removedPackets = 0;
-            int removedBytes = 0;
-            while (iter.hasNext())
+            if (tail < minIndex)
             {
-                RawPacket pkt = iter.next().getValue();
-                if (size > MAX_SIZE_PACKETS)
+                if (minIndex - tail > packets.length)
                 {
-                    // Remove until we go under the max size, regardless of the
-                    // timestamps.
-                    size--;
+                    // The indices have jumped (e.g. a discontinuity of the
+                    // sequence numbers). Visit every slot once only.
+                    for (int slot = 0; slot < packets.length; slot++)
+                    {
+                        if (packets[slot] != null && indices[slot] < minIndex)
+                            release(slot);
+                    }
                 }
-                else if (lessThanTS(cleanBefore,
-                                    0xffffffffL & pkt.getTimestamp()))
+                else
                 {
-                    // We reached a packet with a timestamp after 'cleanBefore'.
-                    // The rest of the packets are even more recent.
-                    break;
+                    for (; tail < minIndex; tail++)
+                    {
+                        int slot = tail & mask;
+
+                        if (packets[slot] != null && indices[slot] == tail)
+                            release(slot);
+                    }
                 }
+                tail = minIndex;
+            }
+
+            long cleanBefore = getCleanBefore(headTimestamp);
+
+            for (; tail < head; tail++)
+            {
+                int slot = tail & mask;
+                RawPacket pkt = packets[slot];
 
-                iter.remove();
-                removedBytes += pkt.getLength();
-                removedPackets++;
-                pool.offer(pkt);
+                if (pkt != null && indices[slot] == tail)
+                {
+                    if (lessThanTS(cleanBefore,
+                                   0xffffffffL & pkt.getTimestamp()))
+                    {
+                        // We reached a packet with a timestamp after
+                        // 'cleanBefore'. The rest of the packets are even more
+                        // recent.
+                        break;
+                    }
+                    release(slot);
+                }
             }
+        }
 
-            synchronized (sizesSyncRoot)
+        /**
+         * Removes a number of the oldest packets from this cache (because the
+         * byte budget of all <tt>CachingTransformer</tt>s is exceeded).
+         *
+         * @return the number of removed packets
+         */
+        private synchronized int evictOldest()
+        {
+            int evicted = 0;
+
+            for (; tail <= head && evicted < EVICTION_BATCH_PACKETS; tail++)
             {
-                sizeInBytes -= removedBytes;
-                sizeInPackets -= removedPackets;
+                int slot = tail & mask;
+
+                if (packets[slot] != null && indices[slot] == tail)
+                {
+                    release(slot);
+                    evicted++;
+                }
             }
+            updateOldestInsertTime();
+            flushSize();
+            globalEvictions.addAndGet(evicted);
+            return evicted;
+        }
 
+        /**
+         * Reports the change of {@link #sizeInBytes} which has not been
+         * reported yet to {@link #globalSizeInBytes}.
+         */
+        private void flushSize()
+        {
+            if (unflushedBytes != 0)
+            {
+                globalSizeInBytes.addAndGet(unflushedBytes);
+                unflushedBytes = 0;
+            }
         }
 
-        synchronized private void empty()
+        /**
+         * Updates {@link #oldestInsertTime} with the insertion time of the
+         * packet with the lowest index in this cache.
+         */
+        private void updateOldestInsertTime()
         {
-            int removedBytes = 0;
-            for (RawPacket pkt : cache.values())
+            long oldestInsertTime = Long.MAX_VALUE;
+
+            for (int index = tail; index <= head; index++)
             {
-                removedBytes += pkt.getBuffer().length;
-                pool.offer(pkt);
+                int slot = index & mask;
+
+                if (packets[slot] != null && indices[slot] == index)
+                {
+                    oldestInsertTime = times[slot];
+                    break;
+                }
             }
+            this.oldestInsertTime = oldestInsertTime;
+        }
 
-            synchronized (sizesSyncRoot)
+        /**
+         * Removes the packet (if any) at a specific slot of {@link #packets}
+         * and releases its buffer.
+         *
+         * @param slot the slot of the packet to remove
+         */
+        private void release(int slot)
+        {
+            RawPacket pkt = packets[slot];
+
+            if (pkt != null)
             {
-                sizeInPackets -= cache.size();
-                sizeInBytes -= removedBytes;
+                packets[slot] = null;
+                sizeInPackets--;
+                sizeInBytes -= pkt.getLength();
+                unflushedBytes -= pkt.getLength();
+                pkt.releaseBuffer();
             }
+        }
+
+        /**
+         * Closes this cache i.e. releases its packets, subtracts its size from
+         * {@link #globalSizeInBytes} and rejects the packets which are
+         * inserted afterwards by the threads which looked it up before it was
+         * removed.
+         */
+        synchronized private void close()
+        {
+            if (closed)
+                return;
+            closed = true;
 
-            cache.clear();
+            for (int slot = 0; slot < packets.length; slot++)
+                release(slot);
+            oldestInsertTime = Long.MAX_VALUE;
+            flushSize();
         }
 
         /**
@@ -655,18 +1364,15 @@ synchronized private void empty()
          */
         synchronized private long getAge(RawPacket pkt)
         {
-            if (cache.isEmpty())
+            if (sizeInPackets == 0)
             {
                 return 0;
             }
 
-            RawPacket head = cache.lastEntry().getValue();
-
             long rtpDiff
-                = TimeUtils.rtpDiff(head.getTimestamp(), pkt.getTimestamp());
+                = TimeUtils.rtpDiff(headTimestamp, pkt.getTimestamp());
 
-            // Assume RTP clock rate of 90000.
-            return rtpDiff / 90;
+            return rtpDiff * 1000 / clockRate;
         }
 
         /**
@@ -677,7 +1383,7 @@ synchronized private long getAge(RawPacket pkt)
          */
         private long getCleanBefore(long ts)
         {
-            return (ts + (1L<<32) - SIZE_RTP_CLOCK_TICKS) % (1L<<32);
+            return (ts + (1L<<32) - sizeRtpClockTicks) % (1L<<32);
         }
     }
 
@@ -0,0 +1,216 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+
+/**
+ * Represents a reusable, growable batch of <tt>RawPacket</tt>s which
+ * <tt>BatchPacketTransformer</tt>s filter and extend in place instead of
+ * allocating new <tt>RawPacket</tt> arrays.
+ *
+ * A slot of a batch is either valid (i.e. holds a packet) or invalid (i.e. is
+ * <tt>null</tt>). Invalidating a slot drops its packet from the batch. The
+ * backing array of a batch has <tt>null</tt> in every slot at or after
+ * {@link #size()} so it can be passed as is to the
+ * <tt>RawPacket[]</tt>-based methods of <tt>PacketTransformer</tt> which
+ * ignore <tt>null</tt> elements.
+ *
+ * A <tt>PacketBatch</tt> is not thread-safe. It is meant to be owned by a
+ * single (e.g. receive) thread at a time and reused for every packet.
+ */
+public class PacketBatch
+{
+    /**
+     * The backing array of the empty batches.
+     */
+    private static final RawPacket[] EMPTY = new RawPacket[0];
+
+    /**
+     * The backing array of this batch.
+     */
+    private RawPacket[] packets;
+
+    /**
+     * The number of slots (valid or invalid) of this batch.
+     */
+    private int size = 0;
+
+    /**
+     * Initializes a new empty <tt>PacketBatch</tt> instance.
+     */
+    public PacketBatch()
+    {
+        this(4);
+    }
+
+    /**
+     * Initializes a new empty <tt>PacketBatch</tt> instance with a specific
+     * initial capacity.
+     *
+     * @param capacity the number of packets which the new instance is to be
+     * able to hold before it grows
+     */
+    public PacketBatch(int capacity)
+    {
+        packets = (capacity > 0) ? new RawPacket[capacity] : EMPTY;
+    }
+
+    /**
+     * Initializes a new <tt>PacketBatch</tt> instance which is backed by a
+     * specific <tt>RawPacket</tt> array.
+     *
+     * @param packets the <tt>RawPacket</tt> array to back the new instance
+     */
+    public PacketBatch(RawPacket[] packets)
+    {
+        setPackets(packets);
+    }
+
+    /**
+     * Appends a packet to this batch, growing it if necessary.
+     *
+     * @param pkt the packet to append
+     */
+    public void add(RawPacket pkt)
+    {
+        if (size == packets.length)
+        {
+            packets
+                = Arrays.copyOf(
+                        packets,
+                        (packets.length == 0) ? 4 : (2 * packets.length));
+        }
+        packets[size++] = pkt;
+    }
+
+    /**
+     * Empties this batch. Keeps the backing array for reuse.
+     */
+    public void clear()
+    {
+        Arrays.fill(packets, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Gets the packet in a specific slot of this batch.
+     *
+     * @param index the index of the slot
+     * @return the packet in the slot at <tt>index</tt> or <tt>null</tt> if the
+     * slot is invalid
+     */
+    public RawPacket get(int index)
+    {
+        return packets[index];
+    }
+
+    /**
+     * Gets the backing array of this batch. The slots at or after
+     * {@link #size()} are <tt>null</tt>.
+     *
+     * @return the backing array of this batch
+     */
+    public RawPacket[] getPackets()
+    {
+        return packets;
+    }
+
+    /**
+     * Gets the number of valid slots of this batch.
+     *
+     * @return the number of valid slots of this batch
+     */
+    public int getValidCount()
+    {
+        int count = 0;
+
+        for (int i = 0; i < size; i++)
+        {
+            if (packets[i] != null)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Invalidates a specific slot of this batch i.e. drops its packet.
+     *
+     * @param index the index of the slot to invalidate
+     */
+    public void invalidate(int index)
+    {
+        packets[index] = null;
+    }
+
+    /**
+     * Determines whether a specific slot of this batch is valid.
+     *
+     * @param index the index of the slot
+     * @return <tt>true</tt> if the slot at <tt>index</tt> holds a packet;
+     * otherwise, <tt>false</tt>
+     */
+    public boolean isValid(int index)
+    {
+        return packets[index] != null;
+    }
+
+    /**
+     * Puts a packet into a specific slot of this batch, replacing the packet
+     * (if any) in it.
+     *
+     * @param index the index of the slot
+     * @param pkt the packet to put into the slot at <tt>index</tt> or
+     * <tt>null</tt> to invalidate the slot
+     */
+    public void set(int index, RawPacket pkt)
+    {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("index=" + index);
+
+        packets[index] = pkt;
+    }
+
+    /**
+     * Makes a specific <tt>RawPacket</tt> array the backing array of this
+     * batch e.g. the array returned by a <tt>RawPacket[]</tt>-based
+     * <tt>PacketTransformer</tt>. All elements of the array become slots of
+     * this batch.
+     *
+     * @param packets the <tt>RawPacket</tt> array to back this batch or
+     * <tt>null</tt> to empty this batch
+     */
+    public void setPackets(RawPacket[] packets)
+    {
+        if (packets == null)
+            packets = EMPTY;
+
+        this.packets = packets;
+        this.size = packets.length;
+    }
+
+    /**
+     * Gets the number of slots (valid or invalid) of this batch.
+     *
+     * @return the number of slots (valid or invalid) of this batch
+     */
+    public int size()
+    {
+        return size;
+    }
+}
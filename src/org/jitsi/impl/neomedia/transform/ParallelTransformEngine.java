@@ -0,0 +1,805 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.util.*;
+
+/**
+ * Wraps a <tt>TransformEngine</tt> whose <tt>PacketTransformer</tt>s may be
+ * invoked concurrently for packets with distinct SSRCs (e.g. the SRTP
+ * <tt>TransformEngine</tt> of an SDES or DTLS-SRTP <tt>SrtpControl</tt>, see
+ * {@link #isParallelizable(SrtpControl)}) and fans the
+ * transformation of each batch of packets out over a pool of worker threads
+ * shared by all instances.
+ *
+ * The packets of a batch are sharded by SSRC so that all packets of a source
+ * are transformed by a single thread in the order of the batch. The thread
+ * which calls into a <tt>ParallelTransformEngine</tt> transforms the shards
+ * which no worker has picked up yet, waits for the others and gets the batch
+ * back in its order. A batch with a single packet or a single shard is
+ * transformed by the calling thread without a handoff, so the parallelism
+ * pays off when the whole batches of e.g. the send thread of an
+ * <tt>RTPConnectorOutputStream</tt> go through the transform chain at once.
+ */
+public class ParallelTransformEngine
+    implements TransformEngine
+{
+    /**
+     * The name of the <tt>ConfigurationService</tt> and/or <tt>System</tt>
+     * property which indicates whether the SRTP stage of the transform chains
+     * of new <tt>MediaStream</tt>s is to be a
+     * <tt>ParallelTransformEngine</tt>.
+     */
+    public static final String ENABLED_PNAME
+        = ParallelTransformEngine.class.getName() + ".ENABLED";
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> and/or <tt>System</tt>
+     * property which specifies the number of worker threads shared by the
+     * <tt>ParallelTransformEngine</tt>s.
+     */
+    public static final String THREADS_PNAME
+        = ParallelTransformEngine.class.getName() + ".THREADS";
+
+    /**
+     * The indicator which determines whether the SRTP stage of the transform
+     * chains of new <tt>MediaStream</tt>s is to be a
+     * <tt>ParallelTransformEngine</tt>.
+     */
+    private static final boolean ENABLED;
+
+    /**
+     * The number of worker threads shared by the
+     * <tt>ParallelTransformEngine</tt>s.
+     */
+    private static final int THREADS;
+
+    /**
+     * The state of a {@link ShardedPacketTransformer.Shard} which is not in
+     * use.
+     */
+    private static final int SHARD_IDLE = 0;
+
+    /**
+     * The state of a {@link ShardedPacketTransformer.Shard} which is to be
+     * transformed by the first thread to claim it.
+     */
+    private static final int SHARD_PENDING = 1;
+
+    /**
+     * The state of a {@link ShardedPacketTransformer.Shard} which has been
+     * claimed by a thread.
+     */
+    private static final int SHARD_CLAIMED = 2;
+
+    /**
+     * The pool of worker threads shared by the
+     * <tt>ParallelTransformEngine</tt>s. Created when the first shard is to
+     * be handed off.
+     */
+    private static ExecutorService executor;
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        ENABLED = ConfigUtils.getBoolean(cfg, ENABLED_PNAME, false);
+
+        int threads = ConfigUtils.getInt(cfg, THREADS_PNAME, -1);
+
+        THREADS
+            = (threads > 0)
+                ? threads
+                : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Gets the pool of worker threads shared by the
+     * <tt>ParallelTransformEngine</tt>s.
+     *
+     * @return the pool of worker threads shared by the
+     * <tt>ParallelTransformEngine</tt>s
+     */
+    private static synchronized Executor getExecutor()
+    {
+        if (executor == null)
+        {
+            executor
+                = ExecutorUtils.newFixedThreadPool(
+                        THREADS,
+                        true,
+                        ParallelTransformEngine.class.getName());
+        }
+        return executor;
+    }
+
+    /**
+     * Determines whether the SRTP stage of the transform chains of new
+     * <tt>MediaStream</tt>s is to be a <tt>ParallelTransformEngine</tt> (i.e.
+     * the value of the property {@link #ENABLED_PNAME}).
+     *
+     * @return <tt>true</tt> if the SRTP stage of the transform chains of new
+     * <tt>MediaStream</tt>s is to be a <tt>ParallelTransformEngine</tt>;
+     * otherwise, <tt>false</tt>
+     */
+    public static boolean isEnabled()
+    {
+        return ENABLED;
+    }
+
+    /**
+     * Determines whether the <tt>TransformEngine</tt> of a specific
+     * <tt>SrtpControl</tt> is known to allow its <tt>PacketTransformer</tt>s
+     * to be invoked concurrently for packets with distinct SSRCs and may,
+     * consequently, be wrapped in a <tt>ParallelTransformEngine</tt>. Only the
+     * SDES and DTLS-SRTP engines, which keep a crypto context per SSRC, are.
+     * ZRTP, for example, runs its (stateful) protocol in its transformers.
+     *
+     * @param srtpControl the <tt>SrtpControl</tt> to check
+     * @return <tt>true</tt> if the <tt>TransformEngine</tt> of
+     * <tt>srtpControl</tt> may be wrapped in a
+     * <tt>ParallelTransformEngine</tt>; otherwise, <tt>false</tt>
+     */
+    public static boolean isParallelizable(SrtpControl srtpControl)
+    {
+        if (srtpControl == null)
+            return false;
+
+        SrtpControlType type = srtpControl.getSrtpControlType();
+
+        return
+            SrtpControlType.SDES.equals(type)
+                || SrtpControlType.DTLS_SRTP.equals(type);
+    }
+
+    /**
+     * The <tt>PacketTransformer</tt> which fans the RTCP packets out to the
+     * RTCP <tt>PacketTransformer</tt> of {@link #wrapped}.
+     */
+    private final ShardedPacketTransformer rtcpTransformer
+        = new ShardedPacketTransformer(false);
+
+    /**
+     * The <tt>PacketTransformer</tt> which fans the RTP packets out to the
+     * RTP <tt>PacketTransformer</tt> of {@link #wrapped}.
+     */
+    private final ShardedPacketTransformer rtpTransformer
+        = new ShardedPacketTransformer(true);
+
+    /**
+     * The <tt>TransformEngine</tt> whose <tt>PacketTransformer</tt>s are
+     * invoked by the worker threads.
+     */
+    private final TransformEngine wrapped;
+
+    /**
+     * Initializes a new <tt>ParallelTransformEngine</tt> which is to fan the
+     * transformations of a specific <tt>TransformEngine</tt> out over the
+     * shared worker threads.
+     *
+     * @param wrapped the <tt>TransformEngine</tt> whose
+     * <tt>PacketTransformer</tt>s may be invoked concurrently for packets with
+     * distinct SSRCs
+     */
+    public ParallelTransformEngine(TransformEngine wrapped)
+    {
+        if (wrapped == null)
+            throw new NullPointerException("wrapped");
+
+        this.wrapped = wrapped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketTransformer getRTCPTransformer()
+    {
+        return rtcpTransformer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketTransformer getRTPTransformer()
+    {
+        return rtpTransformer;
+    }
+
+    /**
+     * Gets the <tt>TransformEngine</tt> whose <tt>PacketTransformer</tt>s are
+     * invoked by the worker threads.
+     *
+     * @return the <tt>TransformEngine</tt> whose <tt>PacketTransformer</tt>s
+     * are invoked by the worker threads
+     */
+    public TransformEngine getWrapped()
+    {
+        return wrapped;
+    }
+
+    /**
+     * Implements the RTP or the RTCP <tt>PacketTransformer</tt> of a
+     * <tt>ParallelTransformEngine</tt>. Looks the respective
+     * <tt>PacketTransformer</tt> of {@link #wrapped} up on every call because
+     * the <tt>SrtpControl</tt>s create theirs once the keys are known.
+     */
+    private class ShardedPacketTransformer
+        implements BatchPacketTransformer
+    {
+        /**
+         * The per-thread <tt>PacketBatch</tt>es which wrap the arrays passed
+         * to {@link #transform(RawPacket[])} and
+         * {@link #reverseTransform(RawPacket[])} so that these do not
+         * allocate a batch per call.
+         */
+        private final ThreadLocal<PacketBatch> arrayBatches
+            = new ThreadLocal<PacketBatch>()
+            {
+                @Override
+                protected PacketBatch initialValue()
+                {
+                    return new PacketBatch(0);
+                }
+            };
+
+        /**
+         * The indicator which determines whether a call is in progress. The
+         * shards are reused by the calls, so a concurrent call (e.g. a
+         * synchronous write while the send thread transforms) is carried out
+         * by its calling thread alone.
+         */
+        private final AtomicBoolean busy = new AtomicBoolean();
+
+        /**
+         * The number of shards of the call in progress which have not been
+         * transformed yet.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        /**
+         * The indicator which determines whether this instance transforms
+         * RTP or RTCP packets.
+         */
+        private final boolean rtp;
+
+        /**
+         * The shards of the calls. A call uses at most one shard per worker
+         * thread and one for the calling thread.
+         */
+        private final Shard[] shards = new Shard[THREADS + 1];
+
+        /**
+         * The thread which waits for the shards of the call in progress.
+         */
+        private volatile Thread waiter;
+
+        /**
+         * Initializes a new <tt>ShardedPacketTransformer</tt> instance.
+         *
+         * @param rtp <tt>true</tt> to transform RTP packets or <tt>false</tt>
+         * to transform RTCP packets
+         */
+        ShardedPacketTransformer(boolean rtp)
+        {
+            this.rtp = rtp;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close()
+        {
+            PacketTransformer transformer = getTransformer();
+
+            if (transformer != null)
+                transformer.close();
+        }
+
+        /**
+         * Gets the <tt>PacketTransformer</tt> of {@link #wrapped} which this
+         * instance fans the packets out to.
+         *
+         * @return the <tt>PacketTransformer</tt> of <tt>wrapped</tt> which
+         * this instance fans the packets out to or <tt>null</tt>
+         */
+        private PacketTransformer getTransformer()
+        {
+            return
+                rtp
+                    ? wrapped.getRTPTransformer()
+                    : wrapped.getRTCPTransformer();
+        }
+
+        /**
+         * Gets the index of the shard of a specific packet.
+         *
+         * @param pkt the packet
+         * @param shardCount the number of shards
+         * @return the index of the shard of <tt>pkt</tt>
+         */
+        private int getShardIndex(RawPacket pkt, int shardCount)
+        {
+            int ssrc;
+
+            if (rtp)
+                ssrc = (pkt.getLength() < 12) ? 0 : pkt.getSSRC();
+            else
+                ssrc = (pkt.getLength() < 8) ? 0 : pkt.getRTCPSSRC();
+
+            // Spread the bits of SSRCs which differ in their high bits only.
+            int h = ssrc * 0x9E3779B9;
+
+            return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % shardCount;
+        }
+
+        /**
+         * Transforms or reverse-transforms a specific array of packets in the
+         * <tt>PacketBatch</tt> of the calling thread.
+         *
+         * @param pkts the packets to transform or reverse-transform
+         * @param forward <tt>true</tt> to transform or <tt>false</tt> to
+         * reverse-transform <tt>pkts</tt>
+         * @return the transformed or reverse-transformed packets
+         */
+        private RawPacket[] process(RawPacket[] pkts, boolean forward)
+        {
+            if (pkts == null)
+                return pkts;
+
+            PacketBatch batch = arrayBatches.get();
+
+            batch.setPackets(pkts);
+            try
+            {
+                process(batch, forward);
+                return batch.getPackets();
+            }
+            finally
+            {
+                // Do not keep the packets of the caller reachable.
+                batch.setPackets(null);
+            }
+        }
+
+        /**
+         * Transforms or reverse-transforms a specific batch, fanning its
+         * shards out over the worker threads if it has more than one.
+         *
+         * @param batch the batch to transform or reverse-transform in place
+         * @param forward <tt>true</tt> to transform or <tt>false</tt> to
+         * reverse-transform <tt>batch</tt>
+         */
+        private void process(PacketBatch batch, boolean forward)
+        {
+            PacketTransformer transformer = getTransformer();
+
+            if (transformer == null)
+                return;
+
+            int shardCount = Math.min(shards.length, batch.getValidCount());
+
+            if (shardCount > 1 && busy.compareAndSet(false, true))
+            {
+                try
+                {
+                    if (processInShards(
+                            transformer, batch, forward, shardCount))
+                    {
+                        return;
+                    }
+                }
+                finally
+                {
+                    busy.set(false);
+                }
+            }
+
+            if (forward)
+                TransformEngineChain.transform(transformer, batch);
+            else
+                TransformEngineChain.reverseTransform(transformer, batch);
+        }
+
+        /**
+         * Shards a specific batch by SSRC and transforms or
+         * reverse-transforms the shards on the worker threads and the calling
+         * thread. Invoked by one thread at a time.
+         *
+         * @param transformer the <tt>PacketTransformer</tt> to transform or
+         * reverse-transform the shards with
+         * @param batch the batch to transform or reverse-transform in place
+         * @param forward <tt>true</tt> to transform or <tt>false</tt> to
+         * reverse-transform <tt>batch</tt>
+         * @param shardCount the number of shards to distribute the packets
+         * of <tt>batch</tt> among
+         * @return <tt>true</tt> if <tt>batch</tt> has been transformed or
+         * reverse-transformed; <tt>false</tt> if its packets fall into a
+         * single shard and it is to be transformed or reverse-transformed by
+         * the calling thread without sharding
+         */
+        private boolean processInShards(
+                PacketTransformer transformer,
+                PacketBatch batch,
+                boolean forward,
+                int shardCount)
+        {
+            for (int i = 0; i < shardCount; i++)
+            {
+                if (shards[i] == null)
+                    shards[i] = new Shard();
+            }
+
+            // Shard the packets.
+            int nonEmptyShardCount = 0;
+
+            for (int i = 0, end = batch.size(); i < end; i++)
+            {
+                RawPacket pkt = batch.get(i);
+
+                if (pkt != null)
+                {
+                    Shard shard = shards[getShardIndex(pkt, shardCount)];
+
+                    if (shard.count == 0)
+                        nonEmptyShardCount++;
+                    shard.add(i, pkt);
+                }
+            }
+            if (nonEmptyShardCount < 2)
+            {
+                for (int i = 0; i < shardCount; i++)
+                    shards[i].clear();
+                return false;
+            }
+
+            // Hand all but the first shard off to the worker threads.
+            Executor executor = getExecutor();
+
+            waiter = Thread.currentThread();
+            pending.set(nonEmptyShardCount);
+
+            boolean handOff = false;
+
+            for (int i = 0; i < shardCount; i++)
+            {
+                Shard shard = shards[i];
+
+                if (shard.count != 0)
+                {
+                    shard.arm(transformer, forward);
+                    if (handOff)
+                        executor.execute(shard);
+                    else
+                        handOff = true;
+                }
+            }
+
+            // Transform the shards which no worker thread has claimed yet
+            // (including the first one) on the calling thread and wait for
+            // the rest.
+            for (int i = 0; i < shardCount; i++)
+                shards[i].run();
+
+            boolean interrupted = false;
+
+            while (pending.get() != 0)
+            {
+                LockSupport.park(this);
+                if (Thread.interrupted())
+                    interrupted = true;
+            }
+            waiter = null;
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            // Put the results back into batch in order.
+            Throwable error = null;
+
+            for (int i = 0; i < shardCount; i++)
+            {
+                Shard shard = shards[i];
+
+                if (shard.count != 0)
+                {
+                    if (error == null)
+                        error = shard.error;
+                    shard.merge(batch);
+                }
+                shard.clear();
+            }
+            if (error != null)
+            {
+                if (error instanceof Error)
+                    throw (Error) error;
+                else if (error instanceof RuntimeException)
+                    throw (RuntimeException) error;
+                else
+                    throw new RuntimeException(error);
+            }
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public RawPacket[] reverseTransform(RawPacket[] pkts)
+        {
+            return process(pkts, false);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void reverseTransform(PacketBatch batch)
+        {
+            process(batch, false);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public RawPacket[] transform(RawPacket[] pkts)
+        {
+            return process(pkts, true);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void transform(PacketBatch batch)
+        {
+            process(batch, true);
+        }
+
+        /**
+         * Represents the packets of a batch which fall into one shard (i.e.
+         * the packets of a subset of the SSRCs) and which are transformed by
+         * one thread in order.
+         */
+        private class Shard
+            implements Runnable
+        {
+            /**
+             * The <tt>Throwable</tt> thrown by the transformation of this
+             * shard or <tt>null</tt>.
+             */
+            Throwable error;
+
+            /**
+             * The indicator which determines whether this shard is to be
+             * transformed or reverse-transformed.
+             */
+            private boolean forward;
+
+            /**
+             * The indices in the batch of the packets of this shard.
+             */
+            private int[] indices = new int[8];
+
+            /**
+             * The packets of this shard as they were before the
+             * transformation (which may replace the elements of
+             * {@link #pkts}) so that {@link #merge(PacketBatch)} may tell
+             * whether the transformer has kept them at their indices.
+             */
+            private RawPacket[] inputs = new RawPacket[8];
+
+            /**
+             * The number of packets of this shard.
+             */
+            int count;
+
+            /**
+             * The packets of this shard. The elements at or after
+             * {@link #count} are <tt>null</tt>.
+             */
+            private RawPacket[] pkts = new RawPacket[8];
+
+            /**
+             * The packets which are the result of the transformation of this
+             * shard.
+             */
+            private RawPacket[] results;
+
+            /**
+             * The state of this shard: one of {@link #SHARD_IDLE},
+             * {@link #SHARD_PENDING} and {@link #SHARD_CLAIMED}. A
+             * <tt>Shard</tt> which a worker thread picks up after the call it
+             * was handed off by has completed is not pending and is ignored.
+             */
+            private final AtomicInteger state = new AtomicInteger(SHARD_IDLE);
+
+            /**
+             * The <tt>PacketTransformer</tt> to transform this shard with.
+             */
+            private PacketTransformer transformer;
+
+            /**
+             * Appends a packet to this shard.
+             *
+             * @param index the index of <tt>pkt</tt> in the batch
+             * @param pkt the packet to append
+             */
+            void add(int index, RawPacket pkt)
+            {
+                if (count == pkts.length)
+                {
+                    indices = Arrays.copyOf(indices, 2 * count);
+                    inputs = Arrays.copyOf(inputs, 2 * count);
+                    pkts = Arrays.copyOf(pkts, 2 * count);
+                }
+                indices[count] = index;
+                inputs[count] = pkt;
+                pkts[count] = pkt;
+                count++;
+            }
+
+            /**
+             * Makes this shard pending i.e. available to be claimed and
+             * transformed by a thread.
+             *
+             * @param transformer the <tt>PacketTransformer</tt> to transform
+             * this shard with
+             * @param forward <tt>true</tt> to transform or <tt>false</tt> to
+             * reverse-transform this shard
+             */
+            void arm(PacketTransformer transformer, boolean forward)
+            {
+                this.transformer = transformer;
+                this.forward = forward;
+                // Publishes the fields above to the claiming thread.
+                state.set(SHARD_PENDING);
+            }
+
+            /**
+             * Empties this shard for reuse.
+             */
+            void clear()
+            {
+                Arrays.fill(inputs, 0, count, null);
+                Arrays.fill(pkts, 0, count, null);
+                count = 0;
+                error = null;
+                results = null;
+                transformer = null;
+                state.set(SHARD_IDLE);
+            }
+
+            /**
+             * Determines whether the transformer of this shard has kept the
+             * packets of this shard at their indices i.e. whether every
+             * result at an index of a packet of this shard is either that
+             * very packet or <tt>null</tt> (because the packet was dropped).
+             * The SRTP transformers do but e.g. the one of DTLS-SRTP returns
+             * a compacted array with the queued packets first.
+             *
+             * @return <tt>true</tt> if the results of the transformation of
+             * this shard are at the indices of the packets they result from;
+             * otherwise, <tt>false</tt>
+             */
+            private boolean isIndexPreserving()
+            {
+                int resultCount = (results == null) ? 0 : results.length;
+                int end = Math.min(count, resultCount);
+
+                for (int i = 0; i < end; i++)
+                {
+                    RawPacket pkt = results[i];
+
+                    if (pkt != null && pkt != inputs[i])
+                        return false;
+                }
+                return true;
+            }
+
+            /**
+             * Puts the results of the transformation of this shard into a
+             * specific batch. If the transformer has kept the packets at
+             * their indices, the result at index <tt>i</tt> goes back into
+             * the slot of the batch which the <tt>i</tt>th packet of this
+             * shard came from so that the order of the batch is preserved and
+             * the packets which the transformer has added past the packets of
+             * this shard are appended to the batch. Otherwise, the slots of
+             * all packets of this shard are invalidated and the results are
+             * appended to the batch in their order.
+             *
+             * @param batch the batch this shard has been sharded from
+             */
+            void merge(PacketBatch batch)
+            {
+                int resultCount = (results == null) ? 0 : results.length;
+                int start;
+
+                if (isIndexPreserving())
+                {
+                    for (int i = 0; i < count; i++)
+                    {
+                        RawPacket pkt = (i < resultCount) ? results[i] : null;
+
+                        if (pkt == null)
+                            batch.invalidate(indices[i]);
+                        else
+                            batch.set(indices[i], pkt);
+                    }
+                    start = count;
+                }
+                else
+                {
+                    for (int i = 0; i < count; i++)
+                        batch.invalidate(indices[i]);
+                    start = 0;
+                }
+                for (int i = start; i < resultCount; i++)
+                {
+                    RawPacket pkt = results[i];
+
+                    if (pkt != null)
+                        batch.add(pkt);
+                }
+            }
+
+            /**
+             * Transforms this shard if it is pending and no other thread has
+             * claimed it yet.
+             */
+            @Override
+            public void run()
+            {
+                if (!state.compareAndSet(SHARD_PENDING, SHARD_CLAIMED))
+                    return;
+
+                try
+                {
+                    results
+                        = forward
+                            ? transformer.transform(pkts)
+                            : transformer.reverseTransform(pkts);
+                }
+                catch (Throwable t)
+                {
+                    error = t;
+                }
+                finally
+                {
+                    if (pending.decrementAndGet() == 0)
+                    {
+                        Thread waiter
+                            = ShardedPacketTransformer.this.waiter;
+
+                        if (waiter != null)
+                            LockSupport.unpark(waiter);
+                    }
+                }
+            }
+        }
+    }
+}
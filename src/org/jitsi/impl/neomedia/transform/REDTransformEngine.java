@@ -27,7 +27,7 @@
  */
 public class REDTransformEngine
          implements TransformEngine,
-                    PacketTransformer
+                    BatchPacketTransformer
 {
     /**
      * The <tt>Logger</tt> used by the <tt>REDTransformEngine</tt> class and
@@ -127,12 +127,36 @@ public RawPacket[] reverseTransform(RawPacket[] pkts)
         if (pkts != null && pkts.length > 0)
         {
             if (pkts[0] != null && pkts[0].getPayloadType() == incomingPT)
-                return reverseTransformSingle(pkts[0], pkts);
+            {
+                PacketBatch batch = new PacketBatch(pkts);
+
+                reverseTransformSingle(pkts[0], batch);
+                return batch.getPackets();
+            }
         }
 
         return pkts;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Reverse-transform a RED (RFC2198) packet. Makes the same assumption as
+     * {@link #reverseTransform(RawPacket[])} i.e. that there is at most a
+     * single packet in <tt>batch</tt> and it is in the first slot.
+     */
+    @Override
+    public void reverseTransform(PacketBatch batch)
+    {
+        if (incomingPT == -1 || batch.size() == 0)
+            return;
+
+        RawPacket pkt = batch.get(0);
+
+        if (pkt != null && pkt.getPayloadType() == incomingPT)
+            reverseTransformSingle(pkt, batch);
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -182,9 +206,23 @@ public RawPacket[] transform(RawPacket[] pkts)
     }
 
     /**
-     * Transforms the RFC2198 packet <tt>pkt</tt> into an array of RTP packets.
+     * {@inheritDoc}
+     *
+     * Encapsulates the packets in <tt>batch</tt> with RED (RFC2198) in place.
+     */
+    @Override
+    public void transform(PacketBatch batch)
+    {
+        // The encapsulation neither adds nor drops packets.
+        transform(batch.getPackets());
+    }
+
+    /**
+     * Transforms the RFC2198 packet <tt>pkt</tt> into RTP packets. The
+     * primary packet replaces <tt>pkt</tt> in <tt>batch</tt> and the
+     * non-primary packets are appended to <tt>batch</tt>.
      */
-    private RawPacket[] reverseTransformSingle(RawPacket pkt, RawPacket[] pkts)
+    private void reverseTransformSingle(RawPacket pkt, PacketBatch batch)
     {
         byte[] buf = pkt.getBuffer();
         int off = pkt.getOffset();
@@ -206,8 +244,6 @@ private RawPacket[] reverseTransformSingle(RawPacket pkt, RawPacket[] pkts)
         }
         idx = off + hdrLen; //back to beginning of RTP payload
 
-        if (pkts.length < pktCount)
-            pkts = new RawPacket[pktCount];
         if (pktCount != 1 && logger.isInfoEnabled())
             logger.info("Received a RED packet with more than one packet inside");
 
@@ -218,21 +254,18 @@ private RawPacket[] reverseTransformSingle(RawPacket pkt, RawPacket[] pkts)
         {
             int blockLen = (buf[idx + 2] & 0x03) << 8 | (buf[idx + 3] & 0xFF);
 
-            // XXX: we might need to optimize
-            byte[] newBuf = new byte[hdrLen + blockLen];
+            RawPacket redundantPkt = RawPacket.createPooled(hdrLen + blockLen);
+
             // XXX: might be wrong but this doesn't look right -- do we really
             // want to copy the RTP header from inside the payload?
-            System.arraycopy(buf, payloadOffset, newBuf, 0, hdrLen + blockLen);
-
-            // XXX: we might need to optimize
-            if (pkts[i] == null)
-                pkts[i] = new RawPacket();
-
-            pkts[i].setBuffer(newBuf);
-            pkts[i].setOffset(0);
-            pkts[i].setLength(hdrLen + blockLen);
-
-            pkts[i].setPayloadType((byte) (buf[idx] & 0xf7));
+            System.arraycopy(
+                    buf, payloadOffset,
+                    redundantPkt.getBuffer(), 0,
+                    hdrLen + blockLen);
+            redundantPkt.setLength(hdrLen + blockLen);
+
+            redundantPkt.setPayloadType((byte) (buf[idx] & 0xf7));
+            batch.add(redundantPkt);
             //TODO: update timestamp
 
             idx += 4; // next RED header
@@ -255,9 +288,6 @@ private RawPacket[] reverseTransformSingle(RawPacket pkt, RawPacket[] pkts)
         System.arraycopy(buf, off, buf, off + payloadOffset - hdrLen, hdrLen);
         pkt.setOffset(off + payloadOffset - hdrLen);
         pkt.setLength(pkt.getLength() - (payloadOffset - hdrLen));
-
-        pkts[0] = pkt;
-        return pkts;
     }
 
     /**
@@ -15,18 +15,26 @@
  */
 package org.jitsi.impl.neomedia.transform;
 
-import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.rtcp.*;
+import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.util.*;
+import org.jitsi.util.concurrent.*;
 
 /**
  * Detects lost RTP packets for a particular <tt>RtpChannel</tt> and requests
  * their retransmission by sending RTCP NACK packets.
  *
+ * The lost packets of each SSRC are tracked in a sliding bitset indexed by
+ * their extended sequence numbers and the NACK entries (PID and BLP) are
+ * packed straight from it. The requests of all instances are scheduled on a
+ * shared timing wheel and sent by a shared pool of threads rather than by a
+ * thread per instance.
+ *
  * @author Boris Grozev
  */
 public class RetransmissionRequesterImpl
@@ -52,6 +60,21 @@
      */
     private static final int RE_REQUEST_AFTER = 150;
 
+    /**
+     * The number of (extended) sequence numbers tracked by the bitset of a
+     * <tt>Requester</tt>. A power of two and a multiple of 64. The packets
+     * which fall out of the window are not requested anymore.
+     */
+    private static final int WINDOW_SIZE = 512;
+
+    /**
+     * The name of the property which specifies the number of threads which
+     * send the NACK packets of all <tt>RetransmissionRequesterImpl</tt>s. The
+     * default value is the number of available processors.
+     */
+    public static final String THREADS_PNAME
+        = RetransmissionRequesterImpl.class.getName() + ".threads";
+
     /**
      * The <tt>Logger</tt> used by the <tt>RetransmissionRequesterImpl</tt> class
      * and its instances to print debug information.
@@ -59,11 +82,72 @@
     private static final Logger logger
         = Logger.getLogger(RetransmissionRequesterImpl.class);
 
+    /**
+     * The timing wheel which schedules the retransmission requests of all
+     * <tt>RetransmissionRequesterImpl</tt>s with a single thread.
+     */
+    private static HashedWheelTimer timer;
+
+    /**
+     * The pool of threads which send the NACK packets of all
+     * <tt>RetransmissionRequesterImpl</tt>s.
+     */
+    private static ExecutorService senderPool;
+
+    /**
+     * Gets the pool of threads which send the NACK packets of all
+     * <tt>RetransmissionRequesterImpl</tt>s.
+     *
+     * @return the pool of threads which send the NACK packets of all
+     * <tt>RetransmissionRequesterImpl</tt>s
+     */
+    private static synchronized ExecutorService getSenderPool()
+    {
+        if (senderPool == null)
+        {
+            int threads
+                = ConfigUtils.getInt(
+                        LibJitsi.getConfigurationService(),
+                        THREADS_PNAME,
+                        Runtime.getRuntime().availableProcessors());
+
+            senderPool
+                = ExecutorUtils.newFixedThreadPool(
+                        Math.max(1, threads),
+                        true,
+                        RetransmissionRequesterImpl.class.getName());
+        }
+        return senderPool;
+    }
+
+    /**
+     * Gets the timing wheel which schedules the retransmission requests of all
+     * <tt>RetransmissionRequesterImpl</tt>s.
+     *
+     * @return the timing wheel which schedules the retransmission requests of
+     * all <tt>RetransmissionRequesterImpl</tt>s
+     */
+    private static synchronized HashedWheelTimer getTimer()
+    {
+        if (timer == null)
+        {
+            // The requests are repeated every RE_REQUEST_AFTER milliseconds so
+            // a 10ms tick and a wheel of a little more than a second suffice.
+            timer
+                = new HashedWheelTimer(
+                        RetransmissionRequesterImpl.class.getName() + ".timer",
+                        10,
+                        128);
+        }
+        return timer;
+    }
+
     /**
      * Maps an SSRC to the <tt>Requester</tt> instance corresponding to it.
      * TODO: purge these somehow (RTCP BYE? Timeout?)
      */
-    private final Map<Long, Requester> requesters = new HashMap<>();
+    private final CopyOnWriteIntHashMap<Requester> requesters
+        = new CopyOnWriteIntHashMap<>();
 
     /**
      * Maps an SSRC of a retransmission (RTX) stream to the original stream's
@@ -81,15 +165,10 @@
      */
     private boolean enabled = true;
 
-    /**
-     * The thread which requests retransmissions by sending RTCP NACK packets.
-     */
-    private final Thread thread;
-
     /**
      * Whether this <tt>PacketTransformer</tt> has been closed.
      */
-    private boolean closed = false;
+    private volatile boolean closed = false;
 
     /**
      * The {@link MediaStream} that this instance belongs to.
@@ -111,19 +190,6 @@ public RetransmissionRequesterImpl(MediaStream stream)
     {
         super(RTPPacketPredicate.INSTANCE);
         this.stream = stream;
-
-        thread
-            = new Thread()
-            {
-                @Override
-                public void run()
-                {
-                    runInRequesterThread();
-                }
-            };
-        thread.setDaemon(true);
-        thread.setName(RetransmissionRequesterImpl.class.getName());
-        thread.start();
     }
 
     /**
@@ -153,19 +219,23 @@ public RawPacket reverseTransform(RawPacket pkt)
 
             if (ssrc != null)
             {
-                Requester requester;
-                synchronized (requesters)
+                Requester requester = requesters.get(ssrc.intValue());
+
+                if (requester == null)
                 {
-                    requester = requesters.get(ssrc);
-                    if (requester == null)
+                    synchronized (requesters)
                     {
-                        if (logger.isDebugEnabled())
+                        requester = requesters.get(ssrc.intValue());
+                        if (requester == null)
                         {
-                            logger.debug(
-                                "Creating new Requester for SSRC " + ssrc);
+                            if (logger.isDebugEnabled())
+                            {
+                                logger.debug(
+                                    "Creating new Requester for SSRC " + ssrc);
+                            }
+                            requester = new Requester(ssrc);
+                            requesters.put(ssrc.intValue(), requester);
                         }
-                        requester = new Requester(ssrc);
-                        requesters.put(ssrc, requester);
                     }
                 }
                 requester.received(seq);
@@ -182,6 +252,9 @@ public RawPacket reverseTransform(RawPacket pkt)
     public void close()
     {
         closed = true;
+
+        for (Requester requester : requesters.values())
+            requester.cancel();
     }
 
     /**
@@ -213,123 +286,30 @@ public void enable(boolean enable)
     }
 
     /**
-     * Runs a loop which checks for any pending requests to be sent, sends them
-     * and then waits until another request is available or due.
+     * Sends a specific NACK packet.
+     *
+     * @param pkt the NACK packet to send
      */
-    private void runInRequesterThread()
+    private void sendNack(RawPacket pkt)
     {
-        if (Thread.currentThread() != thread)
-            return;
-
-        Map<Long, Set<Integer>> packetsToRequest = new HashMap<>();
-
-        while (true)
+        try
         {
-            if (closed)
+            if (logger.isDebugEnabled())
             {
-                break;
+                logger.debug(
+                        "Sending a NACK with " + (pkt.getLength() - 12) / 4
+                            + " entries.");
             }
-
-            synchronized (thread)
-            {
-                // Check when the next request is due. -1 means there is no
-                // request scheduled.
-                long nextRequestAt = -1;
-                synchronized (requesters)
-                {
-                    for (Requester requester : requesters.values())
-                    {
-                        if (requester.nextRequestAt != -1)
-                        {
-                            if (nextRequestAt == -1
-                                    || nextRequestAt > requester.nextRequestAt)
-                            {
-                                nextRequestAt = requester.nextRequestAt;
-                            }
-                        }
-                    }
-                }
-
-                long now = System.currentTimeMillis();
-                if (nextRequestAt == -1 || nextRequestAt - now > 0)
-                {
-                    try
-                    {
-                        if (nextRequestAt == -1)
-                        {
-                            thread.wait(1000);
-                            continue;
-                        }
-                        else
-                        {
-                            thread.wait(nextRequestAt - now);
-                        }
-                    }
-                    catch (InterruptedException ie)
-                    {
-                        break;
-                    }
-                }
-                //else the time has already come
-            }
-
-            if (!enabled || senderSsrc == -1)
-                continue;
-
-            synchronized (requesters)
-            {
-                for (Map.Entry<Long, Requester> entry : requesters.entrySet())
-                {
-                    Requester requester = entry.getValue();
-                    Set<Integer> missingPackets = requester.getMissing();
-                    if (missingPackets != null && !missingPackets.isEmpty())
-                    {
-                        packetsToRequest.put(requester.ssrc, missingPackets);
-                    }
-                }
-            }
-
-            for (Map.Entry<Long, Set<Integer>> entry : packetsToRequest.entrySet())
-            {
-                long sourceSsrc = entry.getKey();
-                NACKPacket nack
-                    = new NACKPacket(senderSsrc, sourceSsrc, entry.getValue());
-                RawPacket pkt;
-
-                try
-                {
-                    pkt = nack.toRawPacket();
-                }
-                catch (IOException ioe)
-                {
-                    pkt = null;
-                    logger.warn("Failed to create a NACK packet: " + ioe);
-                }
-
-                if (pkt != null)
-                {
-                    try
-                    {
-                        if (logger.isDebugEnabled())
-                        {
-                            logger.debug("Sending a NACK: " + nack);
-                        }
-                        stream.injectPacket(
-                                pkt,
-                                /* data */ false,
-                                /* after */ null);
-                    }
-                    catch (TransmissionFailedException e)
-                    {
-                        logger.warn(
-                                "Failed to inject packet in MediaStream: " + e);
-                    }
-                }
-            }
-
-            packetsToRequest.clear();
+            stream.injectPacket(
+                    pkt,
+                    /* data */ false,
+                    /* after */ null);
+        }
+        catch (TransmissionFailedException e)
+        {
+            logger.warn(
+                    "Failed to inject packet in MediaStream: " + e);
         }
-
     }
 
 
@@ -355,6 +335,7 @@ public PacketTransformer getRTCPTransformer()
      * Handles packets for a single SSRC.
      */
     private class Requester
+        implements Runnable
     {
         /**
          * The SSRC for this instance.
@@ -362,20 +343,66 @@ public PacketTransformer getRTCPTransformer()
         private final long ssrc;
 
         /**
-         * The highest received RTP sequence number.
+         * The buffer into which the NACK entries of the requests of this
+         * instance are packed.
+         */
+        private byte[] fci = new byte[64];
+
+        /**
+         * The highest received (extended) RTP sequence number or <tt>-1</tt>
+         * if no packet has been received yet.
          */
-        private int lastReceivedSeq = -1;
+        private int head = -1;
 
         /**
-         * The time that the next request for this SSRC should be sent.
+         * The bitset of the lost packets within {@link #WINDOW_SIZE} of
+         * {@link #head}. The bit of an extended sequence number is at its
+         * value modulo <tt>WINDOW_SIZE</tt>.
          */
-        private long nextRequestAt = -1;
+        private final long[] missing = new long[WINDOW_SIZE / 64];
 
         /**
-         * The set of active requests for this SSRC. The keys are the sequence
-         * numbers.
+         * The number of bits set in {@link #missing}.
          */
-        private final Map<Integer, Request> requests = new HashMap<>();
+        private int missingCount = 0;
+
+        /**
+         * The number of times the retransmission of the lost packets has been
+         * requested at the same positions as their bits in {@link #missing}.
+         */
+        private final byte[] requestCounts = new byte[WINDOW_SIZE];
+
+        /**
+         * Whether a request of this instance is scheduled (i.e. on the timing
+         * wheel or the pool of threads which send the NACK packets).
+         */
+        private boolean scheduled = false;
+
+        /**
+         * The timeout of the next request of this instance or <tt>null</tt>.
+         */
+        private HashedWheelTimer.Timeout timeout;
+
+        /**
+         * Hands a request of this instance over to the pool of threads which
+         * send the NACK packets when its timeout expires unless the timeout
+         * has been replaced in the meantime. The timing wheel runs the task
+         * in its single thread.
+         */
+        private final HashedWheelTimer.TimerTask timeoutTask
+            = new HashedWheelTimer.TimerTask()
+            {
+                @Override
+                public void run(HashedWheelTimer.Timeout timeout)
+                {
+                    synchronized (Requester.this)
+                    {
+                        if (timeout != Requester.this.timeout)
+                            return;
+                    }
+                    getSenderPool().execute(Requester.this);
+                }
+            };
 
         /**
          * Initializes a new <tt>Requester</tt> instance for the given SSRC.
@@ -386,160 +413,236 @@ private Requester(long ssrc)
         }
 
         /**
-         * Handles a received RTP packet with a specific sequence number.
-         * @param seq the RTP sequence number of the received packet.
+         * Cancels the scheduled request (if any) of this instance.
+         */
+        synchronized private void cancel()
+        {
+            if (timeout != null)
+            {
+                timeout.cancel();
+                timeout = null;
+            }
+            scheduled = false;
+        }
+
+        /**
+         * Clears the bit of a specific extended sequence number in
+         * {@link #missing}.
+         *
+         * @param index the extended sequence number
          */
-        synchronized private void received(int seq)
+        private void clear(int index)
         {
-            if (lastReceivedSeq == -1)
+            int bit = index & (WINDOW_SIZE - 1);
+            long mask = 1L << (bit & 63);
+
+            if ((missing[bit >>> 6] & mask) != 0)
             {
-                lastReceivedSeq = seq;
-                return;
+                missing[bit >>> 6] &= ~mask;
+                missingCount--;
             }
+        }
 
-            int diff = RTPUtils.sequenceNumberDiff(seq, lastReceivedSeq);
-            if (diff <= 0)
+        /**
+         * Gets the lowest extended sequence number of a lost packet which is
+         * greater than or equal to a specific extended sequence number.
+         *
+         * @param from the extended sequence number to start the search from
+         * @return the lowest extended sequence number of a lost packet which is
+         * greater than or equal to <tt>from</tt> or <tt>-1</tt>
+         */
+        private int nextMissing(int from)
+        {
+            while (from <= head)
             {
-                // An older packet, possibly already requested.
-                // We don't update nextRequestAt here. The reading thread might
-                // wake up unnecessarily and do some extra work, but that's OK.
-                Request r = requests.remove(seq);
-                if (r != null && logger.isDebugEnabled())
+                int bit = from & (WINDOW_SIZE - 1);
+                long word = missing[bit >>> 6] >>> (bit & 63);
+
+                if (word != 0)
                 {
-                    long delta
-                        = System.currentTimeMillis() - r.firstRequestSentAt;
-                    if (delta < 10)
-                    {
-                        logger.debug(hashCode()
-                                     + " received a missing packet only "
-                                     + delta + "ms after it was requested.");
-                    }
+                    int index = from + Long.numberOfTrailingZeros(word);
+
+                    return (index <= head) ? index : -1;
                 }
+                from += 64 - (bit & 63);
             }
-            else if (diff == 1)
-            {
-                // The very next packet, as expected.
-                lastReceivedSeq = seq;
-            }
-            else if (diff <= MAX_MISSING)
+            return -1;
+        }
+
+        /**
+         * Handles a received RTP packet with a specific sequence number.
+         * @param seq the RTP sequence number of the received packet.
+         */
+        private void received(int seq)
+        {
+            boolean schedule = false;
+
+            synchronized (this)
             {
-                for (int missing = (lastReceivedSeq + 1) % (1<<16);
-                     missing != seq;
-                     missing = (missing + 1) % (1<<16))
+                if (head == -1)
                 {
-                    Request request = new Request(missing);
-                    requests.put(missing, request);
+                    head = seq;
+                    return;
                 }
 
-                lastReceivedSeq = seq;
-                nextRequestAt = 0;
+                int diff = RTPUtils.sequenceNumberDiff(seq, head & 0xffff);
+                int index = head + diff;
 
-                synchronized (thread)
+                if (diff <= 0)
                 {
-                    thread.notifyAll();
+                    // An older packet, possibly already requested.
+                    if (diff > -WINDOW_SIZE)
+                        clear(index);
                 }
-            }
-            else // if (diff > MAX_MISSING)
-            {
-                // Too many packets missing. Reset.
-                lastReceivedSeq = seq;
-                if (logger.isDebugEnabled())
+                else if (diff <= MAX_MISSING)
+                {
+                    // The positions of the new packets in the bitset are the
+                    // ones of the packets which fall out of the window.
+                    for (int i = head + 1; i <= index; i++)
+                        clear(i);
+
+                    for (int lost = head + 1; lost < index; lost++)
+                    {
+                        int bit = lost & (WINDOW_SIZE - 1);
+
+                        missing[bit >>> 6] |= 1L << (bit & 63);
+                        requestCounts[bit] = 0;
+                        missingCount++;
+                    }
+                    head = index;
+
+                    if (diff > 1)
+                    {
+                        // Newly lost packets are requested right away rather
+                        // than with the next repeated request.
+                        if (!scheduled)
+                        {
+                            scheduled = true;
+                            schedule = true;
+                        }
+                        else if (timeout != null && timeout.cancel())
+                        {
+                            timeout = null;
+                            schedule = true;
+                        }
+                    }
+                }
+                else // if (diff > MAX_MISSING)
                 {
-                    logger.debug("Resetting retransmission requester state. "
-                                 + "SSRC: " + ssrc
-                                 + ", last received: " + lastReceivedSeq
-                                 + ", current: " + seq
-                                 + ". Removing " + requests.size()
-                                 + " unsatisfied requests.");
+                    // Too many packets missing. Reset.
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("Resetting retransmission requester state. "
+                                     + "SSRC: " + ssrc
+                                     + ", last received: " + (head & 0xffff)
+                                     + ", current: " + seq
+                                     + ". Removing " + missingCount
+                                     + " unsatisfied requests.");
+                    }
+                    Arrays.fill(missing, 0);
+                    missingCount = 0;
+                    head = seq;
                 }
-                requests.clear();
-                nextRequestAt = -1;
             }
 
+            if (schedule)
+                getSenderPool().execute(this);
         }
 
         /**
-         * Returns a set of RTP sequence numbers which are considered still MIA,
-         * and for which a retransmission request needs to be sent.
-         * Assumes that the returned set of sequence numbers will be requested
-         * immediately and updates the state accordingly (i.e. increments the
-         * timesRequested counters and sets the time of next request).
+         * Packs the NACK entries of the lost packets into {@link #fci}.
+         * Assumes that the returned entries will be requested immediately and
+         * updates the state accordingly (i.e. increments the request counts and
+         * forgets the packets which have been requested
+         * {@link #MAX_REQUESTS} times).
          *
-         * @return a set of RTP sequence numbers which are considered still MIA,
-         * and for which a retransmission request needs to be sent.
+         * @return the length in bytes of the NACK entries in <tt>fci</tt>
          */
-        synchronized private Set<Integer> getMissing()
+        private int getMissing()
         {
-            long now = System.currentTimeMillis();
-            Set<Integer> missingPackets = null;
-
-            if (nextRequestAt == -1 || nextRequestAt > now)
-                return null;
+            int len = 0;
+            int index = nextMissing(head - WINDOW_SIZE + 1);
 
-            for (Iterator<Map.Entry<Integer,Request>> iter
-                        = requests.entrySet().iterator();
-                    iter.hasNext();)
+            while (index != -1)
             {
-                Request request = iter.next().getValue();
+                int pid = index;
+                int blp = 0;
 
-                if (missingPackets == null)
-                    missingPackets = new HashSet<>();
+                do
+                {
+                    if (index != pid)
+                        blp |= 1 << (index - pid - 1);
 
-                missingPackets.add(request.seq);
-                request.timesRequested++;
+                    int bit = index & (WINDOW_SIZE - 1);
 
-                if (request.timesRequested == 1)
-                {
-                    request.firstRequestSentAt = now;
-                }
-                else if (request.timesRequested == MAX_REQUESTS)
-                {
-                    logger.info(
-                            "Sending the last NACK for SSRC=" + ssrc + " seq="
-                                + request.seq + ". "
-                                + "Time since the first request: "
-                                + (now - request.firstRequestSentAt));
-                    iter.remove();
+                    if (++requestCounts[bit] >= MAX_REQUESTS)
+                    {
+                        logger.info(
+                                "Sending the last NACK for SSRC=" + ssrc
+                                    + " seq=" + (index & 0xffff) + ".");
+                        clear(index);
+                    }
+                    index = nextMissing(index + 1);
                 }
-
+                while (index != -1 && index - pid <= 16);
+
+                if (len + 4 > fci.length)
+                    fci = Arrays.copyOf(fci, 2 * fci.length);
+                fci[len++] = (byte) ((pid & 0xff00) >> 8);
+                fci[len++] = (byte) (pid & 0x00ff);
+                fci[len++] = (byte) ((blp & 0xff00) >> 8);
+                fci[len++] = (byte) (blp & 0x00ff);
             }
-
-            nextRequestAt = (requests.size() > 0) ? now + RE_REQUEST_AFTER : -1;
-
-            return missingPackets;
+            return len;
         }
-    }
 
-    /**
-     * Represents a request for the retransmission of a specific RTP packet.
-     */
-    private static class Request
-    {
         /**
-         * The RTP sequence number.
+         * Sends a retransmission request for the lost packets (if any) of this
+         * instance and schedules the next one. Runs on the pool of threads
+         * which send the NACK packets.
          */
-        final int seq;
+        @Override
+        public void run()
+        {
+            RawPacket nack = null;
 
-        /**
-         * The system time at the moment a retransmission request for this
-         * packet was first sent.
-         */
-        long firstRequestSentAt = -1;
+            synchronized (this)
+            {
+                timeout = null;
+                if (closed || missingCount == 0)
+                {
+                    scheduled = false;
+                    return;
+                }
 
-        /**
-         * The number of times that a retransmission request for this packet
-         * has been sent.
-         */
-        int timesRequested = 0;
+                // The lost packets are not forgotten while the sending of the
+                // requests is not possible.
+                if (enabled && senderSsrc != -1)
+                {
+                    int fciLength = getMissing();
 
-        /**
-         * Initializes a new <tt>Request</tt> instance with the given RTP
-         * sequence number.
-         * @param seq the RTP sequence number.
-         */
-        Request(int seq)
-        {
-            this.seq = seq;
+                    if (fciLength != 0)
+                    {
+                        nack
+                            = NACKPacket.toRawPacket(
+                                    senderSsrc, ssrc,
+                                    fci, fciLength);
+                    }
+                }
+
+                if (missingCount == 0)
+                {
+                    scheduled = false;
+                }
+                else
+                {
+                    timeout
+                        = getTimer().newTimeout(timeoutTask, RE_REQUEST_AFTER);
+                }
+            }
+
+            if (nack != null)
+                sendNack(nack);
         }
     }
 
@@ -0,0 +1,583 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.rtcp.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.rtp.*;
+import org.jitsi.util.*;
+
+/**
+ * Retransmits the RTP packets which are requested by the RTCP NACK packets
+ * received by a <tt>MediaStream</tt>. The packets are served from the
+ * {@link RawPacketCache} of the stream and are encapsulated as described in
+ * RFC 4588 (i.e. sent with the SSRC of the associated retransmission stream,
+ * the payload type of the RTX format associated with their own payload type
+ * by its <tt>apt</tt> parameter, a sequence number of their own and the
+ * original sequence number at the beginning of the payload). The packets of a
+ * payload type without an associated RTX format are not retransmitted.
+ *
+ * A packet is retransmitted at most once per round-trip time (the receivers
+ * repeat their requests until the retransmissions arrive) and the
+ * retransmissions are limited to a bitrate budget.
+ */
+public class RtxTransformer
+    extends SinglePacketTransformerAdapter
+    implements TransformEngine, NACKListener
+{
+    /**
+     * The name of the property which specifies the maximum bitrate in bits
+     * per second of the retransmissions of a <tt>MediaStream</tt>. A value
+     * less than or equal to <tt>0</tt> leaves the retransmissions unlimited.
+     */
+    public static final String MAX_BITRATE_PNAME
+        = RtxTransformer.class.getName() + ".maxBitrate";
+
+    /**
+     * The interval in milliseconds within which a packet is retransmitted at
+     * most once if the round-trip time to the receiver is not known.
+     */
+    private static final long DEFAULT_RTT_MS = 100;
+
+    /**
+     * The number of the most recent retransmissions of an SSRC which are
+     * remembered in order to de-duplicate the requests. A power of two.
+     */
+    private static final int HISTORY_SIZE = 1024;
+
+    /**
+     * The time in milliseconds worth of the bitrate budget which may be spent
+     * at once (e.g. on a NACK which requests a burst of lost packets).
+     */
+    private static final long MAX_BURST_MS = 200;
+
+    /**
+     * The maximum bitrate in bits per second of the retransmissions of a
+     * <tt>MediaStream</tt>.
+     *
+     * @see #MAX_BITRATE_PNAME
+     */
+    private static final long MAX_BITRATE;
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>RtxTransformer</tt> class and its
+     * instances to print debug information.
+     */
+    private static final Logger logger = Logger.getLogger(RtxTransformer.class);
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        MAX_BITRATE = ConfigUtils.getLong(cfg, MAX_BITRATE_PNAME, 2000000L);
+    }
+
+    /**
+     * The number of bytes which may be retransmitted right now.
+     */
+    private long budgetBytes;
+
+    /**
+     * The system time in milliseconds at which {@link #budgetBytes} was last
+     * replenished.
+     */
+    private long budgetUpdateTime = -1;
+
+    /**
+     * The number of requested packets which were not retransmitted because
+     * the bitrate budget was exhausted.
+     */
+    private final AtomicLong budgetDrops = new AtomicLong();
+
+    /**
+     * The number of requested packets which were not found in the cache.
+     */
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * Whether this <tt>PacketTransformer</tt> has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * The number of requested packets which were not retransmitted because
+     * they had been retransmitted within the last round-trip time.
+     */
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * The payload type numbers of the RTX formats (the values) associated
+     * with the payload type numbers of their primary formats (the keys) by
+     * their <tt>apt</tt> format parameters.
+     */
+    private Map<Byte, Byte> rtxPts = Collections.emptyMap();
+
+    /**
+     * The retransmission state of the primary SSRCs which have an associated
+     * retransmission SSRC.
+     */
+    private Map<Long, RtxStream> rtxStreams = Collections.emptyMap();
+
+    /**
+     * The number of bytes which have been retransmitted.
+     */
+    private final AtomicLong retransmittedBytes = new AtomicLong();
+
+    /**
+     * The number of packets which have been retransmitted.
+     */
+    private final AtomicLong retransmittedPackets = new AtomicLong();
+
+    /**
+     * The {@link MediaStream} that this instance belongs to.
+     */
+    private final MediaStream stream;
+
+    /**
+     * Initializes a new <tt>RtxTransformer</tt> instance.
+     *
+     * @param stream the {@link MediaStream} the packets of which are to be
+     * retransmitted by the new instance.
+     */
+    public RtxTransformer(MediaStream stream)
+    {
+        super(RTPPacketPredicate.INSTANCE);
+        this.stream = stream;
+    }
+
+    /**
+     * Associates the RTX format with a specific payload type number with the
+     * format with a specific (associated) payload type number. The packets
+     * of the associated payload type are retransmitted with the payload type
+     * of the RTX format.
+     *
+     * @param rtxPt the payload type number of the RTX format
+     * @param apt the payload type number of the format the packets of which
+     * are retransmitted with <tt>rtxPt</tt> (i.e. the value of the
+     * <tt>apt</tt> parameter of the RTX format)
+     */
+    public synchronized void addRtxPayloadType(byte rtxPt, byte apt)
+    {
+        Map<Byte, Byte> rtxPts = new HashMap<>(this.rtxPts);
+
+        rtxPts.put(apt, rtxPt);
+        this.rtxPts = rtxPts;
+    }
+
+    /**
+     * Removes the associations of the RTX formats with the formats the
+     * packets of which they retransmit i.e. disables the retransmissions.
+     */
+    public synchronized void clearRtxPayloadTypes()
+    {
+        rtxPts = Collections.emptyMap();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void close()
+    {
+        closed = true;
+
+        if (logger.isDebugEnabled())
+            logger.debug("Closing RtxTransformer " + hashCode() + ": " + this);
+    }
+
+    /**
+     * Encapsulates a specific RTP packet in an RTX packet.
+     *
+     * @param pkt the RTP packet to encapsulate
+     * @param rtxStream the <tt>RtxStream</tt> of the SSRC of <tt>pkt</tt>
+     * @param rtxPt the payload type number of the RTX format associated with
+     * the payload type of <tt>pkt</tt>
+     * @return a new RTX packet which encapsulates <tt>pkt</tt>
+     */
+    private static RawPacket encapsulate(
+            RawPacket pkt,
+            RtxStream rtxStream,
+            byte rtxPt)
+    {
+        int headerLength = pkt.getHeaderLength();
+        int len = pkt.getLength();
+        byte[] buf = new byte[len + 2];
+
+        // Make room for the original sequence number between the header and
+        // the payload.
+        pkt.readRegionToBuff(0, len, buf);
+        System.arraycopy(
+                buf, headerLength,
+                buf, headerLength + 2,
+                len - headerLength);
+
+        RawPacket rtx = new RawPacket(buf, 0, buf.length);
+
+        rtx.setOriginalSequenceNumber(pkt.getSequenceNumber());
+        rtx.setSSRC((int) rtxStream.rtxSsrc);
+        rtx.setPayloadType(rtxPt);
+        rtx.setSequenceNumber(rtxStream.nextSequenceNumber());
+        return rtx;
+    }
+
+    /**
+     * Gets the number of requested packets which were not retransmitted
+     * because the bitrate budget was exhausted.
+     *
+     * @return the number of requested packets which were not retransmitted
+     * because the bitrate budget was exhausted
+     */
+    public long getBudgetDrops()
+    {
+        return budgetDrops.get();
+    }
+
+    /**
+     * Gets the number of requested packets which were not found in the cache.
+     *
+     * @return the number of requested packets which were not found in the
+     * cache
+     */
+    public long getCacheMisses()
+    {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Gets the number of requested packets which were not retransmitted
+     * because they had been retransmitted within the last round-trip time.
+     *
+     * @return the number of de-duplicated requests
+     */
+    public long getDuplicates()
+    {
+        return duplicates.get();
+    }
+
+    /**
+     * Gets the number of bytes which have been retransmitted.
+     *
+     * @return the number of bytes which have been retransmitted
+     */
+    public long getRetransmittedBytes()
+    {
+        return retransmittedBytes.get();
+    }
+
+    /**
+     * Gets the number of packets which have been retransmitted.
+     *
+     * @return the number of packets which have been retransmitted
+     */
+    public long getRetransmittedPackets()
+    {
+        return retransmittedPackets.get();
+    }
+
+    /**
+     * Implements {@link TransformEngine#getRTCPTransformer()}.
+     */
+    @Override
+    public PacketTransformer getRTCPTransformer()
+    {
+        return null;
+    }
+
+    /**
+     * Implements {@link TransformEngine#getRTPTransformer()}.
+     */
+    @Override
+    public PacketTransformer getRTPTransformer()
+    {
+        return this;
+    }
+
+    /**
+     * Gets the interval in milliseconds within which a packet is
+     * retransmitted at most once.
+     *
+     * @return the round-trip time to the receivers in milliseconds or
+     * {@link #DEFAULT_RTT_MS} if it is not known
+     */
+    private long getRttMs()
+    {
+        MediaStreamStats stats = stream.getMediaStreamStats();
+        long rtt = (stats == null) ? -1 : stats.getRttMs();
+
+        return (rtt > 0) ? rtt : DEFAULT_RTT_MS;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Retransmits the requested packets which are in the cache of the stream,
+     * have not been retransmitted within the last round-trip time and fit
+     * into the bitrate budget.
+     */
+    @Override
+    public void nackReceived(NACKPacket nackPacket)
+    {
+        nackReceived(nackPacket, System.currentTimeMillis());
+    }
+
+    /**
+     * Retransmits the packets requested by a specific NACK at a specific
+     * time.
+     *
+     * @param nackPacket the received NACK
+     * @param now the system time in milliseconds at which <tt>nackPacket</tt>
+     * is handled
+     */
+    void nackReceived(NACKPacket nackPacket, long now)
+    {
+        RawPacketCache cache = stream.getPacketCache();
+
+        if (cache == null)
+            return;
+
+        long ssrc = nackPacket.sourceSSRC;
+        List<RawPacket> retransmissions = null;
+
+        synchronized (this)
+        {
+            RtxStream rtxStream = rtxStreams.get(ssrc);
+
+            if (closed || rtxStream == null || rtxPts.isEmpty())
+                return;
+
+            long rtt = getRttMs();
+
+            replenishBudget(now);
+            for (int seq : nackPacket.getLostPackets())
+            {
+                if (rtxStream.wasRetransmittedSince(seq, now - rtt))
+                {
+                    duplicates.incrementAndGet();
+                    continue;
+                }
+
+                RawPacket pkt = cache.get(ssrc, seq);
+
+                if (pkt == null)
+                {
+                    cacheMisses.incrementAndGet();
+                    continue;
+                }
+
+                Byte rtxPt = rtxPts.get(pkt.getPayloadType());
+
+                // The receiver cannot associate a retransmission of a payload
+                // type without an RTX format with the primary stream.
+                if (rtxPt == null)
+                    continue;
+
+                int len = pkt.getLength() + 2;
+
+                if (MAX_BITRATE > 0 && budgetBytes < len)
+                {
+                    budgetDrops.incrementAndGet();
+                    continue;
+                }
+                budgetBytes -= len;
+                rtxStream.retransmitted(seq, now);
+
+                if (retransmissions == null)
+                    retransmissions = new ArrayList<>();
+                retransmissions.add(encapsulate(pkt, rtxStream, rtxPt));
+            }
+        }
+
+        if (retransmissions == null)
+            return;
+
+        for (RawPacket rtx : retransmissions)
+        {
+            try
+            {
+                stream.injectPacket(rtx, /* data */ true, this);
+                retransmittedPackets.incrementAndGet();
+                retransmittedBytes.addAndGet(rtx.getLength());
+            }
+            catch (TransmissionFailedException e)
+            {
+                logger.warn("Failed to retransmit a packet: " + e);
+            }
+        }
+    }
+
+    /**
+     * Adds the bytes which may be retransmitted since the last invocation to
+     * {@link #budgetBytes}.
+     *
+     * @param now the current system time in milliseconds
+     */
+    private void replenishBudget(long now)
+    {
+        if (MAX_BITRATE <= 0)
+            return;
+
+        long maxBudgetBytes = MAX_BITRATE * MAX_BURST_MS / 8000;
+
+        if (budgetUpdateTime == -1)
+        {
+            budgetBytes = maxBudgetBytes;
+        }
+        else if (now > budgetUpdateTime)
+        {
+            budgetBytes
+                = Math.min(
+                        maxBudgetBytes,
+                        budgetBytes
+                            + MAX_BITRATE * (now - budgetUpdateTime) / 8000);
+        }
+        budgetUpdateTime = now;
+    }
+
+    /**
+     * Sets the associations of the primary SSRCs with the SSRCs of their
+     * retransmission streams. The packets of a primary SSRC without an
+     * association are not retransmitted.
+     *
+     * @param ssrcs the associations of the primary SSRCs (the keys) with
+     * their retransmission SSRCs (the values).
+     */
+    public synchronized void setRtxSsrcs(Map<Long, Long> ssrcs)
+    {
+        Map<Long, RtxStream> rtxStreams = new HashMap<>();
+
+        if (ssrcs != null)
+        {
+            for (Map.Entry<Long, Long> entry : ssrcs.entrySet())
+            {
+                long rtxSsrc = entry.getValue();
+                RtxStream rtxStream = this.rtxStreams.get(entry.getKey());
+
+                // Keep the sequence numbers of an existing association.
+                if (rtxStream == null || rtxStream.rtxSsrc != rtxSsrc)
+                    rtxStream = new RtxStream(rtxSsrc);
+                rtxStreams.put(entry.getKey(), rtxStream);
+            }
+        }
+
+        this.rtxStreams = rtxStreams;
+    }
+
+    /**
+     * Returns a short summary of the statistics of this instance.
+     *
+     * @return a short summary of the statistics of this instance
+     */
+    @Override
+    public String toString()
+    {
+        return
+            "retransmitted=" + getRetransmittedPackets()
+                + " bytes=" + getRetransmittedBytes()
+                + " duplicates=" + getDuplicates()
+                + " cacheMisses=" + getCacheMisses()
+                + " budgetDrops=" + getBudgetDrops();
+    }
+
+    /**
+     * The retransmission state of a primary SSRC.
+     */
+    private static class RtxStream
+    {
+        /**
+         * The original sequence numbers of the most recent retransmissions at
+         * the positions of their values modulo {@link #HISTORY_SIZE}.
+         */
+        private final int[] retransmittedSeqs = new int[HISTORY_SIZE];
+
+        /**
+         * The system times in milliseconds of the retransmissions in
+         * {@link #retransmittedSeqs} or <tt>0</tt>.
+         */
+        private final long[] retransmitTimes = new long[HISTORY_SIZE];
+
+        /**
+         * The SSRC of the retransmission stream.
+         */
+        private final long rtxSsrc;
+
+        /**
+         * The sequence number of the next retransmission.
+         */
+        private int sequenceNumber = new Random().nextInt(1 << 16);
+
+        /**
+         * Initializes a new <tt>RtxStream</tt> instance.
+         *
+         * @param rtxSsrc the SSRC of the retransmission stream
+         */
+        RtxStream(long rtxSsrc)
+        {
+            this.rtxSsrc = rtxSsrc;
+        }
+
+        /**
+         * Gets the sequence number of the next retransmission.
+         *
+         * @return the sequence number of the next retransmission
+         */
+        int nextSequenceNumber()
+        {
+            int seq = sequenceNumber;
+
+            sequenceNumber = (sequenceNumber + 1) & 0xffff;
+            return seq;
+        }
+
+        /**
+         * Records the retransmission of a specific packet.
+         *
+         * @param seq the original sequence number of the retransmitted packet
+         * @param now the current system time in milliseconds
+         */
+        void retransmitted(int seq, long now)
+        {
+            int i = seq & (HISTORY_SIZE - 1);
+
+            retransmittedSeqs[i] = seq;
+            retransmitTimes[i] = now;
+        }
+
+        /**
+         * Determines whether a specific packet has been retransmitted after a
+         * specific time.
+         *
+         * @param seq the original sequence number of the packet
+         * @param time the system time in milliseconds
+         * @return <tt>true</tt> if the packet with sequence number
+         * <tt>seq</tt> has been retransmitted after <tt>time</tt>
+         */
+        boolean wasRetransmittedSince(int seq, long time)
+        {
+            int i = seq & (HISTORY_SIZE - 1);
+
+            return
+                retransmittedSeqs[i] == seq
+                    && retransmitTimes[i] != 0
+                    && retransmitTimes[i] > time;
+        }
+    }
+}
@@ -31,7 +31,7 @@
  * @author George Politis
  */
 public abstract class SinglePacketTransformer
-    implements PacketTransformer
+    implements BatchPacketTransformer
 {
     /**
      * The number of <tt>Throwable</tt>s to log with a single call to
@@ -160,6 +160,23 @@ else if (t instanceof RuntimeException)
         return pkts;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Reverse-transforms the backing array of the batch in place by calling
+     * {@link #reverseTransform(RawPacket[])}.
+     */
+    @Override
+    public void reverseTransform(PacketBatch batch)
+    {
+        RawPacket[] pkts = batch.getPackets();
+        RawPacket[] newPkts = reverseTransform(pkts);
+
+        // Extenders may override reverseTransform(RawPacket[]).
+        if (newPkts != pkts)
+            batch.setPackets(newPkts);
+    }
+
     /**
      * Transforms a specific packet.
      *
@@ -168,6 +185,23 @@ else if (t instanceof RuntimeException)
      */
     public abstract RawPacket transform(RawPacket pkt);
 
+    /**
+     * {@inheritDoc}
+     *
+     * Transforms the backing array of the batch in place by calling
+     * {@link #transform(RawPacket[])}.
+     */
+    @Override
+    public void transform(PacketBatch batch)
+    {
+        RawPacket[] pkts = batch.getPackets();
+        RawPacket[] newPkts = transform(pkts);
+
+        // Extenders may override transform(RawPacket[]).
+        if (newPkts != pkts)
+            batch.setPackets(newPkts);
+    }
+
     /**
      * {@inheritDoc}
      *
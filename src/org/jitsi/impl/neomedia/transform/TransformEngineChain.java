@@ -15,8 +15,14 @@
  */
 package org.jitsi.impl.neomedia.transform;
 
+import java.beans.*;
+import java.lang.ref.*;
 import java.util.*;
+
 import org.jitsi.impl.neomedia.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
 
 /**
  * The engine chain allows using numerous <tt>TransformEngine</tt>s on a single
@@ -28,6 +34,35 @@
 public class TransformEngineChain
     implements TransformEngine
 {
+    /**
+     * The name of the <tt>ConfigurationService</tt> and/or <tt>System</tt>
+     * property which indicates whether the per-engine instrumentation of new
+     * <tt>TransformEngineChain</tt>s is to be enabled.
+     */
+    public static final String ENABLE_INSTRUMENTATION_PNAME
+        = TransformEngineChain.class.getName() + ".ENABLE_INSTRUMENTATION";
+
+    /**
+     * The default value of the per-engine instrumentation of new
+     * <tt>TransformEngineChain</tt>s.
+     */
+    private static final boolean ENABLE_INSTRUMENTATION;
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        ENABLE_INSTRUMENTATION
+            = ConfigUtils.getBoolean(cfg, ENABLE_INSTRUMENTATION_PNAME, false);
+    }
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>TransformEngineChain</tt> class and
+     * its instances to print debug information.
+     */
+    private static final Logger logger
+        = Logger.getLogger(TransformEngineChain.class);
+
     /**
      * The sequence of <tt>TransformEngine</tt>s whose
      * <tt>PacketTransformer</tt>s this engine chain will be applying to RTP and
@@ -37,9 +72,64 @@
     protected TransformEngine[] engineChain;
 
     /**
-     * The view of {@link #engineChain} as a {@code List}.
+     * The <tt>PropertyChangeListener</tt> which is notified when an
+     * <tt>ActivatableTransformEngine</tt> in {@link #engineChain} is
+     * activated or deactivated. The engines reference it weakly (through
+     * {@link #weakEngineActivityListener}) so that they do not keep this
+     * engine chain alive.
+     */
+    private final PropertyChangeListener engineActivityListener
+        = new PropertyChangeListener()
+        {
+            @Override
+            public void propertyChange(PropertyChangeEvent ev)
+            {
+                if (ActivatableTransformEngine.ACTIVE_PNAME.equals(
+                        ev.getPropertyName()))
+                {
+                    compileLiveEngineChain();
+                }
+            }
+        };
+
+    /**
+     * The statistics of the <tt>TransformEngine</tt>s of {@link #engineChain}
+     * (at the same indices) or <tt>null</tt> if the instrumentation of this
+     * engine chain is disabled.
+     */
+    private volatile TransformEngineStats[] engineStats;
+
+    /**
+     * The <tt>TransformEngine</tt>s of {@link #engineChain} which are active
+     * (in the same order) i.e. the engines which the
+     * <tt>PacketTransformerChain</tt>s actually walk. <tt>null</tt> if an
+     * extender has initialized <tt>engineChain</tt> on its own.
+     */
+    private volatile TransformEngine[] liveEngineChain;
+
+    /**
+     * The indices in {@link #liveEngineChain} at which the transformation is
+     * to begin after each of the <tt>TransformEngine</tt>s of
+     * {@link #engineChain}. Compiled together with <tt>liveEngineChain</tt>
+     * so that the packet path does not look the engines up.
+     */
+    private volatile LiveStartIndices liveStartIndices;
+
+    /**
+     * The statistics of the <tt>TransformEngine</tt>s of
+     * {@link #liveEngineChain} (at the same indices) or <tt>null</tt> if the
+     * instrumentation of this engine chain is disabled.
+     */
+    private volatile TransformEngineStats[] liveEngineStats;
+
+    /**
+     * The <tt>PropertyChangeListener</tt> which is added to the
+     * <tt>ActivatableTransformEngine</tt>s in {@link #engineChain} and which
+     * delegates to {@link #engineActivityListener} as long as this engine
+     * chain is alive.
      */
-    private List<TransformEngine> engineChainAsList;
+    private final PropertyChangeListener weakEngineActivityListener
+        = new WeakEngineActivityListener(engineActivityListener);
 
     /**
      * The sequence of <tt>PacketTransformer</tt>s that this engine chain will
@@ -65,6 +155,8 @@
     public TransformEngineChain(TransformEngine[] engineChain)
     {
         setEngineChain(engineChain.clone());
+        if (ENABLE_INSTRUMENTATION)
+            setInstrumentationEnabled(true);
     }
 
     /**
@@ -200,6 +292,135 @@ public TransformEngine[] getEngineChain()
         return engineChain.clone();
     }
 
+    /**
+     * Gets the <tt>TransformEngine</tt>s which this engine chain actually
+     * applies to RTP and RTCP packets i.e. the <tt>TransformEngine</tt>s of
+     * {@link #getEngineChain()} without the inactive
+     * <tt>ActivatableTransformEngine</tt>s.
+     *
+     * @return the live <tt>TransformEngine</tt>s of this engine chain in the
+     * order in which they are applied to outgoing packets
+     */
+    public TransformEngine[] getLiveEngineChain()
+    {
+        return getLiveEngines().clone();
+    }
+
+    /**
+     * Gets the <tt>TransformEngine</tt>s which the
+     * <tt>PacketTransformerChain</tt>s walk.
+     *
+     * @return {@link #liveEngineChain} or {@link #engineChain} if the former
+     * has not been compiled
+     */
+    private TransformEngine[] getLiveEngines()
+    {
+        TransformEngine[] liveEngineChain = this.liveEngineChain;
+
+        return (liveEngineChain == null) ? engineChain : liveEngineChain;
+    }
+
+    /**
+     * Compiles {@link #liveEngineChain} (and {@link #liveEngineStats}) out of
+     * {@link #engineChain} i.e. drops the inactive
+     * <tt>ActivatableTransformEngine</tt>s. Invoked whenever the engine chain
+     * or the activity of any of its engines changes.
+     */
+    private synchronized void compileLiveEngineChain()
+    {
+        TransformEngine[] engineChain = this.engineChain;
+        TransformEngineStats[] engineStats = this.engineStats;
+        List<TransformEngine> liveEngines
+            = new ArrayList<>(engineChain.length);
+        List<TransformEngineStats> liveStats
+            = (engineStats == null)
+                ? null
+                : new ArrayList<TransformEngineStats>(engineChain.length);
+
+        for (int i = 0; i < engineChain.length; i++)
+        {
+            TransformEngine engine = engineChain[i];
+
+            if (!(engine instanceof ActivatableTransformEngine)
+                    || ((ActivatableTransformEngine) engine).isActive())
+            {
+                liveEngines.add(engine);
+                if (liveStats != null)
+                    liveStats.add(engineStats[i]);
+            }
+        }
+
+        TransformEngine[] liveEngineChain
+            = liveEngines.toArray(new TransformEngine[liveEngines.size()]);
+        Map<TransformEngine,Integer> startIndices
+            = new HashMap<>(engineChain.length);
+
+        for (TransformEngine engine : engineChain)
+        {
+            int startIndex
+                = computeLiveStartIndex(engineChain, liveEngineChain, engine);
+
+            startIndices.put(engine, startIndex);
+        }
+
+        this.liveEngineChain = liveEngineChain;
+        liveStartIndices
+            = new LiveStartIndices(liveEngineChain, startIndices);
+        liveEngineStats
+            = (liveStats == null)
+                ? null
+                : liveStats.toArray(
+                        new TransformEngineStats[liveStats.size()]);
+
+        if (logger.isDebugEnabled())
+        {
+            StringBuilder s = new StringBuilder("Live transform engines:");
+
+            for (TransformEngine engine : liveEngineChain)
+                s.append(' ').append(engine.getClass().getSimpleName());
+            logger.debug(s);
+        }
+    }
+
+    /**
+     * Gets the statistics gathered by the instrumentation of this engine chain
+     * about its <tt>TransformEngine</tt>s.
+     *
+     * @return the statistics of the <tt>TransformEngine</tt>s of this engine
+     * chain in the order of {@link #getEngineChain()} or <tt>null</tt> if the
+     * instrumentation of this engine chain is disabled
+     */
+    public TransformEngineStats[] getEngineStats()
+    {
+        TransformEngineStats[] engineStats = this.engineStats;
+
+        return (engineStats == null) ? null : engineStats.clone();
+    }
+
+    /**
+     * Gets the statistics of a specific <tt>TransformEngine</tt> which is at a
+     * specific index in the engine chain if the instrumentation is enabled.
+     *
+     * @param engineStats the value of {@link #engineStats} read by the caller
+     * @param index the index of <tt>engine</tt> in the engine chain
+     * @param engine the <tt>TransformEngine</tt> to get the statistics of
+     * @return the statistics of <tt>engine</tt> or <tt>null</tt> if the
+     * instrumentation is disabled or the engine chain has changed in the
+     * meantime
+     */
+    private static TransformEngineStats getEngineStats(
+            TransformEngineStats[] engineStats,
+            int index,
+            TransformEngine engine)
+    {
+        if (engineStats == null || index >= engineStats.length)
+            return null;
+
+        TransformEngineStats stats = engineStats[index];
+
+        return (stats.getEngine() == engine) ? stats : null;
+    }
+
     /**
      * Returns the meta <tt>PacketTransformer</tt> that will be applying
      * RTCP transformations from all engines registered in this
@@ -299,8 +520,388 @@ public PacketTransformer getRTPTransformer()
      */
     private void setEngineChain(TransformEngine[] engineChain)
     {
+        TransformEngine[] oldEngineChain = this.engineChain;
+
+        // Listen to the activity of the ActivatableTransformEngines which were
+        // not in the chain before.
+        for (TransformEngine engine : engineChain)
+        {
+            if (engine instanceof ActivatableTransformEngine
+                    && (oldEngineChain == null
+                            || !contains(oldEngineChain, engine)))
+            {
+                ((ActivatableTransformEngine) engine)
+                    .addPropertyChangeListener(weakEngineActivityListener);
+            }
+        }
+
         this.engineChain = engineChain;
-        this.engineChainAsList = Arrays.asList(engineChain);
+        if (engineStats != null)
+            engineStats = createEngineStats(engineChain, engineStats);
+        compileLiveEngineChain();
+    }
+
+    /**
+     * Determines whether a specific <tt>TransformEngine</tt> array contains a
+     * specific <tt>TransformEngine</tt>.
+     *
+     * @param engines the <tt>TransformEngine</tt> array to look into
+     * @param engine the <tt>TransformEngine</tt> to look for
+     * @return <tt>true</tt> if <tt>engines</tt> contains <tt>engine</tt>;
+     * otherwise, <tt>false</tt>
+     */
+    private static boolean contains(
+            TransformEngine[] engines,
+            TransformEngine engine)
+    {
+        return indexOf(engines, engine) != -1;
+    }
+
+    /**
+     * Gets the index of a specific <tt>TransformEngine</tt> in a specific
+     * <tt>TransformEngine</tt> array.
+     *
+     * @param engines the <tt>TransformEngine</tt> array to look into
+     * @param engine the <tt>TransformEngine</tt> to look for
+     * @return the index of <tt>engine</tt> in <tt>engines</tt> or <tt>-1</tt>
+     */
+    private static int indexOf(
+            TransformEngine[] engines,
+            TransformEngine engine)
+    {
+        for (int i = 0; i < engines.length; i++)
+        {
+            if (engines[i].equals(engine))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Computes the index in a specific live engine chain of the first
+     * <tt>TransformEngine</tt> which follows a specific
+     * <tt>TransformEngine</tt> in a specific engine chain. The latter may be
+     * inactive i.e. not in the live engine chain.
+     *
+     * @param engineChain the engine chain
+     * @param liveEngines the live engine chain of <tt>engineChain</tt>
+     * @param after the <tt>TransformEngine</tt> after which the transformation
+     * is to begin
+     * @return the index in <tt>liveEngines</tt> at which the transformation is
+     * to begin. If <tt>after</tt> is not in the engine chain, the
+     * transformation is to begin at the start of the chain.
+     */
+    private static int computeLiveStartIndex(
+            TransformEngine[] engineChain,
+            TransformEngine[] liveEngines,
+            TransformEngine after)
+    {
+        int afterIndex = indexOf(engineChain, after);
+
+        if (afterIndex == -1)
+            return 0;
+
+        for (int i = afterIndex + 1; i < engineChain.length; i++)
+        {
+            int liveIndex = indexOf(liveEngines, engineChain[i]);
+
+            if (liveIndex != -1)
+                return liveIndex;
+        }
+        return liveEngines.length;
+    }
+
+    /**
+     * Gets the index in a specific live engine chain of the first
+     * <tt>TransformEngine</tt> which follows a specific
+     * <tt>TransformEngine</tt> in {@link #engineChain}. The latter may be
+     * inactive i.e. not in the live engine chain. The index is looked up in
+     * {@link #liveStartIndices} unless <tt>liveEngines</tt> has not been
+     * compiled by {@link #compileLiveEngineChain()}.
+     *
+     * @param liveEngines the live engine chain
+     * @param after the <tt>TransformEngine</tt> after which the transformation
+     * is to begin or <tt>null</tt> to begin at the start of the chain
+     * @return the index in <tt>liveEngines</tt> at which the transformation is
+     * to begin. If <tt>after</tt> is not in the engine chain, the
+     * transformation is to begin at the start of the chain.
+     */
+    private int getLiveStartIndex(
+            TransformEngine[] liveEngines,
+            TransformEngine after)
+    {
+        if (after == null)
+            return 0;
+
+        LiveStartIndices liveStartIndices = this.liveStartIndices;
+
+        if (liveStartIndices == null
+                || liveStartIndices.liveEngines != liveEngines)
+        {
+            // An extender has initialized engineChain on its own or the
+            // engine chain has changed in the meantime.
+            return computeLiveStartIndex(engineChain, liveEngines, after);
+        }
+
+        Integer startIndex = liveStartIndices.startIndices.get(after);
+
+        return (startIndex == null) ? 0 : startIndex;
+    }
+
+    /**
+     * Initializes the statistics of the <tt>TransformEngine</tt>s of a
+     * specific engine chain, reusing the statistics of the engines which were
+     * already instrumented.
+     *
+     * @param engineChain the engine chain to initialize the statistics of
+     * @param oldEngineStats the statistics to reuse or <tt>null</tt>
+     * @return the statistics of the <tt>TransformEngine</tt>s of
+     * <tt>engineChain</tt> at the same indices
+     */
+    private static TransformEngineStats[] createEngineStats(
+            TransformEngine[] engineChain,
+            TransformEngineStats[] oldEngineStats)
+    {
+        TransformEngineStats[] engineStats
+            = new TransformEngineStats[engineChain.length];
+
+        for (int i = 0; i < engineChain.length; i++)
+        {
+            TransformEngine engine = engineChain[i];
+
+            if (oldEngineStats != null)
+            {
+                for (TransformEngineStats oldStats : oldEngineStats)
+                {
+                    if (oldStats.getEngine() == engine)
+                    {
+                        engineStats[i] = oldStats;
+                        break;
+                    }
+                }
+            }
+            if (engineStats[i] == null)
+                engineStats[i] = new TransformEngineStats(engine);
+        }
+        return engineStats;
+    }
+
+    /**
+     * Determines whether the per-engine instrumentation of this engine chain
+     * is enabled.
+     *
+     * @return <tt>true</tt> if the per-engine instrumentation of this engine
+     * chain is enabled; otherwise, <tt>false</tt>
+     */
+    public boolean isInstrumentationEnabled()
+    {
+        return engineStats != null;
+    }
+
+    /**
+     * Enables or disables the per-engine instrumentation of this engine
+     * chain. While enabled, the packet counts, the drop counts and the
+     * latencies of every <tt>TransformEngine</tt> are recorded in either
+     * direction. While disabled, the engine chain does not measure anything.
+     * Disabling the instrumentation discards the gathered statistics.
+     *
+     * @param enabled <tt>true</tt> to enable the instrumentation or
+     * <tt>false</tt> to disable it
+     */
+    public synchronized void setInstrumentationEnabled(boolean enabled)
+    {
+        if (enabled)
+        {
+            if (engineStats == null)
+                engineStats = createEngineStats(engineChain, null);
+        }
+        else
+        {
+            engineStats = null;
+        }
+        compileLiveEngineChain();
+    }
+
+    /**
+     * Counts the packets (i.e. the non-<tt>null</tt> elements) of a specific
+     * <tt>RawPacket</tt> array.
+     *
+     * @param pkts the <tt>RawPacket</tt> array to count the packets of
+     * @return the number of packets in <tt>pkts</tt>
+     */
+    private static int countPackets(RawPacket[] pkts)
+    {
+        int count = 0;
+
+        if (pkts != null)
+        {
+            for (RawPacket pkt : pkts)
+            {
+                if (pkt != null)
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reverse-transforms a specific <tt>PacketBatch</tt> in place using a
+     * specific <tt>PacketTransformer</tt>. Uses the batch contract if the
+     * <tt>PacketTransformer</tt> implements it or the backing array of the
+     * batch otherwise.
+     *
+     * @param transformer the <tt>PacketTransformer</tt> to reverse-transform
+     * <tt>batch</tt> with
+     * @param batch the <tt>PacketBatch</tt> to reverse-transform
+     */
+    static void reverseTransform(
+            PacketTransformer transformer,
+            PacketBatch batch)
+    {
+        if (transformer instanceof BatchPacketTransformer)
+        {
+            ((BatchPacketTransformer) transformer).reverseTransform(batch);
+        }
+        else
+        {
+            RawPacket[] pkts = batch.getPackets();
+            RawPacket[] newPkts = transformer.reverseTransform(pkts);
+
+            if (newPkts != pkts)
+                batch.setPackets(newPkts);
+        }
+    }
+
+    /**
+     * Transforms a specific <tt>PacketBatch</tt>, which may carry the packets
+     * of many sources (e.g. the packets which the send thread of an
+     * <tt>RTPConnectorOutputStream</tt> takes out of its queue at once), in
+     * place using the <tt>PacketTransformer</tt> of a specific
+     * <tt>TransformEngine</tt> of a chain. The batch is handed as a whole only
+     * to a <tt>ParallelTransformEngine</tt> and to the
+     * <tt>SinglePacketTransformer</tt>s, which transform every packet on its
+     * own. The other <tt>PacketTransformer</tt>s (e.g. the one of
+     * <tt>FECTransformEngine</tt>, which protects the packets of a single
+     * SSRC per call) get the packets one at a time in the order of the batch
+     * as they do outside of batches.
+     *
+     * @param engine the <tt>TransformEngine</tt> of <tt>transformer</tt>
+     * @param transformer the <tt>PacketTransformer</tt> to transform
+     * <tt>batch</tt> with
+     * @param batch the <tt>PacketBatch</tt> to transform
+     */
+    private static void transformBatch(
+            TransformEngine engine,
+            PacketTransformer transformer,
+            PacketBatch batch)
+    {
+        if (engine instanceof ParallelTransformEngine
+                || transformer instanceof SinglePacketTransformer
+                || batch.getValidCount() < 2)
+        {
+            transform(transformer, batch);
+            return;
+        }
+
+        RawPacket[] pkts = Arrays.copyOf(batch.getPackets(), batch.size());
+
+        int i = 0;
+
+        batch.clear();
+        try
+        {
+            for (; i < pkts.length; i++)
+            {
+                RawPacket pkt = pkts[i];
+
+                if (pkt == null)
+                    continue;
+
+                RawPacket[] newPkts
+                    = transformer.transform(new RawPacket[] { pkt });
+
+                if (newPkts != null)
+                {
+                    for (RawPacket newPkt : newPkts)
+                    {
+                        if (newPkt != null)
+                            batch.add(newPkt);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            // If the transformer has thrown, leave the packets which it has
+            // not transformed in the batch so that the caller may release
+            // them.
+            for (i++; i < pkts.length; i++)
+            {
+                if (pkts[i] != null)
+                    batch.add(pkts[i]);
+            }
+        }
+    }
+
+    /**
+     * Transforms a specific <tt>PacketBatch</tt> in place using a specific
+     * <tt>PacketTransformer</tt>. Uses the batch contract if the
+     * <tt>PacketTransformer</tt> implements it or the backing array of the
+     * batch otherwise.
+     *
+     * @param transformer the <tt>PacketTransformer</tt> to transform
+     * <tt>batch</tt> with
+     * @param batch the <tt>PacketBatch</tt> to transform
+     */
+    static void transform(
+            PacketTransformer transformer,
+            PacketBatch batch)
+    {
+        if (transformer instanceof BatchPacketTransformer)
+        {
+            ((BatchPacketTransformer) transformer).transform(batch);
+        }
+        else
+        {
+            RawPacket[] pkts = batch.getPackets();
+            RawPacket[] newPkts = transformer.transform(pkts);
+
+            if (newPkts != pkts)
+                batch.setPackets(newPkts);
+        }
+    }
+
+    /**
+     * The indices in a live engine chain at which the transformation is to
+     * begin after each of the <tt>TransformEngine</tt>s of the engine chain.
+     */
+    private static class LiveStartIndices
+    {
+        /**
+         * The live engine chain which the indices are into.
+         */
+        final TransformEngine[] liveEngines;
+
+        /**
+         * The indices in {@link #liveEngines} at which the transformation is
+         * to begin by the <tt>TransformEngine</tt> after which it is to begin.
+         */
+        final Map<TransformEngine,Integer> startIndices;
+
+        /**
+         * Initializes a new <tt>LiveStartIndices</tt> instance.
+         *
+         * @param liveEngines the live engine chain which the indices are into
+         * @param startIndices the indices in <tt>liveEngines</tt> by the
+         * <tt>TransformEngine</tt> after which the transformation is to begin
+         */
+        LiveStartIndices(
+                TransformEngine[] liveEngines,
+                Map<TransformEngine,Integer> startIndices)
+        {
+            this.liveEngines = liveEngines;
+            this.startIndices = startIndices;
+        }
     }
 
     /**
@@ -310,7 +911,7 @@ private void setEngineChain(TransformEngine[] engineChain)
      * it for incoming packets.
      */
     public class PacketTransformerChain
-        implements PacketTransformer
+        implements BatchPacketTransformer
     {
         /**
          * Indicates whether this transformer will be dealing with RTP or,
@@ -363,8 +964,8 @@ public void close()
         @Override
         public RawPacket[] reverseTransform(RawPacket pkts[])
         {
-            TransformEngine[] engineChain
-                = TransformEngineChain.this.engineChain;
+            TransformEngineStats[] engineStats = liveEngineStats;
+            TransformEngine[] engineChain = getLiveEngines();
 
             for (int i = engineChain.length - 1 ; i >= 0; i--)
             {
@@ -376,13 +977,97 @@ public RawPacket[] reverseTransform(RawPacket pkts[])
 
                 //the packet transformer may be null if for example the engine
                 //only does RTP transformations and this is an RTCP transformer.
-                if (pTransformer != null)
+                if (pTransformer == null)
+                    continue;
+
+                TransformEngineStats stats
+                    = getEngineStats(engineStats, i, engine);
+
+                if (stats == null)
+                {
                     pkts = pTransformer.reverseTransform(pkts);
+                }
+                else
+                {
+                    int in = countPackets(pkts);
+                    long startTime = System.nanoTime();
+
+                    pkts = pTransformer.reverseTransform(pkts);
+                    stats.getStats(rtp, false).record(
+                            in,
+                            countPackets(pkts),
+                            System.nanoTime() - startTime);
+                }
             }
 
             return pkts;
         }
 
+        /**
+         * {@inheritDoc}
+         *
+         * Reverse-transforms the given batch using each of the
+         * <tt>TransformEngine</tt>-s in the engine chain in reverse order.
+         */
+        @Override
+        public void reverseTransform(PacketBatch batch)
+        {
+            TransformEngineStats[] engineStats = liveEngineStats;
+            TransformEngine[] engineChain = getLiveEngines();
+
+            for (int i = engineChain.length - 1 ; i >= 0; i--)
+            {
+                TransformEngine engine = engineChain[i];
+                PacketTransformer pTransformer
+                    = rtp
+                        ? engine.getRTPTransformer()
+                        : engine.getRTCPTransformer();
+
+                //the packet transformer may be null if for example the engine
+                //only does RTP transformations and this is an RTCP transformer.
+                if (pTransformer == null)
+                    continue;
+
+                TransformEngineStats stats
+                    = getEngineStats(engineStats, i, engine);
+
+                if (stats == null)
+                {
+                    TransformEngineChain.reverseTransform(pTransformer, batch);
+                }
+                else
+                {
+                    int in = batch.getValidCount();
+                    long startTime = System.nanoTime();
+
+                    TransformEngineChain.reverseTransform(pTransformer, batch);
+                    stats.getStats(rtp, false).record(
+                            in,
+                            batch.getValidCount(),
+                            System.nanoTime() - startTime);
+                }
+            }
+        }
+
+        /**
+         * Determines whether this chain fans the transformation of packets out
+         * over multiple threads (i.e. has a {@code ParallelTransformEngine})
+         * so that its callers had better transform the packets which they
+         * have at hand in one {@code PacketBatch} rather than one by one.
+         *
+         * @return {@code true} if this chain fans the transformation of
+         * packets out over multiple threads; otherwise, {@code false}
+         */
+        public boolean isParallel()
+        {
+            for (TransformEngine engine : getLiveEngines())
+            {
+                if (engine instanceof ParallelTransformEngine)
+                    return true;
+            }
+            return false;
+        }
+
         /**
          * {@inheritDoc}
          *
@@ -410,22 +1095,16 @@ public RawPacket[] transform(RawPacket[] pkts)
          */
         public RawPacket[] transform(RawPacket[] pkts, TransformEngine after)
         {
-            // If the specified after is in the transformation chain, the
-            // transformation is to start after it.
-            boolean lookForAfter
-                = after != null && engineChainAsList.contains(after);
+            TransformEngineStats[] engineStats = liveEngineStats;
+            TransformEngine[] engineChain = getLiveEngines();
 
-            for (TransformEngine engine : engineChain)
+            // If the specified after is in the transformation chain, the
+            // transformation is to start after it (even if it is inactive).
+            for (int i = getLiveStartIndex(engineChain, after);
+                    i < engineChain.length;
+                    i++)
             {
-                // Start the transformation after the specified TransformEngine.
-                if (lookForAfter)
-                {
-                    if (engine.equals(after))
-                    {
-                        lookForAfter = false;
-                    }
-                    continue;
-                }
+                TransformEngine engine = engineChain[i];
 
                 // Transform.
                 PacketTransformer transformer
@@ -435,11 +1114,144 @@ public RawPacket[] transform(RawPacket[] pkts, TransformEngine after)
 
                 // The transformer may be null if for example the engine does
                 // RTP transformations only and this is an RTCP transformer.
-                if (transformer != null)
+                if (transformer == null)
+                    continue;
+
+                TransformEngineStats stats
+                    = getEngineStats(engineStats, i, engine);
+
+                if (stats == null)
+                {
                     pkts = transformer.transform(pkts);
+                }
+                else
+                {
+                    int in = countPackets(pkts);
+                    long startTime = System.nanoTime();
+
+                    pkts = transformer.transform(pkts);
+                    stats.getStats(rtp, true).record(
+                            in,
+                            countPackets(pkts),
+                            System.nanoTime() - startTime);
+                }
             }
 
             return pkts;
         }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Transforms the specified {@code batch} using each of the
+         * {@code TransformEngine}s in the chain in order.
+         */
+        @Override
+        public void transform(PacketBatch batch)
+        {
+            transform(batch, /* after */ null);
+        }
+
+        /**
+         * Transforms the specified {@code batch} in place using the
+         * {@code TransformEngine}s in the chain in order starting after a
+         * specific {@code TransformEngine}.
+         *
+         * @param batch the {@code PacketBatch} to transform
+         * @param after the {@code TransformEngine} in the chain after which the
+         * transformation is to begin. If {@code after} is not in the chain, the
+         * transformation executes through the whole chain.
+         */
+        public void transform(PacketBatch batch, TransformEngine after)
+        {
+            TransformEngineStats[] engineStats = liveEngineStats;
+            TransformEngine[] engineChain = getLiveEngines();
+
+            // If the specified after is in the transformation chain, the
+            // transformation is to start after it (even if it is inactive).
+            for (int i = getLiveStartIndex(engineChain, after);
+                    i < engineChain.length;
+                    i++)
+            {
+                TransformEngine engine = engineChain[i];
+
+                // Transform.
+                PacketTransformer transformer
+                    = rtp
+                        ? engine.getRTPTransformer()
+                        : engine.getRTCPTransformer();
+
+                // The transformer may be null if for example the engine does
+                // RTP transformations only and this is an RTCP transformer.
+                if (transformer == null)
+                    continue;
+
+                TransformEngineStats stats
+                    = getEngineStats(engineStats, i, engine);
+
+                if (stats == null)
+                {
+                    transformBatch(engine, transformer, batch);
+                }
+                else
+                {
+                    int in = batch.getValidCount();
+                    long startTime = System.nanoTime();
+
+                    transformBatch(engine, transformer, batch);
+                    stats.getStats(rtp, true).record(
+                            in,
+                            batch.getValidCount(),
+                            System.nanoTime() - startTime);
+                }
+            }
+        }
+    }
+
+    /**
+     * Implements a <tt>PropertyChangeListener</tt> which delegates to another
+     * <tt>PropertyChangeListener</tt> as long as the latter is reachable and
+     * removes itself from the <tt>ActivatableTransformEngine</tt> which
+     * notifies it afterwards.
+     */
+    private static class WeakEngineActivityListener
+        implements PropertyChangeListener
+    {
+        /**
+         * The <tt>PropertyChangeListener</tt> to delegate to.
+         */
+        private final WeakReference<PropertyChangeListener> delegate;
+
+        /**
+         * Initializes a new <tt>WeakEngineActivityListener</tt> instance which
+         * is to delegate to a specific <tt>PropertyChangeListener</tt>.
+         *
+         * @param delegate the <tt>PropertyChangeListener</tt> to delegate to
+         */
+        public WeakEngineActivityListener(PropertyChangeListener delegate)
+        {
+            this.delegate = new WeakReference<>(delegate);
+        }
+
+        @Override
+        public void propertyChange(PropertyChangeEvent ev)
+        {
+            PropertyChangeListener delegate = this.delegate.get();
+
+            if (delegate == null)
+            {
+                Object source = ev.getSource();
+
+                if (source instanceof ActivatableTransformEngine)
+                {
+                    ((ActivatableTransformEngine) source)
+                        .removePropertyChangeListener(this);
+                }
+            }
+            else
+            {
+                delegate.propertyChange(ev);
+            }
+        }
     }
 }
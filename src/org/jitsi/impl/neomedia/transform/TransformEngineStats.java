@@ -0,0 +1,200 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.util.*;
+
+/**
+ * Holds the packet counts, drop counts and latencies of a
+ * <tt>TransformEngine</tt> in a <tt>TransformEngineChain</tt>, separately for
+ * the RTP and RTCP transformers and for the transform and reverse-transform
+ * directions. Gathered by the <tt>TransformEngineChain</tt> only while its
+ * instrumentation is enabled.
+ */
+public class TransformEngineStats
+{
+    /**
+     * The <tt>TransformEngine</tt> which this instance describes.
+     */
+    private final TransformEngine engine;
+
+    /**
+     * The statistics of the reverse transformation of RTCP packets.
+     */
+    private final DirectionStats rtcpReverseTransform = new DirectionStats();
+
+    /**
+     * The statistics of the transformation of RTCP packets.
+     */
+    private final DirectionStats rtcpTransform = new DirectionStats();
+
+    /**
+     * The statistics of the reverse transformation of RTP packets.
+     */
+    private final DirectionStats rtpReverseTransform = new DirectionStats();
+
+    /**
+     * The statistics of the transformation of RTP packets.
+     */
+    private final DirectionStats rtpTransform = new DirectionStats();
+
+    /**
+     * Initializes a new <tt>TransformEngineStats</tt> instance for a specific
+     * <tt>TransformEngine</tt>.
+     *
+     * @param engine the <tt>TransformEngine</tt> which the new instance is to
+     * describe
+     */
+    public TransformEngineStats(TransformEngine engine)
+    {
+        this.engine = engine;
+    }
+
+    /**
+     * Gets the <tt>TransformEngine</tt> which this instance describes.
+     *
+     * @return the <tt>TransformEngine</tt> which this instance describes
+     */
+    public TransformEngine getEngine()
+    {
+        return engine;
+    }
+
+    /**
+     * Gets the statistics of a specific direction.
+     *
+     * @param rtp <tt>true</tt> for the RTP transformer or <tt>false</tt> for
+     * the RTCP transformer
+     * @param transform <tt>true</tt> for the transform direction or
+     * <tt>false</tt> for the reverse-transform direction
+     * @return the statistics of the specified direction
+     */
+    public DirectionStats getStats(boolean rtp, boolean transform)
+    {
+        if (rtp)
+            return transform ? rtpTransform : rtpReverseTransform;
+        else
+            return transform ? rtcpTransform : rtcpReverseTransform;
+    }
+
+    /**
+     * Returns a short description of this instance.
+     *
+     * @return a short description of this instance
+     */
+    @Override
+    public String toString()
+    {
+        return
+            engine.getClass().getSimpleName()
+                + " rtp=[" + rtpTransform + "]"
+                + " rtp_reverse=[" + rtpReverseTransform + "]"
+                + " rtcp=[" + rtcpTransform + "]"
+                + " rtcp_reverse=[" + rtcpReverseTransform + "]";
+    }
+
+    /**
+     * Holds the statistics of a <tt>PacketTransformer</tt> in one direction.
+     */
+    public static class DirectionStats
+    {
+        /**
+         * The number of packets dropped by the <tt>PacketTransformer</tt>.
+         */
+        private final AtomicLong dropped = new AtomicLong();
+
+        /**
+         * The latencies in nanoseconds of the invocations of the
+         * <tt>PacketTransformer</tt>.
+         */
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        /**
+         * The number of packets passed to the <tt>PacketTransformer</tt>.
+         */
+        private final AtomicLong packets = new AtomicLong();
+
+        /**
+         * Gets the number of packets dropped by the
+         * <tt>PacketTransformer</tt> i.e. the number of packets it was passed
+         * in excess of the number of packets it returned.
+         *
+         * @return the number of packets dropped by the
+         * <tt>PacketTransformer</tt>
+         */
+        public long getDroppedCount()
+        {
+            return dropped.get();
+        }
+
+        /**
+         * Gets the histogram of the latencies in nanoseconds of the
+         * invocations of the <tt>PacketTransformer</tt>.
+         *
+         * @return the histogram of the latencies in nanoseconds of the
+         * invocations of the <tt>PacketTransformer</tt>
+         */
+        public LatencyHistogram getLatency()
+        {
+            return latency;
+        }
+
+        /**
+         * Gets the number of packets passed to the <tt>PacketTransformer</tt>.
+         *
+         * @return the number of packets passed to the
+         * <tt>PacketTransformer</tt>
+         */
+        public long getPacketCount()
+        {
+            return packets.get();
+        }
+
+        /**
+         * Records an invocation of the <tt>PacketTransformer</tt>.
+         *
+         * @param in the number of packets passed to the
+         * <tt>PacketTransformer</tt>
+         * @param out the number of packets returned by the
+         * <tt>PacketTransformer</tt>
+         * @param nanos the duration in nanoseconds of the invocation
+         */
+        void record(int in, int out, long nanos)
+        {
+            if (in != 0)
+                packets.addAndGet(in);
+            if (in > out)
+                dropped.addAndGet(in - out);
+            latency.record(nanos);
+        }
+
+        /**
+         * Returns a short description of this instance.
+         *
+         * @return a short description of this instance
+         */
+        @Override
+        public String toString()
+        {
+            return
+                "packets=" + getPacketCount()
+                    + " dropped=" + getDroppedCount()
+                    + " latency_ns=[" + latency + "]";
+        }
+    }
+}
@@ -15,16 +15,19 @@
  */
 package org.jitsi.impl.neomedia.transform;
 
+import org.jitsi.util.event.*;
+
 /**
  * Wraps a <tt>TransformerEngine</tt> (allows the wrapped instance to be swapped
  * without modifications to the <tt>RTPConnector</tt>'s transformer engine
- * chain.
+ * chain. Is inactive while it does not wrap a <tt>TransformEngine</tt>.
  *
  * @author George Politis
  * @author Lyubomir Marinov
  */
 public class TransformEngineWrapper<T extends TransformEngine>
-    implements TransformEngine
+    extends PropertyChangeNotifier
+    implements ActivatableTransformEngine
 {
     /**
      * The wrapped instance.
@@ -94,8 +97,27 @@ public T getWrapped()
         return wrapped;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * A <tt>TransformEngineWrapper</tt> is active while it wraps a
+     * <tt>TransformEngine</tt>.
+     */
+    @Override
+    public boolean isActive()
+    {
+        return wrapped != null;
+    }
+
     public void setWrapped(T wrapped)
     {
+        boolean oldActive = isActive();
+
         this.wrapped = wrapped;
+
+        boolean newActive = isActive();
+
+        if (oldActive != newActive)
+            firePropertyChange(ACTIVE_PNAME, oldActive, newActive);
     }
 }
\ No newline at end of file
@@ -35,6 +35,12 @@
      */
     private PacketTransformer transformer;
 
+    /**
+     * The <tt>PacketBatch</tt> reused to reverse-transform the packets
+     * received by this instance without allocating per packet.
+     */
+    private final PacketBatch batch = new PacketBatch();
+
     /**
      * Initializes a new <tt>TransformInputStream</tt> which is to transform the
      * packets received from a specific (network) socket.
@@ -55,7 +61,7 @@ protected TransformInputStream(T socket)
      *
      * @param datagramPacket the <tt>DatagramPacket</tt> containing the packet
      * data
-     * @return a new <tt>RawPacket</tt> array containing the packet data of the
+     * @return a <tt>RawPacket</tt> array containing the packet data of the
      * specified <tt>DatagramPacket</tt> or possibly its modification;
      * <tt>null</tt> to ignore the packet data of the specified
      * <tt>DatagramPacket</tt> and not make it available to this instance
@@ -78,10 +84,22 @@ protected RawPacket[] createRawPacket(DatagramPacket datagramPacket)
 
         PacketTransformer transformer = getTransformer();
 
-        return
-            (transformer == null)
-                ? pkts
-                : transformer.reverseTransform(pkts);
+        if (transformer == null)
+            return pkts;
+        if (!(transformer instanceof BatchPacketTransformer))
+            return transformer.reverseTransform(pkts);
+
+        // Packets are received by a single thread at a time so the batch is
+        // reused. Its packets are handed over (and its slots cleared) before
+        // the next datagram is received.
+        batch.clear();
+        for (int i = 0; i < pkts.length; i++)
+        {
+            batch.add(pkts[i]);
+            pkts[i] = null;
+        }
+        ((BatchPacketTransformer) transformer).reverseTransform(batch);
+        return batch.getPackets();
     }
 
     /**
@@ -72,6 +72,51 @@ public final void setTransformer(PacketTransformer transformer)
         }
     }
 
+    /**
+     * Determines whether the {@code PacketTransformer} associated with this
+     * instance transforms a {@code PacketBatch} of many packets faster than
+     * the same packets one by one (e.g. because it fans the work out over
+     * multiple threads).
+     *
+     * @return {@code true} if the packets which are ready to be sent had
+     * better be transformed in one {@code PacketBatch}; otherwise,
+     * {@code false}
+     */
+    public boolean isBatchTransformEnabled()
+    {
+        TransformEngineChain.PacketTransformerChain transformerAsChain
+            = _transformerAsChain;
+
+        return transformerAsChain != null && transformerAsChain.isParallel();
+    }
+
+    /**
+     * Transforms a specified {@code PacketBatch} in place using the
+     * {@code PacketTransformer} associated with this instance (if any).
+     *
+     * @param batch the {@code PacketBatch} to transform
+     * @param after the {@code TransformEngine} in the chain after which the
+     * transformation is to begin or {@code null} to transform through the
+     * whole chain
+     */
+    public void transform(PacketBatch batch, Object after)
+    {
+        TransformEngineChain.PacketTransformerChain transformerAsChain
+            = _transformerAsChain;
+
+        if (transformerAsChain != null)
+        {
+            transformerAsChain.transform(batch, (TransformEngine) after);
+        }
+        else
+        {
+            PacketTransformer transformer = getTransformer();
+
+            if (transformer != null)
+                TransformEngineChain.transform(transformer, batch);
+        }
+    }
+
     /**
      * Transforms a specified array of {@code RawPacket}s using the
      * {@code PacketTransformer} associated with this instance (if any).
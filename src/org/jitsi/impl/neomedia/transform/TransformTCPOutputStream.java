@@ -62,6 +62,18 @@ public PacketTransformer getTransformer()
         return _impl.getTransformer();
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Transforms a {@code PacketBatch} at once if the associated
+     * {@code PacketTransformer} fans the work out over multiple threads.
+     */
+    @Override
+    protected boolean isBatchTransformEnabled()
+    {
+        return _impl.isBatchTransformEnabled();
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -79,6 +91,18 @@ protected RawPacket[] packetize(
         return _impl.transform(pkts, context);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Transforms the {@code PacketBatch} using the associated
+     * {@code PacketTransformer}.
+     */
+    @Override
+    protected void transform(PacketBatch batch, Object context)
+    {
+        _impl.transform(batch, context);
+    }
+
     /**
      * {@inheritDoc}
      */
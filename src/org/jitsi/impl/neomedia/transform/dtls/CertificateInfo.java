@@ -16,6 +16,7 @@
 package org.jitsi.impl.neomedia.transform.dtls;
 
 import org.bouncycastle.crypto.*;
+import org.bouncycastle.crypto.params.*;
 import org.bouncycastle.crypto.tls.*;
 
 /**
@@ -50,6 +51,13 @@
      */
     public final String localFingerprintHashFunction;
 
+    /**
+     * The signature and hash algorithms with which the private key of
+     * {@link #certificate} signs i.e. the ones of the signature algorithm of
+     * <tt>certificate</tt>.
+     */
+    private final SignatureAndHashAlgorithm signatureAndHashAlgorithm;
+
     /**
      * The timestamp (in milliseconds of system time) of the generation of this
      * {@code CertificateInfo}.
@@ -79,6 +87,41 @@ public CertificateInfo(
         this.localFingerprintHashFunction = localFingerprintHashFunction;
         this.localFingerprint = localFingerprint;
         this.timestamp = timestamp;
+
+        // The hash function of the fingerprint is the digest algorithm of the
+        // signature algorithm of the certificate.
+        boolean ecdsa = isECDSA();
+        short hashAlgorithm;
+
+        switch (localFingerprintHashFunction)
+        {
+        case "md5":
+            hashAlgorithm = HashAlgorithm.md5;
+            break;
+        case "sha-1":
+            hashAlgorithm = HashAlgorithm.sha1;
+            break;
+        case "sha-224":
+            hashAlgorithm = HashAlgorithm.sha224;
+            break;
+        case "sha-256":
+            hashAlgorithm = HashAlgorithm.sha256;
+            break;
+        case "sha-384":
+            hashAlgorithm = HashAlgorithm.sha384;
+            break;
+        case "sha-512":
+            hashAlgorithm = HashAlgorithm.sha512;
+            break;
+        default:
+            // The defaults of DtlsControlImpl.PROP_SIGNATURE_ALGORITHM.
+            hashAlgorithm = ecdsa ? HashAlgorithm.sha256 : HashAlgorithm.sha1;
+            break;
+        }
+        signatureAndHashAlgorithm
+            = new SignatureAndHashAlgorithm(
+                    hashAlgorithm,
+                    ecdsa ? SignatureAlgorithm.ecdsa : SignatureAlgorithm.rsa);
     }
 
     /**
@@ -93,6 +136,31 @@ public Certificate getCertificate()
         return certificate;
     }
 
+    /**
+     * Gets the signature and hash algorithms with which the private key of
+     * {@link #certificate} signs (in TLS 1.2) i.e. the ones of the signature
+     * algorithm of <tt>certificate</tt>.
+     *
+     * @return the signature and hash algorithms with which the private key of
+     * {@link #certificate} signs
+     */
+    public SignatureAndHashAlgorithm getSignatureAndHashAlgorithm()
+    {
+        return signatureAndHashAlgorithm;
+    }
+
+    /**
+     * Determines whether the key pair of {@link #certificate} is an ECDSA one
+     * (rather than an RSA one).
+     *
+     * @return <tt>true</tt> if the key pair of {@link #certificate} is an
+     * ECDSA one; otherwise, <tt>false</tt>
+     */
+    public boolean isECDSA()
+    {
+        return keyPair.getPrivate() instanceof ECKeyParameters;
+    }
+
     /**
      * Gets the private and public keys of {@link #certificate}.
      *
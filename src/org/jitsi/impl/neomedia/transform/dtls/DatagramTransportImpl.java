@@ -52,13 +52,6 @@
      */
     private AbstractRTPConnector connector;
 
-    /**
-     * The pool of <tt>RawPacket</tt>s instances to reduce their allocations
-     * and garbage collection.
-     */
-    private final Queue<RawPacket> rawPacketPool
-        = new LinkedBlockingQueue<>(RTPConnectorOutputStream.POOL_CAPACITY);
-
     /**
      * The queue of <tt>RawPacket</tt>s which have been received from the
      * network are awaiting to be received by the application through this
@@ -298,27 +291,16 @@ void queueReceive(byte[] buf, int off, int len)
                     throw new IllegalStateException(ioe);
                 }
 
-                RawPacket pkt = rawPacketPool.poll();
-                byte[] pktBuf;
+                byte[] pktBuf = ByteArrayPool.getBuffer(len);
+                RawPacket pkt = new RawPacket(pktBuf, 0, len);
 
-                if ((pkt == null) || ((pktBuf = pkt.getBuffer()).length < len))
-                {
-                    pktBuf = new byte[len];
-                    pkt = new RawPacket(pktBuf, 0, len);
-                }
-                else
-                {
-                    pktBuf = pkt.getBuffer();
-                    pkt.setLength(len);
-                    pkt.setOffset(0);
-                }
                 System.arraycopy(buf, off, pktBuf, 0, len);
 
                 if (receiveQ.size() == receiveQCapacity)
                 {
                     RawPacket oldPkt = receiveQ.remove();
 
-                    rawPacketPool.offer(oldPkt);
+                    ByteArrayPool.returnBuffer(oldPkt.getBuffer());
                 }
                 receiveQ.add(pkt);
                 receiveQ.notifyAll();
@@ -414,7 +396,7 @@ public int receive(byte[] buf, int off, int len, int waitMillis)
                         if (toReceive == pktLength)
                         {
                             receiveQ.remove();
-                            rawPacketPool.offer(pkt);
+                            ByteArrayPool.returnBuffer(pkt.getBuffer());
                         }
                         else
                         {
@@ -19,11 +19,14 @@
 import java.math.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.bouncycastle.asn1.*;
+import org.bouncycastle.asn1.sec.*;
 import org.bouncycastle.asn1.x500.*;
 import org.bouncycastle.asn1.x500.style.*;
 import org.bouncycastle.asn1.x509.*;
+import org.bouncycastle.asn1.x9.*;
 import org.bouncycastle.cert.*;
 import org.bouncycastle.crypto.*;
 import org.bouncycastle.crypto.generators.*;
@@ -33,6 +36,7 @@
 import org.bouncycastle.operator.*;
 import org.bouncycastle.operator.bc.*;
 import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.srtp.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.version.*;
@@ -80,11 +84,42 @@
     /**
      * The name of the property which specifies the signature algorithm used
      * during certificate creation. When a certificate is created and this
-     * property is not set, a default value of "SHA1withRSA" will be used.
+     * property is not set (or does not match the type of the key pair of the
+     * certificate), a default value of "SHA1withRSA" or "SHA256withECDSA"
+     * will be used.
      */
     public static final String PROP_SIGNATURE_ALGORITHM =
         "org.jitsi.impl.neomedia.transform.dtls.SIGNATURE_ALGORITHM";
 
+    /**
+     * The name of the property to specify the type of the key pair of the
+     * certificate i.e. {@link #KEY_TYPE_RSA} or {@link #KEY_TYPE_ECDSA}.
+     */
+    public static final String KEY_TYPE_PNAME =
+        "org.jitsi.impl.neomedia.transform.dtls.KEY_TYPE";
+
+    /**
+     * The value of the property {@link #KEY_TYPE_PNAME} which specifies an
+     * ECDSA key pair on the NIST P-256 curve (i.e. secp256r1). ECDSA keys are
+     * generated orders of magnitude faster than RSA keys and the
+     * ECDHE-ECDSA handshakes are faster than the ECDHE-RSA ones.
+     */
+    public static final String KEY_TYPE_ECDSA = "ECDSA";
+
+    /**
+     * The value of the property {@link #KEY_TYPE_PNAME} which specifies an RSA
+     * key pair of {@link #RSA_KEY_SIZE} bits.
+     */
+    public static final String KEY_TYPE_RSA = "RSA";
+
+    /**
+     * The type of the key pair of the certificate to use. The default value is
+     * {@link #KEY_TYPE_RSA} (for the sake of the remote endpoints which do not
+     * support ECDSA) but may be overridden by the {@code ConfigurationService}
+     * and/or {@code System} property {@code KEY_TYPE_PNAME}.
+     */
+    public static final String KEY_TYPE;
+
     /**
      * The name of the property to specify RSA Key length.
      */
@@ -141,6 +176,15 @@
      */
     public static final long CERT_CACHE_EXPIRE_TIME;
 
+    /**
+     * The time in milliseconds after {@link #CERT_CACHE_EXPIRE_TIME} for
+     * which an expired {@link #certificateInfoCache} is still used while its
+     * replacement fails to generate in the background. Afterwards, the
+     * replacement is generated on the calling thread. A tenth of
+     * {@code CERT_CACHE_EXPIRE_TIME}.
+     */
+    private static final long CERT_CACHE_MAX_REUSE_TIME;
+
     /**
      * The default certificate cache expiration time, when config properties
      * are not found.
@@ -153,15 +197,38 @@
     public static final BigInteger RSA_KEY_PUBLIC_EXPONENT
         = new BigInteger("10001", 16);
 
+    /**
+     * The <tt>SRTPProtectionProfile</tt> AEAD_AES_128_GCM defined by RFC 7714
+     * which not all versions of Bouncy Castle define.
+     */
+    static final int SRTP_AEAD_AES_128_GCM = 0x0007;
+
+    /**
+     * The <tt>SRTPProtectionProfile</tt> AEAD_AES_256_GCM defined by RFC 7714
+     * which not all versions of Bouncy Castle define.
+     */
+    static final int SRTP_AEAD_AES_256_GCM = 0x0008;
+
     /**
      * The <tt>SRTPProtectionProfile</tt>s supported by
-     * <tt>DtlsControlImpl</tt>.
+     * <tt>DtlsControlImpl</tt> in order of preference. The AES-GCM profiles
+     * are preferred because they encrypt and authenticate in a single pass
+     * and are supported only if the JRE implements AES-GCM.
      */
     static final int[] SRTP_PROTECTION_PROFILES
-        = {
-            SRTPProtectionProfile.SRTP_AES128_CM_HMAC_SHA1_80,
-            SRTPProtectionProfile.SRTP_AES128_CM_HMAC_SHA1_32
-        };
+        = SRTPCipherGCM.isSupported()
+            ? new int[]
+                    {
+                        SRTP_AEAD_AES_128_GCM,
+                        SRTP_AEAD_AES_256_GCM,
+                        SRTPProtectionProfile.SRTP_AES128_CM_HMAC_SHA1_80,
+                        SRTPProtectionProfile.SRTP_AES128_CM_HMAC_SHA1_32
+                    }
+            : new int[]
+                    {
+                        SRTPProtectionProfile.SRTP_AES128_CM_HMAC_SHA1_80,
+                        SRTPProtectionProfile.SRTP_AES128_CM_HMAC_SHA1_32
+                    };
 
     /**
      * The indicator which specifies whether {@code DtlsControlImpl} is to tear
@@ -187,6 +254,19 @@
      */
     private static CertificateInfo certificateInfoCache;
 
+    /**
+     * The scheduled generation of the replacement of
+     * {@link #certificateInfoCache} or {@code null} if none is scheduled
+     * (e.g. because the previous one failed).
+     */
+    private static ScheduledFuture<?> certificateInfoRefresh;
+
+    /**
+     * The executor which generates the replacements of
+     * {@link #certificateInfoCache} in the background.
+     */
+    private static ScheduledExecutorService certificateInfoRefresher;
+
     static
     {
         // Set configurable options using ConfigurationService.
@@ -197,6 +277,12 @@
                     VERIFY_AND_VALIDATE_CERTIFICATE_PNAME,
                     true);
 
+        KEY_TYPE
+            = ConfigUtils.getString(
+                    LibJitsi.getConfigurationService(),
+                    KEY_TYPE_PNAME,
+                    KEY_TYPE_RSA);
+
         RSA_KEY_SIZE
             = ConfigUtils.getInt(
                     LibJitsi.getConfigurationService(),
@@ -214,11 +300,22 @@
                 LibJitsi.getConfigurationService(),
                     CERT_CACHE_EXPIRE_TIME_PNAME,
                     DEFAULT_CERT_CACHE_EXPIRE_TIME);
+        CERT_CACHE_MAX_REUSE_TIME = CERT_CACHE_EXPIRE_TIME / 10;
 
         // HASH_FUNCTION_UPGRADES
         HASH_FUNCTION_UPGRADES.put(
                 "sha-1",
                 new String[] { "sha-224", "sha-256", "sha-384", "sha-512" });
+
+        // Generate the first certificate in the background so that the
+        // first DtlsControlImpl is less likely to wait for it.
+        if (CERT_CACHE_EXPIRE_TIME > 0)
+        {
+            synchronized (DtlsControlImpl.class)
+            {
+                scheduleCertificateInfoRefresh(null);
+            }
+        }
     }
 
     /**
@@ -247,6 +344,41 @@ static int chooseSRTPProtectionProfile(int... theirs)
         return 0;
     }
 
+    /**
+     * Creates the <tt>SubjectPublicKeyInfo</tt> of a specific public key. The
+     * curve of an EC public key is identified by name (rather than with
+     * explicit parameters) because certificates with explicit curve
+     * parameters are rejected by e.g. the WebRTC implementations of the
+     * browsers.
+     *
+     * @param publicKey the public key to create the
+     * <tt>SubjectPublicKeyInfo</tt> of
+     * @return the <tt>SubjectPublicKeyInfo</tt> of <tt>publicKey</tt>
+     * @throws IOException if the encoding of <tt>publicKey</tt> fails
+     */
+    private static SubjectPublicKeyInfo createSubjectPublicKeyInfo(
+            AsymmetricKeyParameter publicKey)
+        throws IOException
+    {
+        if (publicKey instanceof ECPublicKeyParameters)
+        {
+            // generateKeyPair() generates P-256 keys only.
+            return
+                new SubjectPublicKeyInfo(
+                        new AlgorithmIdentifier(
+                                X9ObjectIdentifiers.id_ecPublicKey,
+                                SECObjectIdentifiers.secp256r1),
+                        ((ECPublicKeyParameters) publicKey).getQ().getEncoded(
+                                false));
+        }
+        else
+        {
+            return
+                SubjectPublicKeyInfoFactory.createSubjectPublicKeyInfo(
+                        publicKey);
+        }
+    }
+
     /**
      * Computes the fingerprint of a specific certificate using a specific
      * hash function.
@@ -371,6 +503,168 @@ private static String findHashFunctionUpgrade(
         return null;
     }
 
+    /**
+     * Gets {@link #certificateInfoCache}. The first one is generated in the
+     * background when the {@code DtlsControlImpl} class is initialized and
+     * its replacement is generated in the background before it outlives
+     * {@link #CERT_CACHE_EXPIRE_TIME} so that the setup of calls does not
+     * wait for key generation. Generates it on the calling thread only if the
+     * generation in the background failed and either there is no cache yet
+     * or it has outlived {@link #CERT_CACHE_MAX_REUSE_TIME} after its
+     * expiration.
+     *
+     * @return the cached certificate, hash function, fingerprint, etc. with
+     * which the local endpoint authenticates its ends of DTLS sessions
+     */
+    private static synchronized CertificateInfo getCertificateInfoCache()
+    {
+        // The cache is disabled.
+        if (CERT_CACHE_EXPIRE_TIME <= 0)
+            return generateCertificateInfo();
+
+        // Wait for the generation started when the class was initialized.
+        boolean interrupted = false;
+
+        while (certificateInfoCache == null && certificateInfoRefresh != null)
+        {
+            try
+            {
+                DtlsControlImpl.class.wait();
+            }
+            catch (InterruptedException ie)
+            {
+                interrupted = true;
+                break;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        CertificateInfo certificateInfo = certificateInfoCache;
+
+        if (certificateInfo == null
+                || System.currentTimeMillis() - certificateInfo.timestamp
+                    > CERT_CACHE_EXPIRE_TIME + CERT_CACHE_MAX_REUSE_TIME)
+        {
+            if (certificateInfo != null)
+            {
+                logger.error(
+                        "The DTLS certificate expired more than "
+                            + (CERT_CACHE_MAX_REUSE_TIME / 1000)
+                            + " seconds ago and its replacement has not been"
+                            + " generated in the background, generating it"
+                            + " now.");
+            }
+            certificateInfoCache
+                = certificateInfo
+                    = generateCertificateInfo();
+            // A generation which is still pending in the background will
+            // replace the cache and schedule the next one.
+            if (certificateInfoRefresh == null)
+                scheduleCertificateInfoRefresh(certificateInfo);
+        }
+        else if (certificateInfoRefresh == null)
+        {
+            // The generation of the replacement failed. Retry (in the
+            // background) and use the cache until it succeeds.
+            scheduleCertificateInfoRefresh(certificateInfo);
+        }
+        return certificateInfo;
+    }
+
+    /**
+     * Generates the replacement of {@link #certificateInfoCache} and
+     * schedules the generation of the next one. Invoked in the background.
+     */
+    private static void refreshCertificateInfo()
+    {
+        CertificateInfo certificateInfo;
+
+        try
+        {
+            certificateInfo = generateCertificateInfo();
+        }
+        catch (Throwable t)
+        {
+            if (t instanceof ThreadDeath)
+                throw (ThreadDeath) t;
+
+            synchronized (DtlsControlImpl.class)
+            {
+                CertificateInfo cache = certificateInfoCache;
+
+                if (cache == null)
+                {
+                    logger.error("Failed to generate a DTLS certificate!", t);
+                }
+                else
+                {
+                    logger.error(
+                            "Failed to generate a DTLS certificate! The"
+                                + " current one will be used until "
+                                + new Date(
+                                        cache.timestamp
+                                            + CERT_CACHE_EXPIRE_TIME
+                                            + CERT_CACHE_MAX_REUSE_TIME)
+                                + " at the latest.",
+                            t);
+                }
+                certificateInfoRefresh = null;
+                DtlsControlImpl.class.notifyAll();
+            }
+            return;
+        }
+
+        synchronized (DtlsControlImpl.class)
+        {
+            certificateInfoCache = certificateInfo;
+            scheduleCertificateInfoRefresh(certificateInfo);
+            DtlsControlImpl.class.notifyAll();
+        }
+    }
+
+    /**
+     * Schedules the generation of the replacement of a specific
+     * {@code CertificateInfo} in the background a tenth of
+     * {@link #CERT_CACHE_EXPIRE_TIME} before it expires. Invoked while
+     * holding the lock of the {@code DtlsControlImpl} class.
+     *
+     * @param certificateInfo the {@code CertificateInfo} whose replacement
+     * is to be generated or {@code null} to generate the first one right away
+     */
+    private static void scheduleCertificateInfoRefresh(
+            CertificateInfo certificateInfo)
+    {
+        if (certificateInfoRefresher == null)
+        {
+            certificateInfoRefresher
+                = ExecutorUtils.newScheduledThreadPool(
+                        1,
+                        true,
+                        DtlsControlImpl.class.getName());
+        }
+
+        long delay
+            = (certificateInfo == null)
+                ? 0
+                : certificateInfo.timestamp
+                    + CERT_CACHE_EXPIRE_TIME - CERT_CACHE_EXPIRE_TIME / 10
+                    - System.currentTimeMillis();
+
+        certificateInfoRefresh
+            = certificateInfoRefresher.schedule(
+                    new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            refreshCertificateInfo();
+                        }
+                    },
+                    Math.max(0, delay),
+                    TimeUnit.MILLISECONDS);
+    }
+
     /**
      * Generates a new certificate from a new key pair, determines the hash
      * function, and computes the fingerprint.
@@ -441,12 +735,24 @@ private static X500Name generateCN()
     }
 
     /**
-     * Return a pair of RSA private and public keys.
+     * Return a pair of private and public keys of {@link #KEY_TYPE}.
      *
      * @return a pair of private and public keys
      */
     private static AsymmetricCipherKeyPair generateKeyPair()
     {
+        if (KEY_TYPE_ECDSA.equalsIgnoreCase(KEY_TYPE))
+        {
+            ECKeyPairGenerator generator = new ECKeyPairGenerator();
+
+            generator.init(
+                    new ECKeyGenerationParameters(
+                            TlsECCUtils.getParametersForNamedCurve(
+                                    NamedCurve.secp256r1),
+                            new SecureRandom()));
+            return generator.generateKeyPair();
+        }
+
         RSAKeyPairGenerator generator = new RSAKeyPairGenerator();
 
         generator.init(
@@ -474,14 +780,22 @@ private static AsymmetricCipherKeyPair generateKeyPair()
                 X500Name subject,
                 AsymmetricCipherKeyPair keyPair)
     {
+        boolean ecdsa = keyPair.getPrivate() instanceof ECKeyParameters;
         // The signature algorithm of the generated certificate defaults to
-        // SHA1. However, allow the overriding of the default via the
-        // ConfigurationService.
+        // SHA1 (with RSA) or SHA256 (with ECDSA). However, allow the
+        // overriding of the default via the ConfigurationService.
         String signatureAlgorithm
             = ConfigUtils.getString(
                     LibJitsi.getConfigurationService(),
                     PROP_SIGNATURE_ALGORITHM,
-                    "SHA1withRSA");
+                    null);
+
+        if (signatureAlgorithm == null
+                || ecdsa
+                    != signatureAlgorithm.toUpperCase().endsWith("ECDSA"))
+        {
+            signatureAlgorithm = ecdsa ? "SHA256withECDSA" : "SHA1withRSA";
+        }
 
         if (logger.isDebugEnabled())
             logger.debug("Signature algorithm: " + signatureAlgorithm);
@@ -498,17 +812,16 @@ private static AsymmetricCipherKeyPair generateKeyPair()
                         notBefore,
                         notAfter,
                         subject,
-                        /* publicKeyInfo */
-                            SubjectPublicKeyInfoFactory
-                                .createSubjectPublicKeyInfo(
-                                    keyPair.getPublic()));
+                        createSubjectPublicKeyInfo(keyPair.getPublic()));
             AlgorithmIdentifier sigAlgId
                 = new DefaultSignatureAlgorithmIdentifierFinder()
                     .find(signatureAlgorithm);
             AlgorithmIdentifier digAlgId
                 = new DefaultDigestAlgorithmIdentifierFinder().find(sigAlgId);
             ContentSigner signer
-                = new BcRSAContentSignerBuilder(sigAlgId, digAlgId)
+                = (ecdsa
+                        ? new BcECContentSignerBuilder(sigAlgId, digAlgId)
+                        : new BcRSAContentSignerBuilder(sigAlgId, digAlgId))
                     .build(keyPair.getPrivate());
 
             return builder.build(signer).toASN1Structure();
@@ -607,28 +920,12 @@ public DtlsControlImpl(boolean srtpDisabled)
     {
         super(SrtpControlType.DTLS_SRTP);
 
-        CertificateInfo certificateInfo;
-
         // The methods generateKeyPair(), generateX509Certificate(),
         // findHashFunction(), and/or computeFingerprint() may be too CPU
         // intensive to invoke for each new DtlsControlImpl instance. That's
         // why we've decided to reuse their return values within a certain time
         // frame. Attempt to retrieve from the cache.
-        synchronized (DtlsControlImpl.class)
-        {
-            certificateInfo = certificateInfoCache;
-            if (certificateInfo == null
-                    || certificateInfo.timestamp + CERT_CACHE_EXPIRE_TIME
-                        < System.currentTimeMillis())
-            {
-                // The cache doesn't exist yet or has outlived its lifetime.
-                // Rebuild the cache.
-                certificateInfoCache
-                    = certificateInfo
-                        = generateCertificateInfo();
-            }
-        }
-        this.certificateInfo = certificateInfo;
+        certificateInfo = getCertificateInfoCache();
 
         properties = new Properties(srtpDisabled);
     }
@@ -696,6 +993,46 @@ public String getLocalFingerprintHashFunction()
         return getCertificateInfo().localFingerprintHashFunction;
     }
 
+    /**
+     * Gets the key with which the DTLS sessions established by this instance
+     * are associated in the {@link DtlsSessionCache}. Since an abbreviated
+     * handshake does not present the certificate of the remote endpoint, a
+     * session may be resumed only if the fingerprints exchanged over the
+     * signaling path are the same as when the session was established.
+     *
+     * @return the key with which the DTLS sessions established by this
+     * instance are associated in the <tt>DtlsSessionCache</tt> or
+     * <tt>null</tt> if the remote endpoint has not declared fingerprints over
+     * the signaling path yet
+     */
+    synchronized String getSessionCacheKey()
+    {
+        Map<String,String> remoteFingerprints = this.remoteFingerprints;
+
+        if (disposed
+                || remoteFingerprints == null
+                || remoteFingerprints.isEmpty())
+        {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder();
+
+        // The hash functions are sorted in order for the key not to depend on
+        // the iteration order of the map.
+        for (Map.Entry<String,String> e
+                : new TreeMap<>(remoteFingerprints).entrySet())
+        {
+            key.append(e.getKey()).append(' ').append(e.getValue())
+                .append(';');
+        }
+        key.append(getLocalFingerprintHashFunction()).append(' ')
+            .append(getLocalFingerprint());
+        if (properties.isSrtpDisabled())
+            key.append(";dtls");
+        return key.toString();
+    }
+
     /**
      * Gets the properties of {@code DtlsControlImpl} and their values which
      * this instance shares with {@link DtlsTransformEngine} and
@@ -0,0 +1,448 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.dtls;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+
+/**
+ * Runs the DTLS handshakes of all {@link DtlsPacketTransformer}s on a shared,
+ * bounded pool of threads. The handshakes which do not fit into the pool wait
+ * in a priority queue (e.g. audio before video and, otherwise, in the order of
+ * their submission) so that a burst of call setups (e.g. after a failover) is
+ * spread over time instead of starting as many threads doing public-key
+ * cryptography at once.
+ *
+ * The queue depth, the time the handshakes wait in the queue and the time
+ * they take to complete are exposed for monitoring.
+ */
+public class DtlsHandshakeExecutor
+{
+    /**
+     * The priority of the handshakes of audio streams. Handshakes with lower
+     * priority values run first.
+     */
+    public static final int PRIORITY_AUDIO = 0;
+
+    /**
+     * The priority of the handshakes of streams other than audio.
+     */
+    public static final int PRIORITY_DEFAULT = 1;
+
+    /**
+     * The name of the property which specifies the maximum number of
+     * handshakes waiting in the queue. A handshake submitted while the queue
+     * is full is rejected. A value less than or equal to <tt>0</tt> leaves the
+     * queue unbounded.
+     */
+    public static final String QUEUE_CAPACITY_PNAME
+        = DtlsHandshakeExecutor.class.getName() + ".queueCapacity";
+
+    /**
+     * The name of the property which specifies the maximum number of
+     * handshakes running at the same time. The threads spend most of a
+     * handshake waiting for the flights of the remote peer so the default
+     * value is a multiple of the number of available processors.
+     */
+    public static final String THREADS_PNAME
+        = DtlsHandshakeExecutor.class.getName() + ".threads";
+
+    /**
+     * The maximum number of handshakes waiting in the queue.
+     *
+     * @see #QUEUE_CAPACITY_PNAME
+     */
+    private static final int QUEUE_CAPACITY;
+
+    /**
+     * The maximum number of handshakes running at the same time.
+     *
+     * @see #THREADS_PNAME
+     */
+    private static final int THREADS;
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>DtlsHandshakeExecutor</tt> class
+     * and its instances to print debug information.
+     */
+    private static final Logger logger
+        = Logger.getLogger(DtlsHandshakeExecutor.class);
+
+    /**
+     * The <tt>DtlsHandshakeExecutor</tt> shared by all
+     * <tt>DtlsPacketTransformer</tt>s.
+     */
+    private static DtlsHandshakeExecutor instance;
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        QUEUE_CAPACITY = ConfigUtils.getInt(cfg, QUEUE_CAPACITY_PNAME, 4096);
+
+        int threads
+            = ConfigUtils.getInt(
+                    cfg,
+                    THREADS_PNAME,
+                    4 * Runtime.getRuntime().availableProcessors());
+
+        THREADS = Math.max(1, threads);
+    }
+
+    /**
+     * Gets the <tt>DtlsHandshakeExecutor</tt> shared by all
+     * <tt>DtlsPacketTransformer</tt>s.
+     *
+     * @return the <tt>DtlsHandshakeExecutor</tt> shared by all
+     * <tt>DtlsPacketTransformer</tt>s
+     */
+    public static synchronized DtlsHandshakeExecutor getInstance()
+    {
+        if (instance == null)
+            instance = new DtlsHandshakeExecutor(THREADS, QUEUE_CAPACITY);
+        return instance;
+    }
+
+    /**
+     * The pool of threads which run the handshakes.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The number of handshakes which have completed without establishing a
+     * DTLS connection.
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * The nanoseconds the handshakes take from the start of their execution
+     * to their completion.
+     */
+    private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+
+    /**
+     * The greatest number of handshakes which have waited in the queue at the
+     * same time.
+     */
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    /**
+     * The maximum number of handshakes waiting in the queue or
+     * <tt>0</tt> if the queue is unbounded.
+     */
+    private final int queueCapacity;
+
+    /**
+     * The nanoseconds the handshakes wait in the queue before their execution
+     * starts.
+     */
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+
+    /**
+     * The number of handshakes which have been rejected because the queue was
+     * full.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * The sequence number to be assigned to the next submitted handshake.
+     * Orders the handshakes of equal priority first-in, first-out.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * The number of handshakes which have established a DTLS connection.
+     */
+    private final AtomicLong succeeded = new AtomicLong();
+
+    /**
+     * Initializes a new <tt>DtlsHandshakeExecutor</tt> instance.
+     *
+     * @param threads the maximum number of handshakes to run at the same time
+     * @param queueCapacity the maximum number of handshakes to wait in the
+     * queue or a value less than or equal to <tt>0</tt> for an unbounded queue
+     */
+    DtlsHandshakeExecutor(int threads, int queueCapacity)
+    {
+        this.queueCapacity = Math.max(0, queueCapacity);
+
+        executor
+            = new ThreadPoolExecutor(
+                    threads, threads,
+                    60, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(),
+                    ExecutorUtils.newThreadFactory(
+                            true,
+                            DtlsHandshakeExecutor.class.getName()));
+        // Do not keep idle threads around between bursts of call setups.
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Removes a specific handshake from the queue if its execution has not
+     * started yet (e.g. because its <tt>DtlsPacketTransformer</tt> has been
+     * stopped while the handshake was waiting).
+     *
+     * @param handshake the <tt>Handshake</tt> to remove from the queue
+     */
+    void cancel(Handshake handshake)
+    {
+        executor.remove(handshake);
+    }
+
+    /**
+     * Gets the number of handshakes which are running.
+     *
+     * @return the number of handshakes which are running
+     */
+    public int getActiveCount()
+    {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Gets the number of handshakes which have completed without establishing
+     * a DTLS connection.
+     *
+     * @return the number of handshakes which have completed without
+     * establishing a DTLS connection
+     */
+    public long getFailedCount()
+    {
+        return failed.get();
+    }
+
+    /**
+     * Gets the histogram of the nanoseconds the handshakes take from the
+     * start of their execution to their completion.
+     *
+     * @return the histogram of the nanoseconds the handshakes take to complete
+     */
+    public LatencyHistogram getHandshakeLatency()
+    {
+        return handshakeLatency;
+    }
+
+    /**
+     * Gets the greatest number of handshakes which have waited in the queue at
+     * the same time.
+     *
+     * @return the greatest number of handshakes which have waited in the queue
+     * at the same time
+     */
+    public int getMaxQueueDepth()
+    {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Gets the number of handshakes waiting in the queue.
+     *
+     * @return the number of handshakes waiting in the queue
+     */
+    public int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the histogram of the nanoseconds the handshakes wait in the queue
+     * before their execution starts.
+     *
+     * @return the histogram of the nanoseconds the handshakes wait in the
+     * queue
+     */
+    public LatencyHistogram getQueueLatency()
+    {
+        return queueLatency;
+    }
+
+    /**
+     * Gets the number of handshakes which have been rejected because the
+     * queue was full.
+     *
+     * @return the number of handshakes which have been rejected
+     */
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * Gets the number of handshakes which have established a DTLS connection.
+     *
+     * @return the number of handshakes which have established a DTLS
+     * connection
+     */
+    public long getSucceededCount()
+    {
+        return succeeded.get();
+    }
+
+    /**
+     * Queues a specific handshake for execution.
+     *
+     * @param handshake the <tt>Handshake</tt> to execute
+     * @throws RejectedExecutionException if the queue is full
+     */
+    void submit(Handshake handshake)
+        throws RejectedExecutionException
+    {
+        int queueDepth = getQueueDepth();
+
+        if (queueCapacity > 0 && queueDepth >= queueCapacity)
+        {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException(
+                    "The queue of DTLS handshakes is full: " + this);
+        }
+
+        handshake.executor = this;
+        handshake.sequence = sequence.getAndIncrement();
+        handshake.submitTime = System.nanoTime();
+        executor.execute(handshake);
+
+        // The handshake may have been dequeued already; the depth is an
+        // estimate for monitoring purposes.
+        queueDepth++;
+
+        int max;
+
+        while ((max = maxQueueDepth.get()) < queueDepth
+                && !maxQueueDepth.compareAndSet(max, queueDepth));
+    }
+
+    /**
+     * Returns a short summary of the state and the statistics of this
+     * instance.
+     *
+     * @return a short summary of the state and the statistics of this
+     * instance
+     */
+    @Override
+    public String toString()
+    {
+        return
+            "active=" + getActiveCount()
+                + " queued=" + getQueueDepth()
+                + " maxQueued=" + getMaxQueueDepth()
+                + " succeeded=" + getSucceededCount()
+                + " failed=" + getFailedCount()
+                + " rejected=" + getRejectedCount()
+                + " queueNanos=[" + queueLatency
+                + "] handshakeNanos=[" + handshakeLatency + "]";
+    }
+
+    /**
+     * Represents a DTLS handshake which is run by a
+     * <tt>DtlsHandshakeExecutor</tt>.
+     */
+    static abstract class Handshake
+        implements Comparable<Handshake>,
+                   Runnable
+    {
+        /**
+         * The <tt>DtlsHandshakeExecutor</tt> which runs this handshake.
+         */
+        private DtlsHandshakeExecutor executor;
+
+        /**
+         * The priority of this handshake. Handshakes with lower values run
+         * first.
+         */
+        private final int priority;
+
+        /**
+         * The order of the submission of this handshake among the handshakes
+         * of equal priority.
+         */
+        private long sequence;
+
+        /**
+         * The time in nanoseconds at which this handshake was submitted.
+         */
+        private long submitTime;
+
+        /**
+         * Initializes a new <tt>Handshake</tt> instance.
+         *
+         * @param priority the priority of the new instance (e.g.
+         * {@link #PRIORITY_AUDIO})
+         */
+        protected Handshake(int priority)
+        {
+            this.priority = priority;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int compareTo(Handshake other)
+        {
+            if (priority != other.priority)
+                return (priority < other.priority) ? -1 : 1;
+            else if (sequence != other.sequence)
+                return (sequence < other.sequence) ? -1 : 1;
+            else
+                return 0;
+        }
+
+        /**
+         * Performs the DTLS handshake.
+         *
+         * @return <tt>true</tt> if a DTLS connection was established;
+         * otherwise, <tt>false</tt>
+         */
+        protected abstract boolean handshake();
+
+        /**
+         * {@inheritDoc}
+         *
+         * Runs {@link #handshake()} and records its statistics.
+         */
+        @Override
+        public void run()
+        {
+            DtlsHandshakeExecutor executor = this.executor;
+            long startTime = System.nanoTime();
+            boolean succeeded = false;
+
+            executor.queueLatency.record(startTime - submitTime);
+            try
+            {
+                succeeded = handshake();
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                logger.error("Failed to run a DTLS handshake!", t);
+            }
+            finally
+            {
+                executor.handshakeLatency.record(
+                        System.nanoTime() - startTime);
+                (succeeded ? executor.succeeded : executor.failed)
+                    .incrementAndGet();
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@
 import java.io.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.bouncycastle.crypto.tls.*;
 import org.ice4j.ice.*;
@@ -43,7 +44,8 @@
     /**
      * The interval in milliseconds between successive tries to await successful
      * connections in
-     * {@link #runInConnectThread(DTLSProtocol, TlsPeer, DatagramTransport)}.
+     * {@link #runHandshake(DtlsHandshakeExecutor.Handshake, DTLSProtocol,
+     * TlsPeer, DatagramTransport)}.
      *
      * @see #CONNECT_TRIES
      */
@@ -51,7 +53,8 @@
 
     /**
      * The maximum number of times that
-     * {@link #runInConnectThread(DTLSProtocol, TlsPeer, DatagramTransport)} is
+     * {@link #runHandshake(DtlsHandshakeExecutor.Handshake, DTLSProtocol,
+     * TlsPeer, DatagramTransport)} is
      * to retry the invocations of
      * {@link DTLSClientProtocol#connect(TlsClient, DatagramTransport)} and
      * {@link DTLSServerProtocol#accept(TlsServer, DatagramTransport)} in
@@ -184,9 +187,10 @@ public static boolean isDtlsRecord(byte[] buf, int off, int len)
     private AbstractRTPConnector connector;
 
     /**
-     * The background <tt>Thread</tt> which initializes {@link #dtlsTransport}.
+     * The DTLS handshake which initializes {@link #dtlsTransport} on the
+     * shared {@link DtlsHandshakeExecutor}.
      */
-    private Thread connectThread;
+    private DtlsHandshakeExecutor.Handshake handshake;
 
     /**
      * The <tt>DatagramTransport</tt> implementation which adapts
@@ -331,15 +335,19 @@ private void closeDatagramTransport()
 
     /**
      * Determines whether
-     * {@link #runInConnectThread(DTLSProtocol, TlsPeer, DatagramTransport)} is
+     * {@link #runHandshake(DtlsHandshakeExecutor.Handshake, DTLSProtocol,
+     * TlsPeer, DatagramTransport)} is
      * to try to establish a DTLS connection.
      *
+     * @param handshake the DTLS handshake which is trying to establish a DTLS
+     * connection
      * @param i the number of tries remaining after the current one
      * @param datagramTransport
      * @return <tt>true</tt> to try to establish a DTLS connection; otherwise,
      * <tt>false</tt>
      */
-    private boolean enterRunInConnectThreadLoop(
+    private boolean enterRunHandshakeLoop(
+            DtlsHandshakeExecutor.Handshake handshake,
             int i,
             DatagramTransport datagramTransport)
     {
@@ -370,7 +378,7 @@ private boolean enterRunInConnectThreadLoop(
                 }
 
                 return
-                    currentThread.equals(this.connectThread)
+                    handshake == this.handshake
                         && datagramTransport.equals(this.datagramTransport);
             }
         }
@@ -431,7 +439,7 @@ private SinglePacketTransformer getSRTPTransformer()
                 if (srtpTransformer != null)
                     break; // _srtpTransformer is initialized
 
-                if (connectThread == null)
+                if (handshake == null)
                 {
                     // Though _srtpTransformer is NOT initialized, there is no
                     // point in waiting because there is no one to initialize
@@ -468,9 +476,12 @@ DtlsTransformEngine getTransformEngine()
     /**
      * Handles a specific <tt>IOException</tt> which was thrown during the
      * execution of
-     * {@link #runInConnectThread(DTLSProtocol, TlsPeer, DatagramTransport)}
+     * {@link #runHandshake(DtlsHandshakeExecutor.Handshake, DTLSProtocol,
+     * TlsPeer, DatagramTransport)}
      * while trying to establish a DTLS connection
      *
+     * @param handshake the DTLS handshake which is trying to establish a DTLS
+     * connection
      * @param ioe the <tt>IOException</tt> to handle
      * @param msg the human-readable message to log about the specified
      * <tt>ioe</tt>
@@ -478,7 +489,8 @@ DtlsTransformEngine getTransformEngine()
      * @return <tt>true</tt> if the specified <tt>ioe</tt> was successfully
      * handled; <tt>false</tt>, otherwise
      */
-    private boolean handleRunInConnectThreadException(
+    private boolean handleRunHandshakeException(
+            DtlsHandshakeExecutor.Handshake handshake,
             IOException ioe,
             String msg,
             int i)
@@ -499,7 +511,7 @@ private boolean handleRunInConnectThreadException(
             {
                 msg += " Received fatal unexpected message.";
                 if (i == 0
-                        || !Thread.currentThread().equals(connectThread)
+                        || handshake != this.handshake
                         || connector == null
                         || mediaType == null)
                 {
@@ -618,6 +630,24 @@ private SinglePacketTransformer initializeSRTPTransformer(
             auth_key_length = 160 / 8;
             RTCP_auth_tag_length = RTP_auth_tag_length = 80 / 8;
             break;
+        case DtlsControlImpl.SRTP_AEAD_AES_128_GCM:
+            cipher_key_length = 128 / 8;
+            cipher_salt_length = 96 / 8;
+            cipher = SRTPPolicy.AESGCM_ENCRYPTION;
+            auth_function = SRTPPolicy.NULL_AUTHENTICATION;
+            auth_key_length = 0;
+            RTCP_auth_tag_length = RTP_auth_tag_length
+                = SRTPCipherGCM.TAG_LENGTH;
+            break;
+        case DtlsControlImpl.SRTP_AEAD_AES_256_GCM:
+            cipher_key_length = 256 / 8;
+            cipher_salt_length = 96 / 8;
+            cipher = SRTPPolicy.AESGCM_ENCRYPTION;
+            auth_function = SRTPPolicy.NULL_AUTHENTICATION;
+            auth_key_length = 0;
+            RTCP_auth_tag_length = RTP_auth_tag_length
+                = SRTPCipherGCM.TAG_LENGTH;
+            break;
         case SRTPProtectionProfile.SRTP_NULL_HMAC_SHA1_32:
             cipher_key_length = 0;
             cipher_salt_length = 0;
@@ -957,13 +987,18 @@ private void reverseTransformDtls(RawPacket pkt, List<RawPacket> outPkts)
     }
 
     /**
-     * Runs in {@link #connectThread} to initialize {@link #dtlsTransport}.
+     * Runs {@link #handshake} on the {@link DtlsHandshakeExecutor} to
+     * initialize {@link #dtlsTransport}.
      *
+     * @param handshake the DTLS handshake which is running
      * @param dtlsProtocol
      * @param tlsPeer
      * @param datagramTransport
+     * @return <tt>true</tt> if a DTLS connection was established; otherwise,
+     * <tt>false</tt>
      */
-    private void runInConnectThread(
+    private boolean runHandshake(
+            DtlsHandshakeExecutor.Handshake handshake,
             DTLSProtocol dtlsProtocol,
             TlsPeer tlsPeer,
             DatagramTransport datagramTransport)
@@ -982,7 +1017,7 @@ private void runInConnectThread(
 
             for (int i = CONNECT_TRIES - 1; i >= 0; i--)
             {
-                if (!enterRunInConnectThreadLoop(i, datagramTransport))
+                if (!enterRunHandshakeLoop(handshake, i, datagramTransport))
                     break;
                 try
                 {
@@ -994,7 +1029,8 @@ private void runInConnectThread(
                 }
                 catch (IOException ioe)
                 {
-                    if (!handleRunInConnectThreadException(
+                    if (!handleRunHandshakeException(
+                            handshake,
                             ioe,
                             "Failed to connect this DTLS client to a DTLS"
                                 + " server!",
@@ -1019,7 +1055,7 @@ else if (dtlsProtocol instanceof DTLSServerProtocol)
 
             for (int i = CONNECT_TRIES - 1; i >= 0; i--)
             {
-                if (!enterRunInConnectThreadLoop(i, datagramTransport))
+                if (!enterRunHandshakeLoop(handshake, i, datagramTransport))
                     break;
                 try
                 {
@@ -1031,7 +1067,8 @@ else if (dtlsProtocol instanceof DTLSServerProtocol)
                 }
                 catch (IOException ioe)
                 {
-                    if (!handleRunInConnectThreadException(
+                    if (!handleRunHandshakeException(
+                            handshake,
                             ioe,
                             "Failed to accept a connection from a DTLS client!",
                             i))
@@ -1060,7 +1097,7 @@ else if (dtlsProtocol instanceof DTLSServerProtocol)
 
         synchronized (this)
         {
-            if (Thread.currentThread().equals(this.connectThread)
+            if (handshake == this.handshake
                     && datagramTransport.equals(this.datagramTransport))
             {
                 this.dtlsTransport = dtlsTransport;
@@ -1070,6 +1107,8 @@ else if (dtlsProtocol instanceof DTLSServerProtocol)
         }
         if (closeSRTPTransformer && srtpTransformer != null)
             srtpTransformer.close();
+
+        return dtlsTransport != null;
     }
 
     /**
@@ -1199,7 +1238,7 @@ private synchronized void start()
     {
         if (this.datagramTransport != null)
         {
-            if (this.connectThread == null && dtlsTransport == null)
+            if (this.handshake == null && dtlsTransport == null)
             {
                 logger.warn(
                         getClass().getName()
@@ -1245,50 +1284,59 @@ private synchronized void start()
 
         datagramTransport.setConnector(connector);
 
-        Thread connectThread
-            = new Thread()
+        final DtlsHandshakeExecutor executor
+            = DtlsHandshakeExecutor.getInstance();
+        DtlsHandshakeExecutor.Handshake handshake
+            = new DtlsHandshakeExecutor.Handshake(
+                    MediaType.AUDIO.equals(mediaType)
+                        ? DtlsHandshakeExecutor.PRIORITY_AUDIO
+                        : DtlsHandshakeExecutor.PRIORITY_DEFAULT)
             {
                 @Override
-                public void run()
+                protected boolean handshake()
                 {
                     try
                     {
-                        runInConnectThread(
-                                dtlsProtocolObj,
-                                tlsPeer,
-                                datagramTransport);
+                        return
+                            runHandshake(
+                                    this,
+                                    dtlsProtocolObj,
+                                    tlsPeer,
+                                    datagramTransport);
                     }
                     finally
                     {
-                        if (Thread.currentThread().equals(
-                                DtlsPacketTransformer.this.connectThread))
+                        synchronized (DtlsPacketTransformer.this)
                         {
-                            DtlsPacketTransformer.this.connectThread = null;
+                            if (this == DtlsPacketTransformer.this.handshake)
+                                DtlsPacketTransformer.this.handshake = null;
                         }
                     }
                 }
             };
 
-        connectThread.setDaemon(true);
-        connectThread.setName(
-                DtlsPacketTransformer.class.getName() + ".connectThread");
-
-        this.connectThread = connectThread;
+        this.handshake = handshake;
         this.datagramTransport = datagramTransport;
 
         boolean started = false;
 
         try
         {
-            connectThread.start();
+            executor.submit(handshake);
             started = true;
         }
+        catch (RejectedExecutionException ree)
+        {
+            // A burst of call setups has filled the queue of the shared
+            // executor. Fail this DTLS connection rather than thrash.
+            logger.error("Failed to start the DTLS handshake!", ree);
+        }
         finally
         {
             if (!started)
             {
-                if (connectThread.equals(this.connectThread))
-                    this.connectThread = null;
+                if (handshake == this.handshake)
+                    this.handshake = null;
                 if (datagramTransport.equals(this.datagramTransport))
                     this.datagramTransport = null;
             }
@@ -1303,8 +1351,13 @@ public void run()
     private synchronized void stop()
     {
         started = false;
-        if (connectThread != null)
-            connectThread = null;
+        if (handshake != null)
+        {
+            // The handshake may not have left the queue of the shared executor
+            // yet.
+            DtlsHandshakeExecutor.getInstance().cancel(handshake);
+            handshake = null;
+        }
         try
         {
             // The dtlsTransport and _srtpTransformer SHOULD be closed, of
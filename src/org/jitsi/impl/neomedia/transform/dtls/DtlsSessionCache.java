@@ -0,0 +1,388 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.dtls;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.bouncycastle.crypto.tls.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+
+/**
+ * Caches the resumable DTLS sessions established by the local endpoint so
+ * that a remote endpoint which re-establishes media shortly after (e.g. on a
+ * re-INVITE or an ICE restart) may be offered an abbreviated handshake without
+ * the exchange of certificates and the public-key operations.
+ *
+ * The sessions are keyed by the fingerprints exchanged over the signaling
+ * path (see {@link DtlsControlImpl#getSessionCacheKey()}) because an
+ * abbreviated handshake does not present the certificate which RFC 5763
+ * requires to match them. The cache is bounded in size (the least recently
+ * used session is evicted first) and in time.
+ */
+public class DtlsSessionCache
+{
+    /**
+     * The name of the property which specifies the maximum number of sessions
+     * in the cache. A value less than or equal to <tt>0</tt> disables the
+     * cache and, consequently, the resumption of DTLS sessions.
+     */
+    public static final String CAPACITY_PNAME
+        = DtlsSessionCache.class.getName() + ".capacity";
+
+    /**
+     * The name of the property which specifies the time in milliseconds
+     * during which a session may be resumed after its establishment.
+     */
+    public static final String TTL_PNAME
+        = DtlsSessionCache.class.getName() + ".ttl";
+
+    /**
+     * The maximum number of sessions in the cache.
+     *
+     * @see #CAPACITY_PNAME
+     */
+    private static final int CAPACITY;
+
+    /**
+     * The time in milliseconds during which a session may be resumed after
+     * its establishment.
+     *
+     * @see #TTL_PNAME
+     */
+    private static final long TTL;
+
+    /**
+     * The <tt>DtlsSessionCache</tt> shared by all <tt>TlsClientImpl</tt>s.
+     */
+    private static DtlsSessionCache instance;
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        CAPACITY = ConfigUtils.getInt(cfg, CAPACITY_PNAME, 1024);
+        TTL = ConfigUtils.getLong(cfg, TTL_PNAME, 5 * 60 * 1000);
+    }
+
+    /**
+     * Gets the <tt>DtlsSessionCache</tt> shared by all
+     * <tt>TlsClientImpl</tt>s.
+     *
+     * @return the <tt>DtlsSessionCache</tt> shared by all
+     * <tt>TlsClientImpl</tt>s
+     */
+    public static synchronized DtlsSessionCache getInstance()
+    {
+        if (instance == null)
+            instance = new DtlsSessionCache(CAPACITY, TTL);
+        return instance;
+    }
+
+    /**
+     * The maximum number of sessions in this cache.
+     */
+    private final int capacity;
+
+    /**
+     * The sessions in this cache keyed by their cache keys in the order of
+     * their access (i.e. the least recently used first).
+     */
+    private final LinkedHashMap<String,Entry> entries;
+
+    /**
+     * The number of sessions which have been evicted from this cache because
+     * it was full.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The number of sessions which have been removed from this cache because
+     * they had expired or had been invalidated.
+     */
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * The number of lookups which have found a resumable session.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of lookups which have not found a resumable session.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of handshakes which have resumed a session found in this
+     * cache i.e. in which the remote endpoint has accepted the resumption.
+     */
+    private final AtomicLong resumptions = new AtomicLong();
+
+    /**
+     * The time in milliseconds during which a session may be resumed after
+     * its establishment.
+     */
+    private final long ttl;
+
+    /**
+     * Initializes a new <tt>DtlsSessionCache</tt> instance.
+     *
+     * @param capacity the maximum number of sessions in the new instance
+     * @param ttl the time in milliseconds during which a session may be
+     * resumed after its establishment
+     */
+    DtlsSessionCache(int capacity, long ttl)
+    {
+        this.capacity = capacity;
+        this.ttl = ttl;
+
+        entries
+            = new LinkedHashMap<String,Entry>(16, 0.75f, /* accessOrder */ true)
+            {
+                private static final long serialVersionUID = 0L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String,Entry> eldest)
+                {
+                    if (size() > DtlsSessionCache.this.capacity)
+                    {
+                        evictions.incrementAndGet();
+                        return true;
+                    }
+                    else
+                    {
+                        return false;
+                    }
+                }
+            };
+    }
+
+    /**
+     * Gets a resumable session associated with a specific cache key.
+     *
+     * @param key the cache key of the session to get
+     * @return a resumable <tt>TlsSession</tt> associated with <tt>key</tt> or
+     * <tt>null</tt> if there is no such session
+     */
+    TlsSession get(String key)
+    {
+        if (!isEnabled() || key == null)
+            return null;
+
+        TlsSession session = null;
+
+        synchronized (entries)
+        {
+            Entry entry = entries.get(key);
+
+            if (entry != null)
+            {
+                if (entry.expirationTime - System.currentTimeMillis() > 0
+                        && entry.session.isResumable())
+                {
+                    session = entry.session;
+                }
+                else
+                {
+                    entries.remove(key);
+                    expirations.incrementAndGet();
+                }
+            }
+        }
+
+        (session == null ? misses : hits).incrementAndGet();
+        return session;
+    }
+
+    /**
+     * Gets the number of sessions which have been evicted because this cache
+     * was full.
+     *
+     * @return the number of sessions which have been evicted because this
+     * cache was full
+     */
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the number of sessions which have been removed from this cache
+     * because they had expired or had been invalidated.
+     *
+     * @return the number of sessions which have expired
+     */
+    public long getExpirationCount()
+    {
+        return expirations.get();
+    }
+
+    /**
+     * Gets the number of lookups which have found a resumable session.
+     *
+     * @return the number of lookups which have found a resumable session
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Gets the ratio of the lookups which have found a resumable session.
+     *
+     * @return the ratio (between <tt>0</tt> and <tt>1</tt>) of the lookups
+     * which have found a resumable session or <tt>0</tt> if no lookup has
+     * been performed
+     */
+    public double getHitRate()
+    {
+        long hits = this.hits.get();
+        long lookups = hits + misses.get();
+
+        return (lookups == 0) ? 0 : ((double) hits / lookups);
+    }
+
+    /**
+     * Gets the number of lookups which have not found a resumable session.
+     *
+     * @return the number of lookups which have not found a resumable session
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of handshakes which have resumed a session found in
+     * this cache.
+     *
+     * @return the number of abbreviated handshakes
+     */
+    public long getResumptionCount()
+    {
+        return resumptions.get();
+    }
+
+    /**
+     * Gets the number of sessions in this cache.
+     *
+     * @return the number of sessions in this cache
+     */
+    public int getSize()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Determines whether this cache is enabled.
+     *
+     * @return <tt>true</tt> if this cache is enabled; otherwise,
+     * <tt>false</tt>
+     */
+    public boolean isEnabled()
+    {
+        return capacity > 0 && ttl > 0;
+    }
+
+    /**
+     * Notifies this cache that a handshake has resumed a session which it
+     * got from this cache.
+     */
+    void notifyResumed()
+    {
+        resumptions.incrementAndGet();
+    }
+
+    /**
+     * Associates a specific resumable session with a specific cache key. The
+     * session expires {@link #TTL_PNAME} milliseconds after it is put into
+     * this cache.
+     *
+     * @param key the cache key to associate <tt>session</tt> with
+     * @param session the <tt>TlsSession</tt> to put into this cache
+     */
+    void put(String key, TlsSession session)
+    {
+        if (!isEnabled()
+                || key == null
+                || session == null
+                || !session.isResumable())
+        {
+            return;
+        }
+
+        Entry entry = new Entry(session, System.currentTimeMillis() + ttl);
+
+        synchronized (entries)
+        {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Returns a short summary of the statistics of this instance.
+     *
+     * @return a short summary of the statistics of this instance
+     */
+    @Override
+    public String toString()
+    {
+        return
+            "size=" + getSize()
+                + " hits=" + getHitCount()
+                + " misses=" + getMissCount()
+                + " hitRate=" + String.format("%.3f", getHitRate())
+                + " resumptions=" + getResumptionCount()
+                + " evictions=" + getEvictionCount()
+                + " expirations=" + getExpirationCount();
+    }
+
+    /**
+     * Represents a session in a <tt>DtlsSessionCache</tt>.
+     */
+    private static class Entry
+    {
+        /**
+         * The time in milliseconds after which {@link #session} may not be
+         * resumed.
+         */
+        final long expirationTime;
+
+        /**
+         * The resumable session.
+         */
+        final TlsSession session;
+
+        /**
+         * Initializes a new <tt>Entry</tt> instance.
+         *
+         * @param session the resumable session
+         * @param expirationTime the time in milliseconds after which
+         * <tt>session</tt> may not be resumed
+         */
+        Entry(TlsSession session, long expirationTime)
+        {
+            this.session = session;
+            this.expirationTime = expirationTime;
+        }
+    }
+}
@@ -57,6 +57,24 @@
      */
     private final DtlsPacketTransformer packetTransformer;
 
+    /**
+     * The indicator which determines whether the certificate of the server
+     * has been presented (i.e. the handshake is a full one) and has been
+     * verified against the fingerprints exchanged over the signaling path.
+     */
+    private boolean serverCertificateVerified;
+
+    /**
+     * The key with which the session of this client is associated in the
+     * {@link DtlsSessionCache}.
+     */
+    private String sessionCacheKey;
+
+    /**
+     * The session which this client has offered to resume or <tt>null</tt>.
+     */
+    private TlsSession sessionToResume;
+
     /**
      * Initializes a new <tt>TlsClientImpl</tt> instance.
      *
@@ -106,6 +124,10 @@ public int[] getCipherSuites()
             CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,
             CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256,
             CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA,
+            // The ECDHE-ECDSA cipher suites of TlsServerImpl.
+            CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384,
+            CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_256_CBC_SHA384,
+            CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_256_CBC_SHA,
             CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,
             CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256,
             CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA,
@@ -197,6 +219,26 @@ private Properties getProperties()
         return packetTransformer.getProperties();
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Offers to resume the session which has been established with the
+     * remote endpoint identified by the same fingerprints (if any and if it
+     * has not expired yet).
+     */
+    @Override
+    public TlsSession getSessionToResume()
+    {
+        DtlsSessionCache cache = DtlsSessionCache.getInstance();
+
+        if (cache.isEnabled())
+        {
+            sessionCacheKey = getDtlsControl().getSessionCacheKey();
+            sessionToResume = cache.get(sessionCacheKey);
+        }
+        return sessionToResume;
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -241,6 +283,28 @@ public void notifyAlertRaised(
                 alertLevel, alertDescription, message, cause);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Puts the session established in a full handshake into the
+     * {@link DtlsSessionCache}. An abbreviated handshake does not present the
+     * certificate of the server so its session is not put again (i.e. it is
+     * not renewed).
+     */
+    @Override
+    public void notifyHandshakeComplete()
+        throws IOException
+    {
+        super.notifyHandshakeComplete();
+
+        DtlsSessionCache cache = DtlsSessionCache.getInstance();
+
+        if (serverCertificateVerified)
+            cache.put(sessionCacheKey, context.getResumableSession());
+        else if (sessionToResume != null)
+            cache.notifyResumed();
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -344,16 +408,12 @@ public TlsCredentials getClientCredentials(
                 CertificateInfo certificateInfo
                     = getDtlsControl().getCertificateInfo();
 
-                // FIXME The signature and hash algorithms should be retrieved
-                // from the certificate.
                 clientCredentials
                     = new DefaultTlsSignerCredentials(
                             context,
                             certificateInfo.getCertificate(),
                             certificateInfo.getKeyPair().getPrivate(),
-                            new SignatureAndHashAlgorithm(
-                                    HashAlgorithm.sha1,
-                                    SignatureAlgorithm.rsa));
+                            certificateInfo.getSignatureAndHashAlgorithm());
             }
             return clientCredentials;
         }
@@ -367,8 +427,9 @@ public void notifyServerCertificate(Certificate serverCertificate)
         {
             try
             {
-                getDtlsControl().verifyAndValidateCertificate(
-                        serverCertificate);
+                serverCertificateVerified
+                    = getDtlsControl().verifyAndValidateCertificate(
+                            serverCertificate);
             }
             catch (Exception e)
             {
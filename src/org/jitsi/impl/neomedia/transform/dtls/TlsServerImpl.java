@@ -41,7 +41,11 @@
      */
     private final CertificateRequest certificateRequest
         = new CertificateRequest(
-                new short[] { ClientCertificateType.rsa_sign },
+                new short[]
+                {
+                    ClientCertificateType.rsa_sign,
+                    ClientCertificateType.ecdsa_sign
+                },
                 /* supportedSignatureAlgorithms */ null,
                 /* certificateAuthorities */ null);
 
@@ -51,6 +55,12 @@
      */
     private int chosenProtectionProfile;
 
+    /**
+     *
+     * @see DefaultTlsServer#getECDSASignerCredentials()
+     */
+    private TlsSignerCredentials ecdsaSignerCredentials;
+
     /**
      * The <tt>PacketTransformer</tt> which has initialized this instance.
      */
@@ -105,11 +115,25 @@ int getChosenProtectionProfile()
      *
      * Overrides the super implementation to explicitly specify cipher suites
      * which we know to be supported by Bouncy Castle and provide Perfect
-     * Forward Secrecy.
+     * Forward Secrecy. The cipher suites authenticate with the type of the key
+     * pair of the certificate of the local endpoint (i.e. ECDSA or RSA).
      */
     @Override
     protected int[] getCipherSuites()
     {
+        if (getDtlsControl().getCertificateInfo().isECDSA())
+        {
+            return new int[]
+            {
+                CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384,
+                CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,
+                CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_256_CBC_SHA384,
+                CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256,
+                CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_256_CBC_SHA,
+                CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA
+            };
+        }
+
         return new int[]
         {
 /* core/src/main/java/org/bouncycastle/crypto/tls/DefaultTlsServer.java */
@@ -175,6 +199,32 @@ protected ProtocolVersion getMinimumVersion()
         return ProtocolVersion.DTLSv10;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <tt>DefaultTlsServer</tt> requires <tt>ecdsaSignerCredentials</tt> for
+     * the ECDHE-ECDSA cipher suites which {@link #getCipherSuites()} specifies
+     * if the certificate of the local endpoint has an ECDSA key pair.
+     */
+    @Override
+    protected TlsSignerCredentials getECDSASignerCredentials()
+        throws IOException
+    {
+        if (ecdsaSignerCredentials == null)
+        {
+            CertificateInfo certificateInfo
+                = getDtlsControl().getCertificateInfo();
+
+            ecdsaSignerCredentials
+                = new DefaultTlsSignerCredentials(
+                        context,
+                        certificateInfo.getCertificate(),
+                        certificateInfo.getKeyPair().getPrivate(),
+                        certificateInfo.getSignatureAndHashAlgorithm());
+        }
+        return ecdsaSignerCredentials;
+    }
+
     private Properties getProperties()
     {
         return packetTransformer.getProperties();
@@ -223,16 +273,12 @@ protected TlsSignerCredentials getRSASignerCredentials()
             CertificateInfo certificateInfo
                 = getDtlsControl().getCertificateInfo();
 
-            // FIXME The signature and hash algorithms should be retrieved from
-            // the certificate.
             rsaSignerCredentials
                 = new DefaultTlsSignerCredentials(
                         context,
                         certificateInfo.getCertificate(),
                         certificateInfo.getKeyPair().getPrivate(),
-                        new SignatureAndHashAlgorithm(
-                                HashAlgorithm.sha1,
-                                SignatureAlgorithm.rsa));
+                        certificateInfo.getSignatureAndHashAlgorithm());
         }
         return rsaSignerCredentials;
     }
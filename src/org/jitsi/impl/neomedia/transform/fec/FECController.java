@@ -0,0 +1,565 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.fec;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.sf.fmj.media.rtp.*;
+
+import org.jitsi.impl.neomedia.rtcp.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.rtp.*;
+import org.jitsi.service.neomedia.stats.*;
+import org.jitsi.util.*;
+
+/**
+ * Adapts the ulpfec protection which a {@link FECTransformEngine} adds to the
+ * packets sent by a <tt>MediaStream</tt> to the conditions reported by the
+ * receivers so that the redundancy costs bandwidth only when it saves
+ * retransmissions.
+ *
+ * The loss is the fraction lost of the RTCP receiver reports (smoothed) and
+ * the length of the loss bursts is estimated from the RTCP XR VoIP metrics
+ * and from the runs of consecutive packets requested by the RTCP NACKs. The
+ * protection is off while the loss is low or while the round-trip time is
+ * short enough for the retransmissions to arrive in time. Otherwise, an ulpfec
+ * packet is sent for every 10, 5 or 3 media packets depending on the loss. If
+ * the losses come in bursts, the media packets are protected in columns (i.e.
+ * interleaved) instead of consecutively so that a burst is recoverable. The
+ * protection is limited to what fits into the estimate of the available
+ * bandwidth.
+ *
+ * The protection is increased as soon as the loss requires it but decreased
+ * only after the loss has been low for {@link #DECREASE_DELAY_PNAME}
+ * milliseconds (and is switched off only at half the loss at which it is
+ * switched on) in order not to flap with every receiver report.
+ */
+public class FECController
+    extends RTCPReportAdapter
+    implements BandwidthEstimator.Listener,
+               NACKListener
+{
+    /**
+     * The name of the property which specifies the time in milliseconds for
+     * which the loss has to require less protection before the protection is
+     * decreased.
+     */
+    public static final String DECREASE_DELAY_PNAME
+        = FECController.class.getName() + ".DECREASE_DELAY";
+
+    /**
+     * The name of the property which indicates whether the
+     * <tt>MediaStream</tt>s with a <tt>FECTransformEngine</tt> are to adapt
+     * their ulpfec protection with a <tt>FECController</tt>.
+     */
+    public static final String ENABLED_PNAME
+        = FECController.class.getName() + ".ENABLED";
+
+    /**
+     * The name of the property which specifies the loss in percent from which
+     * the protection is switched on.
+     */
+    public static final String MIN_LOSS_PERCENT_PNAME
+        = FECController.class.getName() + ".MIN_LOSS_PERCENT";
+
+    /**
+     * The name of the property which specifies the round-trip time in
+     * milliseconds from which the protection is switched on. The
+     * retransmissions repair the losses of the streams with shorter
+     * round-trip times in time.
+     */
+    public static final String MIN_RTT_PNAME
+        = FECController.class.getName() + ".MIN_RTT";
+
+    /**
+     * The weight of a new sample of the loss or of the length of the loss
+     * bursts in their (exponentially) smoothed values.
+     */
+    private static final double ALPHA = 0.3;
+
+    /**
+     * The time in milliseconds for which the loss has to require less
+     * protection before the protection is decreased.
+     *
+     * @see #DECREASE_DELAY_PNAME
+     */
+    private static final long DECREASE_DELAY;
+
+    /**
+     * The indicator which determines whether the <tt>MediaStream</tt>s with a
+     * <tt>FECTransformEngine</tt> are to adapt their ulpfec protection.
+     *
+     * @see #ENABLED_PNAME
+     */
+    private static final boolean ENABLED;
+
+    /**
+     * The numbers of media packets protected by an ulpfec packet at the
+     * levels of protection. The level <tt>0</tt> is no protection.
+     */
+    private static final int[] FEC_RATES = { 0, 10, 5, 3 };
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>FECController</tt> class and its
+     * instances to print debug information.
+     */
+    private static final Logger logger = Logger.getLogger(FECController.class);
+
+    /**
+     * The maximum expected number of lost packets in a group of packets
+     * protected by an ulpfec packet for which the level of protection is
+     * deemed sufficient.
+     */
+    private static final double MAX_LOSS_PER_GROUP = 0.25;
+
+    /**
+     * The maximum number of columns of the matrix of media packets protected
+     * in columns i.e. the longest loss burst which is protected against.
+     */
+    private static final int MAX_COLUMNS = 8;
+
+    /**
+     * The loss (as a fraction) from which the protection is switched on.
+     *
+     * @see #MIN_LOSS_PERCENT_PNAME
+     */
+    private static final double MIN_LOSS;
+
+    /**
+     * The round-trip time in milliseconds from which the protection is
+     * switched on.
+     *
+     * @see #MIN_RTT_PNAME
+     */
+    private static final long MIN_RTT;
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        DECREASE_DELAY = ConfigUtils.getLong(cfg, DECREASE_DELAY_PNAME, 10000);
+        ENABLED = ConfigUtils.getBoolean(cfg, ENABLED_PNAME, false);
+        MIN_LOSS = ConfigUtils.getInt(cfg, MIN_LOSS_PERCENT_PNAME, 2) / 100D;
+        MIN_RTT = ConfigUtils.getLong(cfg, MIN_RTT_PNAME, 100);
+    }
+
+    /**
+     * Determines whether the <tt>MediaStream</tt>s with a
+     * <tt>FECTransformEngine</tt> are to adapt their ulpfec protection with a
+     * <tt>FECController</tt> (i.e. the value of the property
+     * {@link #ENABLED_PNAME}).
+     *
+     * @return <tt>true</tt> if <tt>FECController</tt>s are to be used;
+     * otherwise, <tt>false</tt>
+     */
+    public static boolean isEnabled()
+    {
+        return ENABLED;
+    }
+
+    /**
+     * The estimate of the available bandwidth in bits per second or
+     * <tt>-1</tt> if it is not known.
+     */
+    private long availableBandwidth = -1;
+
+    /**
+     * The <tt>BandwidthEstimator</tt> of {@link #stream} or <tt>null</tt>.
+     */
+    private final BandwidthEstimator bandwidthEstimator;
+
+    /**
+     * The smoothed number of packets lost in a loss burst.
+     */
+    private double burstLength = 1;
+
+    /**
+     * The indicator which determines whether {@link #close()} has been
+     * invoked.
+     */
+    private boolean closed = false;
+
+    /**
+     * The number of columns of the matrix of media packets protected in
+     * columns or <tt>0</tt> if the media packets are protected consecutively.
+     */
+    private int columns = 0;
+
+    /**
+     * The time in milliseconds since which the loss has required less
+     * protection than {@link #level} or <tt>-1</tt>.
+     */
+    private long decreaseTime = -1;
+
+    /**
+     * The <tt>FECTransformEngine</tt> the protection of which is adapted.
+     */
+    private final FECTransformEngine engine;
+
+    /**
+     * The extended highest sequence numbers reported by the last RTCP
+     * receiver reports for the SSRCs of {@link #stream}.
+     */
+    private final Map<Long,Long> extendedHighestSeqNums
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The current level of protection i.e. the index in {@link #FEC_RATES}.
+     */
+    private int level = 0;
+
+    /**
+     * The smoothed fraction of the sent packets which the receivers report
+     * lost or <tt>-1</tt> if no loss has been reported yet.
+     */
+    private double loss = -1;
+
+    /**
+     * The <tt>MediaStream</tt> which sends the protected packets.
+     */
+    private final MediaStream stream;
+
+    /**
+     * Initializes a new <tt>FECController</tt> which is to adapt the
+     * protection which a specific <tt>FECTransformEngine</tt> adds to the
+     * packets sent by a specific <tt>MediaStream</tt>.
+     *
+     * @param stream the <tt>MediaStream</tt> which sends the protected
+     * packets
+     * @param engine the <tt>FECTransformEngine</tt> of <tt>stream</tt>
+     */
+    public FECController(MediaStream stream, FECTransformEngine engine)
+    {
+        this.stream = stream;
+        this.engine = engine;
+
+        MediaStreamStats stats = stream.getMediaStreamStats();
+
+        stats.getRTCPReports().addRTCPReportListener(this);
+        stats.addNackListener(this);
+
+        if (stream instanceof VideoMediaStream)
+        {
+            bandwidthEstimator
+                = ((VideoMediaStream) stream).getOrCreateBandwidthEstimator();
+            if (bandwidthEstimator != null)
+                bandwidthEstimator.addListener(this);
+        }
+        else
+        {
+            bandwidthEstimator = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Limits the protection to what fits into <tt>newValueBps</tt>.
+     */
+    @Override
+    public void bandwidthEstimationChanged(long newValueBps)
+    {
+        synchronized (this)
+        {
+            availableBandwidth = newValueBps;
+        }
+        update();
+    }
+
+    /**
+     * Stops the adaptation of the protection. The protection is left as it
+     * is.
+     */
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            closed = true;
+        }
+
+        MediaStreamStats stats = stream.getMediaStreamStats();
+
+        stats.getRTCPReports().removeRTCPReportListener(this);
+        stats.removeNackListener(this);
+        if (bandwidthEstimator != null)
+            bandwidthEstimator.removeListener(this);
+    }
+
+    /**
+     * Gets the smoothed number of packets lost in a loss burst.
+     *
+     * @return the smoothed number of packets lost in a loss burst
+     */
+    public synchronized double getBurstLength()
+    {
+        return burstLength;
+    }
+
+    /**
+     * Gets the smoothed fraction of the sent packets which the receivers
+     * report lost.
+     *
+     * @return the smoothed fraction of the sent packets which the receivers
+     * report lost or <tt>-1</tt> if no loss has been reported yet
+     */
+    public synchronized double getLoss()
+    {
+        return loss;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Estimates the length of the loss bursts from the runs of consecutive
+     * sequence numbers requested by <tt>nackPacket</tt>.
+     */
+    @Override
+    public void nackReceived(NACKPacket nackPacket)
+    {
+        Collection<Integer> lostPackets = nackPacket.getLostPackets();
+        int lost = 0, runs = 0, prev = -2;
+
+        for (Integer seq : lostPackets)
+        {
+            lost++;
+            if (seq != ((prev + 1) & 0xffff))
+                runs++;
+            prev = seq;
+        }
+        if (runs != 0)
+            updateBurstLength((double) lost / runs);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Estimates the length of the loss bursts from the VoIP metrics in
+     * <tt>extendedReport</tt>.
+     */
+    @Override
+    public void rtcpExtendedReportReceived(RTCPExtendedReport extendedReport)
+    {
+        long packetRate = -1;
+
+        for (RTCPExtendedReport.ReportBlock reportBlock
+                : extendedReport.getReportBlocks())
+        {
+            if (!(reportBlock
+                    instanceof RTCPExtendedReport.VoIPMetricsReportBlock))
+            {
+                continue;
+            }
+
+            RTCPExtendedReport.VoIPMetricsReportBlock voipMetrics
+                = (RTCPExtendedReport.VoIPMetricsReportBlock) reportBlock;
+            int burstDuration = voipMetrics.getBurstDuration();
+
+            if (burstDuration <= 0)
+                continue;
+            if (packetRate < 0)
+                packetRate = stream.getMediaStreamStats().getSendStats()
+                    .getPacketRate();
+            if (packetRate <= 0)
+                return;
+
+            // The burst density is the fraction (in units of 1/256) of the
+            // packets lost within the bursts.
+            double lost
+                = burstDuration * packetRate / 1000D
+                    * voipMetrics.getBurstDensity() / 256D;
+
+            updateBurstLength(Math.max(1, lost));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Updates the loss with the fractions lost reported for the SSRCs of
+     * {@link #stream} (weighted by the numbers of packets they cover) and
+     * adapts the protection.
+     */
+    @Override
+    public void rtcpReportReceived(RTCPReport report)
+    {
+        List<RTCPFeedback> feedbacks = report.getFeedbackReports();
+
+        if (feedbacks == null || feedbacks.isEmpty())
+            return;
+
+        long packets = 0;
+        double lost = 0;
+
+        for (RTCPFeedback feedback : feedbacks)
+        {
+            long extSeqNum = feedback.getXtndSeqNum();
+            Long lastExtSeqNum
+                = extendedHighestSeqNums.put(feedback.getSSRC(), extSeqNum);
+
+            if (lastExtSeqNum == null || lastExtSeqNum >= extSeqNum)
+                continue;
+
+            long n = extSeqNum - lastExtSeqNum;
+
+            packets += n;
+            lost += n * (feedback.getFractionLost() / 256D);
+        }
+
+        if (packets == 0)
+            return;
+
+        synchronized (this)
+        {
+            double sample = lost / packets;
+
+            loss = (loss < 0) ? sample : (ALPHA * sample + (1 - ALPHA) * loss);
+        }
+        update();
+    }
+
+    /**
+     * Returns a short summary of the state of this instance.
+     *
+     * @return a short summary of the state of this instance
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return
+            "fecRate=" + FEC_RATES[level]
+                + " columns=" + columns
+                + " loss=" + String.format("%.3f", loss)
+                + " burstLength=" + String.format("%.1f", burstLength)
+                + " availableBandwidth=" + availableBandwidth;
+    }
+
+    /**
+     * Adapts the protection to the loss, the length of the loss bursts, the
+     * round-trip time and the available bandwidth.
+     */
+    private synchronized void update()
+    {
+        if (closed || loss < 0)
+            return;
+
+        MediaStreamStats2 stats = stream.getMediaStreamStats();
+        long rtt = stats.getRttMs();
+        // Switch the protection off at half the loss at which it is switched
+        // on.
+        double minLoss = (level == 0) ? MIN_LOSS : (MIN_LOSS / 2);
+        int newLevel = 0;
+
+        if (loss >= minLoss && (rtt <= 0 || rtt >= MIN_RTT))
+        {
+            newLevel = FEC_RATES.length - 1;
+            for (int i = 1; i < FEC_RATES.length; i++)
+            {
+                if ((FEC_RATES[i] + 1) * loss <= MAX_LOSS_PER_GROUP)
+                {
+                    newLevel = i;
+                    break;
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+
+        if (newLevel < level)
+        {
+            if (decreaseTime == -1)
+                decreaseTime = now;
+            if (now - decreaseTime < DECREASE_DELAY)
+                newLevel = level;
+        }
+        else
+        {
+            decreaseTime = -1;
+        }
+
+        // The protection has to fit into the available bandwidth (which the
+        // current protection, if any, takes a part of).
+        if (availableBandwidth > 0 && newLevel > 0)
+        {
+            long bitrate = stats.getSendStats().getBitrate();
+
+            if (level > 0)
+                bitrate = bitrate * FEC_RATES[level] / (FEC_RATES[level] + 1);
+            while (newLevel > 0
+                    && bitrate + bitrate / FEC_RATES[newLevel]
+                        > availableBandwidth)
+            {
+                newLevel--;
+            }
+        }
+
+        // Protect the columns of a matrix (with the same overhead) if the
+        // losses come in bursts.
+        int newColumns = 0;
+
+        if (newLevel > 0 && burstLength >= ((columns == 0) ? 2 : 1.5))
+        {
+            int rows = FEC_RATES[newLevel];
+
+            newColumns
+                = Math.min(
+                        Math.min((int) Math.ceil(burstLength), MAX_COLUMNS),
+                        // A column spans at most 48 sequence numbers.
+                        47 / (rows - 1));
+            if (newColumns < 2)
+                newColumns = 0;
+        }
+
+        if (newLevel == level && newColumns == columns)
+            return;
+
+        int fecRate = FEC_RATES[newLevel];
+
+        // The rate and the matrix go to the FECSenders in a single update.
+        engine.setFecProtection(
+                fecRate,
+                newColumns,
+                (newColumns == 0) ? 0 : fecRate,
+                false);
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info(
+                    "Changing the ulpfec protection of " + stream
+                        + " from fecRate=" + FEC_RATES[level]
+                        + " columns=" + columns + " to fecRate=" + fecRate
+                        + " columns=" + newColumns + ": " + this);
+        }
+        level = newLevel;
+        columns = newColumns;
+        decreaseTime = -1;
+    }
+
+    /**
+     * Updates the smoothed number of packets lost in a loss burst with a new
+     * sample.
+     *
+     * @param sample the number of packets lost in a loss burst
+     */
+    private synchronized void updateBurstLength(double sample)
+    {
+        burstLength = ALPHA * sample + (1 - ALPHA) * burstLength;
+    }
+}
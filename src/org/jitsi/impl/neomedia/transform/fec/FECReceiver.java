@@ -27,10 +27,18 @@
  * A <tt>PacketTransformer</tt> which handles incoming ulpfec packets
  * for a single SSRC.
  *
+ * The media and the ulpfec packets are kept in rings of <tt>RawPacket</tt>s
+ * (the media packets indexed by their sequence numbers) the buffers of which
+ * come from the {@link ByteArrayPool} and are reused, and a media packet is
+ * recovered by XOR-ing the protected packets into the slot which it is to
+ * occupy. Consequently, no garbage is produced per received packet and a
+ * buffer is only taken from the pool when a packet is actually recovered (and
+ * passed on).
+ *
  * @author Boris Grozev
  */
 class FECReceiver
-    implements PacketTransformer
+    implements BatchPacketTransformer
 {
     /**
      * The <tt>Logger</tt> used by the <tt>FECReceiver</tt> class and
@@ -40,38 +48,17 @@
             = Logger.getLogger(FECReceiver.class);
 
     /**
-     * A <tt>Comparator</tt> implementation for RTP sequence numbers.
-     * Compares <tt>a</tt> and <tt>b</tt>, taking into account the wrap at 2^16.
-     *
-     * IMPORTANT: This is a valid <tt>Comparator</tt> implementation only if
-     * used for subsets of [0, 2^16) which don't span more than 2^15 elements.
-     *
-     * E.g. it works for: [0, 2^15-1] and ([50000, 2^16) u [0, 10000])
-     * Doesn't work for: [0, 2^15] and ([0, 2^15-1] u {2^16-1}) and [0, 2^16)
+     * The maximum number of media packets protected by a single ulpfec packet
+     * (i.e. the number of bits in the long mask).
      */
-    private static final Comparator<? super Integer> seqNumComparator
-            = new Comparator<Integer>() {
-        @Override
-        public int compare(Integer a, Integer b)
-        {
-            if (a.equals(b))
-                return 0;
-            else if (a > b)
-            {
-                if (a - b < 32768)
-                    return 1;
-                else
-                    return -1;
-            }
-            else //a < b
-            {
-                if (b - a < 32768)
-                    return -1;
-                else
-                    return 1;
-            }
-        }
-    };
+    private static final int MAX_PROTECTED_PACKETS = 48;
+
+    /**
+     * The length of the RTP header which ulpfec protects (i.e. without CSRCs
+     * and extensions, which are covered as payload).
+     */
+    private static final int RTP_HDR_LEN = 12;
+
     /**
      * Number of received ulpfec packets.
      */
@@ -88,7 +75,9 @@ else if (a > b)
     private long ssrc;
 
     /**
-     * The number of media packets to keep.
+     * The number of media packets to keep. A power of two not less than
+     * <tt>64</tt> so that the packets protected by an ulpfec packet never
+     * share a slot of {@link #mediaPackets}.
      */
     private static final int MEDIA_BUF_SIZE;
 
@@ -99,14 +88,14 @@ else if (a > b)
 
     /**
      * The name of the <tt>ConfigurationService</tt> property which specifies
-     * the value of {@link #MEDIA_BUFF_SIZE}.
+     * the value of {@link #MEDIA_BUF_SIZE}.
      */
     private static final String MEDIA_BUF_SIZE_PNAME
             = FECReceiver.class.getName() + ".MEDIA_BUFF_SIZE";
 
     /**
      * The name of the <tt>ConfigurationService</tt> property which specifies
-     * the value of {@link #FEC_BUFF_SIZE}.
+     * the value of {@link #FEC_BUF_SIZE}.
      */
     private static final String FEC_BUF_SIZE_PNAME
             = FECReceiver.class.getName() + ".FEC_BUFF_SIZE";
@@ -122,60 +111,53 @@ else if (a > b)
             fecBufSize = cfg.getInt(FEC_BUF_SIZE_PNAME, fecBufSize);
             mediaBufSize = cfg.getInt(MEDIA_BUF_SIZE_PNAME, mediaBufSize);
         }
-        FEC_BUF_SIZE = fecBufSize;
+        FEC_BUF_SIZE = Math.max(1, fecBufSize);
+
+        // The media packets are indexed by (the low bits of) their sequence
+        // numbers.
+        mediaBufSize = Math.max(64, Math.min(mediaBufSize, 1 << 15));
+        if (Integer.bitCount(mediaBufSize) != 1)
+            mediaBufSize = Integer.highestOneBit(mediaBufSize) << 1;
         MEDIA_BUF_SIZE = mediaBufSize;
     }
 
     /**
-     * Buffer which keeps (copies of) received media packets.
-     *
-     * We keep them ordered by their RTP sequence numbers, so that
-     * we can easily select the oldest one to discard when the buffer is
-     * full (when the map has more than <tt>MEDIA_BUFF_SIZE</tt> entries).
-     *
-     * We keep them in a <tt>Map</tt> so that we can easily search for a
-     * packet with a specific sequence number.
-     *
-     * Note: This might turn out to be inefficient, especially with increased
-     * buffer sizes. In the vast majority of cases (e.g. on every received
-     * packet) we do an insert at one end and a delete from the other -- this
-     * can be optimized. We very rarely (when we receive a packet out of order)
-     * need to insert at an arbitrary location.
+     * Ring which keeps (copies of) received media packets. The packet with
+     * sequence number <tt>seq</tt> is kept at index
+     * <tt>seq &amp; (MEDIA_BUF_SIZE - 1)</tt> and replaces the (older) packet
+     * which was kept there.
      */
-    private final SortedMap<Integer, RawPacket> mediaPackets
-        = new TreeMap<Integer, RawPacket>(seqNumComparator);
+    private final RawPacket[] mediaPackets = new RawPacket[MEDIA_BUF_SIZE];
 
     /**
-     * Buffer which keeps (copies of) received fec packets.
-     *
-     * We keep them ordered by their RTP sequence numbers, so that
-     * we can easily select the oldest one to discard when the buffer is
-     * full (when the map has more than <tt>FEC_BUFF_SIZE</tt> entries.
-     *
-     * We keep them in a <tt>Map</tt> so that we can easily search for a
-     * packet with a specific sequence number.
-     *
-     * Note: This might turn out to be inefficient, especially with increased
-     * buffer sizes. In the vast majority of cases (e.g. on every received
-     * packet) we do an insert at one end and a delete from the other -- this
-     * can be optimized. We very rarely (when we receive a packet out of order)
-     * need to insert at an arbitrary location.
+     * The sequence numbers of the packets in {@link #mediaPackets} or
+     * <tt>-1</tt> for the slots which do not keep a packet.
      */
-    private final SortedMap<Integer,RawPacket> fecPackets
-        = new TreeMap<Integer, RawPacket>(seqNumComparator);
+    private final int[] mediaSeqs = new int[MEDIA_BUF_SIZE];
 
     /**
-     * Used to check whether a media packet can be recovered using
-     * available media and ulpfec packets, and to do the recovery.
+     * Ring which keeps (copies of) received fec packets in the order of
+     * their arrival. When it is full, the oldest packet is replaced.
      */
-    private final Reconstructor reconstructor;
+    private final RawPacket[] fecPackets = new RawPacket[FEC_BUF_SIZE];
+
+    /**
+     * Whether the slots of {@link #fecPackets} keep a packet which may still
+     * be used for recovery.
+     */
+    private final boolean[] fecValid = new boolean[FEC_BUF_SIZE];
 
     /**
-     * A <tt>Set</tt> of packets which will be reused every time a
-     * packet is recovered. Defined here to avoid recreating it on every call
-     * to <tt>reverseTransform</tt>.
+     * The index in {@link #fecPackets} at which the next fec packet is to be
+     * saved.
      */
-    private final Set<RawPacket> packetsToRemove = new HashSet<RawPacket>();
+    private int fecHead = 0;
+
+    /**
+     * Used to check whether a media packet can be recovered using
+     * available media and ulpfec packets, and to do the recovery.
+     */
+    private final Reconstructor reconstructor;
 
     /**
      * Allow disabling of handling of ulpfec packets for testing purposes.
@@ -196,7 +178,8 @@ else if (a > b)
     {
         this.ssrc = ssrc;
         this.ulpfecPT = ulpfecPT;
-        reconstructor = new Reconstructor(mediaPackets, ssrc);
+        Arrays.fill(mediaSeqs, -1);
+        reconstructor = new Reconstructor();
         if (logger.isInfoEnabled())
             logger.info("New FECReceiver for SSRC="+ssrc);
     }
@@ -212,6 +195,32 @@ public RawPacket[] transform(RawPacket[] pkts)
         return pkts;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Don't touch "outgoing".
+     */
+    @Override
+    public void transform(PacketBatch batch)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Reverse-transforms <tt>pkts</tt> as a {@link PacketBatch}.
+     *
+     * @see #reverseTransform(PacketBatch)
+     */
+    @Override
+    public RawPacket[] reverseTransform(RawPacket[] pkts)
+    {
+        PacketBatch batch = new PacketBatch(pkts);
+
+        reverseTransform(batch);
+        return batch.getPackets();
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -230,12 +239,12 @@ public RawPacket[] transform(RawPacket[] pkts)
      * Seq:     1  2  3  4  5  6  7
      */
     @Override
-    public synchronized RawPacket[] reverseTransform(RawPacket[] pkts)
+    public synchronized void reverseTransform(PacketBatch batch)
     {
         // first read all input packets
-        for (int i = 0; i < pkts.length; i++)
+        for (int i = 0, size = batch.size(); i < size; i++)
         {
-            RawPacket pkt = pkts[i];
+            RawPacket pkt = batch.get(i);
             if (pkt == null)
                 continue;
 
@@ -243,7 +252,7 @@ public synchronized RawPacket[] reverseTransform(RawPacket[] pkts)
             {
                 // TODO: handle the case of FEC+Media in a single RED packet
                 nbFec++;
-                pkts[i] = null; // don't forward it
+                batch.invalidate(i); // don't forward it
 
                 if(handleFec)
                     saveFec(pkt);
@@ -259,70 +268,81 @@ public synchronized RawPacket[] reverseTransform(RawPacket[] pkts)
         // we could recover
         if (handleFec)
         {
-            // go over our saved fec packets and see if any of them can be
-            // used to recover a media packet. Add packets which aren't
-            // needed anymore to packetsToRemove
-            packetsToRemove.clear();
-            for (Map.Entry<Integer, RawPacket> entry : fecPackets.entrySet())
+            // A packet recovered with one fec packet (e.g. protecting a
+            // column) may allow another fec packet (e.g. protecting a row) to
+            // recover a packet so repeat until nothing is recovered.
+            while (recover(batch));
+        }
+    }
+
+    /**
+     * Goes once over the saved fec packets and recovers the media packets
+     * which are recoverable.
+     *
+     * @param batch the batch to add the recovered packets to.
+     * @return <tt>true</tt> if at least one media packet was recovered.
+     */
+    private boolean recover(PacketBatch batch)
+    {
+        boolean recoveredAny = false;
+
+        // go over our saved fec packets and see if any of them can be
+        // used to recover a media packet. Forget the ones which aren't
+        // needed anymore.
+        for (int f = 0; f < FEC_BUF_SIZE; f++)
+        {
+            if (!fecValid[f])
+                continue;
+
+            reconstructor.setFecPacket(fecPackets[f]);
+            if (reconstructor.numMissing == 0)
             {
-                RawPacket fecPacket = entry.getValue();
-                reconstructor.setFecPacket(fecPacket);
-                if (reconstructor.numMissing == 0)
-                {
-                    // We already have all media packets for this fec packet,
-                    // no need to keep it and keep checking.
-                    packetsToRemove.add(fecPacket);
-                    continue;
-                }
+                // We already have all media packets for this fec packet,
+                // no need to keep it and keep checking.
+                fecValid[f] = false;
+                continue;
+            }
 
-                if (reconstructor.canRecover())
-                {
-                    packetsToRemove.add(fecPacket);
-                    RawPacket recovered
-                            = reconstructor.recover();
+            if (reconstructor.canRecover())
+            {
+                fecValid[f] = false;
 
-                    // save it
-                    if (recovered != null)
-                    {
-                        nbRecovered++;
-                        saveMedia(recovered);
+                RawPacket recovered = reconstructor.recover();
 
-                        // search for an empty spot in pkts where to place
-                        // recovered
-                        boolean found = false;
-                        for (int i = 0; i < pkts.length; i++)
-                        {
-                            if (pkts[i] == null)
-                            {
-                                pkts[i] = recovered;
-                                found = true;
-                                break;
-                            }
-                        }
+                if (recovered != null)
+                {
+                    nbRecovered++;
+                    recoveredAny = true;
 
-                        if (!found)
+                    // search for an empty spot in batch where to place
+                    // recovered
+                    boolean found = false;
+                    for (int i = 0, size = batch.size(); i < size; i++)
+                    {
+                        if (!batch.isValid(i))
                         {
-                            RawPacket[] pkts2 = new RawPacket[pkts.length+1];
-                            System.arraycopy(pkts, 0, pkts2, 0, pkts.length);
-                            pkts2[pkts.length] = recovered;
-                            pkts = pkts2;
+                            batch.set(i, recovered);
+                            found = true;
+                            break;
                         }
                     }
+
+                    if (!found)
+                        batch.add(recovered);
                 }
             }
-
-            for (RawPacket p : packetsToRemove)
-                fecPackets.remove(p.getSequenceNumber());
         }
 
-        return pkts;
+        return recoveredAny;
     }
 
     /**
      * {@inheritDoc}
+     *
+     * Returns the buffers of the saved packets to the pool.
      */
     @Override
-    public void close()
+    public synchronized void close()
     {
         if (logger.isInfoEnabled())
         {
@@ -330,6 +350,31 @@ public void close()
                     + ". Received " + nbFec +" ulpfec packets, recovered "
                     + nbRecovered + " media packets.");
         }
+
+        releaseAll(mediaPackets);
+        Arrays.fill(mediaSeqs, -1);
+        releaseAll(fecPackets);
+        Arrays.fill(fecValid, false);
+    }
+
+    /**
+     * Returns the buffers of the <tt>RawPacket</tt>s in a specific ring to
+     * the pool and empties the ring.
+     *
+     * @param ring the ring of <tt>RawPacket</tt>s to empty.
+     */
+    private static void releaseAll(RawPacket[] ring)
+    {
+        for (int i = 0; i < ring.length; i++)
+        {
+            RawPacket p = ring[i];
+
+            if (p != null)
+            {
+                ring[i] = null;
+                ByteArrayPool.returnBuffer(p.getBuffer());
+            }
+        }
     }
 
     /**
@@ -342,72 +387,146 @@ public void setUlpfecPT(byte ulpfecPT)
     }
 
     /**
-     * Saves <tt>p</tt> into <tt>fecPackets</tt>. If the size of
-     * <tt>fecPackets</tt> has reached <tt>FEC_BUFF_SIZE</tt> discards the
-     * oldest packet from it.
-     * @param p the packet to save.
+     * Makes a copy of <tt>p</tt> into the slot at index <tt>i</tt> of
+     * <tt>ring</tt>, reusing the <tt>RawPacket</tt> and the buffer which are
+     * kept there.
+     *
+     * @param ring the ring to copy <tt>p</tt> into.
+     * @param i the index of the slot in <tt>ring</tt>.
+     * @param p the packet to copy.
      */
-    private void saveFec(RawPacket p)
+    private static void copy(RawPacket[] ring, int i, RawPacket p)
     {
-        if (fecPackets.size() >= FEC_BUF_SIZE)
-            fecPackets.remove(fecPackets.firstKey());
+        int pLen = p.getLength();
+        RawPacket copy = ensureCapacity(ring, i, pLen);
 
-        fecPackets.put(p.getSequenceNumber(), p);
+        System.arraycopy(
+                p.getBuffer(), p.getOffset(), copy.getBuffer(), 0, pLen);
+        copy.setLength(pLen);
     }
 
     /**
-     * Makes a copy of <tt>p</tt> into <tt>mediaPackets</tt>. If the size of
-     * <tt>mediaPackets</tt> has reached <tt>MEDIA_BUFF_SIZE</tt> discards
-     * the oldest packet from it and reuses it.
-     * @param p the packet to copy.
+     * Makes sure that the slot at index <tt>i</tt> of <tt>ring</tt> keeps a
+     * <tt>RawPacket</tt> with a buffer of at least <tt>length</tt> bytes at
+     * offset <tt>0</tt>. The contents of the buffer are undefined if it had to
+     * be replaced.
+     *
+     * @param ring the ring of <tt>RawPacket</tt>s.
+     * @param i the index of the slot in <tt>ring</tt>.
+     * @param length the minimum length in bytes of the buffer.
+     * @return the <tt>RawPacket</tt> kept in the slot.
      */
-    private void saveMedia(RawPacket p)
+    private static RawPacket ensureCapacity(RawPacket[] ring, int i, int length)
     {
-        RawPacket newMedia;
-        if (mediaPackets.size() < MEDIA_BUF_SIZE)
+        RawPacket p = ring[i];
+
+        if (p == null)
         {
-            newMedia = new RawPacket();
-            newMedia.setBuffer(new byte[FECTransformEngine.INITIAL_BUFFER_SIZE]);
-            newMedia.setOffset(0);
+            p = new RawPacket(
+                    ByteArrayPool.getBuffer(
+                            Math.max(
+                                    length,
+                                    FECTransformEngine.INITIAL_BUFFER_SIZE)),
+                    0,
+                    0);
+            ring[i] = p;
         }
-        else
+        else if (p.getBuffer().length < length)
         {
-            newMedia = mediaPackets.remove(mediaPackets.firstKey());
+            ByteArrayPool.returnBuffer(p.getBuffer());
+            p.setBuffer(ByteArrayPool.getBuffer(length));
+            p.setOffset(0);
         }
+        return p;
+    }
 
-        int pLen = p.getLength();
-        if (pLen > newMedia.getBuffer().length)
-        {
-            newMedia.setBuffer(new byte[pLen]);
-        }
+    /**
+     * Saves a copy of <tt>p</tt> into <tt>fecPackets</tt>. If it is full,
+     * discards the oldest packet from it and reuses it. <tt>p</tt> itself is
+     * not kept because its buffer may be reused once it has been handled.
+     * @param p the packet to save.
+     */
+    private void saveFec(RawPacket p)
+    {
+        copy(fecPackets, fecHead, p);
+        fecValid[fecHead] = true;
+        if (++fecHead == FEC_BUF_SIZE)
+            fecHead = 0;
+    }
 
-        System.arraycopy(p.getBuffer(), p.getOffset(), newMedia.getBuffer(),
-                0, pLen);
-        newMedia.setLength(pLen);
+    /**
+     * Makes a copy of <tt>p</tt> into <tt>mediaPackets</tt>, discarding the
+     * (older) packet which was kept in the slot of its sequence number and
+     * reusing it.
+     * @param p the packet to copy.
+     */
+    private void saveMedia(RawPacket p)
+    {
+        int seq = p.getSequenceNumber();
+        int i = seq & (MEDIA_BUF_SIZE - 1);
 
-        mediaPackets.put(newMedia.getSequenceNumber(), newMedia);
+        copy(mediaPackets, i, p);
+        mediaSeqs[i] = seq;
     }
 
+    /**
+     * Gets the index in <tt>mediaPackets</tt> of the media packet with a
+     * specific sequence number.
+     *
+     * @param seq the RTP sequence number of the media packet.
+     * @return the index in <tt>mediaPackets</tt> of the media packet with
+     * sequence number <tt>seq</tt> or <tt>-1</tt> if it is not available.
+     */
+    private int indexOfMedia(int seq)
+    {
+        int i = seq & (MEDIA_BUF_SIZE - 1);
+
+        return (mediaSeqs[i] == seq) ? i : -1;
+    }
 
     /**
-     * A class that allows the recovery of a <tt>RawPacket</tt> given a set
-     * of media packets and an ulpfec packet.
+     * XORs <tt>length</tt> bytes of <tt>src</tt> into <tt>dst</tt>.
      *
-     * Usage:
-     * 0. Create an instance specifying the map off all available media packets
+     * @param src the source buffer.
+     * @param srcOff the offset in <tt>src</tt>.
+     * @param dst the destination buffer.
+     * @param dstOff the offset in <tt>dst</tt>.
+     * @param length the number of bytes to XOR.
+     */
+    private static void xor(
+            byte[] src, int srcOff,
+            byte[] dst, int dstOff,
+            int length)
+    {
+        for (int end = srcOff + length; srcOff < end; srcOff++, dstOff++)
+            dst[dstOff] ^= src[srcOff];
+    }
+
+    /**
+     * A class that allows the recovery of a <tt>RawPacket</tt> given the
+     * media packets of the enclosing <tt>FECReceiver</tt> and an ulpfec
+     * packet. The ulpfec packet may protect consecutive media packets (i.e. a
+     * row) or, with the long mask, interleaved ones (i.e. a column).
      *
+     * Usage:
      * 1. Call setFecPacket() with an ulpfec packet
      * 2. Check if a recovery is possible using canRecover()
      * 3. Recover a packet with recover()
      *
      */
-    private static class Reconstructor
+    private class Reconstructor
     {
         /**
-         * Subset of the media packets which is needed for recovery, given a
-         * specific value of <tt>fecPacket</tt>.
+         * The indices in <tt>mediaPackets</tt> of the media packets which
+         * are needed for recovery, given a specific value of
+         * <tt>fecPacket</tt>.
          */
-        private Set<RawPacket> neededPackets = new HashSet<RawPacket>();
+        private final int[] neededPackets = new int[MAX_PROTECTED_PACKETS];
+
+        /**
+         * The number of valid elements in {@link #neededPackets}.
+         */
+        private int numNeeded = 0;
 
         /**
          * The ulpfec packet to be used for recovery.
@@ -428,27 +547,6 @@ private void saveMedia(RawPacket p)
          */
         private int sequenceNumber = -1;
 
-        /**
-         * SSRC to set on reconstructed packets.
-         */
-        private long ssrc;
-
-        /**
-         * All available media packets.
-         */
-        private Map<Integer, RawPacket> mediaPackets;
-
-        /**
-         * Initializes a new instance.
-         * @param mediaPackets all available media packets.
-         * @param ssrc the ssrc to use
-         */
-        Reconstructor(Map<Integer, RawPacket> mediaPackets, long ssrc)
-        {
-            this.mediaPackets = mediaPackets;
-            this.ssrc = ssrc;
-        }
-
         /**
          * Returns <tt>true</tt> if the <tt>RawPacket</tt> last set using
          * <tt>setFecPacket</tt> can be used to recover a media packet,
@@ -472,13 +570,11 @@ private boolean canRecover()
         private void setFecPacket(RawPacket p)
         {
             // reset all fields specific to fecPacket
-            neededPackets.clear();
+            numNeeded = 0;
             numMissing = 0;
             sequenceNumber = -1;
             fecPacket = p;
 
-            RawPacket pkt;
-
             byte[] buf = fecPacket.getBuffer();
             int idx = fecPacket.getOffset() + fecPacket.getHeaderLength();
 
@@ -499,14 +595,18 @@ private void setFecPacket(RawPacket p)
                     if ( (buf[idx+i] & (1<<(7-j) & 0xff)) != 0 )
                     {
                         //j-th bit in i-th byte in the mask is set
-                        pkt = mediaPackets.get(base + i*8 + j);
-                        if (pkt != null)
+                        // The protected packets may span the wrap of the
+                        // sequence numbers.
+                        int seq = (base + i*8 + j) & 0xffff;
+                        int mediaIdx = indexOfMedia(seq);
+
+                        if (mediaIdx != -1)
                         {
-                            neededPackets.add(pkt);
+                            neededPackets[numNeeded++] = mediaIdx;
                         }
                         else
                         {
-                            sequenceNumber = base + i*8 + j;
+                            sequenceNumber = seq;
                             numMissing++;
                         }
                     }
@@ -521,7 +621,9 @@ private void setFecPacket(RawPacket p)
 
         /**
          * Recovers a media packet using the ulpfec packet <tt>fecPacket</tt>
-         * and the packets in <tt>neededPackets</tt>.
+         * and the packets in <tt>neededPackets</tt>. The packet is recovered
+         * in place into its slot in <tt>mediaPackets</tt> and a copy of it
+         * (with a buffer from the pool) is returned.
          * @return the recovered packet.
          */
         private RawPacket recover()
@@ -529,39 +631,32 @@ private RawPacket recover()
             if (!canRecover())
                 return null;
 
+            int slot = sequenceNumber & (MEDIA_BUF_SIZE - 1);
+            int slotSeq = mediaSeqs[slot];
+
+            if (slotSeq != -1 && ((sequenceNumber - slotSeq) & 0x8000) != 0)
+            {
+                // The slot keeps a newer packet i.e. the fec packet protects
+                // packets which are too old to be of use.
+                return null;
+            }
+
             byte[] fecBuf = fecPacket.getBuffer();
             int idx = fecPacket.getOffset() + fecPacket.getHeaderLength();
 
             int lengthRecovery = (fecBuf[idx+8] & 0xff) <<8 |
                     (fecBuf[idx+9] & 0xff);
-            for (RawPacket p : neededPackets)
-                lengthRecovery ^= p.getLength()-12;
-            lengthRecovery &= 0xffff;
-
-            byte[] recoveredBuf
-                    = new byte[lengthRecovery + 12]; //include RTP header
-
-            // restore the first 8 bytes of the header
-            System.arraycopy(fecBuf, idx, recoveredBuf, 0, 8);
-            for (RawPacket p : neededPackets)
+            for (int i = 0; i < numNeeded; i++)
             {
-                int pOffset = p.getOffset();
-                byte[] pBuf = p.getBuffer();
-                for (int i = 0; i < 8; i++)
-                    recoveredBuf[i] ^= pBuf[pOffset+i];
+                lengthRecovery
+                    ^= mediaPackets[neededPackets[i]].getLength() - RTP_HDR_LEN;
             }
-
-            // set the version to 2
-            recoveredBuf[0] &= 0x3f;
-            recoveredBuf[0] |= 0x80;
-            // the RTP header is now set, except for SSRC and seq. which are not
-            // recoverable in this way and will be set later
+            lengthRecovery &= 0xffff;
 
             // check how many bytes of the payload are in the FEC packet
             boolean longMask = (fecBuf[idx] & 0x40) != 0;
-            idx+=10; // skip FEC Header, point to FEC Level 0 Header
-            int protectionLength = ((fecBuf[idx] & 0xff) << 8) |
-                    (fecBuf[idx+1] & 0xff);
+            int protectionLength = ((fecBuf[idx+10] & 0xff) << 8) |
+                    (fecBuf[idx+11] & 0xff);
             if (protectionLength < lengthRecovery)
             {
                 // The FEC Level 0 payload only covers part of the media
@@ -570,30 +665,54 @@ private RawPacket recover()
                 return null;
             }
 
-            idx+=4; //skip the FEC Level 0 Header
-            if (longMask)
-                idx+=4; //long mask
+            int length = lengthRecovery + RTP_HDR_LEN; //include RTP header
+            // The packet (if any) which the slot keeps is about to be
+            // overwritten.
+            mediaSeqs[slot] = -1;
 
-            // copy the payload protection bits from the FEC packet
-            System.arraycopy(fecBuf, idx, recoveredBuf, 12, lengthRecovery);
+            RawPacket recovered = ensureCapacity(mediaPackets, slot, length);
+            byte[] recoveredBuf = recovered.getBuffer();
 
-            // restore payload from media packets
-            for (RawPacket p : neededPackets)
+            // restore the first 8 bytes of the header
+            System.arraycopy(fecBuf, idx, recoveredBuf, 0, 8);
+            // copy the payload protection bits from the FEC packet (skip the
+            // FEC Header and the FEC Level 0 Header)
+            System.arraycopy(
+                    fecBuf, idx + (longMask ? 18 : 14),
+                    recoveredBuf, RTP_HDR_LEN,
+                    lengthRecovery);
+
+            // restore the header and the payload from the media packets
+            for (int i = 0; i < numNeeded; i++)
             {
+                RawPacket p = mediaPackets[neededPackets[i]];
                 byte[] pBuf = p.getBuffer();
-                int pLen = p.getLength();
                 int pOff = p.getOffset();
-                for (int i = 12; i < lengthRecovery+12 && i < pLen; i++)
-                    recoveredBuf[i] ^= pBuf[pOff + i];
+
+                xor(pBuf, pOff, recoveredBuf, 0, 8);
+                xor(
+                        pBuf, pOff + RTP_HDR_LEN,
+                        recoveredBuf, RTP_HDR_LEN,
+                        Math.min(lengthRecovery, p.getLength() - RTP_HDR_LEN));
             }
 
-            RawPacket recovered
-                    = new RawPacket(recoveredBuf, 0, lengthRecovery + 12);
-            recovered.setSSRC((int)this.ssrc);
+            // set the version to 2
+            recoveredBuf[0] &= 0x3f;
+            recoveredBuf[0] |= 0x80;
+
+            // the RTP header is now set, except for SSRC and seq. which are
+            // not recoverable in this way
+            recovered.setLength(length);
+            recovered.setSSRC((int)ssrc);
             recovered.setSequenceNumber(sequenceNumber);
+            mediaSeqs[slot] = sequenceNumber;
 
-            return recovered;
+            // The slot will be reused so pass a copy on.
+            RawPacket copy = RawPacket.createPooled(length);
+
+            System.arraycopy(recoveredBuf, 0, copy.getBuffer(), 0, length);
+            copy.setLength(length);
+            return copy;
         }
     }
 }
-
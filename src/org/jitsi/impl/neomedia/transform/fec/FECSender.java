@@ -24,10 +24,19 @@
  * <tt>PacketTransformer</tt> which adds ulpfec packets. Works for a
  * specific SSRC.
  *
+ * By default an ulpfec packet protects <tt>fecRate</tt> consecutive media
+ * packets. Alternatively, the media packets are arranged row by row into a
+ * matrix of <tt>columns</tt> x <tt>rows</tt> packets and an ulpfec packet
+ * protects each column (i.e. packets which are <tt>columns</tt> apart) and,
+ * optionally, each row. A burst loss of up to <tt>columns</tt> packets hits a
+ * column at most once and is, consequently, recoverable from the column
+ * parity. The row and column parity together allow the receiver to recover
+ * iteratively losses which neither recovers alone.
+ *
  * @author Boris Grozev
  */
 class FECSender
-    implements PacketTransformer
+    implements BatchPacketTransformer
 {
     /**
      * The <tt>Logger</tt> used by the <tt>FECSender</tt> class and its
@@ -69,6 +78,37 @@
      */
     private FECPacket fecPacket;
 
+    /**
+     * The number of columns of the matrix of media packets protected by
+     * column (i.e. interleaved) ulpfec packets. If set to 0, the consecutive
+     * media packets are protected as specified by {@link #fecRate}.
+     */
+    private int columns = 0;
+
+    /**
+     * The fec packets which protect the columns of the current matrix of media
+     * packets.
+     */
+    private FECPacket[] columnPackets;
+
+    /**
+     * The index in the current matrix of media packets of the next media
+     * packet.
+     */
+    private int matrixIndex = 0;
+
+    /**
+     * Whether the rows of the matrix of media packets are protected by fec
+     * packets in addition to the columns (i.e. 2-D parity).
+     */
+    private boolean rowParity = false;
+
+    /**
+     * The number of rows of the matrix of media packets protected by column
+     * ulpfec packets.
+     */
+    private int rows = 0;
+
     /**
      * Creates a new <tt>FECSender</tt> instance.
      * @param ssrc the SSRC with which this <tt>FECSender</tt> will work.
@@ -80,7 +120,51 @@
         this.ssrc = ssrc;
         this.fecRate = fecRate;
         this.ulpfecPT = ulpfecPT;
-        fecPacket = new FECPacket(ssrc, ulpfecPT);
+        fecPacket = new FECPacket(ssrc, ulpfecPT, fecRate > 16);
+    }
+
+    /**
+     * Adds a specific fec packet to a specific batch after the media packet
+     * which completes its protection.
+     *
+     * @param fec the fec packet to add
+     * @param seq the RTP sequence number of the fec packet
+     * @param batch the batch to add <tt>fec</tt> to
+     */
+    private void addFec(FECPacket fec, int seq, PacketBatch batch)
+    {
+        fec.finish(seq);
+
+        boolean found = false;
+        for (int i = 0, size = batch.size(); i < size; i++)
+        {
+            if (!batch.isValid(i))
+            {
+                found = true;
+                batch.set(i, fec);
+                break;
+            }
+        }
+
+        if (!found)
+            batch.add(fec);
+
+        nbFec++;
+    }
+
+    /**
+     * Gets the number of RTP sequence numbers spanned by a column of a
+     * matrix of media packets (including the fec packets of the rows which
+     * are sent in between).
+     *
+     * @param columns the number of columns of the matrix
+     * @param rows the number of rows of the matrix
+     * @param rowParity whether the rows of the matrix are protected
+     * @return the number of RTP sequence numbers spanned by a column
+     */
+    static int getColumnSpan(int columns, int rows, boolean rowParity)
+    {
+        return (rows - 1) * (columns + (rowParity ? 1 : 0)) + 1;
     }
 
     /**
@@ -95,11 +179,37 @@ public RawPacket[] reverseTransform(RawPacket[] pkts) {
      * {@inheritDoc}
      */
     @Override
-    public synchronized RawPacket[] transform(RawPacket[] pkts)
+    public void reverseTransform(PacketBatch batch)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Transforms <tt>pkts</tt> as a {@link PacketBatch}.
+     *
+     * @see #transform(PacketBatch)
+     */
+    @Override
+    public RawPacket[] transform(RawPacket[] pkts)
+    {
+        PacketBatch batch = new PacketBatch(pkts);
+
+        transform(batch);
+        return batch.getPackets();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void transform(PacketBatch batch)
     {
         RawPacket pkt = null;
-        for (RawPacket p : pkts)
+        for (int i = 0, size = batch.size(); i < size; i++)
         {
+            RawPacket p = batch.get(i);
+
             if (p != null && p.getVersion() == RTPHeader.VERSION)
             {
                 pkt = p;
@@ -107,23 +217,20 @@ public synchronized RawPacket[] transform(RawPacket[] pkts)
             }
         }
 
-        if (pkt == null)
-            return pkts;
-
-        return transformSingle(pkt, pkts);
+        if (pkt != null)
+            transformSingle(pkt, batch);
     }
 
     /**
      * Processes <tt>pkt</tt> and, if <tt>fecRate</tt> packets have
      * passed, creates a fec packet protecting the last <tt>fecRate</tt> media
-     * packets and adds this fec packet to <tt>pkts</tt>.
+     * packets and adds this fec packet to <tt>batch</tt>.
      *
      * @param pkt media packet to process.
-     * @param pkts array to try to use for output.
-     * @return an array that contains <tt>pkt</tt> (after processing)
-     * and possible an ulpfec packet if one was added.
+     * @param batch the batch which contains <tt>pkt</tt> and to which an
+     * ulpfec packet is to be added.
      */
-    private RawPacket[] transformSingle(RawPacket pkt, RawPacket[] pkts)
+    private void transformSingle(RawPacket pkt, PacketBatch batch)
     {
         // TODO due to the overhead introduced by adding any redundant data it
         // is usually a good idea to activate it only when the network
@@ -131,37 +238,58 @@ private RawPacket[] transformSingle(RawPacket pkt, RawPacket[] pkts)
         counter++;
         pkt.setSequenceNumber(pkt.getSequenceNumber() + nbFec);
 
+        if (columns != 0)
+        {
+            transformMatrix(pkt, batch);
+            return;
+        }
+
         if (fecRate != 0)
             fecPacket.addMedia(pkt);
 
         if (fecRate != 0 && (counter % fecRate) == 0)
         {
-            fecPacket.finish();
+            addFec(fecPacket, pkt.getSequenceNumber() + 1, batch);
+            fecPacket = new FECPacket(ssrc, ulpfecPT, fecRate > 16);
+        }
+    }
+
+    /**
+     * Adds <tt>pkt</tt> to the current matrix of media packets and, if it
+     * completes a row or the matrix, adds the fec packets of the row or the
+     * columns to <tt>batch</tt>.
+     *
+     * @param pkt media packet to process.
+     * @param batch the batch which contains <tt>pkt</tt> and to which the
+     * ulpfec packets are to be added.
+     */
+    private void transformMatrix(RawPacket pkt, PacketBatch batch)
+    {
+        int column = matrixIndex % columns;
+        int seq = pkt.getSequenceNumber();
 
-            boolean found = false;
-            for (int i = 0; i < pkts.length; i++)
+        columnPackets[column].addMedia(pkt);
+        if (rowParity)
+        {
+            fecPacket.addMedia(pkt);
+            if (column == columns - 1)
             {
-                if (pkts[i] == null)
-                {
-                    found = true;
-                    pkts[i] = fecPacket;
-                    break;
-                }
+                addFec(fecPacket, ++seq, batch);
+                fecPacket = new FECPacket(ssrc, ulpfecPT, columns > 16);
             }
+        }
 
-            if (!found)
+        if (++matrixIndex == columns * rows)
+        {
+            boolean longMask = getColumnSpan(columns, rows, rowParity) > 16;
+
+            for (int i = 0; i < columns; i++)
             {
-                RawPacket[] pkts2 = new RawPacket[pkts.length + 1];
-                System.arraycopy(pkts, 0, pkts2, 0, pkts.length);
-                pkts2[pkts.length] = fecPacket;
-                pkts = pkts2;
+                addFec(columnPackets[i], ++seq, batch);
+                columnPackets[i] = new FECPacket(ssrc, ulpfecPT, longMask);
             }
-
-            fecPacket = new FECPacket(ssrc, ulpfecPT);
-            nbFec++;
+            matrixIndex = 0;
         }
-
-        return pkts;
     }
 
     /**
@@ -182,11 +310,82 @@ public void close()
      * Sets the ulpfec payload type.
      * @param ulpfecPT the payload type.
      */
-    public void setUlpfecPT(byte ulpfecPT)
+    public synchronized void setUlpfecPT(byte ulpfecPT)
     {
         this.ulpfecPT = ulpfecPT;
         if (fecPacket != null)
             fecPacket.payloadType = ulpfecPT;
+        if (columnPackets != null)
+        {
+            for (FECPacket columnPacket : columnPackets)
+                columnPacket.payloadType = ulpfecPT;
+        }
+    }
+
+    /**
+     * Sets the matrix of media packets protected by column (i.e. interleaved)
+     * ulpfec packets and, optionally, row ulpfec packets. Resets the current
+     * matrix.
+     *
+     * @param columns the number of columns of the matrix or 0 to protect the
+     * consecutive media packets as specified by <tt>fecRate</tt>
+     * @param rows the number of rows of the matrix
+     * @param rowParity <tt>true</tt> to protect the rows of the matrix in
+     * addition to its columns
+     */
+    public synchronized void setFecMatrix(
+            int columns, int rows, boolean rowParity)
+    {
+        this.columns = columns;
+        this.rows = rows;
+        this.rowParity = rowParity;
+        matrixIndex = 0;
+        fecPacket
+            = new FECPacket(
+                    ssrc,
+                    ulpfecPT,
+                    (columns == 0 ? fecRate : columns) > 16);
+
+        if (columns == 0)
+        {
+            columnPackets = null;
+        }
+        else
+        {
+            boolean longMask = getColumnSpan(columns, rows, rowParity) > 16;
+
+            columnPackets = new FECPacket[columns];
+            for (int i = 0; i < columns; i++)
+                columnPackets[i] = new FECPacket(ssrc, ulpfecPT, longMask);
+        }
+    }
+
+    /**
+     * Sets the <tt>fecRate</tt> and the matrix of media packets protected by
+     * column ulpfec packets at once so that no packet is transformed with
+     * the one but not yet the other. Keeps the current matrix if it does not
+     * change.
+     *
+     * @param fecRate the new rate
+     * @param columns the number of columns of the matrix or 0 to protect the
+     * consecutive media packets as specified by <tt>fecRate</tt>
+     * @param rows the number of rows of the matrix
+     * @param rowParity <tt>true</tt> to protect the rows of the matrix in
+     * addition to its columns
+     */
+    public synchronized void setFecProtection(
+            int fecRate, int columns, int rows, boolean rowParity)
+    {
+        boolean fecRateChanged = (this.fecRate != fecRate);
+
+        setFecRate(fecRate);
+        if (fecRateChanged
+                || this.columns != columns
+                || (columns != 0
+                    && (this.rows != rows || this.rowParity != rowParity)))
+        {
+            setFecMatrix(columns, rows, rowParity);
+        }
     }
 
     /**
@@ -194,11 +393,11 @@ public void setUlpfecPT(byte ulpfecPT)
      * needed.
      * @param newFecRate the new rate to set.
      */
-    public void setFecRate(int newFecRate)
+    public synchronized void setFecRate(int newFecRate)
     {
         if (fecRate != newFecRate)
         {
-            fecPacket = new FECPacket(ssrc, ulpfecPT); //reset it
+            fecPacket = new FECPacket(ssrc, ulpfecPT, newFecRate > 16); //reset
             fecRate = newFecRate;
             counter = 0;
         }
@@ -231,7 +430,9 @@ public void setFecRate(int newFecRate)
      * |        length recovery        |
      * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
      *
-     * 4 byte FEC Level 0 Header (the short mask is always used):
+     * 4 byte FEC Level 0 Header (short mask) or 8 byte FEC Level 0 Header
+     * (long mask, if the protected packets span more than 16 sequence
+     * numbers):
      *  0                   1                   2                   3
      * 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
      * +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
@@ -248,6 +449,17 @@ public void setFecRate(int newFecRate)
          */
         int base = -1;
 
+        /**
+         * Whether the long (48-bit) mask is used.
+         */
+        private final boolean longMask;
+
+        /**
+         * The bits of the mask of the media packets added (aligned to the
+         * least significant bit of the 16-bit or 48-bit mask).
+         */
+        private long mask = 0;
+
         /**
          * Number of media packets added.
          */
@@ -291,16 +503,20 @@ public void setFecRate(int newFecRate)
 
         /**
          * Length of the additional headers added to this packet (in bytes):
-         * 10 bytes FEC Header + 4 bytes FEC Level 0 Header (short mask)
+         * 10 bytes FEC Header + 4 bytes FEC Level 0 Header (short mask) or
+         * 8 bytes FEC Level 0 Header (long mask)
          */
-        private static final int FEC_HDR_LEN = 14;
+        private final int fecHdrLen;
 
         /**
          * Creates a new instance, initialized with a buffer obtained using
          * <tt>new</tt>.
          * @param ssrc the SSRC
+         * @param payloadType the payload type
+         * @param longMask <tt>true</tt> to use the long (48-bit) mask i.e. to
+         * allow the protected packets to span up to 48 sequence numbers
          */
-        FECPacket(long ssrc, byte payloadType)
+        FECPacket(long ssrc, byte payloadType, boolean longMask)
         {
             super(
                     new byte[FECTransformEngine.INITIAL_BUFFER_SIZE],
@@ -310,6 +526,8 @@ public void setFecRate(int newFecRate)
             buf = getBuffer();
             this.ssrc = ssrc;
             this.payloadType = payloadType;
+            this.longMask = longMask;
+            fecHdrLen = longMask ? 18 : 14;
         }
 
         /**
@@ -324,10 +542,10 @@ private void addMedia(RawPacket media)
             int mediaPayloadLen = media.getLength() - 12;
 
             // make sure that the buffer is big enough
-            if (buf.length < mediaPayloadLen + RTP_HDR_LEN + FEC_HDR_LEN)
+            if (buf.length < mediaPayloadLen + RTP_HDR_LEN + fecHdrLen)
             {
                 byte[] newBuff
-                    = new byte[mediaPayloadLen + RTP_HDR_LEN + FEC_HDR_LEN];
+                    = new byte[mediaPayloadLen + RTP_HDR_LEN + fecHdrLen];
                 System.arraycopy(buf, 0, newBuff, 0, buf.length);
                 for (int i = buf.length; i < newBuff.length; i++)
                     newBuff[i] = (byte) 0;
@@ -349,7 +567,7 @@ private void addMedia(RawPacket media)
                 // copy the payload
                 System.arraycopy(
                         mediaBuf, mediaOff + RTP_HDR_LEN,
-                        buf, RTP_HDR_LEN + FEC_HDR_LEN,
+                        buf, RTP_HDR_LEN + fecHdrLen,
                         mediaPayloadLen);
             }
             else
@@ -367,11 +585,14 @@ private void addMedia(RawPacket media)
                 // payload
                 for (int i = 0; i < mediaPayloadLen; i++)
                 {
-                    buf[RTP_HDR_LEN + FEC_HDR_LEN + i]
+                    buf[RTP_HDR_LEN + fecHdrLen + i]
                             ^= mediaBuf[mediaOff + RTP_HDR_LEN + i];
                 }
             }
 
+            int offset = (media.getSequenceNumber() - base) & 0xffff;
+
+            mask |= 1L << ((longMask ? 47 : 15) - offset);
             lastAddedSeq = media.getSequenceNumber();
             lastAddedTS = media.getTimestamp();
             if (mediaPayloadLen > protectionLength)
@@ -382,18 +603,21 @@ private void addMedia(RawPacket media)
         /**
          * Fill in the required header fields and prepare this packet to be
          * sent.
+         * @param seq the RTP sequence number of this packet.
          * @return the finished packet.
          */
-        private RawPacket finish()
+        private RawPacket finish(int seq)
         {
             // RTP header fields
             buf[0] = (byte) 0x80; //no Padding, no Extension, no CSRCs
             setPayloadType(payloadType);
-            setSequenceNumber(lastAddedSeq + 1);
+            setSequenceNumber(seq);
             setSSRC((int)ssrc);
             setTimestamp(lastAddedTS); //TODO: check 5109 -- which TS should be used?
 
-            // FEC Header
+            // FEC Header: E is 0, L signals the long mask
+            buf[RTP_HDR_LEN]
+                = (byte) ((buf[RTP_HDR_LEN] & 0x3f) | (longMask ? 0x40 : 0));
             buf[RTP_HDR_LEN + 2] = (byte) (base>>8 & 0xff);
             buf[RTP_HDR_LEN + 3] = (byte) (base & 0xff);
 
@@ -401,13 +625,13 @@ private RawPacket finish()
             buf[RTP_HDR_LEN + 10] = (byte) (protectionLength>>8 & 0xff);
             buf[RTP_HDR_LEN + 11] = (byte) (protectionLength & 0xff);
 
-            // assume all packets from base to lastAddedSeq were added
-            int mask = ((1<<numPackets) - 1) << (16-numPackets);
-
-            buf[RTP_HDR_LEN + 12] = (byte) (mask>>8 & 0xff);
-            buf[RTP_HDR_LEN + 13] = (byte) (mask & 0xff);
+            for (int i = 0, maskLen = fecHdrLen - 12; i < maskLen; i++)
+            {
+                buf[RTP_HDR_LEN + 12 + i]
+                    = (byte) (mask >> (8 * (maskLen - 1 - i)) & 0xff);
+            }
 
-            setLength(RTP_HDR_LEN + FEC_HDR_LEN + protectionLength);
+            setLength(RTP_HDR_LEN + fecHdrLen + protectionLength);
             return this;
         }
     }
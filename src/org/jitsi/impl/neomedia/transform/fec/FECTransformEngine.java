@@ -29,7 +29,7 @@
  */
 public class FECTransformEngine
         implements TransformEngine,
-        PacketTransformer
+        BatchPacketTransformer
 {
     /**
      * The <tt>Logger</tt> used by the <tt>FECTransformEngine</tt> class and
@@ -68,6 +68,25 @@
      */
     private int fecRate = 0;
 
+    /**
+     * The number of columns of the matrix of media packets protected by
+     * column (i.e. interleaved) ulpfec packets or 0 to protect the
+     * consecutive media packets as specified by {@link #fecRate}.
+     */
+    private int fecColumns = 0;
+
+    /**
+     * Whether the rows of the matrix of media packets are protected by ulpfec
+     * packets in addition to its columns.
+     */
+    private boolean fecRowParity = false;
+
+    /**
+     * The number of rows of the matrix of media packets protected by column
+     * ulpfec packets.
+     */
+    private int fecRows = 0;
+
     /**
      * Maps an SSRC to a <tt>FECReceiver</tt> to be used for packets
      * with that SSRC.
@@ -134,6 +153,38 @@ public RawPacket[] reverseTransform(RawPacket[] pkts)
         return fpt.reverseTransform(pkts);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Assumes that all packets in <tt>batch</tt> have the same SSRC. Reverse-
+     * transforms using the <tt>FECReceiver</tt> for the SSRC found in
+     * <tt>batch</tt>.
+     */
+    @Override
+    public void reverseTransform(PacketBatch batch)
+    {
+        if (incomingPT == -1)
+            return;
+
+        // Assumption: all packets in batch have the same SSRC
+        Long ssrc = findSSRC(batch.getPackets());
+        if (ssrc == null)
+            return;
+
+        FECReceiver fpt;
+        synchronized (fecReceivers)
+        {
+            fpt = fecReceivers.get(ssrc);
+            if (fpt == null)
+            {
+                fpt = new FECReceiver(ssrc, incomingPT);
+                fecReceivers.put(ssrc, fpt);
+            }
+        }
+
+        fpt.reverseTransform(batch);
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -157,6 +208,8 @@ public RawPacket[] transform(RawPacket[] pkts)
             if (fpt == null)
             {
                 fpt = new FECSender(ssrc, fecRate, outgoingPT);
+                if (fecColumns != 0)
+                    fpt.setFecMatrix(fecColumns, fecRows, fecRowParity);
                 fecSenders.put(ssrc, fpt);
             }
         }
@@ -164,6 +217,38 @@ public RawPacket[] transform(RawPacket[] pkts)
         return fpt.transform(pkts);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Adds ulpfec packets to the stream (one ulpfec packet after every
+     * <tt>fecRate</tt> media packets.
+     */
+    @Override
+    public void transform(PacketBatch batch)
+    {
+        if (outgoingPT == -1)
+            return;
+
+        Long ssrc = findSSRC(batch.getPackets());
+        if (ssrc == null)
+            return;
+
+        FECSender fpt;
+        synchronized (fecSenders)
+        {
+            fpt = fecSenders.get(ssrc);
+            if (fpt == null)
+            {
+                fpt = new FECSender(ssrc, fecRate, outgoingPT);
+                if (fecColumns != 0)
+                    fpt.setFecMatrix(fecColumns, fecRows, fecRowParity);
+                fecSenders.put(ssrc, fpt);
+            }
+        }
+
+        fpt.transform(batch);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -247,17 +332,97 @@ public void setOutgoingPT(byte outgoingPT)
     /**
      * Sets the rate at which ulpfec packets will be generated and added to the
      * stream by this <tt>PacketTransformer</tt>.
-     * @param fecRate the rate to set, should be in [0, 16]
+     * Resets the matrix set with {@link #setFecMatrix(int, int, boolean)}.
+     * @param fecRate the rate to set, should be in [0, 48]
      */
     public void setFecRate(int fecRate)
     {
+        setFecProtection(fecRate, 0, 0, false);
+    }
+
+    /**
+     * Sets the matrix of media packets protected by interleaved ulpfec
+     * packets. The media packets are arranged row by row into a matrix of
+     * <tt>columns</tt> x <tt>rows</tt> packets and an ulpfec packet is
+     * generated for each column (i.e. for packets <tt>columns</tt> apart) and,
+     * if <tt>rowParity</tt>, for each row. A burst loss of up to
+     * <tt>columns</tt> packets is recoverable from the column parity alone.
+     *
+     * @param columns the number of columns of the matrix or 0 to go back to
+     * the protection of consecutive packets as specified by the
+     * <tt>fecRate</tt>
+     * @param rows the number of rows of the matrix
+     * @param rowParity <tt>true</tt> to protect the rows of the matrix as well
+     * (i.e. 2-D parity)
+     * @throws IllegalArgumentException if a column or a row of the matrix
+     * spans more sequence numbers than an ulpfec packet can protect (i.e. 48)
+     */
+    public void setFecMatrix(int columns, int rows, boolean rowParity)
+    {
+        synchronized (fecSenders)
+        {
+            setFecProtection(fecRate, columns, rows, rowParity);
+        }
+    }
+
+    /**
+     * Sets the rate at which ulpfec packets are generated and the matrix of
+     * media packets protected by interleaved ulpfec packets (see
+     * {@link #setFecMatrix(int, int, boolean)}) as a single update of each
+     * <tt>FECSender</tt> so that no packet is protected with the new rate
+     * but the old matrix or vice versa.
+     *
+     * @param fecRate the rate to set, should be in [0, 48]
+     * @param columns the number of columns of the matrix or 0 to protect the
+     * consecutive packets as specified by <tt>fecRate</tt>
+     * @param rows the number of rows of the matrix
+     * @param rowParity <tt>true</tt> to protect the rows of the matrix as well
+     * (i.e. 2-D parity)
+     * @throws IllegalArgumentException if a column or a row of the matrix
+     * spans more sequence numbers than an ulpfec packet can protect (i.e. 48)
+     */
+    public void setFecProtection(
+            int fecRate, int columns, int rows, boolean rowParity)
+    {
+        if (columns < 0
+                || (columns != 0
+                    && (rows < 1
+                        || columns > 48
+                        || FECSender.getColumnSpan(columns, rows, rowParity)
+                            > 48)))
+        {
+            throw new IllegalArgumentException(
+                    "columns=" + columns + ", rows=" + rows
+                        + ", rowParity=" + rowParity);
+        }
+        if (columns == 0)
+        {
+            rows = 0;
+            rowParity = false;
+        }
+
         synchronized (fecSenders)
         {
             for (FECSender f : fecSenders.values())
-                f.setFecRate(fecRate);
+                f.setFecProtection(fecRate, columns, rows, rowParity);
+
+            this.fecRate = fecRate;
+            fecColumns = columns;
+            fecRows = rows;
+            fecRowParity = rowParity;
         }
+    }
 
-        this.fecRate = fecRate;
+    /**
+     * Gets the number of columns of the matrix of media packets protected by
+     * interleaved ulpfec packets.
+     * @return the number of columns of the matrix of media packets protected
+     * by interleaved ulpfec packets or 0 if the consecutive media packets are
+     * protected as specified by the <tt>fecRate</tt>.
+     */
+    public int getFecColumns()
+    {
+        return fecColumns;
     }
 
     /**
@@ -19,6 +19,7 @@
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.transform.*;
 
+import java.beans.*;
 import java.util.*;
 
 /**
@@ -34,7 +35,7 @@
  */
 public class PayloadTypeTransformEngine
     extends SinglePacketTransformerAdapter
-    implements TransformEngine
+    implements ActivatableTransformEngine
 {
     /**
      * The mapping we use to override payloads. By default it is empty
@@ -49,6 +50,13 @@
      */
     private Map<Byte, Byte> mappingOverridesCopy = null;
 
+    /**
+     * The listeners to be notified when this engine becomes active i.e. when
+     * the first mapping override is added.
+     */
+    private final PropertyChangeSupport propertyChangeSupport
+        = new PropertyChangeSupport(this);
+
     /**
      * Checks if there are any override mappings, if no setting just pass
      * through the packet.
@@ -127,8 +135,48 @@ public void addPTMappingOverride(byte originalPt, byte overridePt)
 
         if ((existingOverride == null) || (existingOverride != overridePt))
         {
+            boolean oldActive = isActive();
+
             mappingOverrides.put(originalPt, overridePt);
             mappingOverridesCopy = new HashMap<Byte, Byte>(mappingOverrides);
+
+            if (!oldActive)
+            {
+                propertyChangeSupport.firePropertyChange(
+                        ACTIVE_PNAME, false, true);
+            }
         }
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addPropertyChangeListener(PropertyChangeListener listener)
+    {
+        propertyChangeSupport.addPropertyChangeListener(listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A <tt>PayloadTypeTransformEngine</tt> is active once it has a payload
+     * type mapping override.
+     */
+    @Override
+    public boolean isActive()
+    {
+        Map<Byte, Byte> mappingOverridesCopy = this.mappingOverridesCopy;
+
+        return mappingOverridesCopy != null && !mappingOverridesCopy.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removePropertyChangeListener(PropertyChangeListener listener)
+    {
+        propertyChangeSupport.removePropertyChangeListener(listener);
+    }
 }
@@ -27,7 +27,8 @@
 import org.jitsi.util.*;
 
 /**
- * Implements a factory for an AES <tt>BlockCipher</tt>.
+ * Implements a factory for an AES <tt>BlockCipher</tt> and for the AES
+ * <tt>SRTPCipherCTR</tt> based on it.
  *
  * @author Lyubomir Marinov
  */
@@ -39,6 +40,13 @@
      */
     private static final int BLOCK_SIZE = 16;
 
+    /**
+     * The length in bytes of the RTP payloads which the benchmarking of
+     * {@link #factories} encrypts in counter mode. It divides the length of
+     * {@link #in}.
+     */
+    private static final int BENCHMARK_PACKET_LENGTH = BLOCK_SIZE * 64;
+
     /**
      * The simple name of the <tt>BlockCipherFactory</tt> class/interface which
      * is used as a class name suffix by the well-known
@@ -115,21 +123,23 @@
 
     /**
      * The input buffer to be used for the benchmarking of {@link #factories}.
-     * It consists of blocks and its length specifies the number of blocks to
-     * process for the purposes of the benchmark.
+     * It consists of packets of {@link #BENCHMARK_PACKET_LENGTH} bytes and its
+     * length specifies the number of packets to process for the purposes of
+     * the benchmark.
      */ 
     private static final byte[] in = new byte[BLOCK_SIZE * 1024];
 
     /**
-     * The <tt>Logger</tt> used by the <tt>AES</tt> class to print out debug
-     * information.
+     * The counter mode initialization vector to be used for the benchmarking
+     * of {@link #factories}.
      */
-    private static final Logger logger = Logger.getLogger(AES.class);
+    private static final byte[] iv = new byte[BLOCK_SIZE];
 
     /**
-     * The output buffer to be used for the benchmarking of {@link #factories}.
+     * The <tt>Logger</tt> used by the <tt>AES</tt> class to print out debug
+     * information.
      */
-    private static final byte[] out = new byte[BLOCK_SIZE];
+    private static final Logger logger = Logger.getLogger(AES.class);
 
     /**
      * The random number generator which generates keys and inputs for the
@@ -147,7 +157,13 @@
 
     /**
      * Benchmarks a specific array/list of <tt>BlockCipherFactory</tt> instances
-     * and returns the fastest-performing element.
+     * and returns the fastest-performing element. Each one is benchmarked with
+     * the <tt>SRTPCipherCTR</tt> it provides (i.e. with
+     * {@link #createCTRCipher(BlockCipherFactory, int)}) because SRTP counter
+     * mode is what the AES implementation is elected for. Consequently, a
+     * <tt>BlockCipherFactory</tt> which generates the keystream of whole
+     * packets at once is not penalized by the overhead of its
+     * <tt>BlockCipher</tt> per block.
      *
      * @param factories the <tt>BlockCipherFactory</tt> instances to benchmark
      * @param keySize AES key size (16, 24, 32 bytes)
@@ -161,14 +177,14 @@ private static BlockCipherFactory benchmark(
         Random random = AES.random;
         byte[] key = new byte[keySize];
         byte[] in = AES.in;
+        byte[] iv = AES.iv;
 
         random.nextBytes(key);
         random.nextBytes(in);
+        random.nextBytes(iv);
 
-        CipherParameters params = new KeyParameter(key);
-        int blockSize = BLOCK_SIZE;
-        int inEnd = in.length - blockSize + 1;
-        byte[] out = AES.out;
+        int packetLength = BENCHMARK_PACKET_LENGTH;
+        int inEnd = in.length - packetLength + 1;
         long minTime = Long.MAX_VALUE;
         BlockCipherFactory minFactory = null;
 
@@ -183,7 +199,7 @@ private static BlockCipherFactory benchmark(
 
             try
             {
-                BlockCipher cipher = factory.createBlockCipher(keySize);
+                SRTPCipherCTR cipher = createCTRCipher(factory, keySize);
 
                 if (cipher == null)
                 {
@@ -194,18 +210,18 @@ private static BlockCipherFactory benchmark(
                 }
                 else
                 {
-                    cipher.init(true, params);
+                    cipher.init(key);
 
                     long startTime = System.nanoTime();
 
                     for (int inOff = 0;
                             inOff < inEnd;
-                            inOff = inOff + blockSize)
+                            inOff = inOff + packetLength)
                     {
-                        cipher.processBlock(in, inOff, out, 0);
+                        // Like the SRTP IVs, start the counter at zero.
+                        iv[BLOCK_SIZE - 2] = iv[BLOCK_SIZE - 1] = 0;
+                        cipher.process(in, inOff, packetLength, iv);
                     }
-                    // We do not invoke the method BlockCipher.reset() so we do
-                    // not need to take it into account in the benchmark.
 
                     long endTime = System.nanoTime();
                     long time = endTime - startTime;
@@ -254,65 +270,42 @@ else if (t instanceof ThreadDeath)
      */
     public static BlockCipher createBlockCipher(int keySize)
     {
-        BlockCipherFactory factory;
+        BlockCipherFactory factory = getFactory(keySize);
 
-        synchronized (AES.class)
+        try
         {
-            long now = System.currentTimeMillis();
-
-            factory = AES.factory;
-            if ((factory != null) && (now > factoryTimestamp + FACTORY_TIMEOUT))
-                factory = null;
-            if (factory == null)
-            {
-                try
-                {
-                    factory = getBlockCipherFactory(keySize);
-                }
-                catch (Throwable t)
-                {
-                    if (t instanceof InterruptedException)
-                    {
-                        Thread.currentThread().interrupt();
-                    }
-                    else if (t instanceof ThreadDeath)
-                    {
-                        throw (ThreadDeath) t;
-                    }
-                    else
-                    {
-                        logger.warn(
-                                "Failed to initialize an optimized AES"
-                                    + " implementation: "
-                                    + t.getLocalizedMessage());
-                    }
-                }
-                finally
-                {
-                    if (factory == null)
-                    {
-                        factory = AES.factory;
-                        if (factory == null)
-                            factory = BOUNCYCASTLE_FACTORY;
-                    }
-
-                    AES.factoryTimestamp = now;
-                    if (AES.factory != factory)
-                    {
-                        AES.factory = factory;
-                        // Simplify the name of the BlockCipherFactory class to
-                        // be employed for the purposes of brevity and ease.
-                        logger.info(
-                                "Will employ AES implemented by "
-                                    + getSimpleClassName(factory) + ".");
-                    }
-                }
-            }
+            return factory.createBlockCipher(keySize);
+        }
+        catch (Exception ex)
+        {
+            if (ex instanceof RuntimeException)
+                throw (RuntimeException) ex;
+            else
+                throw new RuntimeException(ex);
         }
+    }
+
+    /**
+     * Initializes a new <tt>SRTPCipherCTR</tt> instance which implements SRTP
+     * counter mode with Advanced Encryption Standard (AES). If the elected
+     * <tt>BlockCipherFactory</tt> is backed by a
+     * <tt>java.security.Provider</tt> which implements
+     * <tt>AES/CTR/NoPadding</tt>, the new instance generates the keystream of
+     * whole packets at once. Otherwise, it is a <tt>SRTPCipherCTRJava</tt>
+     * around a <tt>BlockCipher</tt> of the elected
+     * <tt>BlockCipherFactory</tt>.
+     *
+     * @param keySize length of the AES key (16, 24, 32 bytes)
+     * @return a new <tt>SRTPCipherCTR</tt> instance which implements SRTP
+     * counter mode with AES
+     */
+    static SRTPCipherCTR createCTRCipher(int keySize)
+    {
+        BlockCipherFactory factory = getFactory(keySize);
 
         try
         {
-            return factory.createBlockCipher(keySize);
+            return createCTRCipher(factory, keySize);
         }
         catch (Exception ex)
         {
@@ -323,6 +316,46 @@ else if (t instanceof ThreadDeath)
         }
     }
 
+    /**
+     * Initializes a new <tt>SRTPCipherCTR</tt> instance which implements SRTP
+     * counter mode with an AES implementation provided by a specific
+     * <tt>BlockCipherFactory</tt>.
+     *
+     * @param factory the <tt>BlockCipherFactory</tt> which is to provide the
+     * AES implementation
+     * @param keySize length of the AES key (16, 24, 32 bytes)
+     * @return a new <tt>SRTPCipherCTR</tt> instance which implements SRTP
+     * counter mode with the AES implementation provided by <tt>factory</tt> or
+     * <tt>null</tt> if <tt>factory</tt> failed to initialize a new
+     * <tt>BlockCipher</tt> instance
+     * @throws Exception if anything goes wrong while initializing a new
+     * <tt>BlockCipher</tt> instance
+     */
+    private static SRTPCipherCTR createCTRCipher(
+            BlockCipherFactory factory,
+            int keySize)
+        throws Exception
+    {
+        if (factory instanceof SecurityProviderBlockCipherFactory)
+        {
+            try
+            {
+                return
+                    ((SecurityProviderBlockCipherFactory) factory)
+                        .createCTRCipher();
+            }
+            catch (GeneralSecurityException gse)
+            {
+                // The java.security.Provider does not implement counter mode.
+                // Fall back to its BlockCipher.
+            }
+        }
+
+        BlockCipher cipher = factory.createBlockCipher(keySize);
+
+        return (cipher == null) ? null : new SRTPCipherCTRJava(cipher);
+    }
+
     /**
      * Initializes the <tt>BlockCipherFactory</tt> instances to be benchmarked
      * by the class <tt>AES</tt> and among which the fastest-performing one is
@@ -550,6 +583,76 @@ private static BlockCipherFactory getBlockCipherFactory(int keySize)
         return minFactory;
     }
 
+    /**
+     * Gets the <tt>BlockCipherFactory</tt> instance elected to be used by the
+     * <tt>AES</tt> class. Elects it if no <tt>BlockCipherFactory</tt> has been
+     * elected yet or the previous election has expired.
+     *
+     * @param keySize AES key size (16, 24, 32 bytes)
+     * @return the <tt>BlockCipherFactory</tt> instance elected to be used by
+     * the <tt>AES</tt> class
+     */
+    private static BlockCipherFactory getFactory(int keySize)
+    {
+        BlockCipherFactory factory;
+
+        synchronized (AES.class)
+        {
+            long now = System.currentTimeMillis();
+
+            factory = AES.factory;
+            if ((factory != null) && (now > factoryTimestamp + FACTORY_TIMEOUT))
+                factory = null;
+            if (factory == null)
+            {
+                try
+                {
+                    factory = getBlockCipherFactory(keySize);
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof InterruptedException)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    else if (t instanceof ThreadDeath)
+                    {
+                        throw (ThreadDeath) t;
+                    }
+                    else
+                    {
+                        logger.warn(
+                                "Failed to initialize an optimized AES"
+                                    + " implementation: "
+                                    + t.getLocalizedMessage());
+                    }
+                }
+                finally
+                {
+                    if (factory == null)
+                    {
+                        factory = AES.factory;
+                        if (factory == null)
+                            factory = BOUNCYCASTLE_FACTORY;
+                    }
+
+                    AES.factoryTimestamp = now;
+                    if (AES.factory != factory)
+                    {
+                        AES.factory = factory;
+                        // Simplify the name of the BlockCipherFactory class to
+                        // be employed for the purposes of brevity and ease.
+                        logger.info(
+                                "Will employ AES implemented by "
+                                    + getSimpleClassName(factory) + ".");
+                    }
+                }
+            }
+        }
+
+        return factory;
+    }
+
     /**
      * Gets the simple name of the runtime <tt>Class</tt> of a specific
      * <tt>BlockCipherFactory</tt> to be used for display purposes of brevity
@@ -38,7 +38,9 @@
 
 import org.bouncycastle.crypto.*;
 import org.bouncycastle.crypto.engines.*;
+import org.bouncycastle.crypto.params.*;
 import org.jitsi.bccontrib.macs.*;
+import org.jitsi.bccontrib.params.*;
 import org.jitsi.impl.neomedia.*;
 
 /**
@@ -62,6 +64,12 @@
  * automatically using some key management protocol, such as MIKEY (RFC3830),
  * SDES (RFC4568) or Phil Zimmermann's ZRTP protocol (RFC6189).
  *
+ * The replay and rollover state of a cryptographic context is guarded by its
+ * monitor for short periods only. The ciphers, the MAC and the scratch buffers
+ * are confined to the threads which process packets (refer to
+ * {@link CipherState}) so that a cryptographic context may encrypt/decrypt
+ * several packets at once.
+ *
  * @author Bing SU (nova.su@gmail.com)
  * @author Lyubomir Marinov
  */
@@ -78,30 +86,24 @@
     protected final byte[] authKey;
 
     /**
-     * implements the counter cipher mode for RTP according to RFC 3711
+     * The <tt>CipherState</tt>s of the threads which process packets with
+     * this cryptographic context. The values do not reference this instance
+     * so that they do not keep it (and their <tt>ThreadLocal</tt> key) from
+     * being garbage collected.
      */
-    protected final SRTPCipherCTR cipherCtr;
+    private final ThreadLocal<CipherState> cipherStates;
 
     /**
-     * F8 mode cipher
+     * The indicator which determines whether {@link #close()} has been
+     * invoked. Written under the monitor of this instance.
      */
-    protected final SRTPCipherF8 cipherF8;
+    private volatile boolean closed = false;
 
     /**
      * Derived session encryption key
      */
     protected final byte[] encKey;
 
-    /**
-     * Temp store.
-     */
-    protected final byte[] ivStore = new byte[16];
-
-    /**
-     * The HMAC object we used to do packet authentication
-     */
-    protected final Mac mac; // used for various HMAC computations
-
     /**
      * Master encryption key
      */
@@ -122,11 +124,6 @@
      */
     protected final SRTPPolicy policy;
 
-    /**
-     * Temp store.
-     */
-    protected final byte[] rbStore = new byte[4];
-
     /**
      * Bit mask for replay check
      */
@@ -142,34 +139,19 @@
      */
     protected final int ssrc;
 
-    /**
-     * Temp store.
-     */
-    protected final byte[] tagStore;
-
-    /**
-     * this is a working store, used by some methods to avoid new operations
-     * the methods must use this only to store results for immediate processing
-     */
-    protected final byte[] tempStore = new byte[100];
-
     protected BaseSRTPCryptoContext(int ssrc)
     {
         this.ssrc = ssrc;
 
         authKey = null;
-        cipherCtr = null;
-        cipherF8 = null;
+        cipherStates = null;
         encKey = null;
-        mac = null;
         masterKey = null;
         masterSalt = null;
         policy = null;
         saltKey = null;
-        tagStore = null;
     }
 
-    @SuppressWarnings("fallthrough")
     protected BaseSRTPCryptoContext(
             int ssrc,
             byte[] masterK,
@@ -186,112 +168,235 @@ protected BaseSRTPCryptoContext(
 
         int saltKeyLength = policy.getSaltKeyLength();
 
-        masterSalt = new byte[saltKeyLength];
+        // The AES-CM key derivation function consumes 112 bits of master
+        // salt. The 96-bit master salt of AES-GCM is padded with zeros (RFC
+        // 7714 section 11).
+        masterSalt = new byte[Math.max(saltKeyLength, 14)];
         System.arraycopy(masterS, 0, masterSalt, 0, saltKeyLength);
 
-        SRTPCipherCTR cipherCtr = null;
-        SRTPCipherF8 cipherF8 = null;
-        byte[] encKey = null;
-        byte[] saltKey = null;
+        if (policy.getEncType() == SRTPPolicy.NULL_ENCRYPTION)
+        {
+            encKey = null;
+            saltKey = null;
+        }
+        else
+        {
+            encKey = new byte[encKeyLength];
+            saltKey = new byte[saltKeyLength];
+        }
 
-        switch (policy.getEncType())
+        switch (policy.getAuthType())
         {
-        case SRTPPolicy.NULL_ENCRYPTION:
+        case SRTPPolicy.HMACSHA1_AUTHENTICATION:
+        case SRTPPolicy.SKEIN_AUTHENTICATION:
+            authKey = new byte[policy.getAuthKeyLength()];
             break;
 
-        case SRTPPolicy.AESF8_ENCRYPTION:
-            cipherF8 = new SRTPCipherF8(AES.createBlockCipher(encKeyLength));
-            //$FALL-THROUGH$
+        case SRTPPolicy.NULL_AUTHENTICATION:
+        default:
+            authKey = null;
+            break;
+        }
+
+        cipherStates
+            = new ThreadLocal<CipherState>()
+            {
+                @Override
+                protected CipherState initialValue()
+                {
+                    return createCipherState();
+                }
+            };
+    }
+
+    /**
+     * Authenticates a packet. Calculated authentication tag is returned/stored
+     * in {@link CipherState#tagStore}.
+     *
+     * @param cs the <tt>CipherState</tt> of the current thread
+     * @param pkt the RTP packet to be authenticated
+     * @param rocIn Roll-Over-Counter
+     */
+    protected void authenticatePacketHMAC(
+            CipherState cs,
+            RawPacket pkt,
+            int rocIn)
+    {
+        Mac mac = cs.mac;
+        byte[] rbStore = cs.rbStore;
+
+        mac.update(pkt.getBuffer(), pkt.getOffset(), pkt.getLength());
+        rbStore[0] = (byte) (rocIn >> 24);
+        rbStore[1] = (byte) (rocIn >> 16);
+        rbStore[2] = (byte) (rocIn >> 8);
+        rbStore[3] = (byte) rocIn;
+        mac.update(rbStore, 0, rbStore.length);
+        mac.doFinal(cs.tagStore, 0);
+    }
+
+    /**
+     * Closes this crypto context. The close functions deletes key data and
+     * performs a cleanup of this crypto context. Clean up key data, maybe this
+     * is the second time. However, sometimes we cannot know if the
+     * CryptoContext was used and the application called deriveSrtpKeys(...).
+     * The <tt>CipherState</tt>s are confined to their threads which may be
+     * processing packets still so each of them is dropped by its thread upon
+     * its next use (refer to {@link #getCipherState()}).
+     */
+    synchronized public void close()
+    {
+        closed = true;
+
+        Arrays.fill(masterKey, (byte) 0);
+        Arrays.fill(masterSalt, (byte) 0);
+    }
+
+    /**
+     * Initializes a new <tt>SRTPCipherCTR</tt> instance which implements the
+     * counter mode of the cipher specified by the policy of this
+     * cryptographic context.
+     *
+     * @return a new <tt>SRTPCipherCTR</tt> instance which implements the
+     * counter mode of the cipher specified by the policy of this
+     * cryptographic context or <tt>null</tt> if the policy specifies no
+     * encryption
+     */
+    protected SRTPCipherCTR createCipherCTR()
+    {
+        int encKeyLength = policy.getEncKeyLength();
 
+        switch (policy.getEncType())
+        {
         case SRTPPolicy.AESCM_ENCRYPTION:
+        case SRTPPolicy.AESF8_ENCRYPTION:
             // use OpenSSL if available and AES128 is in use
             if (OpenSSLWrapperLoader.isLoaded() && encKeyLength == 16)
-            {
-                cipherCtr = new SRTPCipherCTROpenSSL();
-            }
+                return new SRTPCipherCTROpenSSL();
             else
-            {
-                cipherCtr
-                    = new SRTPCipherCTRJava(
-                            AES.createBlockCipher(encKeyLength));
-            }
-            encKey = new byte[encKeyLength];
-            saltKey = new byte[saltKeyLength];
+                return AES.createCTRCipher(encKeyLength);
+
+        case SRTPPolicy.AESGCM_ENCRYPTION:
+            // The session keys are derived with AES-CM (RFC 7714 section 11).
+            return AES.createCTRCipher(encKeyLength);
+
+        case SRTPPolicy.TWOFISH_ENCRYPTION:
+        case SRTPPolicy.TWOFISHF8_ENCRYPTION:
+            return new SRTPCipherCTRJava(new TwofishEngine());
+
+        case SRTPPolicy.NULL_ENCRYPTION:
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Initializes a new <tt>CipherState</tt> instance with the derived
+     * session keys of this cryptographic context.
+     *
+     * @return a new <tt>CipherState</tt> instance initialized with the derived
+     * session keys of this cryptographic context or <tt>null</tt> if this
+     * cryptographic context has been closed
+     */
+    private CipherState createCipherState()
+    {
+        if (closed)
+            return null;
+
+        SRTPCipherCTR cipherCtr = null;
+        SRTPCipherF8 cipherF8 = null;
+        SRTPCipherGCM cipherGcm = null;
+
+        switch (policy.getEncType())
+        {
+        case SRTPPolicy.AESF8_ENCRYPTION:
+            cipherF8
+                = new SRTPCipherF8(
+                        AES.createBlockCipher(policy.getEncKeyLength()));
+            break;
+
+        case SRTPPolicy.AESGCM_ENCRYPTION:
+            cipherGcm = new SRTPCipherGCM();
             break;
 
         case SRTPPolicy.TWOFISHF8_ENCRYPTION:
             cipherF8 = new SRTPCipherF8(new TwofishEngine());
-            //$FALL-THROUGH$
+            break;
 
-        case SRTPPolicy.TWOFISH_ENCRYPTION:
-            cipherCtr = new SRTPCipherCTRJava(new TwofishEngine());
-            encKey = new byte[encKeyLength];
-            saltKey = new byte[saltKeyLength];
+        case SRTPPolicy.NULL_ENCRYPTION:
+            break;
+
+        default:
+            cipherCtr = createCipherCTR();
             break;
         }
-        this.cipherCtr = cipherCtr;
-        this.cipherF8 = cipherF8;
-        this.encKey = encKey;
-        this.saltKey = saltKey;
 
-        byte[] authKey;
         Mac mac;
         byte[] tagStore;
 
         switch (policy.getAuthType())
         {
         case SRTPPolicy.HMACSHA1_AUTHENTICATION:
-            authKey = new byte[policy.getAuthKeyLength()];
             mac = HMACSHA1.createMac();
             tagStore = new byte[mac.getMacSize()];
             break;
 
         case SRTPPolicy.SKEIN_AUTHENTICATION:
-            authKey = new byte[policy.getAuthKeyLength()];
             mac = new SkeinMac();
             tagStore = new byte[policy.getAuthTagLength()];
             break;
 
         case SRTPPolicy.NULL_AUTHENTICATION:
         default:
-            authKey = null;
             mac = null;
             tagStore = null;
             break;
         }
-        this.authKey = authKey;
-        this.mac = mac;
-        this.tagStore = tagStore;
+
+        CipherState cs
+            = new CipherState(cipherCtr, cipherF8, cipherGcm, mac, tagStore);
+
+        synchronized (this)
+        {
+            // The keys have been wiped.
+            if (closed)
+                return null;
+
+            initCipherState(cs);
+        }
+        return cs;
     }
 
     /**
-     * Authenticates a packet. Calculated authentication tag is returned/stored
-     * in {@link #tagStore}.
+     * Initializes the ciphers and the MAC of a specific <tt>CipherState</tt>
+     * with the derived session keys of this cryptographic context.
+     * Must be invoked under the monitor of this instance.
      *
-     * @param pkt the RTP packet to be authenticated
-     * @param rocIn Roll-Over-Counter
+     * @param cs the <tt>CipherState</tt> to initialize
      */
-    synchronized protected void authenticatePacketHMAC(RawPacket pkt, int rocIn)
+    private void initCipherState(CipherState cs)
     {
-        mac.update(pkt.getBuffer(), pkt.getOffset(), pkt.getLength());
-        rbStore[0] = (byte) (rocIn >> 24);
-        rbStore[1] = (byte) (rocIn >> 16);
-        rbStore[2] = (byte) (rocIn >> 8);
-        rbStore[3] = (byte) rocIn;
-        mac.update(rbStore, 0, rbStore.length);
-        mac.doFinal(tagStore, 0);
-    }
+        if (cs.cipherCtr != null)
+            cs.cipherCtr.init(encKey);
+        if (cs.cipherF8 != null)
+            cs.cipherF8.init(encKey, saltKey);
+        if (cs.cipherGcm != null)
+            cs.cipherGcm.init(encKey);
 
-    /**
-     * Closes this crypto context. The close functions deletes key data and
-     * performs a cleanup of this crypto context. Clean up key data, maybe this
-     * is the second time. However, sometimes we cannot know if the
-     * CryptoContext was used and the application called deriveSrtpKeys(...).
-     */
-    synchronized public void close()
-    {
-        Arrays.fill(masterKey, (byte) 0);
-        Arrays.fill(masterSalt, (byte) 0);
+        switch (policy.getAuthType())
+        {
+        case SRTPPolicy.HMACSHA1_AUTHENTICATION:
+            cs.mac.init(new KeyParameter(authKey));
+            break;
+
+        case SRTPPolicy.SKEIN_AUTHENTICATION:
+            // Skein MAC uses number of bits as MAC size, not just bytes
+            cs.mac.init(
+                    new ParametersForSkein(
+                            new KeyParameter(authKey),
+                            ParametersForSkein.Skein512,
+                            cs.tagStore.length * 8));
+            break;
+        }
     }
 
     /**
@@ -304,6 +409,36 @@ public int getAuthTagLength()
         return policy.getAuthTagLength();
     }
 
+    /**
+     * Gets the <tt>CipherState</tt> of the current thread. Initializes it with
+     * the derived session keys of this cryptographic context upon the first
+     * invocation by the current thread i.e. the session keys must have been
+     * derived before. Drops and wipes the <tt>CipherState</tt> of the current
+     * thread if this cryptographic context has been closed.
+     *
+     * @return the <tt>CipherState</tt> of the current thread or <tt>null</tt>
+     * if this cryptographic context has been closed
+     */
+    protected CipherState getCipherState()
+    {
+        CipherState cs = cipherStates.get();
+
+        if (closed)
+        {
+            cipherStates.remove();
+            if (cs != null)
+            {
+                Arrays.fill(cs.ivStore, (byte) 0);
+                Arrays.fill(cs.rbStore, (byte) 0);
+                if (cs.tagStore != null)
+                    Arrays.fill(cs.tagStore, (byte) 0);
+                Arrays.fill(cs.tempStore, (byte) 0);
+            }
+            return null;
+        }
+        return cs;
+    }
+
     /**
      * Gets the MKI length of this SRTP cryptographic context
      *
@@ -323,4 +458,77 @@ public int getSSRC()
     {
         return ssrc;
     }
+
+    /**
+     * The ciphers, the MAC and the scratch buffers with which a thread
+     * processes packets with a cryptographic context. Confined to that thread.
+     */
+    protected static class CipherState
+    {
+        /**
+         * implements the counter cipher mode for RTP according to RFC 3711
+         */
+        final SRTPCipherCTR cipherCtr;
+
+        /**
+         * F8 mode cipher
+         */
+        final SRTPCipherF8 cipherF8;
+
+        /**
+         * implements the Galois/Counter Mode AEAD cipher according to RFC 7714
+         */
+        final SRTPCipherGCM cipherGcm;
+
+        /**
+         * Temp store.
+         */
+        final byte[] ivStore = new byte[16];
+
+        /**
+         * The HMAC object we used to do packet authentication
+         */
+        final Mac mac; // used for various HMAC computations
+
+        /**
+         * Temp store.
+         */
+        final byte[] rbStore = new byte[4];
+
+        /**
+         * Temp store.
+         */
+        final byte[] tagStore;
+
+        /**
+         * this is a working store, used by some methods to avoid new
+         * operations the methods must use this only to store results for
+         * immediate processing
+         */
+        final byte[] tempStore = new byte[100];
+
+        /**
+         * Initializes a new <tt>CipherState</tt> instance.
+         *
+         * @param cipherCtr the counter mode cipher or <tt>null</tt>
+         * @param cipherF8 the F8 mode cipher or <tt>null</tt>
+         * @param cipherGcm the Galois/Counter Mode cipher or <tt>null</tt>
+         * @param mac the MAC or <tt>null</tt>
+         * @param tagStore the buffer for the authentication tags computed by
+         * <tt>mac</tt> or <tt>null</tt>
+         */
+        CipherState(
+                SRTPCipherCTR cipherCtr,
+                SRTPCipherF8 cipherF8,
+                SRTPCipherGCM cipherGcm,
+                Mac mac,
+                byte[] tagStore)
+        {
+            this.cipherCtr = cipherCtr;
+            this.cipherF8 = cipherF8;
+            this.cipherGcm = cipherGcm;
+            this.mac = mac;
+            this.tagStore = tagStore;
+        }
+    }
 }
@@ -129,10 +129,27 @@ public static void main(String[] args)
                     clazz.getName() + ": blockSize " + cipher.getBlockSize());
         }
 
+        // SRTPCipherCTR
+        SRTPCipherCTR[] ctrCiphers
+            = {
+                new SRTPCipherCTRJava(new AESFastEngine()),
+                new SRTPCipherCTRJCE(
+                        Cipher.getInstance(
+                                SRTPCipherCTRJCE.TRANSFORMATION,
+                                sunJCE)),
+                OpenSSLWrapperLoader.isLoaded()
+                    ? new SRTPCipherCTROpenSSL()
+                    : null
+            };
+        // The lengths of typical audio, small video and full video payloads.
+        int[] ctrPacketLengths = { 160, 480, 1200 };
+        byte[] iv = new byte[16];
+
         // org.bouncycastle.crypto.Mac
         Mac[] macs
             = {
                 new HMac(new SHA1Digest()),
+                new HMACSHA1JCE(),
                 new OpenSSLHMAC(OpenSSLHMAC.SHA1)
             };
 
@@ -231,6 +248,49 @@ public static void main(String[] args)
                             /*+ byteEncoder.encodeToString(out)*/ + ".");
             }
 
+            // SRTPCipherCTR
+            for (int packetLength : ctrPacketLengths)
+            {
+                System.err.println("----------------------------------------");
+
+                time0 = 0;
+                for (SRTPCipherCTR ctrCipher : ctrCiphers)
+                {
+                    if (ctrCipher == null)
+                        continue;
+
+                    ctrCipher.init(Arrays.copyOf(in, 16));
+
+                    int offEnd = in.length - packetLength;
+                    long bytes = 0;
+                    long startTime = System.nanoTime();
+
+                    for (int j = 0; j < jEnd; ++j)
+                    {
+                        for (int off = 0; off < offEnd; off += packetLength)
+                        {
+                            // Like the SRTP IVs, start the counter at zero.
+                            iv[14] = iv[15] = 0;
+                            ctrCipher.process(in, off, packetLength, iv);
+                            bytes += packetLength;
+                        }
+                    }
+
+                    long endTime = System.nanoTime();
+                    long time = endTime - startTime;
+
+                    if (time0 == 0)
+                        time0 = time;
+                    System.err.println(
+                            ctrCipher.getClass().getName() + ": packetLength "
+                                + packetLength + ", ratio "
+                                + String.format("%.2f", time / (double) time0)
+                                + ", time " + time + ", MB/s "
+                                + (bytes * 1000 / time) + ", ns/packet "
+                                + (time * packetLength / bytes) + ".");
+                }
+            }
+
             // org.bouncycastle.crypto.Digest & java.security.MessageDigest
             System.err.println("----------------------------------------");
 
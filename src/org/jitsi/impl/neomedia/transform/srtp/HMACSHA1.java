@@ -39,6 +39,11 @@ public static Mac createMac()
         {
             return new OpenSSLHMAC(OpenSSLHMAC.SHA1);
         }
+        else if (HMACSHA1JCE.isSupported())
+        {
+            // The JRE (with the ipad and opad midstates precomputed).
+            return new HMACSHA1JCE();
+        }
         else
         {
             // Fallback to BouncyCastle.
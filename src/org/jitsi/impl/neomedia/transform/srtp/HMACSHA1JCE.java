@@ -0,0 +1,310 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import java.security.*;
+import java.util.*;
+
+import org.bouncycastle.crypto.*;
+import org.bouncycastle.crypto.params.*;
+
+/**
+ * Implements the interface <tt>org.bouncycastle.crypto.Mac</tt> with HMAC-SHA1
+ * using the <tt>SHA-1</tt> <tt>java.security.MessageDigest</tt> of the JRE
+ * (which the JIT compiles to SHA instructions where these are available).
+ *
+ * The SHA-1 states after the inner and the outer key pads (i.e. the ipad and
+ * the opad midstates) are computed once by {@link #init(CipherParameters)}
+ * and cloned for every message so the authentication of a message does not
+ * compress the two pad blocks again. For the short messages of SRTP (e.g.
+ * audio) the pad blocks are half of the compressions of HMAC-SHA1.
+ */
+public class HMACSHA1JCE
+    implements Mac
+{
+    /**
+     * The name of the algorithm implemented by this instance.
+     */
+    private static final String ALGORITHM_NAME = "SHA-1/HMAC";
+
+    /**
+     * The size in bytes of the block of SHA-1.
+     */
+    private static final int BLOCK_SIZE = 64;
+
+    /**
+     * The name of the <tt>MessageDigest</tt> algorithm SHA-1.
+     */
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    /**
+     * The size in bytes of the digest of SHA-1 and, consequently, of the
+     * message authentication code computed by this instance.
+     */
+    private static final int MAC_SIZE = 20;
+
+    /**
+     * The indicator which determines whether the <tt>SHA-1</tt>
+     * <tt>MessageDigest</tt> of the JRE supports cloning or <tt>null</tt> if
+     * it has not been determined yet. Volatile because it is read without
+     * synchronization by {@link #isSupported()} once it has been determined.
+     */
+    private static volatile Boolean supported;
+
+    /**
+     * Determines whether the <tt>SHA-1</tt> <tt>MessageDigest</tt> of the JRE
+     * is available and supports the cloning of its state which
+     * <tt>HMACSHA1JCE</tt> depends on.
+     *
+     * @return <tt>true</tt> if <tt>HMACSHA1JCE</tt> may be used; otherwise,
+     * <tt>false</tt>
+     */
+    public static boolean isSupported()
+    {
+        Boolean supported = HMACSHA1JCE.supported;
+
+        if (supported == null)
+        {
+            synchronized (HMACSHA1JCE.class)
+            {
+                supported = HMACSHA1JCE.supported;
+                if (supported == null)
+                {
+                    boolean b;
+
+                    try
+                    {
+                        MessageDigest.getInstance(DIGEST_ALGORITHM).clone();
+                        b = true;
+                    }
+                    catch (CloneNotSupportedException
+                            | NoSuchAlgorithmException e)
+                    {
+                        b = false;
+                    }
+                    supported = Boolean.valueOf(b);
+                    HMACSHA1JCE.supported = supported;
+                }
+            }
+        }
+        return supported.booleanValue();
+    }
+
+    /**
+     * The SHA-1 state after the inner key pad into which the message which
+     * is being authenticated is fed or <tt>null</tt> if this instance has
+     * not been initialized with a key yet.
+     */
+    private MessageDigest inner;
+
+    /**
+     * The SHA-1 state after the inner key pad (i.e. the ipad midstate).
+     */
+    private MessageDigest ipad;
+
+    /**
+     * The SHA-1 state after the outer key pad (i.e. the opad midstate).
+     */
+    private MessageDigest opad;
+
+    /**
+     * The buffer into which the inner digest is computed.
+     */
+    private final byte[] innerDigest = new byte[MAC_SIZE];
+
+    /**
+     * Clones a specific <tt>MessageDigest</tt> (midstate).
+     *
+     * @param md the <tt>MessageDigest</tt> to clone
+     * @return a clone of <tt>md</tt>
+     */
+    private static MessageDigest clone(MessageDigest md)
+    {
+        try
+        {
+            return (MessageDigest) md.clone();
+        }
+        catch (CloneNotSupportedException cnse)
+        {
+            // isSupported() has established that SHA-1 supports cloning.
+            throw new IllegalStateException(cnse);
+        }
+    }
+
+    /**
+     * Computes the SHA-1 state after a specific key pad.
+     *
+     * @param key the key (at most {@link #BLOCK_SIZE} bytes long)
+     * @param pad the byte with which <tt>key</tt> is XORed (i.e.
+     * <tt>0x36</tt> for the ipad or <tt>0x5c</tt> for the opad)
+     * @return a <tt>MessageDigest</tt> which has been fed with the
+     * <tt>key</tt> XORed with <tt>pad</tt>
+     */
+    private static MessageDigest createMidstate(byte[] key, int pad)
+        throws NoSuchAlgorithmException
+    {
+        byte[] block = new byte[BLOCK_SIZE];
+
+        for (int i = 0; i < BLOCK_SIZE; i++)
+        {
+            block[i] = (byte) (((i < key.length) ? key[i] : 0) ^ pad);
+        }
+
+        MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+
+        md.update(block);
+        Arrays.fill(block, (byte) 0);
+        return md;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int doFinal(byte[] out, int outOff)
+        throws DataLengthException, IllegalStateException
+    {
+        MessageDigest inner = getInner();
+
+        if (out.length - outOff < MAC_SIZE)
+        {
+            throw new DataLengthException(
+                    "Space in out must be at least " + MAC_SIZE
+                        + "bytes but is " + (out.length - outOff)
+                        + " bytes!");
+        }
+
+        try
+        {
+            inner.digest(innerDigest, 0, MAC_SIZE);
+
+            MessageDigest outer = clone(opad);
+
+            outer.update(innerDigest, 0, MAC_SIZE);
+            outer.digest(out, outOff, MAC_SIZE);
+        }
+        catch (DigestException de)
+        {
+            throw new IllegalStateException(de);
+        }
+
+        // As the javadoc on interface method specifies, the doFinal call
+        // leaves this Mac reset.
+        reset();
+        return MAC_SIZE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getAlgorithmName()
+    {
+        return ALGORITHM_NAME;
+    }
+
+    /**
+     * Gets the SHA-1 state into which the message which is being
+     * authenticated is fed.
+     *
+     * @return the SHA-1 state into which the message which is being
+     * authenticated is fed
+     * @throws IllegalStateException if this instance has not been initialized
+     * with a key yet
+     */
+    private MessageDigest getInner()
+    {
+        MessageDigest inner = this.inner;
+
+        if (inner == null)
+            throw new IllegalStateException("key == null");
+        return inner;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMacSize()
+    {
+        return MAC_SIZE;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Computes the ipad and opad midstates of the specified key.
+     */
+    @Override
+    public void init(CipherParameters params)
+        throws IllegalArgumentException
+    {
+        byte[] key
+            = (params instanceof KeyParameter)
+                ? ((KeyParameter) params).getKey()
+                : null;
+
+        if (key == null)
+            throw new IllegalArgumentException("key == null");
+
+        try
+        {
+            // Keys longer than the block are hashed first (RFC 2104).
+            if (key.length > BLOCK_SIZE)
+                key = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(key);
+
+            ipad = createMidstate(key, 0x36);
+            opad = createMidstate(key, 0x5c);
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            throw new IllegalStateException(nsae);
+        }
+        reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset()
+    {
+        if (ipad == null)
+            throw new IllegalStateException("key == null");
+
+        inner = clone(ipad);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void update(byte in)
+        throws IllegalStateException
+    {
+        getInner().update(in);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void update(byte[] in, int off, int len)
+        throws DataLengthException, IllegalStateException
+    {
+        getInner().update(in, off, len);
+    }
+}
@@ -39,6 +39,10 @@ private static native int HMAC_Final(
             long ctx,
             byte[] md, int mdOff, int mdLen);
 
+    private static native int HMAC_Final_reset(
+            long ctx,
+            byte[] md, int mdOff, int mdLen);
+
     private static native boolean HMAC_Init_ex(
             long ctx,
             byte[] key, int keyLen,
@@ -54,6 +58,15 @@ private static native boolean HMAC_Update(
      */
     private static final String algorithmName = "SHA-1/HMAC";
 
+    /**
+     * The indicator which determines whether the loaded jnopenssl library
+     * lacks {@link #HMAC_Final_reset(long, byte[], int, int)} (e.g. it was
+     * built before the function was introduced) and, consequently,
+     * {@link #doFinal(byte[], int)} is to invoke <tt>HMAC_Final</tt> and
+     * <tt>HMAC_Init_ex</tt> separately.
+     */
+    private static boolean finalResetUnavailable = false;
+
     /**
      * The context of the OpenSSL (Crypto) library through which the actual
      * algorithm implementation is invoked by this instance.
@@ -142,6 +155,26 @@ public int doFinal(byte[] out, int outOff)
         }
         else
         {
+            // As the javadoc on interface method specifies, the doFinal call
+            // leaves this Digest reset. The reset restores the state after
+            // the inner key pad which OpenSSL computed once in init i.e. the
+            // pads are not processed again. Finish and reset in a single
+            // native invocation if the loaded library is capable of it.
+            if (!finalResetUnavailable)
+            {
+                try
+                {
+                    outLen = HMAC_Final_reset(ctx, out, outOff, outLen);
+                    if (outLen < 0)
+                        throw new RuntimeException("HMAC_Final_reset");
+                    return outLen;
+                }
+                catch (UnsatisfiedLinkError ule)
+                {
+                    finalResetUnavailable = true;
+                }
+            }
+
             outLen = HMAC_Final(ctx, out, outOff, outLen);
             if (outLen < 0)
             {
@@ -149,8 +182,6 @@ public int doFinal(byte[] out, int outOff)
             }
             else
             {
-                // As the javadoc on interface method specifies, the doFinal
-                // call leaves this Digest reset.
                 reset();
                 return outLen;
             }
@@ -17,8 +17,6 @@
 
 import java.util.*;
 
-import org.bouncycastle.crypto.params.*;
-import org.jitsi.bccontrib.params.*;
 import org.jitsi.impl.neomedia.*;
 
 /**
@@ -97,7 +95,7 @@ public SRTCPCryptoContext(
      * Checks if a packet is a replayed on based on its sequence number. The
      * method supports a 64 packet history relative to the given sequence
      * number. Sequence Number is guaranteed to be real (not faked) through
-     * authentication.
+     * authentication. Invoked with the monitor of this instance held.
      *
      * @param index index number of the SRTCP packet
      * @return true if this sequence number indicates the packet is not a
@@ -123,9 +121,10 @@ else if (((this.replayWindow >> (-delta)) & 0x1) != 0)
      * Computes the initialization vector, used later by encryption algorithms,
      * based on the label.
      *
+     * @param ivStore the array to store the initialization vector into
      * @param label label specified for each type of iv
      */
-    private void computeIv(byte label)
+    private void computeIv(byte[] ivStore, byte label)
     {
         for (int i = 0; i < 14; i++)
         {
@@ -153,12 +152,17 @@ public SRTCPCryptoContext deriveContext(int ssrc)
     }
 
     /**
-     * Derives the srtcp session keys from the master key.
+     * Derives the srtcp session keys from the master key. The ciphers and the
+     * MAC of the threads which process packets are initialized with the
+     * session keys when the threads process their first packets.
      */
     synchronized public void deriveSrtcpKeys()
     {
+        SRTPCipherCTR cipherCtr = createCipherCTR();
+        byte[] ivStore = new byte[16];
+
         // compute the session encryption key
-        computeIv((byte) 3);
+        computeIv(ivStore, (byte) 3);
 
         cipherCtr.init(masterKey);
         Arrays.fill(masterKey, (byte) 0);
@@ -168,50 +172,29 @@ synchronized public void deriveSrtcpKeys()
 
         if (authKey != null)
         {
-            computeIv((byte) 4);
+            computeIv(ivStore, (byte) 4);
             Arrays.fill(authKey, (byte) 0);
             cipherCtr.process(authKey, 0, policy.getAuthKeyLength(), ivStore);
-
-            switch (policy.getAuthType())
-            {
-            case SRTPPolicy.HMACSHA1_AUTHENTICATION:
-                mac.init(new KeyParameter(authKey));
-                break;
-
-            case SRTPPolicy.SKEIN_AUTHENTICATION:
-                // Skein MAC uses number of bits as MAC size, not just bytes
-                mac.init(
-                        new ParametersForSkein(
-                                new KeyParameter(authKey),
-                                ParametersForSkein.Skein512,
-                                tagStore.length * 8));
-                break;
-            }
-
-            Arrays.fill(authKey, (byte) 0);
         }
 
         // compute the session salt
-        computeIv((byte) 5);
+        computeIv(ivStore, (byte) 5);
         Arrays.fill(saltKey, (byte) 0);
         cipherCtr.process(saltKey, 0, policy.getSaltKeyLength(), ivStore);
         Arrays.fill(masterSalt, (byte) 0);
-
-        // As last step: initialize cipher with derived encryption key.
-        if (cipherF8 != null)
-            cipherF8.init(encKey, saltKey);
-        cipherCtr.init(encKey);
-        Arrays.fill(encKey, (byte) 0);
     }
 
     /**
      * Performs Counter Mode AES encryption/decryption
      *
+     * @param cs the <tt>CipherState</tt> of the current thread
      * @param pkt the RTP packet to be encrypted/decrypted
+     * @param index the SRTCP index of <tt>pkt</tt>
      */
-    public void processPacketAESCM(RawPacket pkt, int index)
+    private void processPacketAESCM(CipherState cs, RawPacket pkt, int index)
     {
         int ssrc = pkt.getRTCPSSRC();
+        byte[] ivStore = cs.ivStore;
 
         /* Compute the CM IV (refer to chapter 4.1.1 in RFC 3711):
         *
@@ -247,18 +230,108 @@ public void processPacketAESCM(RawPacket pkt, int index)
         int payloadOffset = 8;
         int payloadLength = pkt.getLength() - payloadOffset;
 
-        cipherCtr.process(
+        cs.cipherCtr.process(
                 pkt.getBuffer(), pkt.getOffset() + payloadOffset, payloadLength,
                 ivStore);
     }
 
+    /**
+     * Performs Galois/Counter Mode AES authenticated encryption/decryption
+     * (refer to RFC 7714). The associated data is the fixed header (8 bytes)
+     * and the E flag and index (4 bytes) which are expected in
+     * {@link CipherState#rbStore}. The authentication tag follows the
+     * encrypted part and precedes the E flag and index which are not in
+     * <tt>pkt</tt> during the invocation of the method.
+     *
+     * @param cs the <tt>CipherState</tt> of the current thread
+     * @param pkt the RTCP packet to be encrypted/decrypted
+     * @param index the SRTCP index of <tt>pkt</tt>
+     * @param encrypted <tt>true</tt> if <tt>pkt</tt> is (to be) encrypted or
+     * <tt>false</tt> if it is (to be) authenticated only
+     * @param encrypt <tt>true</tt> to encrypt <tt>pkt</tt> and append the
+     * authentication tag to it or <tt>false</tt> to authenticate and decrypt
+     * <tt>pkt</tt> and remove the authentication tag from it
+     * @return <tt>true</tt> if <tt>pkt</tt> was processed or <tt>false</tt>
+     * if the authentication failed
+     */
+    private boolean processPacketAESGCM(
+            CipherState cs,
+            RawPacket pkt,
+            int index,
+            boolean encrypted,
+            boolean encrypt)
+    {
+        int ssrc = pkt.getRTCPSSRC();
+        byte[] ivStore = cs.ivStore;
+
+        /* Compute the IV (refer to section 9.1 in RFC 7714):
+         *
+         * 00 00 SSRC 00 00 index
+         * k_s   XX XX XX XX XX XX XX XX XX XX XX XX
+         * ------------------------------------------XOR
+         * IV    XX XX XX XX XX XX XX XX XX XX XX XX
+         *        0  1  2  3  4  5  6  7  8  9 10 11
+         */
+        ivStore[0] = saltKey[0];
+        ivStore[1] = saltKey[1];
+        ivStore[2] = (byte) ((ssrc >> 24) ^ saltKey[2]);
+        ivStore[3] = (byte) ((ssrc >> 16) ^ saltKey[3]);
+        ivStore[4] = (byte) ((ssrc >> 8) ^ saltKey[4]);
+        ivStore[5] = (byte) (ssrc ^ saltKey[5]);
+        ivStore[6] = saltKey[6];
+        ivStore[7] = saltKey[7];
+        ivStore[8] = (byte) (((index >> 24) & 0x7f) ^ saltKey[8]);
+        ivStore[9] = (byte) ((index >> 16) ^ saltKey[9]);
+        ivStore[10] = (byte) ((index >> 8) ^ saltKey[10]);
+        ivStore[11] = (byte) (index ^ saltKey[11]);
+
+        SRTPCipherGCM cipherGcm = cs.cipherGcm;
+
+        if (!cipherGcm.start(encrypt, ivStore))
+            return false;
+
+        // Make room for the authentication tag before the buffer is read
+        // because growing may reallocate it.
+        if (encrypt)
+            pkt.grow(SRTPCipherGCM.TAG_LENGTH);
+
+        byte[] buf = pkt.getBuffer();
+        int off = pkt.getOffset();
+        int length = pkt.getLength();
+        // The part which is encrypted, if any, excludes the fixed header.
+        int aadLength;
+
+        if (encrypted)
+            aadLength = 8;
+        else if (encrypt)
+            aadLength = length;
+        else
+            aadLength = length - SRTPCipherGCM.TAG_LENGTH;
+        if (aadLength < 0)
+            return false;
+
+        cipherGcm.updateAAD(buf, off, aadLength);
+        cipherGcm.updateAAD(cs.rbStore, 0, 4);
+
+        int len = cipherGcm.doFinal(buf, off + aadLength, length - aadLength);
+
+        if (len < 0)
+            return false;
+        pkt.setLength(aadLength + len);
+        return true;
+    }
+
     /**
      * Performs F8 Mode AES encryption/decryption
      *
+     * @param cs the <tt>CipherState</tt> of the current thread
      * @param pkt the RTP packet to be encrypted/decrypted
+     * @param index the SRTCP index of <tt>pkt</tt>
      */
-    public void processPacketAESF8(RawPacket pkt, int index)
+    private void processPacketAESF8(CipherState cs, RawPacket pkt, int index)
     {
+        byte[] ivStore = cs.ivStore;
+
         // 4 bytes of the iv are zero
         // the first byte of the RTP header is not used.
         ivStore[0] = 0;
@@ -283,7 +356,7 @@ public void processPacketAESF8(RawPacket pkt, int index)
         int payloadOffset = 8;
         int payloadLength = pkt.getLength() - (4 + policy.getAuthTagLength());
 
-        cipherF8.process(
+        cs.cipherF8.process(
                 pkt.getBuffer(), pkt.getOffset() + payloadOffset, payloadLength,
                 ivStore);
     }
@@ -299,12 +372,19 @@ public void processPacketAESF8(RawPacket pkt, int index)
      * SRTP TransformConnector. We should use the original method (RTPManager
      * managed transportation) instead.
      *
+     * The authentication and the decryption are performed without holding the
+     * monitor of this instance so several threads may reverse-transform
+     * packets with this instance at once.
+     *
      * @param pkt the received RTCP packet
      * @return <tt>true</tt> if the packet can be accepted or <tt>false</tt> if
      * authentication or replay check failed
      */
-    synchronized public boolean reverseTransformPacket(RawPacket pkt)
+    public boolean reverseTransformPacket(RawPacket pkt)
     {
+        if (policy.getEncType() == SRTPPolicy.AESGCM_ENCRYPTION)
+            return reverseTransformPacketAESGCM(pkt);
+
         boolean decrypt = false;
         int tagLength = policy.getAuthTagLength();
         int indexEflag = pkt.getSRTCPIndex(tagLength);
@@ -315,14 +395,23 @@ synchronized public boolean reverseTransformPacket(RawPacket pkt)
         int index = indexEflag & ~0x80000000;
 
         /* Replay control */
-        if (!checkReplay(index))
+        synchronized (this)
         {
-            return false;
+            if (!checkReplay(index))
+                return false;
         }
 
+        CipherState cs = getCipherState();
+
+        if (cs == null)
+            return false;
+
         /* Authenticate the packet */
         if (policy.getAuthType() != SRTPPolicy.NULL_AUTHENTICATION)
         {
+            byte[] tempStore = cs.tempStore;
+            byte[] tagStore = cs.tagStore;
+
             // get original authentication data and store in tempStore
             pkt.readRegionToBuff(pkt.getLength() - tagLength, tagLength,
                     tempStore);
@@ -332,7 +421,7 @@ synchronized public boolean reverseTransformPacket(RawPacket pkt)
             pkt.shrink(tagLength + 4);
 
             // compute, then save authentication in tagStore
-            authenticatePacketHMAC(pkt, indexEflag);
+            authenticatePacketHMAC(cs, pkt, indexEflag);
 
             // compare authentication tags using constant time comparison
             int nonEqual = 0;
@@ -350,21 +439,92 @@ synchronized public boolean reverseTransformPacket(RawPacket pkt)
             if (policy.getEncType() == SRTPPolicy.AESCM_ENCRYPTION
                     || policy.getEncType() == SRTPPolicy.TWOFISH_ENCRYPTION)
             {
-                processPacketAESCM(pkt, index);
+                processPacketAESCM(cs, pkt, index);
             }
 
             /* Decrypt the packet using F8 Mode encryption */
             else if (policy.getEncType() == SRTPPolicy.AESF8_ENCRYPTION
                     || policy.getEncType() == SRTPPolicy.TWOFISHF8_ENCRYPTION)
             {
-                processPacketAESF8(pkt, index);
+                processPacketAESF8(cs, pkt, index);
             }
         }
-        update(index);
 
+        return checkReplayAndUpdate(index);
+    }
+
+    /**
+     * Transforms a SRTCP packet protected with AES-GCM into a RTCP packet. In
+     * contrast to the other ciphers, the E flag and index follow the
+     * authentication tag (refer to section 9 in RFC 7714).
+     *
+     * @param pkt the received RTCP packet
+     * @return <tt>true</tt> if the packet can be accepted or <tt>false</tt> if
+     * authentication or replay check failed
+     */
+    private boolean reverseTransformPacketAESGCM(RawPacket pkt)
+    {
+        if (pkt.getLength() < 8 + SRTPCipherGCM.TAG_LENGTH + 4)
+            return false;
+
+        int indexEflag = pkt.getSRTCPIndex(0);
+        boolean decrypt = ((indexEflag & 0x80000000) == 0x80000000);
+        int index = indexEflag & ~0x80000000;
+
+        /* Replay control */
+        synchronized (this)
+        {
+            if (!checkReplay(index))
+                return false;
+        }
+
+        CipherState cs = getCipherState();
+
+        if (cs == null)
+            return false;
+
+        // The E flag and index are authenticated as associated data.
+        pkt.readRegionToBuff(pkt.getLength() - 4, 4, cs.rbStore);
+        pkt.shrink(4);
+
+        if (!processPacketAESGCM(cs, pkt, index, decrypt, false))
+            return false;
+
+        return checkReplayAndUpdate(index);
+    }
+
+    /**
+     * Checks the SRTCP index of an authenticated packet against the replay
+     * window again (because another thread may have accepted a packet with
+     * the same index in the meantime) and, if the packet is not a replayed
+     * one, updates the replay window with it.
+     *
+     * @param index the SRTCP index of the authenticated packet
+     * @return <tt>true</tt> if the packet can be accepted; otherwise,
+     * <tt>false</tt>
+     */
+    private synchronized boolean checkReplayAndUpdate(int index)
+    {
+        if (!checkReplay(index))
+            return false;
+
+        update(index);
         return true;
     }
 
+    /**
+     * Reserves the SRTCP index of a packet which is going to be sent out.
+     *
+     * @return the SRTCP index of the packet which is going to be sent out
+     */
+    private synchronized int nextSentIndex()
+    {
+        int index = sentIndex;
+
+        sentIndex++;
+        sentIndex &= ~0x80000000;       // clear possible overflow
+        return index;
+    }
 
     /**
      * Transform a RTP packet into a SRTP packet. The method is called when a
@@ -378,16 +538,31 @@ else if (policy.getEncType() == SRTPPolicy.AESF8_ENCRYPTION
      * shall not use SRTP TransformConnector. We should use the original method
      * (RTPManager managed transportation) instead.
      *
+     * The encryption and the authentication are performed without holding the
+     * monitor of this instance so several threads may transform packets with
+     * this instance at once.
+     *
      * @param pkt the RTP packet that is going to be sent out
+     * @return <tt>true</tt> if the packet was transformed or <tt>false</tt>
+     * if it cannot be sent
      */
-    synchronized public void transformPacket(RawPacket pkt)
+    public boolean transformPacket(RawPacket pkt)
     {
+        int sentIndex = nextSentIndex();
+        CipherState cs = getCipherState();
+
+        if (cs == null)
+            return false;
+
+        if (policy.getEncType() == SRTPPolicy.AESGCM_ENCRYPTION)
+            return transformPacketAESGCM(cs, pkt, sentIndex);
+
         boolean encrypt = false;
         /* Encrypt the packet using Counter Mode encryption */
         if (policy.getEncType() == SRTPPolicy.AESCM_ENCRYPTION ||
                 policy.getEncType() == SRTPPolicy.TWOFISH_ENCRYPTION)
         {
-            processPacketAESCM(pkt, sentIndex);
+            processPacketAESCM(cs, pkt, sentIndex);
             encrypt = true;
         }
 
@@ -395,7 +570,7 @@ synchronized public void transformPacket(RawPacket pkt)
         else if (policy.getEncType() == SRTPPolicy.AESF8_ENCRYPTION ||
                 policy.getEncType() == SRTPPolicy.TWOFISHF8_ENCRYPTION)
         {
-            processPacketAESF8(pkt, sentIndex);
+            processPacketAESF8(cs, pkt, sentIndex);
             encrypt = true;
         }
         int index = 0;
@@ -410,17 +585,50 @@ else if (policy.getEncType() == SRTPPolicy.AESF8_ENCRYPTION ||
         // it in network order in rbStore variable.
         if (policy.getAuthType() != SRTPPolicy.NULL_AUTHENTICATION)
         {
-            authenticatePacketHMAC(pkt, index);
-            pkt.append(rbStore, 4);
-            pkt.append(tagStore, policy.getAuthTagLength());
+            authenticatePacketHMAC(cs, pkt, index);
+            pkt.append(cs.rbStore, 4);
+            pkt.append(cs.tagStore, policy.getAuthTagLength());
         }
-        sentIndex++;
-        sentIndex &= ~0x80000000;       // clear possible overflow
+
+        return true;
+    }
+
+    /**
+     * Transforms a RTCP packet into a SRTCP packet protected with AES-GCM
+     * (refer to section 9 in RFC 7714).
+     *
+     * @param cs the <tt>CipherState</tt> of the current thread
+     * @param pkt the RTCP packet that is going to be sent out
+     * @param sentIndex the SRTCP index reserved for <tt>pkt</tt>
+     * @return <tt>true</tt> if the packet was transformed or <tt>false</tt>
+     * if it cannot be sent
+     */
+    private boolean transformPacketAESGCM(
+            CipherState cs,
+            RawPacket pkt,
+            int sentIndex)
+    {
+        int index = sentIndex | 0x80000000;
+        byte[] rbStore = cs.rbStore;
+
+        rbStore[0] = (byte) (index >> 24);
+        rbStore[1] = (byte) (index >> 16);
+        rbStore[2] = (byte) (index >> 8);
+        rbStore[3] = (byte) index;
+
+        // Grow packet storage in one step
+        pkt.grow(SRTPCipherGCM.TAG_LENGTH + 4);
+
+        if (!processPacketAESGCM(cs, pkt, sentIndex, true, true))
+            return false;
+        pkt.append(rbStore, 4);
+
+        return true;
     }
 
     /**
      * Updates the SRTP packet index. The method is called after all checks were
-     * successful.
+     * successful. Invoked with the monitor of this instance held.
      *
      * @param index index number of the accepted packet
      */
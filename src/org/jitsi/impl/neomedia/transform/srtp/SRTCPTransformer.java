@@ -15,10 +15,9 @@
  */
 package org.jitsi.impl.neomedia.transform.srtp;
 
-import java.util.*;
-
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.util.concurrent.*;
 
 /**
  * SRTCPTransformer implements PacketTransformer.
@@ -30,13 +29,14 @@
 public class SRTCPTransformer
     extends SinglePacketTransformer
 {
-    private SRTPContextFactory forwardFactory;
-    private SRTPContextFactory reverseFactory;
+    private volatile SRTPContextFactory forwardFactory;
+    private volatile SRTPContextFactory reverseFactory;
 
     /**
-     * All the known SSRC's corresponding SRTCPCryptoContexts
+     * All the known SSRC's corresponding SRTCPCryptoContexts (read without
+     * locking, see {@link SRTPTransformer}).
      */
-    private final Map<Integer,SRTCPCryptoContext> contexts;
+    private final CopyOnWriteIntHashMap<SRTCPCryptoContext> contexts;
 
     /**
      * Constructs an <tt>SRTCPTransformer</tt>, sharing its
@@ -78,7 +78,7 @@ public SRTCPTransformer(
     {
         this.forwardFactory = forwardFactory;
         this.reverseFactory = reverseFactory;
-        this.contexts = new HashMap<Integer,SRTCPCryptoContext>();
+        this.contexts = new CopyOnWriteIntHashMap<>();
     }
 
     /**
@@ -129,15 +129,9 @@ public void close()
             if (reverseFactory != forwardFactory)
                 reverseFactory.close();
 
-            for (Iterator<SRTCPCryptoContext> i = contexts.values().iterator();
-                    i.hasNext();)
-            {
-                SRTCPCryptoContext context = i.next();
-
-                i.remove();
-                if (context != null)
-                    context.close();
-            }
+            for (SRTCPCryptoContext context : contexts.values())
+                context.close();
+            contexts.clear();
         }
     }
 
@@ -146,19 +140,22 @@ private SRTCPCryptoContext getContext(
             SRTPContextFactory engine)
     {
         int ssrc = pkt.getRTCPSSRC();
-        SRTCPCryptoContext context = null;
+        SRTCPCryptoContext context = contexts.get(ssrc);
 
-        synchronized (contexts)
+        if (context == null && engine != null)
         {
-            context = contexts.get(ssrc);
-            if (context == null && engine != null)
+            synchronized (contexts)
             {
-                context = engine.getDefaultContextControl();
-                if (context != null)
+                context = contexts.get(ssrc);
+                if (context == null)
                 {
-                    context = context.deriveContext(ssrc);
-                    context.deriveSrtcpKeys();
-                    contexts.put(ssrc, context);
+                    context = engine.getDefaultContextControl();
+                    if (context != null)
+                    {
+                        context = context.deriveContext(ssrc);
+                        context.deriveSrtcpKeys();
+                        contexts.put(ssrc, context);
+                    }
                 }
             }
         }
@@ -196,8 +193,7 @@ public RawPacket transform(RawPacket pkt)
 
         if(context != null)
         {
-            context.transformPacket(pkt);
-            return pkt;
+            return context.transformPacket(pkt) ? pkt : null;
         }
         else
         {
@@ -0,0 +1,97 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import java.security.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * @see SRTPCipherCTR
+ * SRTPCipherCTR implementation using an <tt>AES/CTR/NoPadding</tt>
+ * <tt>javax.crypto.Cipher</tt>. The keystream for the whole data is generated
+ * and applied in a single invocation of the <tt>Cipher</tt> (which the JIT
+ * compiles to AES-NI instructions in the case of SunJCE) rather than a block
+ * at a time.
+ *
+ * The <tt>Cipher</tt> increments the whole 128-bit counter whereas SRTP
+ * increments the last 16 bits only. The two are equivalent because
+ * {@link #checkProcessArgs(byte[], int, int, byte[])} limits the data to
+ * 2^16 blocks and the last 16 bits of the SRTP IVs are zero.
+ */
+public class SRTPCipherCTRJCE extends SRTPCipherCTR
+{
+    /**
+     * The name of the <tt>Cipher</tt> transformation implementing AES in
+     * counter mode.
+     */
+    public static final String TRANSFORMATION = "AES/CTR/NoPadding";
+
+    /**
+     * The <tt>AES/CTR/NoPadding</tt> <tt>Cipher</tt>.
+     */
+    private final Cipher cipher;
+
+    /**
+     * The key.
+     */
+    private SecretKeySpec key;
+
+    /**
+     * Initializes a new <tt>SRTPCipherCTRJCE</tt> instance which is to use a
+     * specific <tt>AES/CTR/NoPadding</tt> <tt>Cipher</tt>.
+     *
+     * @param cipher the <tt>AES/CTR/NoPadding</tt> <tt>Cipher</tt> to be used
+     * by the new instance
+     */
+    public SRTPCipherCTRJCE(Cipher cipher)
+    {
+        if (cipher == null)
+            throw new NullPointerException("cipher");
+
+        this.cipher = cipher;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init(byte[] key)
+    {
+        if (key.length != 16 && key.length != 24 && key.length != 32)
+            throw new IllegalArgumentException("Not an AES key length");
+
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void process(byte[] data, int off, int len, byte[] iv)
+    {
+        checkProcessArgs(data, off, len, iv);
+
+        try
+        {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+            cipher.doFinal(data, off, len, data, off);
+        }
+        catch (GeneralSecurityException gse)
+        {
+            throw new RuntimeException(gse);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import java.security.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Implements the AEAD_AES_128_GCM and AEAD_AES_256_GCM authenticated
+ * encryption of SRTP and SRTCP packets defined in RFC 7714 using the
+ * <tt>AES/GCM/NoPadding</tt> <tt>Cipher</tt> of the JRE, which the JIT
+ * compiles to AES-NI and carry-less multiplication instructions where these
+ * are available. The packets are encrypted and decrypted in place.
+ *
+ * An instance is not thread-safe and each packet is processed by an
+ * invocation of {@link #start(boolean, byte[])}, any number of invocations of
+ * {@link #updateAAD(byte[], int, int)} and an invocation of
+ * {@link #doFinal(byte[], int, int)}.
+ */
+public class SRTPCipherGCM
+{
+    /**
+     * The length in bytes of the initialization vector (RFC 7714 section 8.1).
+     */
+    public static final int IV_LENGTH = 12;
+
+    /**
+     * The length in bytes of the authentication tag (RFC 7714 section 7).
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * The name of the <tt>Cipher</tt> transformation implementing AES-GCM.
+     */
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    /**
+     * The indicator which determines whether AES-GCM is available in the JRE
+     * or <tt>null</tt> if it has not been determined yet.
+     */
+    private static Boolean supported;
+
+    /**
+     * Determines whether AES-GCM is available in the JRE (e.g. it is not
+     * available in the SunJCE provider of Java 7).
+     *
+     * @return <tt>true</tt> if AES-GCM is available in the JRE; otherwise,
+     * <tt>false</tt>
+     */
+    public static synchronized boolean isSupported()
+    {
+        if (supported == null)
+        {
+            boolean b;
+
+            try
+            {
+                Cipher.getInstance(TRANSFORMATION);
+                b = true;
+            }
+            catch (GeneralSecurityException gse)
+            {
+                b = false;
+            }
+            supported = Boolean.valueOf(b);
+        }
+        return supported.booleanValue();
+    }
+
+    /**
+     * The <tt>Cipher</tt> which implements AES-GCM.
+     */
+    private final Cipher cipher;
+
+    /**
+     * The session encryption key.
+     */
+    private SecretKeySpec key;
+
+    /**
+     * Initializes a new <tt>SRTPCipherGCM</tt> instance.
+     *
+     * @throws IllegalStateException if AES-GCM is not available in the JRE
+     */
+    public SRTPCipherGCM()
+    {
+        try
+        {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+        }
+        catch (GeneralSecurityException gse)
+        {
+            throw new IllegalStateException(TRANSFORMATION, gse);
+        }
+    }
+
+    /**
+     * Finishes the encryption or decryption of a packet. The operation is
+     * performed in place i.e. the output overwrites the input. When
+     * encrypting, <tt>buf</tt> must have room for {@link #TAG_LENGTH} bytes
+     * after <tt>off + len</tt> for the authentication tag. When decrypting,
+     * the input ends with the authentication tag.
+     *
+     * @param buf the buffer which contains the input and receives the output
+     * @param off the offset in <tt>buf</tt> at which the input starts
+     * @param len the length of the input
+     * @return the length of the output (i.e. <tt>len</tt> plus
+     * {@link #TAG_LENGTH} when encrypting or <tt>len</tt> minus
+     * <tt>TAG_LENGTH</tt> when decrypting) or <tt>-1</tt> if the
+     * authentication failed
+     */
+    public int doFinal(byte[] buf, int off, int len)
+    {
+        try
+        {
+            return cipher.doFinal(buf, off, len, buf, off);
+        }
+        catch (GeneralSecurityException gse)
+        {
+            // AEADBadTagException when the authentication failed.
+            return -1;
+        }
+    }
+
+    /**
+     * (Re)Initializes this instance with a specific session encryption key.
+     *
+     * @param key the session encryption key (16 or 32 bytes long)
+     */
+    public void init(byte[] key)
+    {
+        if (key.length != 16 && key.length != 32)
+            throw new IllegalArgumentException("Not an AES-GCM key length");
+
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * Starts the encryption or decryption of a packet.
+     *
+     * @param encrypt <tt>true</tt> to encrypt or <tt>false</tt> to decrypt
+     * @param iv the initialization vector the first {@link #IV_LENGTH} bytes
+     * of which are to be used
+     * @return <tt>true</tt> if the operation was started or <tt>false</tt> if
+     * the <tt>Cipher</tt> refused <tt>iv</tt> (e.g. because it would repeat
+     * the initialization vector of the previous encryption)
+     */
+    public boolean start(boolean encrypt, byte[] iv)
+    {
+        try
+        {
+            cipher.init(
+                    encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+                    key,
+                    new GCMParameterSpec(TAG_LENGTH * 8, iv, 0, IV_LENGTH));
+            return true;
+        }
+        catch (GeneralSecurityException gse)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Continues the encryption or decryption of a packet with (a part of) its
+     * associated data i.e. the data which is authenticated but not encrypted.
+     *
+     * @param buf the buffer which contains the associated data
+     * @param off the offset in <tt>buf</tt> at which the associated data starts
+     * @param len the length of the associated data
+     */
+    public void updateAAD(byte[] buf, int off, int len)
+    {
+        cipher.updateAAD(buf, off, len);
+    }
+}
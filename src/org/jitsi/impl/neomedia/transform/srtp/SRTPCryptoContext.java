@@ -38,8 +38,6 @@
 
 import javax.media.*;
 
-import org.bouncycastle.crypto.params.*;
-import org.jitsi.bccontrib.params.*;
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
@@ -120,15 +118,6 @@ private static synchronized void readConfigurationServicePropertiesOnce()
             checkReplay = cfg.getBoolean(CHECK_REPLAY_PNAME, checkReplay);
     }
 
-    /**
-     * For the receiver only, the rollover counter guessed from the sequence
-     * number of the received packet that is currently being processed (i.e. the
-     * value is valid during the execution of
-     * {@link #reverseTransformPacket(RawPacket)} only.) RFC 3711 refers to it
-     * by the name <tt>v</tt>.
-     */
-    private int guessedROC;
-
     /**
      * Key Derivation Rate, used to derive session keys from master keys
      */
@@ -228,17 +217,24 @@ public SRTPCryptoContext(
      * this <tt>SRTPCryptoContext</tt> specifies that authentication is to be
      * performed.
      *
+     * @param cs the <tt>CipherState</tt> of the current thread
      * @param pkt the <tt>RawPacket</tt> to authenticate
+     * @param guessedROC the rollover counter guessed for <tt>pkt</tt>
      * @return <tt>true</tt> if the <tt>policy</tt> of this
      * <tt>SRTPCryptoContext</tt> specifies that authentication is to not be
      * performed or <tt>pkt</tt> was successfully authenticated; otherwise,
      * <tt>false</tt>
      */
-    private boolean authenticatePacket(RawPacket pkt)
+    private boolean authenticatePacket(
+            CipherState cs,
+            RawPacket pkt,
+            int guessedROC)
     {
         if (policy.getAuthType() != SRTPPolicy.NULL_AUTHENTICATION)
         {
             int tagLength = policy.getAuthTagLength();
+            byte[] tempStore = cs.tempStore;
+            byte[] tagStore = cs.tagStore;
 
             // get original authentication and store in tempStore
             pkt.readRegionToBuff(
@@ -249,7 +245,7 @@ private boolean authenticatePacket(RawPacket pkt)
             pkt.shrink(tagLength);
 
             // save computed authentication in tagStore
-            authenticatePacketHMAC(pkt, guessedROC);
+            authenticatePacketHMAC(cs, pkt, guessedROC);
 
             // compare authentication tags using constant time comparison
             int nonEqual = 0;
@@ -267,7 +263,7 @@ private boolean authenticatePacket(RawPacket pkt)
      * Checks if a packet is a replayed based on its sequence number. The method
      * supports a 64 packet history relative the the specified sequence number.
      * The sequence number is guaranteed to be real (i.e. not faked) through
-     * authentication.
+     * authentication. Invoked with the monitor of this instance held.
      *
      * @param seqNo sequence number of the packet
      * @param guessedIndex guessed ROC
@@ -297,7 +293,7 @@ else if (-delta > REPLAY_WINDOW_SIZE)
                             + ", SSRC " + Long.toString(0xFFFFFFFFL & ssrc)
                             + " because it is outside the replay window! (roc "
                             + roc + ", s_l " + s_l + ", guessedROC "
-                            + guessedROC);
+                            + getROC(guessedIndex));
             }
             return false; // Packet too old.
         }
@@ -310,7 +306,7 @@ else if (((replayWindow >> (-delta)) & 0x1) != 0)
                             + ", SSRC " + Long.toString(0xFFFFFFFFL & ssrc)
                             + " because it has been received already! (roc "
                             + roc + ", s_l " + s_l + ", guessedROC "
-                            + guessedROC);
+                            + getROC(guessedIndex));
             }
             return false; // Packet received already!
         }
@@ -325,10 +321,11 @@ else if (((replayWindow >> (-delta)) & 0x1) != 0)
      * based on the label, the packet index, key derivation rate and master salt
      * key.
      *
+     * @param ivStore the array to store the initialization vector into
      * @param label label specified for each type of iv
      * @param index 48bit RTP packet index
      */
-    private void computeIv(long label, long index)
+    private void computeIv(byte[] ivStore, long label, long index)
     {
         long key_id;
 
@@ -384,14 +381,19 @@ public SRTPCryptoContext deriveContext(int ssrc, int roc, long deriveRate)
     }
 
     /**
-     * Derives the srtp session keys from the master key
+     * Derives the srtp session keys from the master key. The ciphers and the
+     * MAC of the threads which process packets are initialized with the
+     * session keys when the threads process their first packets.
      *
      * @param index the 48 bit SRTP packet index
      */
     synchronized public void deriveSrtpKeys(long index)
     {
+        SRTPCipherCTR cipherCtr = createCipherCTR();
+        byte[] ivStore = new byte[16];
+
         // compute the session encryption key
-        computeIv(0x00, index);
+        computeIv(ivStore, 0x00, index);
 
         cipherCtr.init(masterKey);
         Arrays.fill(masterKey, (byte) 0);
@@ -402,45 +404,34 @@ synchronized public void deriveSrtpKeys(long index)
         // compute the session authentication key
         if (authKey != null)
         {
-            computeIv(0x01, index);
+            computeIv(ivStore, 0x01, index);
             Arrays.fill(authKey, (byte) 0);
             cipherCtr.process(authKey, 0, policy.getAuthKeyLength(), ivStore);
-
-            switch (policy.getAuthType())
-            {
-            case SRTPPolicy.HMACSHA1_AUTHENTICATION:
-                mac.init(new KeyParameter(authKey));
-                break;
-
-            case SRTPPolicy.SKEIN_AUTHENTICATION:
-                // Skein MAC uses number of bits as MAC size, not just bytes
-                mac.init(
-                        new ParametersForSkein(
-                                new KeyParameter(authKey),
-                                ParametersForSkein.Skein512,
-                                tagStore.length * 8));
-                break;
-            }
-
-            Arrays.fill(authKey, (byte) 0);
         }
 
         // compute the session salt
-        computeIv(0x02, index);
+        computeIv(ivStore, 0x02, index);
         Arrays.fill(saltKey, (byte) 0);
         cipherCtr.process(saltKey, 0, policy.getSaltKeyLength(), ivStore);
         Arrays.fill(masterSalt, (byte) 0);
+    }
 
-        // As last step: initialize cipher with derived encryption key.
-        if (cipherF8 != null)
-            cipherF8.init(encKey, saltKey);
-        cipherCtr.init(encKey);
-        Arrays.fill(encKey, (byte) 0);
+    /**
+     * Gets the rollover counter of a specific SRTP index.
+     *
+     * @param index the SRTP index
+     * @return the rollover counter of <tt>index</tt> (which may be
+     * <tt>-1</tt> if guessed as such by {@link #guessIndex(int)})
+     */
+    private static int getROC(long index)
+    {
+        return (int) (index >> 16);
     }
 
     /**
      * For the receiver only, determines/guesses the SRTP index of a received
-     * SRTP packet with a specific sequence number.
+     * SRTP packet with a specific sequence number. Invoked with the monitor of
+     * this instance held.
      *
      * @param seqNo the sequence number of the received SRTP packet
      * @return the SRTP index of the received SRTP packet with the specified
@@ -448,6 +439,8 @@ synchronized public void deriveSrtpKeys(long index)
      */
     private long guessIndex(int seqNo)
     {
+        int guessedROC;
+
         if (s_l < 32768)
         {
             if (seqNo - s_l > 32768)
@@ -469,13 +462,19 @@ private long guessIndex(int seqNo)
     /**
      * Performs Counter Mode AES encryption/decryption
      *
+     * @param cs the <tt>CipherState</tt> of the current thread
      * @param pkt the RTP packet to be encrypted/decrypted
+     * @param guessedROC the rollover counter guessed for <tt>pkt</tt>
      */
-    public void processPacketAESCM(RawPacket pkt)
+    private void processPacketAESCM(
+            CipherState cs,
+            RawPacket pkt,
+            int guessedROC)
     {
         int ssrc = pkt.getSSRC();
         int seqNo = pkt.getSequenceNumber();
         long index = (((long) guessedROC) << 16) | seqNo;
+        byte[] ivStore = cs.ivStore;
 
         // byte[] iv = new byte[16];
         ivStore[0] = saltKey[0];
@@ -510,26 +509,101 @@ public void processPacketAESCM(RawPacket pkt)
         int payloadOffset = pkt.getHeaderLength();
         int payloadLength = pkt.getPayloadLength();
 
-        cipherCtr.process(
+        cs.cipherCtr.process(
                 pkt.getBuffer(), pkt.getOffset() + payloadOffset, payloadLength,
                 ivStore);
     }
 
+    /**
+     * Performs Galois/Counter Mode AES authenticated encryption/decryption
+     * (refer to RFC 7714). The RTP header is the associated data and the
+     * authentication tag follows the encrypted payload.
+     *
+     * @param cs the <tt>CipherState</tt> of the current thread
+     * @param pkt the RTP packet to be encrypted/decrypted
+     * @param roc the rollover counter (guessed) for <tt>pkt</tt>
+     * @param encrypt <tt>true</tt> to encrypt <tt>pkt</tt> and append the
+     * authentication tag to it or <tt>false</tt> to authenticate and decrypt
+     * <tt>pkt</tt> and remove the authentication tag from it
+     * @return <tt>true</tt> if <tt>pkt</tt> was processed or <tt>false</tt>
+     * if the authentication failed
+     */
+    private boolean processPacketAESGCM(
+            CipherState cs,
+            RawPacket pkt,
+            int roc,
+            boolean encrypt)
+    {
+        int ssrc = pkt.getSSRC();
+        int seqNo = pkt.getSequenceNumber();
+        byte[] ivStore = cs.ivStore;
+
+        /* Compute the IV (refer to section 8.1 in RFC 7714):
+         *
+         * 00 00 SSRC ROC SEQ
+         * k_s   XX XX XX XX XX XX XX XX XX XX XX XX
+         * ------------------------------------------XOR
+         * IV    XX XX XX XX XX XX XX XX XX XX XX XX
+         *        0  1  2  3  4  5  6  7  8  9 10 11
+         */
+        ivStore[0] = saltKey[0];
+        ivStore[1] = saltKey[1];
+        ivStore[2] = (byte) ((ssrc >> 24) ^ saltKey[2]);
+        ivStore[3] = (byte) ((ssrc >> 16) ^ saltKey[3]);
+        ivStore[4] = (byte) ((ssrc >> 8) ^ saltKey[4]);
+        ivStore[5] = (byte) (ssrc ^ saltKey[5]);
+        ivStore[6] = (byte) ((roc >> 24) ^ saltKey[6]);
+        ivStore[7] = (byte) ((roc >> 16) ^ saltKey[7]);
+        ivStore[8] = (byte) ((roc >> 8) ^ saltKey[8]);
+        ivStore[9] = (byte) (roc ^ saltKey[9]);
+        ivStore[10] = (byte) ((seqNo >> 8) ^ saltKey[10]);
+        ivStore[11] = (byte) (seqNo ^ saltKey[11]);
+
+        SRTPCipherGCM cipherGcm = cs.cipherGcm;
+
+        if (!cipherGcm.start(encrypt, ivStore))
+            return false;
+
+        // Make room for the authentication tag before the buffer is read
+        // because growing may reallocate it.
+        if (encrypt)
+            pkt.grow(SRTPCipherGCM.TAG_LENGTH);
+
+        byte[] buf = pkt.getBuffer();
+        int off = pkt.getOffset();
+        int headerLength = pkt.getHeaderLength();
+
+        cipherGcm.updateAAD(buf, off, headerLength);
+
+        int len
+            = cipherGcm.doFinal(
+                    buf,
+                    off + headerLength,
+                    pkt.getLength() - headerLength);
+
+        if (len < 0)
+            return false;
+        pkt.setLength(headerLength + len);
+        return true;
+    }
+
     /**
      * Performs F8 Mode AES encryption/decryption
      *
+     * @param cs the <tt>CipherState</tt> of the current thread
      * @param pkt the RTP packet to be encrypted/decrypted
+     * @param roc the rollover counter (guessed) for <tt>pkt</tt>
      */
-    public void processPacketAESF8(RawPacket pkt)
+    private void processPacketAESF8(CipherState cs, RawPacket pkt, int roc)
     {
+        byte[] ivStore = cs.ivStore;
+
         // 11 bytes of the RTP header are the 11 bytes of the iv
         // the first byte of the RTP header is not used.
         System.arraycopy(pkt.getBuffer(), pkt.getOffset(), ivStore, 0, 12);
         ivStore[0] = 0;
 
         // set the ROC in network order into IV
-        int roc = guessedROC;
-
         ivStore[12] = (byte) (roc >> 24);
         ivStore[13] = (byte) (roc >> 16);
         ivStore[14] = (byte) (roc >> 8);
@@ -538,7 +612,7 @@ public void processPacketAESF8(RawPacket pkt)
         int payloadOffset = pkt.getHeaderLength();
         int payloadLength = pkt.getPayloadLength();
 
-        cipherF8.process(
+        cs.cipherF8.process(
                 pkt.getBuffer(), pkt.getOffset() + payloadOffset, payloadLength,
                 ivStore);
     }
@@ -554,80 +628,98 @@ public void processPacketAESF8(RawPacket pkt)
      * shall not use SRTP TransformConnector. We should use the original method
      * (RTPManager managed transportation) instead.
      *
+     * The authentication and the decryption are performed without holding the
+     * monitor of this instance so several threads may reverse-transform
+     * packets with this instance at once.
+     *
      * @param pkt the RTP packet that is just received
      * @return <tt>true</tt> if the packet can be accepted; <tt>false</tt> if
      * the packet failed authentication or failed replay check
      */
-    synchronized public boolean reverseTransformPacket(RawPacket pkt)
+    public boolean reverseTransformPacket(RawPacket pkt)
     {
-        if (logger.isDebugEnabled())
+        int seqNo = pkt.getSequenceNumber();
+        long guessedIndex;
+
+        synchronized (this)
         {
-            logger.debug(
-                    "Reverse transform for SSRC " + this.ssrc
-                        + " SeqNo=" + pkt.getSequenceNumber()
-                        + " s_l=" + s_l
-                        + " seqNumSet=" + seqNumSet
-                        + " guessedROC=" + guessedROC
-                        + " roc=" + roc);
+            if (logger.isDebugEnabled())
+            {
+                logger.debug(
+                        "Reverse transform for SSRC " + this.ssrc
+                            + " SeqNo=" + seqNo
+                            + " s_l=" + s_l
+                            + " seqNumSet=" + seqNumSet
+                            + " roc=" + roc);
+            }
+
+            if (!seqNumSet)
+            {
+                seqNumSet = true;
+                s_l = seqNo;
+            }
+
+            // Guess the SRTP index (48 bit), see RFC 3711, 3.3.1
+            guessedIndex = guessIndex(seqNo);
+
+            // Replay control
+            if (!checkReplay(seqNo, guessedIndex))
+                return false;
         }
 
-        int seqNo = pkt.getSequenceNumber();
+        int guessedROC = getROC(guessedIndex);
+        CipherState cs = getCipherState();
+
+        if (cs == null)
+            return false;
 
-        if (!seqNumSet)
+        // Authenticate the packet. AES-GCM authenticates while it decrypts so
+        // it cannot skip the decrypting.
+        if ((policy.getEncType() == SRTPPolicy.AESGCM_ENCRYPTION)
+                ? !processPacketAESGCM(cs, pkt, guessedROC, false)
+                : !authenticatePacket(cs, pkt, guessedROC))
         {
-            seqNumSet = true;
-            s_l = seqNo;
+            if (logger.isDebugEnabled())
+                logger.debug("SRTP auth failed for SSRC " + ssrc);
+            return false;
         }
 
-        // Guess the SRTP index (48 bit), see RFC 3711, 3.3.1
-        // Stores the guessed rollover counter (ROC) in this.guessedROC.
-        long guessedIndex = guessIndex(seqNo);
-        boolean b = false;
-
-        // Replay control
-        if (checkReplay(seqNo, guessedIndex))
+        // If a RawPacket is flagged with Buffer.FLAG_DISCARD, then it should
+        // have been discarded earlier. Anyway, at least skip its decrypting. We
+        // flag a RawPacket with Buffer.FLAG_SILENCE when we want to ignore its
+        // payload. In the context of SRTP, we want to skip its decrypting.
+        if ((pkt.getFlags() & (Buffer.FLAG_DISCARD | Buffer.FLAG_SILENCE))
+                == 0)
         {
-            // Authenticate the packet.
-            if (authenticatePacket(pkt))
-            {
-                // If a RawPacket is flagged with Buffer.FLAG_DISCARD, then it
-                // should have been discarded earlier. Anyway, at least skip its
-                // decrypting. We flag a RawPacket with Buffer.FLAG_SILENCE when
-                // we want to ignore its payload. In the context of SRTP, we
-                // want to skip its decrypting.
-                if ((pkt.getFlags()
-                            & (Buffer.FLAG_DISCARD | Buffer.FLAG_SILENCE))
-                        == 0)
-                {
-                    switch (policy.getEncType())
-                    {
-                    // Decrypt the packet using Counter Mode encryption.
-                    case SRTPPolicy.AESCM_ENCRYPTION:
-                    case SRTPPolicy.TWOFISH_ENCRYPTION:
-                        processPacketAESCM(pkt);
-                        break;
-
-                    // Decrypt the packet using F8 Mode encryption.
-                    case SRTPPolicy.AESF8_ENCRYPTION:
-                    case SRTPPolicy.TWOFISHF8_ENCRYPTION:
-                        processPacketAESF8(pkt);
-                        break;
-                    }
-                }
-
-                // Update the rollover counter and highest sequence number if
-                // necessary.
-                update(seqNo, guessedIndex);
-
-                b = true;
-            }
-            else if (logger.isDebugEnabled())
+            switch (policy.getEncType())
             {
-                logger.debug("SRTP auth failed for SSRC " + ssrc);
+            // Decrypt the packet using Counter Mode encryption.
+            case SRTPPolicy.AESCM_ENCRYPTION:
+            case SRTPPolicy.TWOFISH_ENCRYPTION:
+                processPacketAESCM(cs, pkt, guessedROC);
+                break;
+
+            // Decrypt the packet using F8 Mode encryption.
+            case SRTPPolicy.AESF8_ENCRYPTION:
+            case SRTPPolicy.TWOFISHF8_ENCRYPTION:
+                processPacketAESF8(cs, pkt, guessedROC);
+                break;
             }
         }
 
-        return b;
+        synchronized (this)
+        {
+            // Another thread may have accepted a packet with the same index
+            // in the meantime.
+            if (!checkReplay(seqNo, guessedIndex))
+                return false;
+
+            // Update the rollover counter and highest sequence number if
+            // necessary.
+            update(seqNo, guessedIndex);
+        }
+
+        return true;
     }
 
     /**
@@ -642,27 +734,44 @@ else if (logger.isDebugEnabled())
      * shall not use SRTP TransformConnector. We should use the original method
      * (RTPManager managed transportation) instead.
      *
+     * The encryption and the authentication are performed without holding the
+     * monitor of this instance so several threads may transform packets with
+     * this instance at once.
+     *
      * @param pkt the RTP packet that is going to be sent out
      */
-    synchronized public boolean transformPacket(RawPacket pkt)
+    public boolean transformPacket(RawPacket pkt)
     {
         int seqNo = pkt.getSequenceNumber();
+        long guessedIndex;
 
-        if (!seqNumSet)
+        synchronized (this)
         {
-            seqNumSet = true;
-            s_l = seqNo;
+            if (!seqNumSet)
+            {
+                seqNumSet = true;
+                s_l = seqNo;
+            }
+
+            // Guess the SRTP index (48 bit), see RFC 3711, 3.3.1
+            guessedIndex = guessIndex(seqNo);
+
+            /*
+             * XXX The invocation of the checkReplay method here is not meant as
+             * replay protection but as a consistency check of our
+             * implementation.
+             */
+            if (!checkReplay(seqNo, guessedIndex))
+                return false;
+
+            // Update the ROC if necessary.
+            update(seqNo, guessedIndex);
         }
 
-        // Guess the SRTP index (48 bit), see RFC 3711, 3.3.1
-        // Stores the guessed ROC in this.guessedROC
-        long guessedIndex = guessIndex(seqNo);
+        int guessedROC = getROC(guessedIndex);
+        CipherState cs = getCipherState();
 
-        /*
-         * XXX The invocation of the checkReplay method here is not meant as
-         * replay protection but as a consistency check of our implementation.
-         */
-        if (!checkReplay(seqNo, guessedIndex))
+        if (cs == null)
             return false;
 
         switch (policy.getEncType())
@@ -670,26 +779,30 @@ synchronized public boolean transformPacket(RawPacket pkt)
         // Encrypt the packet using Counter Mode encryption.
         case SRTPPolicy.AESCM_ENCRYPTION:
         case SRTPPolicy.TWOFISH_ENCRYPTION:
-            processPacketAESCM(pkt);
+            processPacketAESCM(cs, pkt, guessedROC);
             break;
 
         // Encrypt the packet using F8 Mode encryption.
         case SRTPPolicy.AESF8_ENCRYPTION:
-        case SRTPPolicy.TWOFISHF8_ENCRYPTION:   
-            processPacketAESF8(pkt);
+        case SRTPPolicy.TWOFISHF8_ENCRYPTION:
+            processPacketAESF8(cs, pkt, guessedROC);
+            break;
+
+        // Encrypt and authenticate the packet using Galois/Counter Mode
+        // encryption.
+        case SRTPPolicy.AESGCM_ENCRYPTION:
+            if (!processPacketAESGCM(cs, pkt, guessedROC, true))
+                return false;
             break;
         }
 
         /* Authenticate the packet. */
         if (policy.getAuthType() != SRTPPolicy.NULL_AUTHENTICATION)
         {
-            authenticatePacketHMAC(pkt, guessedROC);
-            pkt.append(tagStore, policy.getAuthTagLength());
+            authenticatePacketHMAC(cs, pkt, guessedROC);
+            pkt.append(cs.tagStore, policy.getAuthTagLength());
         }
 
-        // Update the ROC if necessary.
-        update(seqNo, guessedIndex);
-
         return true;
     }
 
@@ -699,7 +812,7 @@ synchronized public boolean transformPacket(RawPacket pkt)
      * context using the SRTP/packet index calculated by
      * {@link #guessIndex(int)} and updates the replay list (i.e.
      * {@link #replayWindow}). This method is called after all checks were
-     * successful.
+     * successful. Invoked with the monitor of this instance held.
      *
      * @param seqNo the sequence number of the accepted SRTP packet
      * @param guessedIndex the SRTP index of the accepted SRTP packet calculated
@@ -708,6 +821,7 @@ synchronized public boolean transformPacket(RawPacket pkt)
     private void update(int seqNo, long guessedIndex)
     {
         long delta = guessedIndex - ((((long) roc) << 16) | s_l);
+        int guessedROC = getROC(guessedIndex);
 
         /* Update the replay bit mask. */
         if (delta > 0)
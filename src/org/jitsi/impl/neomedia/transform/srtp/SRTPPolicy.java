@@ -47,6 +47,14 @@
      * F8 Mode TwoFish Cipher
      */
     public final static int TWOFISHF8_ENCRYPTION = 4;
+
+    /**
+     * Galois/Counter Mode AES Cipher, defined in RFC 7714. It is an AEAD
+     * cipher i.e. it authenticates the packets itself, so it is used with
+     * {@link #NULL_AUTHENTICATION} and an authentication tag length of 16.
+     */
+    public final static int AESGCM_ENCRYPTION = 5;
+
     /**
      * Null Authentication, no authentication
      */
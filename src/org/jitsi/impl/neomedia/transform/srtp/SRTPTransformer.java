@@ -34,10 +34,9 @@
 */
 package org.jitsi.impl.neomedia.transform.srtp;
 
-import java.util.*;
-
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.util.concurrent.*;
 
 /**
  * SRTPTransformer implements PacketTransformer and provides implementations
@@ -53,13 +52,16 @@
 public class SRTPTransformer
     extends SinglePacketTransformer
 {
-    SRTPContextFactory forwardFactory;
-    SRTPContextFactory reverseFactory;
+    volatile SRTPContextFactory forwardFactory;
+    volatile SRTPContextFactory reverseFactory;
 
     /**
-     * All the known SSRC's corresponding SRTPCryptoContexts
+     * All the known SSRC's corresponding SRTPCryptoContexts. Looked up without
+     * locking for every packet and modified with the monitor of the table
+     * held when a context is (derived and) added or when the contexts are
+     * closed.
      */
-    private final Map<Integer,SRTPCryptoContext> contexts;
+    private final CopyOnWriteIntHashMap<SRTPCryptoContext> contexts;
 
     /**
      * Initializes a new <tt>SRTPTransformer</tt> instance.
@@ -86,7 +88,7 @@ public SRTPTransformer(
     {
         this.forwardFactory = forwardFactory;
         this.reverseFactory = reverseFactory;
-        this.contexts = new HashMap<Integer,SRTPCryptoContext>();
+        this.contexts = new CopyOnWriteIntHashMap<>();
     }
 
     /**
@@ -137,15 +139,9 @@ public void close()
             if (reverseFactory != forwardFactory)
                 reverseFactory.close();
 
-            for (Iterator<SRTPCryptoContext> i = contexts.values().iterator();
-                    i.hasNext();)
-            {
-                SRTPCryptoContext context = i.next();
-
-                i.remove();
-                if (context != null)
-                    context.close();
-            }
+            for (SRTPCryptoContext context : contexts.values())
+                context.close();
+            contexts.clear();
         }
     }
 
@@ -154,19 +150,22 @@ private SRTPCryptoContext getContext(
             SRTPContextFactory engine,
             int deriveSrtpKeysIndex)
     {
-        SRTPCryptoContext context;
+        SRTPCryptoContext context = contexts.get(ssrc);
 
-        synchronized (contexts)
+        if (context == null)
         {
-            context = contexts.get(ssrc);
-            if (context == null)
+            synchronized (contexts)
             {
-                context = engine.getDefaultContext();
-                if (context != null)
+                context = contexts.get(ssrc);
+                if (context == null)
                 {
-                    context = context.deriveContext(ssrc, 0, 0);
-                    context.deriveSrtpKeys(deriveSrtpKeysIndex);
-                    contexts.put(ssrc, context);
+                    context = engine.getDefaultContext();
+                    if (context != null)
+                    {
+                        context = context.deriveContext(ssrc, 0, 0);
+                        context.deriveSrtpKeys(deriveSrtpKeysIndex);
+                        contexts.put(ssrc, context);
+                    }
                 }
             }
         }
@@ -99,4 +99,24 @@ public BlockCipher createBlockCipher(int keySize)
                                     Integer.toString(keySize * 8)),
                             provider));
     }
+
+    /**
+     * Initializes a new <tt>SRTPCipherCTR</tt> instance which generates the
+     * keystream of whole packets in single invocations of the
+     * <tt>AES/CTR/NoPadding</tt> <tt>Cipher</tt> provided by the
+     * <tt>java.security.Provider</tt> of this instance.
+     *
+     * @return a new <tt>SRTPCipherCTR</tt> instance
+     * @throws GeneralSecurityException if the <tt>java.security.Provider</tt>
+     * of this instance does not implement <tt>AES/CTR/NoPadding</tt>
+     */
+    SRTPCipherCTR createCTRCipher()
+        throws GeneralSecurityException
+    {
+        return
+            new SRTPCipherCTRJCE(
+                    Cipher.getInstance(
+                            SRTPCipherCTRJCE.TRANSFORMATION,
+                            provider));
+    }
 }
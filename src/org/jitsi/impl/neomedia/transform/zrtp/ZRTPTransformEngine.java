@@ -21,6 +21,7 @@
 import java.io.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.transform.*;
@@ -29,6 +30,7 @@
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.util.*;
+import org.jitsi.util.concurrent.*;
 
 /**
  * JMF extension/connector to support GNU ZRTP4J.
@@ -160,128 +162,79 @@
                ZrtpCallback
 {
     /**
-     * Very simple Timeout provider class.
-     *
-     * This very simple timeout provider can handle one timeout request at
-     * one time only. A second request would overwrite the first one and would
-     * lead to unexpected results.
-     *
-     * @author Werner Dittmann <Werner.Dittmann@t-online.de>
+     * The maximum number of ZRTP messages and timeouts of an engine which wait
+     * for a thread of {@link #workerPool}. ZRTP retransmits the messages which
+     * are dropped because of the limit.
      */
-    private class TimeoutProvider extends Thread
-    {
-        /**
-         * Constructs Timeout provider.
-         * @param name the name of the provider.
-         */
-        public TimeoutProvider(String name)
-        {
-            super(name);
-        }
-
-        /**
-         * The delay to wait before timeout.
-         */
-        private long nextDelay = 0;
-
-        /**
-         * Whether to execute the timeout if delay expires.
-         */
-        private boolean newTask = false;
+    private static final int WORKER_QUEUE_CAPACITY = 64;
 
-        /**
-         * Whether thread is stopped.
-         */
-        private boolean stop = false;
-
-        /**
-         * synchronizes delays and stop.
-         */
-        private final Object sync = new Object();
+    /**
+     * The name of the property which specifies the number of threads which
+     * process the ZRTP messages (i.e. do the Diffie-Hellman computations of
+     * the call setups) of all <tt>ZRTPTransformEngine</tt>s. The default value
+     * is the number of available processors.
+     */
+    public static final String WORKER_THREADS_PNAME
+        = ZRTPTransformEngine.class.getName() + ".workerThreads";
 
-        /**
-         * Request timeout after the specified delay.
-         * @param delay the delay.
-         */
-        public synchronized void requestTimeout(long delay)
-        {
-            synchronized (sync)
-            {
-                nextDelay = delay;
-                newTask = true;
-                sync.notifyAll();
-            }
-        }
+    /**
+     * The pool of threads which process the ZRTP messages and timeouts of all
+     * <tt>ZRTPTransformEngine</tt>s.
+     */
+    private static ExecutorService workerPool;
 
-        /**
-         * Stops the thread.
-         */
-        public void stopRun()
-        {
-            synchronized (sync)
-            {
-                stop = true;
-                sync.notifyAll();
-            }
-        }
+    /**
+     * The timing wheel which serves the ZRTP retransmission timers of all
+     * <tt>ZRTPTransformEngine</tt>s with a single thread.
+     */
+    private static HashedWheelTimer timer;
 
-        /**
-         * Cancels the last request.
-         */
-        public void cancelRequest()
+    /**
+     * Gets the timing wheel which serves the ZRTP retransmission timers of all
+     * <tt>ZRTPTransformEngine</tt>s.
+     *
+     * @return the timing wheel which serves the ZRTP retransmission timers of
+     * all <tt>ZRTPTransformEngine</tt>s
+     */
+    private static synchronized HashedWheelTimer getTimer()
+    {
+        if (timer == null)
         {
-            synchronized (sync)
-            {
-                newTask = false;
-                sync.notifyAll();
-            }
+            // The ZRTP timers are in the range of tens of milliseconds (T1) to
+            // seconds (T2) so a 10ms tick and a 5 second wheel suffice.
+            timer
+                = new HashedWheelTimer(
+                        ZRTPTransformEngine.class.getName() + ".timer",
+                        10,
+                        512);
         }
+        return timer;
+    }
 
-        /**
-         * The running part of the thread.
-         */
-        @Override
-        public void run()
+    /**
+     * Gets the pool of threads which process the ZRTP messages and timeouts
+     * of all <tt>ZRTPTransformEngine</tt>s.
+     *
+     * @return the pool of threads which process the ZRTP messages and
+     * timeouts of all <tt>ZRTPTransformEngine</tt>s
+     */
+    private static synchronized ExecutorService getWorkerPool()
+    {
+        if (workerPool == null)
         {
-            while (!stop)
-            {
-                synchronized (sync)
-                {
-                    while (!newTask && !stop)
-                    {
-                        try
-                        {
-                            sync.wait();
-                        }
-                        catch (InterruptedException e)
-                        {
-                            // e.printStackTrace();
-                        }
-                    }
-                }
-                long currentTime = System.currentTimeMillis();
-                long endTime = currentTime + nextDelay;
-                synchronized (sync) {
-                    while ((currentTime < endTime) && newTask && !stop)
-                    {
-                        try
-                        {
-                            sync.wait(endTime - currentTime);
-                        }
-                        catch (InterruptedException e)
-                        {
-                            //e.printStackTrace();
-                        }
-                        currentTime = System.currentTimeMillis();
-                    }
-                }
-                if (newTask && !stop)
-                {
-                    newTask = false;
-                    ZRTPTransformEngine.this.handleTimeout();
-                }
-            }
+            int threads
+                = ConfigUtils.getInt(
+                        LibJitsi.getConfigurationService(),
+                        WORKER_THREADS_PNAME,
+                        Runtime.getRuntime().availableProcessors());
+
+            workerPool
+                = ExecutorUtils.newFixedThreadPool(
+                        Math.max(1, threads),
+                        true,
+                        ZRTPTransformEngine.class.getName() + ".worker");
         }
+        return workerPool;
     }
 
     /**
@@ -304,12 +257,12 @@ public void run()
     /**
      * We need Out SRTPTransformer to transform RTP to SRTP.
      */
-    private SRTPTransformer srtpOutTransformer = null;
+    private volatile SRTPTransformer srtpOutTransformer = null;
 
     /**
      * We need In SRTPTransformer to transform SRTP to RTP.
      */
-    private SRTPTransformer srtpInTransformer = null;
+    private volatile SRTPTransformer srtpInTransformer = null;
 
     /**
      * User callback class.
@@ -319,7 +272,7 @@ public void run()
     /**
      * The ZRTP engine.
      */
-    private ZRtp zrtpEngine = null;
+    private volatile ZRtp zrtpEngine = null;
 
     /**
      * ZRTP engine enable flag (used for auto-enable at initialization)
@@ -342,10 +295,24 @@ public void run()
     private short senderZrtpSeqNo = 0;
 
     /**
-     * The timeout provider instance
-     * This is used for handling the ZRTP timers
+     * The ZRTP timer which is active on {@link #timer} or <tt>null</tt>. ZRTP
+     * has a single timer active at a time.
+     */
+    private HashedWheelTimer.Timeout timeout = null;
+
+    /**
+     * The <tt>Object</tt> which synchronizes the access to {@link #timeout}.
+     */
+    private final Object timeoutSyncRoot = new Object();
+
+    /**
+     * Runs the ZRTP messages and timeouts of this engine in order (because
+     * {@link #zrtpEngine} is not thread-safe) on the shared
+     * {@link #workerPool} rather than on the threads which receive the packets
+     * and on the thread of {@link #timer}.
      */
-    private TimeoutProvider timeoutProvider = null;
+    private final SerialExecutor worker
+        = new SerialExecutor(getWorkerPool(), WORKER_QUEUE_CAPACITY);
 
     /**
      * The current condition of the ZRTP engine
@@ -576,14 +543,6 @@ public synchronized boolean initialize(
         zrtpEngine
             = new ZRtp(zf.getZid(), this, clientIdString, config, mitmMode);
 
-        if (timeoutProvider == null)
-        {
-            timeoutProvider = new TimeoutProvider("ZRTP");
-            // XXX Daemon only if timeoutProvider is a global singleton.
-            // timeoutProvider.setDaemon(true);
-            timeoutProvider.start();
-        }
-
         enableZrtp = autoEnable;
         return true;
     }
@@ -695,12 +654,7 @@ public void cleanup()
         disposed = true;
 
         stopZrtp();
-
-        if (timeoutProvider != null)
-        {
-            timeoutProvider.stopRun();
-            timeoutProvider = null;
-        }
+        cancelTimer();
     }
 
     /**
@@ -768,7 +722,21 @@ public RawPacket reverseTransform(RawPacket pkt)
                     && zrtpEngine.inState(
                             ZrtpStateClass.ZrtpStates.WaitConfAck))
             {
-                zrtpEngine.conf2AckSecure();
+                final ZRtp zrtpEngine = this.zrtpEngine;
+
+                executeInWorker(
+                        new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                if (zrtpEngine
+                                        == ZRTPTransformEngine.this.zrtpEngine)
+                                {
+                                    zrtpEngine.conf2AckSecure();
+                                }
+                            }
+                        });
             }
             if (pkt2 != null)
                 zrtpUnprotect++;
@@ -797,11 +765,31 @@ else if (zPkt.hasMagic())
                         - zPkt.getExtensionLength() - RawPacket.EXT_HEADER_SIZE;
                 // zrtp engine need a "pointer" to the extension header, so we
                 // give him the extension header and the payload data
-                byte[] extHeader = zPkt.readRegion(
+                final byte[] extHeader = zPkt.readRegion(
                     extHeaderOffset,
                     RawPacket.EXT_HEADER_SIZE +
                     zPkt.getExtensionLength() + zPkt.getPayloadLength());
-                zrtpEngine.processZrtpMessage(extHeader, zPkt.getSSRC());
+                final int ssrc = zPkt.getSSRC();
+                final ZRtp zrtpEngine = this.zrtpEngine;
+
+                // The processing of a ZRTP message may involve a
+                // Diffie-Hellman computation which is not to delay the thread
+                // receiving the packets.
+                executeInWorker(
+                        new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                if (zrtpEngine
+                                        == ZRTPTransformEngine.this.zrtpEngine)
+                                {
+                                    zrtpEngine.processZrtpMessage(
+                                            extHeader,
+                                            ssrc);
+                                }
+                            }
+                        });
             }
         }
 
@@ -1042,8 +1030,26 @@ else if (part == EnableSecurity.ForReceiver)
      */
     public int activateTimer(int time)
     {
-        if (timeoutProvider != null)
-            timeoutProvider.requestTimeout(time);
+        synchronized (timeoutSyncRoot)
+        {
+            // A new request overwrites the active one.
+            if (timeout != null)
+                timeout.cancel();
+
+            // The timer hands the Timeout to the task so the task does not
+            // read it from this thread without synchronization.
+            timeout
+                = getTimer().newTimeout(
+                        new HashedWheelTimer.TimerTask()
+                        {
+                            @Override
+                            public void run(HashedWheelTimer.Timeout timeout)
+                            {
+                                timerExpired(timeout);
+                            }
+                        },
+                        time);
+        }
         return 1;
     }
 
@@ -1053,8 +1059,14 @@ public int activateTimer(int time)
      */
     public int cancelTimer()
     {
-        if (timeoutProvider != null)
-            timeoutProvider.cancelRequest();
+        synchronized (timeoutSyncRoot)
+        {
+            if (timeout != null)
+            {
+                timeout.cancel();
+                timeout = null;
+            }
+        }
         return 1;
     }
 
@@ -1064,10 +1076,59 @@ public int cancelTimer()
      */
     public void handleTimeout()
     {
+        ZRtp zrtpEngine = this.zrtpEngine;
+
         if (zrtpEngine != null)
             zrtpEngine.processTimeout();
     }
 
+    /**
+     * Runs a specific task related to {@link #zrtpEngine} on {@link #worker}.
+     * The task is dropped if too many tasks of this engine are waiting already
+     * (which ZRTP recovers from with its retransmissions).
+     *
+     * @param task the task to run
+     */
+    private void executeInWorker(Runnable task)
+    {
+        try
+        {
+            worker.execute(task);
+        }
+        catch (RejectedExecutionException ree)
+        {
+            logger.warn("Dropping a ZRTP task: " + ree.getMessage());
+        }
+    }
+
+    /**
+     * Notifies this engine that a ZRTP timer which it has requested on
+     * {@link #timer} has expired. Runs in the thread of <tt>timer</tt> and
+     * hands the actual handling of the timeout over to {@link #worker}.
+     *
+     * @param timeout the <tt>Timeout</tt> which has expired
+     */
+    private void timerExpired(final HashedWheelTimer.Timeout timeout)
+    {
+        executeInWorker(
+                new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        synchronized (timeoutSyncRoot)
+                        {
+                            // The timer may have been cancelled or overwritten
+                            // while the task was waiting for the worker.
+                            if (timeout != ZRTPTransformEngine.this.timeout)
+                                return;
+                            ZRTPTransformEngine.this.timeout = null;
+                        }
+                        handleTimeout();
+                    }
+                });
+    }
+
     /**
      * Send information messages to the hosting environment.
      * @param severity This defines the message's severity
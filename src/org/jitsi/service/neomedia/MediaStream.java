@@ -546,6 +546,20 @@ public void configureSSRCRewriting(
      */
     public RetransmissionRequester getRetransmissionRequester();
 
+    /**
+     * Sets the associations of the SSRCs of the RTP streams sent by this
+     * <tt>MediaStream</tt> with the SSRCs of their retransmission (RTX)
+     * streams (RFC 4588). The packets requested by the RTCP NACKs of the
+     * receivers are retransmitted with the payload type of the <tt>rtx</tt>
+     * format added with {@link #addDynamicRTPPayloadType(byte, MediaFormat)}
+     * the <tt>apt</tt> parameter of which is their payload type. Any previous
+     * associations are replaced.
+     *
+     * @param ssrcs maps the SSRC of a sent stream to the SSRC of its
+     * retransmission (RTX) stream.
+     */
+    public void setRtxSsrcs(Map<Long, Long> ssrcs);
+
     /**
      * Gets the {@link TransformEngineChain} of this {@link MediaStream}.
      */
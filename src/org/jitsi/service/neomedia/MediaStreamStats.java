@@ -409,6 +409,12 @@
      */
     public void addNackListener(NACKListener listener);
 
+    /**
+     * Removes a listener which was notified when NACK packets were received.
+     * @param listener the listener.
+     */
+    public void removeNackListener(NACKListener listener);
+
     /**
      * Adds a listener which will be notified when REMB packets are received.
      * @param listener the listener.
@@ -0,0 +1,495 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+
+/**
+ * Implements a process-wide pool of <tt>byte</tt> arrays to be used as packet
+ * buffers (e.g. by <tt>RawPacket</tt>s) in order to reduce their allocations
+ * and garbage collection.
+ *
+ * The buffers are pooled in size classes (256, 1500 and 4096 bytes by
+ * default). A request is served from the smallest size class which fits it
+ * and a buffer is returned into the largest size class which it fits. Each
+ * thread keeps a small magazine of buffers per size class so that the common
+ * case of a thread acquiring and releasing buffers does not touch shared
+ * state. Full and empty magazines are exchanged with a depot of fixed
+ * capacity per size class which is accessed through compare-and-set only.
+ *
+ * The numbers of hits, misses, releases, discards and outstanding buffers are
+ * counted in order to allow sizing the pool for the steady state.
+ */
+public class ByteArrayPool
+{
+    /**
+     * The name of the <tt>ConfigurationService</tt> and/or <tt>System</tt>
+     * property which specifies the comma-separated lengths in bytes of the
+     * buffers of the size classes.
+     */
+    public static final String SIZE_CLASSES_PNAME
+        = ByteArrayPool.class.getName() + ".SIZE_CLASSES";
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> and/or <tt>System</tt>
+     * property which specifies the number of buffers in a magazine.
+     */
+    public static final String MAGAZINE_CAPACITY_PNAME
+        = ByteArrayPool.class.getName() + ".MAGAZINE_CAPACITY";
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> and/or <tt>System</tt>
+     * property which specifies the number of full magazines kept in the depot
+     * of a size class.
+     */
+    public static final String DEPOT_CAPACITY_PNAME
+        = ByteArrayPool.class.getName() + ".DEPOT_CAPACITY";
+
+    /**
+     * The default value of {@link #SIZE_CLASSES_PNAME}.
+     */
+    private static final String DEFAULT_SIZE_CLASSES = "256,1500,4096";
+
+    /**
+     * The size classes of the pool ordered by increasing buffer length.
+     */
+    private static final SizeClass[] sizeClasses;
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        String lengths
+            = ConfigUtils.getString(
+                    cfg,
+                    SIZE_CLASSES_PNAME,
+                    DEFAULT_SIZE_CLASSES);
+        int magazineCapacity
+            = Math.max(1, ConfigUtils.getInt(cfg, MAGAZINE_CAPACITY_PNAME, 16));
+        int depotCapacity
+            = Math.max(1, ConfigUtils.getInt(cfg, DEPOT_CAPACITY_PNAME, 64));
+
+        String[] split = lengths.split(",");
+        int[] parsed = new int[split.length];
+        int count = 0;
+
+        for (String s : split)
+        {
+            try
+            {
+                int length = Integer.parseInt(s.trim());
+
+                if (length > 0)
+                    parsed[count++] = length;
+            }
+            catch (NumberFormatException nfe)
+            {
+                // Ignore the invalid length.
+            }
+        }
+        Arrays.sort(parsed, 0, count);
+
+        sizeClasses = new SizeClass[count];
+        for (int i = 0; i < count; i++)
+        {
+            sizeClasses[i]
+                = new SizeClass(parsed[i], magazineCapacity, depotCapacity);
+        }
+    }
+
+    /**
+     * Gets a buffer with a length of at least a specific number of bytes. The
+     * contents of the returned buffer are undefined.
+     *
+     * @param minLength the minimum length in bytes of the buffer to get
+     * @return a buffer with a length of at least <tt>minLength</tt> bytes
+     */
+    public static byte[] getBuffer(int minLength)
+    {
+        for (SizeClass sizeClass : sizeClasses)
+        {
+            if (minLength <= sizeClass.length)
+                return sizeClass.get();
+        }
+
+        // Larger than the largest size class, not pooled.
+        return new byte[minLength];
+    }
+
+    /**
+     * Returns a buffer (which is no longer in use) to the pool. The caller
+     * must not access the buffer afterwards.
+     *
+     * @param buffer the buffer to return to the pool
+     */
+    public static void returnBuffer(byte[] buffer)
+    {
+        if (buffer == null)
+            return;
+
+        for (int i = sizeClasses.length - 1; i >= 0; i--)
+        {
+            SizeClass sizeClass = sizeClasses[i];
+
+            if (buffer.length >= sizeClass.length)
+            {
+                sizeClass.release(buffer);
+                return;
+            }
+        }
+        // Smaller than the smallest size class, leave it to the GC.
+    }
+
+    /**
+     * Gets the lengths in bytes of the buffers of the size classes of the
+     * pool ordered by increasing length.
+     *
+     * @return the lengths in bytes of the buffers of the size classes
+     */
+    public static int[] getSizeClassLengths()
+    {
+        int[] lengths = new int[sizeClasses.length];
+
+        for (int i = 0; i < lengths.length; i++)
+            lengths[i] = sizeClasses[i].length;
+        return lengths;
+    }
+
+    /**
+     * Gets the number of requests served with a pooled buffer.
+     *
+     * @return the number of requests served with a pooled buffer
+     */
+    public static long getHitCount()
+    {
+        long count = 0;
+
+        for (SizeClass sizeClass : sizeClasses)
+            count += sizeClass.hits.get();
+        return count;
+    }
+
+    /**
+     * Gets the number of requests which fit a size class but were served with
+     * a newly allocated buffer because the pool was empty.
+     *
+     * @return the number of requests served with a newly allocated buffer
+     */
+    public static long getMissCount()
+    {
+        long count = 0;
+
+        for (SizeClass sizeClass : sizeClasses)
+            count += sizeClass.misses.get();
+        return count;
+    }
+
+    /**
+     * Gets the number of buffers returned to the pool which were left to the
+     * garbage collector because the pool was full.
+     *
+     * @return the number of buffers left to the garbage collector because the
+     * pool was full
+     */
+    public static long getDiscardCount()
+    {
+        long count = 0;
+
+        for (SizeClass sizeClass : sizeClasses)
+            count += sizeClass.discards.get();
+        return count;
+    }
+
+    /**
+     * Gets the number of buffers which were taken out of the pool and have not
+     * been returned yet. Buffers which were not handed out by the pool (i.e.
+     * the length of which is not the one of a size class) but were returned to
+     * it are pooled without being counted.
+     *
+     * @return the number of buffers taken out of the pool and not returned yet
+     */
+    public static long getOutstandingCount()
+    {
+        long count = 0;
+
+        for (SizeClass sizeClass : sizeClasses)
+            count += sizeClass.outstanding.get();
+        return count;
+    }
+
+    /**
+     * Gets a human-readable summary of the counters of each size class.
+     *
+     * @return a human-readable summary of the counters of each size class
+     */
+    public static String getStatistics()
+    {
+        StringBuilder s = new StringBuilder();
+
+        for (SizeClass sizeClass : sizeClasses)
+        {
+            if (s.length() != 0)
+                s.append(", ");
+            s.append(sizeClass.length)
+                .append(": hits=").append(sizeClass.hits.get())
+                .append(" misses=").append(sizeClass.misses.get())
+                .append(" discards=").append(sizeClass.discards.get())
+                .append(" outstanding=").append(sizeClass.outstanding.get());
+        }
+        return s.toString();
+    }
+
+    /**
+     * Prevents the initialization of <tt>ByteArrayPool</tt> instances.
+     */
+    private ByteArrayPool()
+    {
+    }
+
+    /**
+     * Represents a fixed-capacity stack of buffers of a size class owned by a
+     * single thread at a time.
+     */
+    private static class Magazine
+    {
+        /**
+         * The buffers in this magazine.
+         */
+        final byte[][] buffers;
+
+        /**
+         * The number of buffers in this magazine.
+         */
+        int size = 0;
+
+        /**
+         * Initializes a new empty <tt>Magazine</tt>.
+         *
+         * @param capacity the maximum number of buffers in the new instance
+         */
+        Magazine(int capacity)
+        {
+            buffers = new byte[capacity][];
+        }
+    }
+
+    /**
+     * Represents the pooled buffers of a specific length.
+     */
+    private static class SizeClass
+    {
+        /**
+         * The full magazines in the depot of this size class. A slot is
+         * either <tt>null</tt> or holds a full magazine.
+         */
+        private final AtomicReferenceArray<Magazine> fullMagazines;
+
+        /**
+         * The empty magazines in the depot of this size class kept in order
+         * to not allocate a new one whenever a thread deposits a full one.
+         */
+        private final AtomicReferenceArray<Magazine> emptyMagazines;
+
+        /**
+         * The number of buffers which were returned to this size class and
+         * left to the garbage collector because the depot was full.
+         */
+        final AtomicLong discards = new AtomicLong();
+
+        /**
+         * The number of requests served with a pooled buffer.
+         */
+        final AtomicLong hits = new AtomicLong();
+
+        /**
+         * The length in bytes of the buffers of this size class.
+         */
+        final int length;
+
+        /**
+         * The magazine of this size class owned by the current thread.
+         */
+        private final ThreadLocal<Magazine> localMagazine;
+
+        /**
+         * The number of buffers in a magazine.
+         */
+        private final int magazineCapacity;
+
+        /**
+         * The number of requests served with a newly allocated buffer.
+         */
+        final AtomicLong misses = new AtomicLong();
+
+        /**
+         * The number of buffers taken out of this size class and not returned
+         * yet.
+         */
+        final AtomicLong outstanding = new AtomicLong();
+
+        /**
+         * Initializes a new <tt>SizeClass</tt>.
+         *
+         * @param length the length in bytes of the buffers of the new instance
+         * @param magazineCapacity the number of buffers in a magazine
+         * @param depotCapacity the number of full magazines in the depot
+         */
+        SizeClass(int length, final int magazineCapacity, int depotCapacity)
+        {
+            this.length = length;
+            this.magazineCapacity = magazineCapacity;
+
+            fullMagazines = new AtomicReferenceArray<>(depotCapacity);
+            emptyMagazines = new AtomicReferenceArray<>(depotCapacity);
+            localMagazine
+                = new ThreadLocal<Magazine>()
+                {
+                    @Override
+                    protected Magazine initialValue()
+                    {
+                        return new Magazine(magazineCapacity);
+                    }
+                };
+        }
+
+        /**
+         * Gets a buffer of this size class.
+         *
+         * @return a buffer of this size class
+         */
+        byte[] get()
+        {
+            Magazine magazine = localMagazine.get();
+
+            if (magazine.size == 0)
+            {
+                // Exchange the empty magazine for a full one from the depot.
+                Magazine full = take(fullMagazines);
+
+                if (full != null)
+                {
+                    put(emptyMagazines, magazine);
+                    localMagazine.set(full);
+                    magazine = full;
+                }
+            }
+
+            outstanding.incrementAndGet();
+            if (magazine.size == 0)
+            {
+                misses.incrementAndGet();
+                return new byte[length];
+            }
+            else
+            {
+                hits.incrementAndGet();
+
+                byte[] buffer = magazine.buffers[--magazine.size];
+
+                magazine.buffers[magazine.size] = null;
+                return buffer;
+            }
+        }
+
+        /**
+         * Puts a specific magazine into a free slot of a specific depot.
+         *
+         * @param depot the depot to put <tt>magazine</tt> into
+         * @param magazine the magazine to put into <tt>depot</tt>
+         * @return <tt>true</tt> if <tt>magazine</tt> was put into
+         * <tt>depot</tt>; <tt>false</tt> if <tt>depot</tt> is full
+         */
+        private static boolean put(
+                AtomicReferenceArray<Magazine> depot,
+                Magazine magazine)
+        {
+            for (int i = 0, end = depot.length(); i < end; i++)
+            {
+                if (depot.get(i) == null
+                        && depot.compareAndSet(i, null, magazine))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns a buffer to this size class.
+         *
+         * @param buffer the buffer to return
+         */
+        void release(byte[] buffer)
+        {
+            Magazine magazine = localMagazine.get();
+
+            // Only the buffers of this size class may have been handed out by
+            // it. A foreign buffer of the same length cannot be told apart so
+            // the count does not go below zero.
+            if (buffer.length == length)
+            {
+                long n;
+
+                do
+                {
+                    n = outstanding.get();
+                }
+                while (n > 0 && !outstanding.compareAndSet(n, n - 1));
+            }
+            if (magazine.size == magazineCapacity)
+            {
+                // Exchange the full magazine for an empty one.
+                if (put(fullMagazines, magazine))
+                {
+                    Magazine empty = take(emptyMagazines);
+
+                    if (empty == null)
+                        empty = new Magazine(magazineCapacity);
+                    localMagazine.set(empty);
+                    magazine = empty;
+                }
+                else
+                {
+                    discards.incrementAndGet();
+                    return;
+                }
+            }
+            magazine.buffers[magazine.size++] = buffer;
+        }
+
+        /**
+         * Takes a magazine out of a specific depot.
+         *
+         * @param depot the depot to take a magazine out of
+         * @return a magazine taken out of <tt>depot</tt> or <tt>null</tt> if
+         * <tt>depot</tt> is empty
+         */
+        private static Magazine take(AtomicReferenceArray<Magazine> depot)
+        {
+            for (int i = 0, end = depot.length(); i < end; i++)
+            {
+                Magazine magazine = depot.get(i);
+
+                if (magazine != null && depot.compareAndSet(i, magazine, null))
+                    return magazine;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+
+/**
+ * Implements a process-wide pool of direct <tt>ByteBuffer</tt>s to be used as
+ * off-heap packet buffers (e.g. by <tt>RawPacket</tt>s). The memory is
+ * allocated in large direct slabs which are cut into slices of a fixed
+ * length so that the number of direct allocations (which are expensive and
+ * are released only by the garbage collector) does not grow with the number
+ * of packets.
+ *
+ * A request which does not fit a slice is served with a separate direct
+ * <tt>ByteBuffer</tt> which is not pooled. The number of slabs is bounded;
+ * once the bound is reached, requests which find no free slice are served
+ * with separate direct <tt>ByteBuffer</tt>s of the length of a slice which
+ * join the pool when they are returned unless it holds as many free buffers
+ * as the maximum number of slabs has slices.
+ */
+public class DirectByteBufferPool
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>DirectByteBufferPool</tt> class to
+     * print debug information.
+     */
+    private static final Logger logger
+        = Logger.getLogger(DirectByteBufferPool.class);
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> and/or <tt>System</tt>
+     * property which specifies the length in bytes of a slab.
+     */
+    public static final String SLAB_LENGTH_PNAME
+        = DirectByteBufferPool.class.getName() + ".SLAB_LENGTH";
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> and/or <tt>System</tt>
+     * property which specifies the length in bytes of a slice of a slab.
+     */
+    public static final String SLICE_LENGTH_PNAME
+        = DirectByteBufferPool.class.getName() + ".SLICE_LENGTH";
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> and/or <tt>System</tt>
+     * property which specifies the maximum number of slabs.
+     */
+    public static final String MAX_SLAB_COUNT_PNAME
+        = DirectByteBufferPool.class.getName() + ".MAX_SLAB_COUNT";
+
+    /**
+     * The length in bytes of a slab.
+     */
+    private static final int SLAB_LENGTH;
+
+    /**
+     * The length in bytes of a slice of a slab i.e. of a pooled buffer.
+     */
+    private static final int SLICE_LENGTH;
+
+    /**
+     * The maximum number of slabs.
+     */
+    private static final int MAX_SLAB_COUNT;
+
+    /**
+     * The maximum number of buffers in {@link #freeSlices} i.e. the number of
+     * slices of {@link #MAX_SLAB_COUNT} slabs.
+     */
+    private static final int MAX_FREE_SLICE_COUNT;
+
+    /**
+     * The number of buffers in {@link #freeSlices}. Bounded by
+     * {@link #MAX_FREE_SLICE_COUNT} (rather than the size of the
+     * <tt>ConcurrentLinkedQueue</tt> which is not a constant-time
+     * operation).
+     */
+    private static final AtomicInteger freeSliceCount = new AtomicInteger();
+
+    /**
+     * The slices which are not in use.
+     */
+    private static final Queue<ByteBuffer> freeSlices
+        = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of requests served with a free slice.
+     */
+    private static final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of requests served with a separate, newly allocated direct
+     * <tt>ByteBuffer</tt>.
+     */
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of slices which are in use.
+     */
+    private static final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * The number of slabs allocated so far.
+     */
+    private static int slabCount = 0;
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        SLICE_LENGTH
+            = Math.max(1, ConfigUtils.getInt(cfg, SLICE_LENGTH_PNAME, 2048));
+        SLAB_LENGTH
+            = Math.max(
+                    SLICE_LENGTH,
+                    ConfigUtils.getInt(cfg, SLAB_LENGTH_PNAME, 1024 * 1024));
+        MAX_SLAB_COUNT
+            = Math.max(0, ConfigUtils.getInt(cfg, MAX_SLAB_COUNT_PNAME, 64));
+        MAX_FREE_SLICE_COUNT
+            = (int)
+                Math.min(
+                        Integer.MAX_VALUE,
+                        (long) MAX_SLAB_COUNT * (SLAB_LENGTH / SLICE_LENGTH));
+    }
+
+    /**
+     * Allocates a new slab, cuts it into slices and adds them to
+     * {@link #freeSlices} unless the maximum number of slabs has been
+     * reached.
+     *
+     * @return <tt>true</tt> if a new slab was allocated; otherwise,
+     * <tt>false</tt>
+     */
+    private static synchronized boolean allocateSlab()
+    {
+        // Another thread may have allocated a slab in the meantime.
+        if (!freeSlices.isEmpty())
+            return true;
+        if (slabCount >= MAX_SLAB_COUNT)
+            return false;
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_LENGTH);
+
+        for (int position = 0;
+                position + SLICE_LENGTH <= SLAB_LENGTH;
+                position += SLICE_LENGTH)
+        {
+            slab.limit(position + SLICE_LENGTH);
+            slab.position(position);
+            freeSliceCount.incrementAndGet();
+            freeSlices.add(slab.slice());
+        }
+        slabCount++;
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(
+                    "Allocated slab " + slabCount + " of " + SLAB_LENGTH
+                        + " bytes.");
+        }
+        return true;
+    }
+
+    /**
+     * Gets a direct <tt>ByteBuffer</tt> with a capacity of at least a specific
+     * number of bytes. The position of the returned buffer is zero, its limit
+     * is its capacity and its contents are undefined.
+     *
+     * @param minLength the minimum capacity in bytes of the buffer to get
+     * @return a direct <tt>ByteBuffer</tt> with a capacity of at least
+     * <tt>minLength</tt> bytes
+     */
+    public static ByteBuffer getBuffer(int minLength)
+    {
+        if (minLength <= SLICE_LENGTH)
+        {
+            ByteBuffer slice = freeSlices.poll();
+
+            if (slice == null && allocateSlab())
+                slice = freeSlices.poll();
+
+            outstanding.incrementAndGet();
+            if (slice != null)
+            {
+                freeSliceCount.decrementAndGet();
+                hits.incrementAndGet();
+                slice.clear();
+                return slice;
+            }
+
+            // The slabs are exhausted. The new buffer has the length of a
+            // slice so that it joins the pool once it is returned.
+            minLength = SLICE_LENGTH;
+        }
+
+        misses.incrementAndGet();
+        return ByteBuffer.allocateDirect(minLength);
+    }
+
+    /**
+     * Returns a direct <tt>ByteBuffer</tt> (which is no longer in use) to the
+     * pool. Buffers which do not have the capacity of a slice or which would
+     * grow the pool beyond the slices of the maximum number of slabs are left
+     * to the garbage collector. The caller must not access the buffer
+     * afterwards.
+     *
+     * @param buffer the direct <tt>ByteBuffer</tt> to return to the pool
+     */
+    public static void returnBuffer(ByteBuffer buffer)
+    {
+        if (buffer != null
+                && buffer.isDirect()
+                && buffer.capacity() == SLICE_LENGTH)
+        {
+            outstanding.decrementAndGet();
+            if (freeSliceCount.incrementAndGet() <= MAX_FREE_SLICE_COUNT)
+                freeSlices.offer(buffer);
+            else
+                freeSliceCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the length in bytes of the buffers pooled by
+     * <tt>DirectByteBufferPool</tt>.
+     *
+     * @return the length in bytes of the buffers pooled by
+     * <tt>DirectByteBufferPool</tt>
+     */
+    public static int getSliceLength()
+    {
+        return SLICE_LENGTH;
+    }
+
+    /**
+     * Gets the number of requests served with a pooled buffer.
+     *
+     * @return the number of requests served with a pooled buffer
+     */
+    public static long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of requests served with a separate, newly allocated
+     * direct <tt>ByteBuffer</tt>.
+     *
+     * @return the number of requests served with a newly allocated buffer
+     */
+    public static long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of pooled buffers which are in use.
+     *
+     * @return the number of pooled buffers which are in use
+     */
+    public static long getOutstandingCount()
+    {
+        return outstanding.get();
+    }
+
+    /**
+     * Gets the number of slabs allocated so far.
+     *
+     * @return the number of slabs allocated so far
+     */
+    public static synchronized int getSlabCount()
+    {
+        return slabCount;
+    }
+
+    /**
+     * Prevents the initialization of <tt>DirectByteBufferPool</tt> instances.
+     */
+    private DirectByteBufferPool()
+    {
+    }
+}
@@ -38,48 +38,111 @@
      * @return the newly created thread pool
      */
     public static ExecutorService newCachedThreadPool(
+            boolean daemon,
+            String baseName)
+    {
+        return
+            Executors.newCachedThreadPool(
+                    newThreadFactory(daemon, baseName));
+    }
+
+    /**
+     * Creates a thread pool that reuses a fixed number of threads operating
+     * off a shared unbounded queue. Optionally, the threads are created as
+     * daemon threads and their names are based on a specific (prefix) string.
+     *
+     * @param nThreads the number of threads in the pool
+     * @param daemon <tt>true</tt> to create the threads as daemon threads or
+     * <tt>false</tt> to create the threads as user threads
+     * @param baseName the base/prefix to use for the names of the threads or
+     * <tt>null</tt> to leave them with their default names
+     * @return the newly created thread pool
+     */
+    public static ExecutorService newFixedThreadPool(
+            int nThreads,
+            boolean daemon,
+            String baseName)
+    {
+        return
+            Executors.newFixedThreadPool(
+                    nThreads,
+                    newThreadFactory(daemon, baseName));
+    }
+
+    /**
+     * Creates a thread pool that can schedule commands to run after a given
+     * delay, or to execute periodically. Optionally, the threads are created as
+     * daemon threads and their names are based on a specific (prefix) string.
+     *
+     * @param corePoolSize the number of threads to keep in the pool, even if
+     * they are idle
+     * @param daemon <tt>true</tt> to create the threads as daemon threads or
+     * <tt>false</tt> to create the threads as user threads
+     * @param baseName the base/prefix to use for the names of the threads or
+     * <tt>null</tt> to leave them with their default names
+     * @return the newly created scheduled thread pool
+     */
+    public static ScheduledExecutorService newScheduledThreadPool(
+            int corePoolSize,
+            boolean daemon,
+            String baseName)
+    {
+        return
+            Executors.newScheduledThreadPool(
+                    corePoolSize,
+                    newThreadFactory(daemon, baseName));
+    }
+
+    /**
+     * Creates a <tt>ThreadFactory</tt> which optionally creates daemon threads
+     * with names based on a specific (prefix) string.
+     *
+     * @param daemon <tt>true</tt> to create the new threads as daemon threads
+     * or <tt>false</tt> to create the new threads as user threads
+     * @param baseName the base/prefix to use for the names of the new threads
+     * or <tt>null</tt> to leave them with their default names
+     * @return the newly created <tt>ThreadFactory</tt>
+     */
+    public static ThreadFactory newThreadFactory(
             final boolean daemon,
             final String baseName)
     {
         return
-            Executors.newCachedThreadPool(
-                    new ThreadFactory()
-                    {
-                        /**
-                         * The default <tt>ThreadFactory</tt> implementation
-                         * which is augmented by this instance to create daemon
-                         * <tt>Thread</tt>s.
-                         */
-                        private final ThreadFactory defaultThreadFactory
-                            = Executors.defaultThreadFactory();
+            new ThreadFactory()
+            {
+                /**
+                 * The default <tt>ThreadFactory</tt> implementation which is
+                 * augmented by this instance to create daemon
+                 * <tt>Thread</tt>s.
+                 */
+                private final ThreadFactory defaultThreadFactory
+                    = Executors.defaultThreadFactory();
 
-                        @Override
-                        public Thread newThread(Runnable r)
-                        {
-                            Thread t = defaultThreadFactory.newThread(r);
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = defaultThreadFactory.newThread(r);
 
-                            if (t != null)
-                            {
-                                t.setDaemon(daemon);
+                    if (t != null)
+                    {
+                        t.setDaemon(daemon);
 
-                                /*
-                                 * Additionally, make it known through the name
-                                 * of the Thread that it is associated with the
-                                 * specified class for debugging/informational
-                                 * purposes.
-                                 */
-                                if ((baseName != null)
-                                        && (baseName.length() != 0))
-                                {
-                                    String name = t.getName();
+                        /*
+                         * Additionally, make it known through the name of the
+                         * Thread that it is associated with the specified
+                         * class for debugging/informational purposes.
+                         */
+                        if ((baseName != null) && (baseName.length() != 0))
+                        {
+                            String name = t.getName();
 
-                                    if (name == null)
-                                        name = "";
-                                    t.setName(baseName + "-" + name);
-                                }
-                            }
-                            return t;
+                            if (name == null)
+                                name = "";
+                            t.setName(baseName + "-" + name);
                         }
-                    });
+                    }
+                    return t;
+                }
+            };
     }
 }
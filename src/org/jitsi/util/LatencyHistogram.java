@@ -0,0 +1,214 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Implements a lock-free histogram of (e.g. nanosecond) latencies in the
+ * spirit of HdrHistogram. The values are counted in log-linear buckets i.e.
+ * every power of two is split into linear sub-buckets so that the relative
+ * error of a reported value is bounded by <tt>1/8</tt> regardless of its
+ * magnitude. Recording a value takes a few atomic operations and does not
+ * allocate.
+ *
+ * Values greater than {@link #MAX_VALUE} are counted as <tt>MAX_VALUE</tt>.
+ */
+public class LatencyHistogram
+{
+    /**
+     * The number of bits of precision of the recorded values.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /**
+     * The number of linear sub-buckets per power of two.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The half of {@link #SUB_BUCKET_COUNT}. Every power of two above the
+     * first one covers the upper half of the sub-buckets only.
+     */
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+
+    /**
+     * The greatest value which can be recorded (about 68 seconds when the
+     * values are in nanoseconds).
+     */
+    public static final long MAX_VALUE = (1L << 36) - 1;
+
+    /**
+     * The counts of the buckets.
+     */
+    private final AtomicLongArray counts
+        = new AtomicLongArray(getBucketIndex(MAX_VALUE) + 1);
+
+    /**
+     * The number of recorded values.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * The greatest recorded value.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * The sum of the recorded values.
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * Gets the index of the bucket which counts a specific value.
+     *
+     * @param value the value (between <tt>0</tt> and {@link #MAX_VALUE}) to
+     * get the index of the bucket of
+     * @return the index of the bucket which counts <tt>value</tt>
+     */
+    private static int getBucketIndex(long value)
+    {
+        int exponent
+            = Math.max(
+                    0,
+                    63 - Long.numberOfLeadingZeros(value)
+                        - (SUB_BUCKET_BITS - 1));
+
+        return
+            exponent * SUB_BUCKET_HALF_COUNT + (int) (value >>> exponent);
+    }
+
+    /**
+     * Gets the lowest value which is counted by the bucket at a specific
+     * index.
+     *
+     * @param index the index of the bucket
+     * @return the lowest value counted by the bucket at <tt>index</tt>
+     */
+    private static long getBucketValue(int index)
+    {
+        int exponent
+            = (index < SUB_BUCKET_COUNT)
+                ? 0
+                : (index / SUB_BUCKET_HALF_COUNT - 1);
+
+        return
+            ((long) (index - exponent * SUB_BUCKET_HALF_COUNT)) << exponent;
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return the number of recorded values
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * Gets the greatest recorded value.
+     *
+     * @return the greatest recorded value or <tt>0</tt> if no value has been
+     * recorded
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     *
+     * @return the mean of the recorded values or <tt>0</tt> if no value has
+     * been recorded
+     */
+    public double getMean()
+    {
+        long count = this.count.get();
+
+        return (count == 0) ? 0 : ((double) total.get() / count);
+    }
+
+    /**
+     * Gets (an approximation of) the value below which a specific percentage
+     * of the recorded values fall.
+     *
+     * @param percentile the percentage (between <tt>0</tt> and <tt>100</tt>)
+     * @return the (lowest value of the bucket of the) value below which
+     * <tt>percentile</tt> percent of the recorded values fall or <tt>0</tt>
+     * if no value has been recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long count = this.count.get();
+
+        if (count == 0)
+            return 0;
+
+        long threshold
+            = Math.max(1, (long) Math.ceil(count * percentile / 100D));
+        long sum = 0;
+
+        for (int i = 0, length = counts.length(); i < length; i++)
+        {
+            sum += counts.get(i);
+            if (sum >= threshold)
+                return Math.min(getBucketValue(i), max.get());
+        }
+        // The buckets may lag behind count while values are being recorded.
+        return max.get();
+    }
+
+    /**
+     * Records a specific value.
+     *
+     * @param value the value to record. Negative values are recorded as
+     * <tt>0</tt>.
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+        else if (value > MAX_VALUE)
+            value = MAX_VALUE;
+
+        counts.incrementAndGet(getBucketIndex(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+
+        long max;
+
+        while ((max = this.max.get()) < value
+                && !this.max.compareAndSet(max, value));
+    }
+
+    /**
+     * Returns a short summary of the recorded values.
+     *
+     * @return a short summary of the recorded values
+     */
+    @Override
+    public String toString()
+    {
+        return
+            "count=" + getCount()
+                + " mean=" + (long) getMean()
+                + " p50=" + getValueAtPercentile(50)
+                + " p99=" + getValueAtPercentile(99)
+                + " max=" + getMax();
+    }
+}
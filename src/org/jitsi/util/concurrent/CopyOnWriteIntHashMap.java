@@ -0,0 +1,302 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util.concurrent;
+
+import java.util.*;
+
+/**
+ * Implements a map from <tt>int</tt> keys (e.g. SSRCs) to non-<tt>null</tt>
+ * values which is meant for lookups on hot paths (e.g. per packet) and rare
+ * modifications. The lookups are lock-free, do not allocate (i.e. the keys
+ * are not boxed) and do not contend with each other or with the
+ * modifications. The modifications are serialized and copy the table (i.e.
+ * open addressing with linear probing in arrays) which the lookups read.
+ *
+ * @param <V> the type of the values
+ */
+public class CopyOnWriteIntHashMap<V>
+{
+    /**
+     * The minimum capacity of a table. A power of two.
+     */
+    private static final int MIN_CAPACITY = 8;
+
+    /**
+     * The empty table.
+     */
+    private static final Table EMPTY_TABLE = new Table(MIN_CAPACITY);
+
+    /**
+     * Gets the index of the slot at which the probing for a specific key
+     * starts in a table with a specific capacity.
+     *
+     * @param key the key
+     * @param mask the capacity of the table minus one
+     * @return the index of the slot at which the probing for <tt>key</tt>
+     * starts
+     */
+    private static int getStartIndex(int key, int mask)
+    {
+        // Spread the bits of keys which differ in their high bits only.
+        int h = key * 0x9E3779B9;
+
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * The table which is read by the lookups. It is never modified after it
+     * has been published.
+     */
+    private volatile Table table = EMPTY_TABLE;
+
+    /**
+     * Removes all mappings from this map.
+     */
+    public synchronized void clear()
+    {
+        table = EMPTY_TABLE;
+    }
+
+    /**
+     * Creates a copy of a specific table with capacity for a specific number
+     * of additional mappings and without the mapping of a specific key.
+     *
+     * @param table the table to copy
+     * @param additional the number of mappings to be added to the copy
+     * @param removeKey the key which is not to be copied
+     * @param remove <tt>true</tt> if the mapping of <tt>removeKey</tt> is not
+     * to be copied
+     * @return the copy of <tt>table</tt>
+     */
+    private static Table copy(
+            Table table,
+            int additional,
+            int removeKey,
+            boolean remove)
+    {
+        int size = table.size + additional;
+        int capacity = MIN_CAPACITY;
+
+        // Keep the load factor at or below 1/2 so that probing is short and
+        // terminates.
+        while (capacity < 2 * size)
+            capacity <<= 1;
+
+        Table copy = new Table(capacity);
+        int[] keys = table.keys;
+        Object[] values = table.values;
+
+        for (int i = 0; i < values.length; i++)
+        {
+            Object value = values[i];
+
+            if (value != null && !(remove && keys[i] == removeKey))
+                copy.put(keys[i], value);
+        }
+        return copy;
+    }
+
+    /**
+     * Gets the value to which a specific key is mapped.
+     *
+     * @param key the key
+     * @return the value to which <tt>key</tt> is mapped or <tt>null</tt> if
+     * <tt>key</tt> is not mapped
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key)
+    {
+        return (V) table.get(key);
+    }
+
+    /**
+     * Determines whether this map is empty.
+     *
+     * @return <tt>true</tt> if this map is empty; otherwise, <tt>false</tt>
+     */
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    /**
+     * Maps a specific key to a specific value.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the value to which <tt>key</tt> was mapped before or
+     * <tt>null</tt>
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V put(int key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException("value");
+
+        Table table = this.table;
+        Object oldValue = table.get(key);
+        Table copy = copy(table, 1, key, true);
+
+        copy.put(key, value);
+        this.table = copy;
+        return (V) oldValue;
+    }
+
+    /**
+     * Maps a specific key to a specific value unless the key is mapped already.
+     *
+     * @param key the key
+     * @param value the value
+     * @return the value to which <tt>key</tt> is mapped already or
+     * <tt>null</tt> if <tt>key</tt> has been mapped to <tt>value</tt>
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V putIfAbsent(int key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException("value");
+
+        Table table = this.table;
+        Object oldValue = table.get(key);
+
+        if (oldValue == null)
+        {
+            Table copy = copy(table, 1, key, false);
+
+            copy.put(key, value);
+            this.table = copy;
+        }
+        return (V) oldValue;
+    }
+
+    /**
+     * Removes the mapping of a specific key.
+     *
+     * @param key the key
+     * @return the value to which <tt>key</tt> was mapped or <tt>null</tt>
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(int key)
+    {
+        Table table = this.table;
+        Object oldValue = table.get(key);
+
+        if (oldValue != null)
+            this.table = copy(table, -1, key, true);
+        return (V) oldValue;
+    }
+
+    /**
+     * Gets the number of mappings in this map.
+     *
+     * @return the number of mappings in this map
+     */
+    public int size()
+    {
+        return table.size;
+    }
+
+    /**
+     * Gets a snapshot of the values of this map.
+     *
+     * @return a new <tt>List</tt> of the values of this map
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values()
+    {
+        Object[] values = table.values;
+        List<V> list = new ArrayList<>(values.length / 2);
+
+        for (Object value : values)
+        {
+            if (value != null)
+                list.add((V) value);
+        }
+        return list;
+    }
+
+    /**
+     * The open-addressing hash table of a <tt>CopyOnWriteIntHashMap</tt>.
+     */
+    private static class Table
+    {
+        /**
+         * The keys of the slots.
+         */
+        final int[] keys;
+
+        /**
+         * The number of mappings.
+         */
+        int size;
+
+        /**
+         * The values of the slots. An empty slot has a <tt>null</tt> value.
+         */
+        final Object[] values;
+
+        /**
+         * Initializes a new empty <tt>Table</tt> with a specific capacity.
+         *
+         * @param capacity the capacity (a power of two)
+         */
+        Table(int capacity)
+        {
+            keys = new int[capacity];
+            values = new Object[capacity];
+        }
+
+        /**
+         * Gets the value to which a specific key is mapped.
+         *
+         * @param key the key
+         * @return the value to which <tt>key</tt> is mapped or <tt>null</tt>
+         */
+        Object get(int key)
+        {
+            int mask = values.length - 1;
+            Object value;
+
+            for (int i = getStartIndex(key, mask);
+                    (value = values[i]) != null;
+                    i = (i + 1) & mask)
+            {
+                if (keys[i] == key)
+                    return value;
+            }
+            return null;
+        }
+
+        /**
+         * Maps a specific key which is not mapped yet to a specific value.
+         * Invoked before the publication of this <tt>Table</tt> only.
+         *
+         * @param key the key
+         * @param value the value
+         */
+        void put(int key, Object value)
+        {
+            int mask = values.length - 1;
+            int i = getStartIndex(key, mask);
+
+            while (values[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+    }
+}
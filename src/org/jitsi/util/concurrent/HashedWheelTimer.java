@@ -0,0 +1,496 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util.concurrent;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.util.*;
+
+/**
+ * Implements a hashed timing wheel i.e. a timer which serves a large number of
+ * (mostly cancelled) timeouts with a single thread. The time is divided into
+ * ticks and a timeout is put into the bucket of the wheel at the index of its
+ * deadline tick modulo the number of buckets. Every tick the thread expires
+ * the due timeouts of a single bucket so scheduling and cancelling a timeout
+ * take constant time regardless of the number of timeouts. The price is that
+ * a timeout expires up to one tick late.
+ *
+ * The tasks of the expired timeouts run in the thread of the timer and are,
+ * consequently, expected to be short (e.g. to hand the actual work over to
+ * another <tt>Executor</tt>).
+ *
+ * George Varghese and Tony Lauck, "Hashed and Hierarchical Timing Wheels:
+ * Data Structures for the Efficient Implementation of a Timer Facility".
+ */
+public class HashedWheelTimer
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>HashedWheelTimer</tt> class and its
+     * instances to print debug information.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HashedWheelTimer.class);
+
+    /**
+     * The buckets of the wheel. Accessed by {@link #thread} only.
+     */
+    private final Timeout[] buckets;
+
+    /**
+     * The timeouts which have been cancelled since the last tick and are to
+     * be removed from {@link #buckets}.
+     */
+    private final ConcurrentLinkedQueue<Timeout> cancelledTimeouts
+        = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The bit mask which maps a tick to the index of its bucket in
+     * {@link #buckets}.
+     */
+    private final int mask;
+
+    /**
+     * The name of {@link #thread}.
+     */
+    private final String name;
+
+    /**
+     * The timeouts which have been scheduled since the last tick and are to
+     * be put into {@link #buckets}.
+     */
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts
+        = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of timeouts which have been scheduled and have neither
+     * expired nor been cancelled yet.
+     */
+    private final AtomicInteger pendingTimeouts = new AtomicInteger();
+
+    /**
+     * The time in nanoseconds at which {@link #thread} has started.
+     */
+    private long startTime;
+
+    /**
+     * The thread which advances the wheel or <tt>null</tt> if it has not been
+     * started yet.
+     */
+    private Thread thread;
+
+    /**
+     * The duration of a tick in nanoseconds.
+     */
+    private final long tickDuration;
+
+    /**
+     * Initializes a new <tt>HashedWheelTimer</tt> instance.
+     *
+     * @param name the name of the thread of the new instance
+     * @param tickDuration the duration of a tick in milliseconds i.e. the
+     * resolution of the new instance
+     * @param ticksPerWheel the number of buckets of the wheel. Rounded up to a
+     * power of two.
+     */
+    public HashedWheelTimer(String name, long tickDuration, int ticksPerWheel)
+    {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException("tickDuration " + tickDuration);
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30))
+        {
+            throw new IllegalArgumentException(
+                    "ticksPerWheel " + ticksPerWheel);
+        }
+
+        int length = Integer.highestOneBit(ticksPerWheel);
+
+        if (length < ticksPerWheel)
+            length <<= 1;
+
+        this.name = name;
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        buckets = new Timeout[length];
+        mask = length - 1;
+    }
+
+    /**
+     * Cancels the timeouts which have been cancelled since the last tick
+     * (i.e. removes them from their buckets).
+     */
+    private void cancelTimeouts()
+    {
+        Timeout timeout;
+
+        while ((timeout = cancelledTimeouts.poll()) != null)
+        {
+            if (timeout.bucket >= 0)
+                remove(timeout);
+        }
+    }
+
+    /**
+     * Expires the due timeouts of the bucket of a specific tick.
+     *
+     * @param tick the tick the bucket of which is to be expired
+     */
+    private void expireTimeouts(long tick)
+    {
+        int bucket = (int) (tick & mask);
+        Timeout timeout = buckets[bucket];
+
+        while (timeout != null)
+        {
+            Timeout next = timeout.next;
+
+            if (timeout.remainingRounds <= 0)
+            {
+                remove(timeout);
+                timeout.expire();
+            }
+            else
+            {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Gets the number of timeouts which have been scheduled and have neither
+     * expired nor been cancelled yet.
+     *
+     * @return the number of pending timeouts
+     */
+    public int getPendingTimeouts()
+    {
+        return pendingTimeouts.get();
+    }
+
+    /**
+     * Schedules a specific task to run once after a specific delay.
+     *
+     * @param task the task to run
+     * @param delay the delay in milliseconds after which <tt>task</tt> is to
+     * run
+     * @return a <tt>Timeout</tt> which may be used to cancel the execution of
+     * <tt>task</tt>
+     */
+    public Timeout newTimeout(final Runnable task, long delay)
+    {
+        if (task == null)
+            throw new NullPointerException("task");
+
+        return
+            newTimeout(
+                    new TimerTask()
+                    {
+                        @Override
+                        public void run(Timeout timeout)
+                        {
+                            task.run();
+                        }
+                    },
+                    delay);
+    }
+
+    /**
+     * Schedules a specific task to run once after a specific delay. The task
+     * is given the <tt>Timeout</tt> returned by this method when it runs so
+     * it may tell whether it is still the one its owner expects without
+     * reading the return value of this method from another thread.
+     *
+     * @param task the task to run
+     * @param delay the delay in milliseconds after which <tt>task</tt> is to
+     * run
+     * @return a <tt>Timeout</tt> which may be used to cancel the execution of
+     * <tt>task</tt>
+     */
+    public Timeout newTimeout(TimerTask task, long delay)
+    {
+        if (task == null)
+            throw new NullPointerException("task");
+
+        startThread();
+
+        Timeout timeout
+            = new Timeout(
+                    task,
+                    System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay))
+                        - startTime);
+
+        pendingTimeouts.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Removes a specific timeout from its bucket.
+     *
+     * @param timeout the <tt>Timeout</tt> to remove from its bucket
+     */
+    private void remove(Timeout timeout)
+    {
+        if (timeout.prev == null)
+            buckets[timeout.bucket] = timeout.next;
+        else
+            timeout.prev.next = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        timeout.bucket = -1;
+    }
+
+    /**
+     * Runs in {@link #thread} and advances the wheel tick by tick.
+     */
+    private void runInThread()
+    {
+        long tick = 0;
+
+        while (true)
+        {
+            // Wait for the end of the tick.
+            long deadline = tickDuration * (tick + 1);
+
+            while (true)
+            {
+                long sleepNanos = deadline - (System.nanoTime() - startTime);
+
+                if (sleepNanos <= 0)
+                    break;
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch (InterruptedException ie)
+                {
+                    // The thread is a daemon and the timer lives as long as
+                    // the process.
+                }
+            }
+
+            cancelTimeouts();
+            scheduleTimeouts(tick);
+            expireTimeouts(tick);
+            tick++;
+        }
+    }
+
+    /**
+     * Puts the timeouts which have been scheduled since the last tick into
+     * their buckets.
+     *
+     * @param tick the current tick
+     */
+    private void scheduleTimeouts(long tick)
+    {
+        // Limit the number of timeouts put into the buckets per tick in order
+        // not to starve the expiration if the timeouts are scheduled at a
+        // higher rate than the thread can keep up with.
+        for (int i = 0; i < 100000; i++)
+        {
+            Timeout timeout = newTimeouts.poll();
+
+            if (timeout == null)
+                break;
+            if (timeout.state.get() != Timeout.ST_INIT)
+                continue;
+
+            long calculated = timeout.deadline / tickDuration;
+            // A timeout which is already due expires in the current tick.
+            long deadlineTick = Math.max(calculated, tick);
+            int bucket = (int) (deadlineTick & mask);
+
+            timeout.remainingRounds = (calculated - tick) / buckets.length;
+            timeout.bucket = bucket;
+            timeout.next = buckets[bucket];
+            if (timeout.next != null)
+                timeout.next.prev = timeout;
+            buckets[bucket] = timeout;
+        }
+    }
+
+    /**
+     * Starts {@link #thread} if it has not been started yet.
+     */
+    private synchronized void startThread()
+    {
+        if (thread != null)
+            return;
+
+        startTime = System.nanoTime();
+
+        Thread thread
+            = new Thread(name)
+            {
+                @Override
+                public void run()
+                {
+                    runInThread();
+                }
+            };
+
+        thread.setDaemon(true);
+        thread.start();
+        this.thread = thread;
+    }
+
+    /**
+     * Represents a task scheduled to run once on a <tt>HashedWheelTimer</tt>.
+     */
+    public class Timeout
+    {
+        /**
+         * The state of a <tt>Timeout</tt> which has been cancelled.
+         */
+        private static final int ST_CANCELLED = 1;
+
+        /**
+         * The state of a <tt>Timeout</tt> which has expired.
+         */
+        private static final int ST_EXPIRED = 2;
+
+        /**
+         * The state of a <tt>Timeout</tt> which has neither expired nor been
+         * cancelled.
+         */
+        private static final int ST_INIT = 0;
+
+        /**
+         * The index in {@link #buckets} of the bucket which contains this
+         * instance or <tt>-1</tt>.
+         */
+        private int bucket = -1;
+
+        /**
+         * The time in nanoseconds relative to {@link #startTime} at which
+         * this instance is due.
+         */
+        private final long deadline;
+
+        /**
+         * The next <tt>Timeout</tt> in the bucket of this instance.
+         */
+        private Timeout next;
+
+        /**
+         * The previous <tt>Timeout</tt> in the bucket of this instance.
+         */
+        private Timeout prev;
+
+        /**
+         * The number of times the wheel is to go around before this instance
+         * is due.
+         */
+        private long remainingRounds;
+
+        /**
+         * The state of this instance i.e. one of {@link #ST_INIT},
+         * {@link #ST_CANCELLED} and {@link #ST_EXPIRED}.
+         */
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+        /**
+         * The task to run when this instance expires.
+         */
+        private final TimerTask task;
+
+        /**
+         * Initializes a new <tt>Timeout</tt> instance.
+         *
+         * @param task the task to run when the new instance expires
+         * @param deadline the time in nanoseconds relative to
+         * {@link #startTime} at which the new instance is due
+         */
+        private Timeout(TimerTask task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels this timeout i.e. its task will not run if it has not run
+         * yet.
+         *
+         * @return <tt>true</tt> if this timeout has been cancelled by the
+         * method invocation; <tt>false</tt> if it has already expired or been
+         * cancelled
+         */
+        public boolean cancel()
+        {
+            if (state.compareAndSet(ST_INIT, ST_CANCELLED))
+            {
+                pendingTimeouts.decrementAndGet();
+                cancelledTimeouts.add(this);
+                return true;
+            }
+            else
+            {
+                return false;
+            }
+        }
+
+        /**
+         * Runs the task of this timeout unless it has been cancelled.
+         */
+        private void expire()
+        {
+            if (!state.compareAndSet(ST_INIT, ST_EXPIRED))
+                return;
+
+            pendingTimeouts.decrementAndGet();
+            try
+            {
+                task.run(this);
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                logger.error("The task of a timeout has failed!", t);
+            }
+        }
+
+        /**
+         * Determines whether this timeout has been cancelled.
+         *
+         * @return <tt>true</tt> if this timeout has been cancelled; otherwise,
+         * <tt>false</tt>
+         */
+        public boolean isCancelled()
+        {
+            return state.get() == ST_CANCELLED;
+        }
+    }
+
+    /**
+     * Represents a task scheduled to run once on a <tt>HashedWheelTimer</tt>
+     * which is given its <tt>Timeout</tt> when it runs.
+     */
+    public interface TimerTask
+    {
+        /**
+         * Runs this task when a specific <tt>Timeout</tt> expires.
+         *
+         * @param timeout the <tt>Timeout</tt> which has expired i.e. the one
+         * returned by the {@link HashedWheelTimer#newTimeout(TimerTask, long)}
+         * invocation which scheduled this task
+         */
+        void run(Timeout timeout);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.util.*;
+
+/**
+ * Implements an {@link Executor} which runs its tasks one at a time, in the
+ * order of their submission, on a (shared) delegate <tt>Executor</tt>. Allows
+ * many objects which are not thread-safe (e.g. protocol engines) to share a
+ * bounded pool of threads without the need for a thread each.
+ */
+public class SerialExecutor
+    implements Executor
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>SerialExecutor</tt> class and its
+     * instances to print debug information.
+     */
+    private static final Logger logger = Logger.getLogger(SerialExecutor.class);
+
+    /**
+     * The maximum number of tasks waiting to run.
+     */
+    private final int capacity;
+
+    /**
+     * The <tt>Executor</tt> on which the tasks of this instance run.
+     */
+    private final Executor executor;
+
+    /**
+     * The indicator which determines whether a task of this instance is
+     * running or has been submitted to {@link #executor}.
+     */
+    private boolean running = false;
+
+    /**
+     * The tasks waiting to run.
+     */
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    /**
+     * The <tt>Runnable</tt> which is submitted to {@link #executor} to run the
+     * tasks of this instance.
+     */
+    private final Runnable drain
+        = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runTasks();
+            }
+        };
+
+    /**
+     * Initializes a new <tt>SerialExecutor</tt> instance.
+     *
+     * @param executor the <tt>Executor</tt> on which the tasks of the new
+     * instance are to run
+     * @param capacity the maximum number of tasks waiting to run
+     */
+    public SerialExecutor(Executor executor, int capacity)
+    {
+        if (executor == null)
+            throw new NullPointerException("executor");
+
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws RejectedExecutionException if the maximum number of tasks are
+     * waiting to run already or the delegate <tt>Executor</tt> has rejected
+     * the execution
+     */
+    @Override
+    public void execute(Runnable task)
+    {
+        if (task == null)
+            throw new NullPointerException("task");
+
+        synchronized (tasks)
+        {
+            if (tasks.size() >= capacity)
+            {
+                throw new RejectedExecutionException(
+                        "Too many tasks waiting: " + tasks.size());
+            }
+            tasks.add(task);
+            if (running)
+                return;
+            running = true;
+        }
+
+        boolean submitted = false;
+
+        try
+        {
+            executor.execute(drain);
+            submitted = true;
+        }
+        finally
+        {
+            if (!submitted)
+            {
+                synchronized (tasks)
+                {
+                    tasks.remove(task);
+                    running = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks of this instance until there are no more waiting.
+     */
+    private void runTasks()
+    {
+        while (true)
+        {
+            Runnable task;
+
+            synchronized (tasks)
+            {
+                task = tasks.poll();
+                if (task == null)
+                {
+                    running = false;
+                    return;
+                }
+            }
+
+            try
+            {
+                task.run();
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                logger.error("A task of a SerialExecutor has failed!", t);
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * JMH benchmark of the receive path of <tt>RTPConnectorInputStream</tt> with
+ * the datagrams received directly into the buffers of pooled
+ * <tt>RawPacket</tt>s against the datagrams received into a separate buffer
+ * and copied into pooled <tt>RawPacket</tt>s. Each operation receives and
+ * reads a single packet. The datagrams are produced in memory rather than by
+ * a socket so that the numbers reflect the receive path only.
+ *
+ * The bytes copied by <tt>RTPConnectorInputStream</tt> are counted as they
+ * are copied and reported as the secondary results <tt>copiedBytes</tt> and
+ * <tt>packets</tt>, the ratio of which is the number of bytes copied per
+ * packet. Run it (with the allocations per operation reported as
+ * <tt>gc.alloc.rate.norm</tt>) with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.jitsi.impl.neomedia.ReceiveBenchmark \
+ *     -Dexec.args="-p length=1200"
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class ReceiveBenchmark
+{
+    /**
+     * Runs the benchmark with the JMH command line options <tt>args</tt> and
+     * the GC profiler.
+     *
+     * @param args the JMH command line options
+     */
+    public static void main(String[] args)
+        throws CommandLineOptionException, RunnerException
+    {
+        Options options
+            = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(ReceiveBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+
+    /**
+     * The datagram which is received by every operation.
+     */
+    private byte[] datagram;
+
+    /**
+     * Whether the datagrams are received directly into the buffers of pooled
+     * <tt>RawPacket</tt>s or into {@link #separateBuffer}.
+     */
+    @Param({ "false", "true" })
+    public boolean inPlace;
+
+    /**
+     * The length in bytes of the packets, roughly an Opus audio packet and a
+     * full video packet.
+     */
+    @Param({ "172", "1200" })
+    public int length;
+
+    /**
+     * The <tt>DatagramPacket</tt> which is handed to {@link #stream}.
+     */
+    private DatagramPacket p;
+
+    /**
+     * The buffer into which the packets are read out of {@link #stream}.
+     */
+    private final byte[] readBuffer
+        = new byte[RTPConnectorInputStream.PACKET_RECEIVE_BUFFER_LENGTH];
+
+    /**
+     * The buffer into which the datagrams are received if they are not
+     * received in place.
+     */
+    private final byte[] separateBuffer
+        = new byte[RTPConnectorInputStream.PACKET_RECEIVE_BUFFER_LENGTH];
+
+    /**
+     * The <tt>RTPConnectorInputStream</tt> which receives the datagrams.
+     */
+    private BenchmarkInputStream stream;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        datagram = new byte[length];
+        // An RTP version 2 header so that the packet looks valid.
+        datagram[0] = (byte) 0x80;
+
+        p = new DatagramPacket(separateBuffer, 0);
+        p.setSocketAddress(new InetSocketAddress("127.0.0.1", 5000));
+
+        stream = new BenchmarkInputStream();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        stream.close();
+    }
+
+    @Benchmark
+    public int receive(CopyCounters counters)
+        throws IOException
+    {
+        byte[] buf
+            = inPlace ? stream.getReceivePacket().getBuffer() : separateBuffer;
+
+        // Stands for the copy performed by the socket in both modes.
+        System.arraycopy(datagram, 0, buf, 0, length);
+        p.setData(buf, 0, length);
+
+        stream.receivePacket(p);
+
+        // read copies the packet into the buffer of the caller.
+        int read = stream.read(readBuffer, 0, readBuffer.length);
+
+        counters.copiedBytes += stream.takeCopiedBytes() + read;
+        counters.packets++;
+        return read;
+    }
+
+    /**
+     * Counts the bytes copied by the <tt>RTPConnectorInputStream</tt> and the
+     * packets received by a thread in an iteration.
+     */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class CopyCounters
+    {
+        /**
+         * The number of bytes copied by the <tt>RTPConnectorInputStream</tt>.
+         */
+        public long copiedBytes;
+
+        /**
+         * The number of packets received.
+         */
+        public long packets;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            copiedBytes = 0;
+            packets = 0;
+        }
+    }
+
+    /**
+     * Implements an <tt>RTPConnectorInputStream</tt> without a socket which
+     * counts the bytes copied when the received datagrams are converted into
+     * <tt>RawPacket</tt>s.
+     */
+    private static class BenchmarkInputStream
+        extends RTPConnectorInputStream<Object>
+    {
+        /**
+         * The number of bytes copied by
+         * {@link #createRawPacket(DatagramPacket)} since the last invocation
+         * of {@link #takeCopiedBytes()}.
+         */
+        private long copiedBytes;
+
+        /**
+         * Initializes a new <tt>BenchmarkInputStream</tt> instance.
+         */
+        BenchmarkInputStream()
+        {
+            super(null);
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Counts the packet data as copied unless the <tt>RawPacket</tt>
+         * shares the buffer into which the datagram was received.
+         */
+        @Override
+        protected RawPacket[] createRawPacket(DatagramPacket datagramPacket)
+        {
+            RawPacket[] pkts = super.createRawPacket(datagramPacket);
+
+            for (RawPacket pkt : pkts)
+            {
+                if (pkt != null && pkt.getBuffer() != datagramPacket.getData())
+                    copiedBytes += pkt.getLength();
+            }
+            return pkts;
+        }
+
+        @Override
+        protected void doLogPacket(DatagramPacket packet)
+        {
+        }
+
+        @Override
+        protected void receive(DatagramPacket p)
+            throws IOException
+        {
+            throw new IOException("No socket");
+        }
+
+        @Override
+        protected void setReceiveBufferSize(int receiveBufferSize)
+        {
+        }
+
+        /**
+         * Gets and resets the number of bytes copied by
+         * {@link #createRawPacket(DatagramPacket)}.
+         *
+         * @return the number of bytes copied by
+         * <tt>createRawPacket(DatagramPacket)</tt> since the last invocation
+         * of this method
+         */
+        long takeCopiedBytes()
+        {
+            long copiedBytes = this.copiedBytes;
+
+            this.copiedBytes = 0;
+            return copiedBytes;
+        }
+    }
+}
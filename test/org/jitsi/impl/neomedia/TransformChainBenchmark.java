@@ -0,0 +1,212 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.net.*;
+import java.util.concurrent.*;
+
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * JMH benchmark of the default <tt>TransformEngineChain</tt> of a
+ * <tt>MediaStreamImpl</tt> (i.e. the one initialized by
+ * <tt>MediaStreamImpl#createTransformEngineChain()</tt>) with the
+ * <tt>PacketBatch</tt> contract against the <tt>RawPacket[]</tt> contract in
+ * the receive (reverse-transform) and the send (transform) directions. Each
+ * operation transforms a single packet so the allocations per operation are
+ * the allocations per packet. The SRTP engine of the chain is not keyed so
+ * it passes packets through.
+ *
+ * Run it (with the allocations per packet reported as
+ * <tt>gc.alloc.rate.norm</tt>) with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.jitsi.impl.neomedia.TransformChainBenchmark \
+ *     -Dexec.args="-p batch=true"
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class TransformChainBenchmark
+{
+    /**
+     * The length in bytes of the benchmarked packets.
+     */
+    private static final int PACKET_LENGTH = 1200;
+
+    /**
+     * The (dynamic) payload type of the benchmarked packets which is neither
+     * RED nor ulpfec.
+     */
+    private static final byte PAYLOAD_TYPE = 100;
+
+    /**
+     * Runs the benchmark with the JMH command line options <tt>args</tt> and
+     * the GC profiler.
+     *
+     * @param args the JMH command line options
+     */
+    public static void main(String[] args)
+        throws CommandLineOptionException, RunnerException
+    {
+        Options options
+            = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(TransformChainBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+
+    /**
+     * Whether the packets are transformed in a reused <tt>PacketBatch</tt>
+     * or in a new <tt>RawPacket</tt> array per packet as the receive and send
+     * paths did before the <tt>PacketBatch</tt> contract.
+     */
+    @Param({ "false", "true" })
+    public boolean batch;
+
+    /**
+     * The buffer of {@link #pkt}.
+     */
+    private final byte[] buf = new byte[PACKET_LENGTH];
+
+    /**
+     * The <tt>StreamConnector</tt> of {@link #stream}.
+     */
+    private StreamConnector connector;
+
+    /**
+     * The number of packets transformed so far which determines the sequence
+     * number and the timestamp of the next packet.
+     */
+    private int i;
+
+    /**
+     * The packet which is transformed by every operation.
+     */
+    private final RawPacket pkt = new RawPacket(buf, 0, PACKET_LENGTH);
+
+    /**
+     * The <tt>PacketBatch</tt> which is reused if {@link #batch}.
+     */
+    private final PacketBatch pktBatch = new PacketBatch();
+
+    /**
+     * The <tt>MediaStream</tt> the <tt>TransformEngineChain</tt> of which is
+     * benchmarked.
+     */
+    private MediaStream stream;
+
+    /**
+     * The RTP transformer of the <tt>TransformEngineChain</tt> of
+     * {@link #stream}.
+     */
+    private BatchPacketTransformer transformer;
+
+    /**
+     * Resets {@link #pkt} to the next RTP packet. The engines of the chain
+     * may have moved the header (e.g. by adding or removing header
+     * extensions).
+     */
+    private void nextPacket()
+    {
+        pkt.setBuffer(buf);
+        pkt.setOffset(0);
+        pkt.setLength(PACKET_LENGTH);
+        pkt.setSequenceNumber(i & 0xffff);
+        pkt.setTimestamp(i * 3000L);
+        i++;
+    }
+
+    @Benchmark
+    public RawPacket reverseTransform()
+    {
+        nextPacket();
+        if (batch)
+        {
+            pktBatch.clear();
+            pktBatch.add(pkt);
+            transformer.reverseTransform(pktBatch);
+        }
+        else
+        {
+            transformer.reverseTransform(new RawPacket[] { pkt });
+        }
+        return pkt;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws SocketException
+    {
+        LibJitsi.start();
+
+        MediaService mediaService = LibJitsi.getMediaService();
+
+        connector
+            = new DefaultStreamConnector(
+                    new DatagramSocket(0),
+                    new DatagramSocket(0));
+        stream = mediaService.createMediaStream(connector, MediaType.VIDEO);
+
+        // The chain is initialized when the connector is set.
+        transformer
+            = (BatchPacketTransformer)
+                stream.getTransformEngineChain().getRTPTransformer();
+
+        // An RTP version 2 header.
+        buf[0] = (byte) 0x80;
+        pkt.setPayloadType(PAYLOAD_TYPE);
+        pkt.setSSRC(0x12345678);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        stream.close();
+        connector.close();
+        LibJitsi.stop();
+    }
+
+    @Benchmark
+    public RawPacket transform()
+    {
+        nextPacket();
+        if (batch)
+        {
+            pktBatch.clear();
+            pktBatch.add(pkt);
+            transformer.transform(pktBatch);
+        }
+        else
+        {
+            transformer.transform(new RawPacket[] { pkt });
+        }
+        return pkt;
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.*;
+import org.junit.*;
+
+/**
+ * Tests {@link CachingTransformer}.
+ */
+public class CachingTransformerTest
+{
+    /**
+     * The byte budget of all <tt>CachingTransformer</tt>s configured by this
+     * test (unless the class has been initialized before).
+     */
+    private static final long MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The default maximum number of packets cached for an SSRC.
+     */
+    private static final int MAX_SIZE_PACKETS = 1024;
+
+    /**
+     * The payload type of the format with a 48 kHz clock.
+     */
+    private static final byte OPUS_PT = 111;
+
+    /**
+     * The payload type of the format with a 90 kHz clock.
+     */
+    private static final byte VP8_PT = 100;
+
+    private static final long SSRC = 0x12345678L;
+
+    private final List<CachingTransformer> transformers = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUpClass()
+    {
+        LibJitsi.start();
+        // Before CachingTransformer reads it. Not
+        // CachingTransformer.NACK_CACHE_SIZE_BYTES which would initialize the
+        // class.
+        LibJitsi.getConfigurationService().setProperty(
+                "org.jitsi.impl.neomedia.transform.CachingTransformer"
+                    + ".CACHE_SIZE_BYTES",
+                Long.toString(MAX_SIZE_BYTES));
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (CachingTransformer transformer : transformers)
+            transformer.close();
+    }
+
+    @Test
+    public void testSequenceNumberWrap()
+    {
+        CachingTransformer transformer = createTransformer();
+
+        for (int i = 0; i < 10; i++)
+        {
+            transformer.cachePacket(
+                    createPacket(SSRC, (65530 + i) & 0xffff, i * 3000));
+        }
+
+        for (int i = 0; i < 10; i++)
+        {
+            int seq = (65530 + i) & 0xffff;
+            RawPacket pkt = transformer.get(SSRC, seq);
+
+            assertNotNull(pkt);
+            assertEquals(seq, pkt.getSequenceNumber());
+            assertEquals(i * 3000, pkt.getTimestamp());
+        }
+        assertNull(transformer.get(SSRC, 10));
+    }
+
+    @Test
+    public void testReordered()
+    {
+        CachingTransformer transformer = createTransformer();
+
+        // Reordered across the wrap of the sequence numbers.
+        for (int seq : new int[] { 65534, 1, 0, 65535, 2 })
+            transformer.cachePacket(createPacket(SSRC, seq, 0));
+        for (int seq : new int[] { 65534, 65535, 0, 1, 2 })
+            assertNotNull(transformer.get(SSRC, seq));
+    }
+
+    @Test
+    public void testTooOld()
+    {
+        CachingTransformer transformer = createTransformer();
+        int head = MAX_SIZE_PACKETS + 100;
+
+        for (int seq = 0; seq <= head; seq++)
+            transformer.cachePacket(createPacket(SSRC, seq, 0));
+
+        int tail = head - MAX_SIZE_PACKETS + 1;
+
+        assertNull(transformer.get(SSRC, tail - 1));
+        assertNotNull(transformer.get(SSRC, tail));
+        assertNotNull(transformer.get(SSRC, head));
+
+        // A packet reordered behind the ones which have pushed it out of the
+        // cache is not cached (and does not evict a newer one).
+        transformer.cachePacket(createPacket(SSRC, 50, 0));
+        assertNull(transformer.get(SSRC, 50));
+        assertNotNull(transformer.get(SSRC, 50 + MAX_SIZE_PACKETS));
+    }
+
+    @Test
+    public void testJump()
+    {
+        CachingTransformer transformer = createTransformer();
+
+        for (int seq = 0; seq < 10; seq++)
+            transformer.cachePacket(createPacket(SSRC, seq, 0));
+
+        // A jump of the sequence numbers larger than the ring leaves none of
+        // the older packets in the cache.
+        int jump = 4 * MAX_SIZE_PACKETS;
+
+        for (int seq = jump; seq < jump + 10; seq++)
+            transformer.cachePacket(createPacket(SSRC, seq, 0));
+        for (int seq = 0; seq < 10; seq++)
+        {
+            assertNull(transformer.get(SSRC, seq));
+            assertNotNull(transformer.get(SSRC, jump + seq));
+        }
+    }
+
+    @Test
+    public void testAgeByClockRate()
+    {
+        CachingTransformer transformer = createTransformer();
+        long opusSsrc = SSRC + 1;
+
+        // 600 ms at 48 kHz, 320 ms at 90 kHz, the age limit is 500 ms.
+        transformer.cachePacket(createPacket(SSRC, 1, 0, VP8_PT, 100));
+        transformer.cachePacket(createPacket(SSRC, 2, 28800, VP8_PT, 100));
+        transformer.cachePacket(createPacket(opusSsrc, 1, 0, OPUS_PT, 100));
+        transformer.cachePacket(
+                createPacket(opusSsrc, 2, 28800, OPUS_PT, 100));
+
+        assertNotNull(transformer.get(SSRC, 1));
+        assertNull(transformer.get(opusSsrc, 1));
+        assertNotNull(transformer.get(opusSsrc, 2));
+    }
+
+    @Test
+    public void testHitsAndMissesByAge()
+    {
+        CachingTransformer transformer = createTransformer();
+        long[] hits = CachingTransformer.getHitsByAge();
+        long[] misses = CachingTransformer.getMissesByAge();
+        long unknownAgeMisses = CachingTransformer.getUnknownAgeMisses();
+
+        transformer.cachePacket(createPacket(SSRC, 1, 0));
+        // Removes the first packet which is more than 500 ms older.
+        transformer.cachePacket(createPacket(SSRC, 2, 90000));
+
+        assertNotNull(transformer.get(SSRC, 2));
+        assertNull(transformer.get(SSRC, 1));
+        // Neither cached nor of a known SSRC.
+        assertNull(transformer.get(SSRC, 3));
+        assertNull(transformer.get(SSRC + 1, 1));
+
+        // The packets of the SSRC were inserted so the hit and the miss are
+        // counted by age.
+        long[] newHits = CachingTransformer.getHitsByAge();
+        long[] newMisses = CachingTransformer.getMissesByAge();
+        long hitCount = 0;
+        long missCount = 0;
+
+        for (int i = 0; i < hits.length; i++)
+        {
+            hitCount += newHits[i] - hits[i];
+            missCount += newMisses[i] - misses[i];
+        }
+        assertEquals(1, hitCount);
+        assertEquals(1, missCount);
+        assertEquals(
+                unknownAgeMisses + 2,
+                CachingTransformer.getUnknownAgeMisses());
+    }
+
+    @Test
+    public void testByteBudget()
+        throws InterruptedException
+    {
+        long evictions = CachingTransformer.getGlobalEvictions();
+        List<CachingTransformer> budgetTransformers = new ArrayList<>();
+        long ssrc = SSRC;
+        long lastSsrc = -1;
+
+        // The byte budget of the class may have been set up before this test
+        // so fill the caches until it is exceeded.
+        for (int i = 0;
+                i < 200
+                    && CachingTransformer.getGlobalEvictions() == evictions;
+                i++)
+        {
+            if (i % 40 == 0)
+                budgetTransformers.add(createTransformer());
+
+            CachingTransformer transformer
+                = budgetTransformers.get(budgetTransformers.size() - 1);
+
+            for (int seq = 0; seq < MAX_SIZE_PACKETS; seq++)
+            {
+                transformer.cachePacket(
+                        createPacket(ssrc, seq, 0, VP8_PT, 1400));
+            }
+            lastSsrc = ssrc++;
+
+            // The first SSRC is the oldest one.
+            if (i == 0)
+                Thread.sleep(10);
+        }
+
+        for (int i = 0;
+                i < 100
+                    && CachingTransformer.getGlobalEvictions() == evictions;
+                i++)
+        {
+            Thread.sleep(50);
+        }
+        assertTrue(CachingTransformer.getGlobalEvictions() > evictions);
+
+        // The oldest packets are evicted first across the transformers.
+        assertNull(budgetTransformers.get(0).get(SSRC, 0));
+        assertNotNull(
+                budgetTransformers.get(budgetTransformers.size() - 1)
+                    .get(lastSsrc, MAX_SIZE_PACKETS - 1));
+    }
+
+    private CachingTransformer createTransformer()
+    {
+        MediaStream stream
+            = newProxy(
+                    MediaStream.class,
+                    new InvocationHandler()
+                    {
+                        @Override
+                        public Object invoke(
+                                Object proxy, Method method, Object[] args)
+                        {
+                            if ("getDynamicRTPPayloadTypes".equals(
+                                    method.getName()))
+                            {
+                                Map<Byte, MediaFormat> formats
+                                    = new HashMap<>();
+
+                                formats.put(OPUS_PT, createFormat(48000));
+                                formats.put(VP8_PT, createFormat(90000));
+                                return formats;
+                            }
+                            return null;
+                        }
+                    });
+        CachingTransformer transformer = new CachingTransformer(stream);
+
+        transformer.setEnabled(true);
+        transformers.add(transformer);
+        return transformer;
+    }
+
+    private static MediaFormat createFormat(final double clockRate)
+    {
+        return
+            newProxy(
+                    MediaFormat.class,
+                    new InvocationHandler()
+                    {
+                        @Override
+                        public Object invoke(
+                                Object proxy, Method method, Object[] args)
+                        {
+                            return
+                                "getClockRate".equals(method.getName())
+                                    ? clockRate
+                                    : null;
+                        }
+                    });
+    }
+
+    private static RawPacket createPacket(long ssrc, int seq, long ts)
+    {
+        return createPacket(ssrc, seq, ts, VP8_PT, 100);
+    }
+
+    private static RawPacket createPacket(
+            long ssrc,
+            int seq,
+            long ts,
+            byte pt,
+            int payloadLength)
+    {
+        byte[] buf = new byte[12 + payloadLength];
+
+        buf[0] = (byte) 0x80;
+
+        RawPacket pkt = new RawPacket(buf, 0, buf.length);
+
+        pkt.setPayloadType(pt);
+        pkt.setSequenceNumber(seq);
+        pkt.setTimestamp(ts);
+        pkt.setSSRC((int) ssrc);
+        return pkt;
+    }
+
+    private static <T> T newProxy(Class<T> iface, InvocationHandler handler)
+    {
+        return
+            iface.cast(
+                    Proxy.newProxyInstance(
+                            iface.getClassLoader(),
+                            new Class<?>[] { iface },
+                            handler));
+    }
+}
@@ -0,0 +1,550 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.junit.*;
+
+/**
+ * Tests {@link ParallelTransformEngine} and the handling of the
+ * <tt>PacketBatch</tt>es of many sources by {@link TransformEngineChain}.
+ */
+public class ParallelTransformEngineTest
+{
+    private static final int SSRC_COUNT = 8;
+
+    private static RawPacket newPacket(int ssrc, int seq)
+    {
+        RawPacket pkt = new RawPacket(new byte[16], 0, 16);
+
+        pkt.getBuffer()[0] = (byte) 0x80;
+        pkt.setSSRC(ssrc);
+        pkt.setSequenceNumber(seq);
+        return pkt;
+    }
+
+    private static TransformEngine newEngine(final PacketTransformer rtp)
+    {
+        return
+            new TransformEngine()
+            {
+                @Override
+                public PacketTransformer getRTCPTransformer()
+                {
+                    return null;
+                }
+
+                @Override
+                public PacketTransformer getRTPTransformer()
+                {
+                    return rtp;
+                }
+            };
+    }
+
+    /**
+     * Fills a batch with packets of {@link #SSRC_COUNT} SSRCs interleaved,
+     * the sequence number of each of which is its index in the batch.
+     */
+    private static PacketBatch newBatch(int size)
+    {
+        PacketBatch batch = new PacketBatch(size);
+
+        for (int i = 0; i < size; i++)
+            batch.add(newPacket(i % SSRC_COUNT, i));
+        return batch;
+    }
+
+    /**
+     * Asserts that the packets of each SSRC are in the order of their
+     * sequence numbers in a specific list of packets.
+     */
+    private static void assertOrderPerSsrc(List<RawPacket> pkts)
+    {
+        Map<Integer,Integer> lastSeqs = new HashMap<>();
+
+        for (RawPacket pkt : pkts)
+        {
+            Integer lastSeq
+                = lastSeqs.put(pkt.getSSRC(), pkt.getSequenceNumber());
+
+            if (lastSeq != null)
+                assertTrue(lastSeq < pkt.getSequenceNumber());
+        }
+    }
+
+    private static List<RawPacket> getValidPackets(PacketBatch batch)
+    {
+        List<RawPacket> pkts = new ArrayList<>();
+
+        for (int i = 0; i < batch.size(); i++)
+        {
+            if (batch.isValid(i))
+                pkts.add(batch.get(i));
+        }
+        return pkts;
+    }
+
+    @Test
+    public void testShardsKeepTheOrderOfTheBatch()
+    {
+        final Map<Integer,List<Integer>> seqs = new HashMap<>();
+        SinglePacketTransformer transformer
+            = new SinglePacketTransformer()
+            {
+                @Override
+                public RawPacket reverseTransform(RawPacket pkt)
+                {
+                    return pkt;
+                }
+
+                @Override
+                public RawPacket transform(RawPacket pkt)
+                {
+                    synchronized (seqs)
+                    {
+                        List<Integer> l = seqs.get(pkt.getSSRC());
+
+                        if (l == null)
+                            seqs.put(pkt.getSSRC(), l = new ArrayList<>());
+                        l.add(pkt.getSequenceNumber());
+                    }
+                    // Drop every fifth packet.
+                    return (pkt.getSequenceNumber() % 5 == 0) ? null : pkt;
+                }
+            };
+        BatchPacketTransformer parallel
+            = (BatchPacketTransformer)
+                new ParallelTransformEngine(newEngine(transformer))
+                    .getRTPTransformer();
+
+        for (int round = 0; round < 100; round++)
+        {
+            PacketBatch batch = newBatch(64);
+            RawPacket[] pkts = batch.getPackets().clone();
+
+            seqs.clear();
+            parallel.transform(batch);
+
+            assertEquals(64, batch.size());
+            for (int i = 0; i < 64; i++)
+            {
+                if (i % 5 == 0)
+                    assertFalse(batch.isValid(i));
+                else
+                    assertSame(pkts[i], batch.get(i));
+            }
+
+            // Each packet has been transformed once and the packets of each
+            // SSRC in order.
+            assertEquals(SSRC_COUNT, seqs.size());
+            for (Map.Entry<Integer,List<Integer>> e : seqs.entrySet())
+            {
+                List<Integer> l = e.getValue();
+
+                assertEquals(64 / SSRC_COUNT, l.size());
+                for (int i = 0; i < l.size(); i++)
+                    assertEquals(e.getKey() + i * SSRC_COUNT, (int) l.get(i));
+            }
+        }
+    }
+
+    /**
+     * Tests a transformer which does not keep the packets at their indices
+     * (like the one of DTLS-SRTP, which returns a compacted array with the
+     * packets it has queued first).
+     */
+    @Test
+    public void testCompactingTransformer()
+    {
+        PacketTransformer transformer
+            = new PacketTransformer()
+            {
+                @Override
+                public void close()
+                {
+                }
+
+                @Override
+                public RawPacket[] reverseTransform(RawPacket[] pkts)
+                {
+                    return pkts;
+                }
+
+                @Override
+                public RawPacket[] transform(RawPacket[] pkts)
+                {
+                    List<RawPacket> queued = new ArrayList<>();
+                    List<RawPacket> out = new ArrayList<>();
+                    Set<Integer> ssrcs = new HashSet<>();
+
+                    for (RawPacket pkt : pkts)
+                    {
+                        if (pkt == null)
+                            continue;
+                        // A queued packet of each SSRC goes first.
+                        if (ssrcs.add(pkt.getSSRC()))
+                            queued.add(newPacket(pkt.getSSRC(), 1000));
+                        if (pkt.getSequenceNumber() % 3 != 0)
+                            out.add(pkt);
+                    }
+                    queued.addAll(out);
+                    return queued.toArray(new RawPacket[queued.size()]);
+                }
+            };
+        BatchPacketTransformer parallel
+            = (BatchPacketTransformer)
+                new ParallelTransformEngine(newEngine(transformer))
+                    .getRTPTransformer();
+
+        for (int round = 0; round < 100; round++)
+        {
+            PacketBatch batch = newBatch(64);
+            Set<RawPacket> expected = new HashSet<>();
+
+            for (int i = 0; i < 64; i++)
+            {
+                if (i % 3 != 0)
+                    expected.add(batch.get(i));
+            }
+
+            parallel.transform(batch);
+
+            List<RawPacket> pkts = getValidPackets(batch);
+            Set<Integer> queued = new HashSet<>();
+
+            for (RawPacket pkt : pkts)
+            {
+                if (pkt.getSequenceNumber() == 1000)
+                {
+                    assertTrue(queued.add(pkt.getSSRC()));
+                }
+                else
+                {
+                    // The queued packet of an SSRC precedes its others.
+                    assertTrue(queued.contains(pkt.getSSRC()));
+                    assertTrue(expected.remove(pkt));
+                }
+            }
+            assertTrue(expected.isEmpty());
+
+            List<RawPacket> media = new ArrayList<>();
+
+            for (RawPacket pkt : pkts)
+            {
+                if (pkt.getSequenceNumber() != 1000)
+                    media.add(pkt);
+            }
+            assertOrderPerSsrc(media);
+        }
+    }
+
+    @Test
+    public void testSingleShardRunsOnTheCallingThread()
+    {
+        final Set<Thread> threads
+            = Collections.synchronizedSet(new HashSet<Thread>());
+        SinglePacketTransformer transformer
+            = new SinglePacketTransformer()
+            {
+                @Override
+                public RawPacket reverseTransform(RawPacket pkt)
+                {
+                    threads.add(Thread.currentThread());
+                    return pkt;
+                }
+
+                @Override
+                public RawPacket transform(RawPacket pkt)
+                {
+                    threads.add(Thread.currentThread());
+                    return pkt;
+                }
+            };
+        PacketTransformer parallel
+            = new ParallelTransformEngine(newEngine(transformer))
+                .getRTPTransformer();
+        RawPacket[] pkts = new RawPacket[16];
+
+        for (int i = 0; i < pkts.length; i++)
+            pkts[i] = newPacket(1, i);
+
+        RawPacket[] result = parallel.reverseTransform(pkts.clone());
+
+        assertArrayEquals(pkts, result);
+        assertEquals(
+                Collections.singleton(Thread.currentThread()),
+                threads);
+    }
+
+    /**
+     * Tests that a call which is made while another call is in progress is
+     * carried out by its calling thread alone.
+     */
+    @Test
+    public void testConcurrentCallRunsOnTheCallingThread()
+        throws Exception
+    {
+        final int blockingSsrc = 0x7fff0000;
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Map<RawPacket,Thread> threads = new ConcurrentHashMap<>();
+        SinglePacketTransformer transformer
+            = new SinglePacketTransformer()
+            {
+                @Override
+                public RawPacket reverseTransform(RawPacket pkt)
+                {
+                    return pkt;
+                }
+
+                @Override
+                public RawPacket transform(RawPacket pkt)
+                {
+                    if (pkt.getSSRC() == blockingSsrc)
+                    {
+                        blocked.countDown();
+                        try
+                        {
+                            release.await();
+                        }
+                        catch (InterruptedException ie)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    threads.put(pkt, Thread.currentThread());
+                    return pkt;
+                }
+            };
+        final BatchPacketTransformer parallel
+            = (BatchPacketTransformer)
+                new ParallelTransformEngine(newEngine(transformer))
+                    .getRTPTransformer();
+        final PacketBatch first = newBatch(16);
+
+        first.set(0, newPacket(blockingSsrc, 0));
+
+        Thread firstCaller
+            = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    parallel.transform(first);
+                }
+            };
+
+        firstCaller.start();
+        try
+        {
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+            PacketBatch second = newBatch(16);
+
+            parallel.transform(second);
+            assertEquals(16, second.getValidCount());
+            for (RawPacket pkt : getValidPackets(second))
+                assertSame(Thread.currentThread(), threads.get(pkt));
+        }
+        finally
+        {
+            release.countDown();
+            firstCaller.join(10000);
+        }
+        assertFalse(firstCaller.isAlive());
+        assertEquals(16, first.getValidCount());
+    }
+
+    @Test
+    public void testErrorIsRethrownAndTheShardsAreReused()
+    {
+        final boolean[] fail = { true };
+        SinglePacketTransformer transformer
+            = new SinglePacketTransformer()
+            {
+                @Override
+                public RawPacket reverseTransform(RawPacket pkt)
+                {
+                    return pkt;
+                }
+
+                @Override
+                public RawPacket transform(RawPacket pkt)
+                {
+                    return pkt;
+                }
+
+                @Override
+                public RawPacket[] transform(RawPacket[] pkts)
+                {
+                    for (RawPacket pkt : pkts)
+                    {
+                        if (fail[0] && pkt != null && pkt.getSSRC() == 3)
+                            throw new IllegalStateException("ssrc 3");
+                    }
+                    return super.transform(pkts);
+                }
+            };
+        BatchPacketTransformer parallel
+            = (BatchPacketTransformer)
+                new ParallelTransformEngine(newEngine(transformer))
+                    .getRTPTransformer();
+
+        try
+        {
+            parallel.transform(newBatch(32));
+            fail("The error of the transformer was swallowed");
+        }
+        catch (IllegalStateException ise)
+        {
+            assertEquals("ssrc 3", ise.getMessage());
+        }
+
+        fail[0] = false;
+
+        PacketBatch batch = newBatch(32);
+        RawPacket[] pkts = batch.getPackets().clone();
+
+        parallel.transform(batch);
+        assertEquals(32, batch.size());
+        for (int i = 0; i < 32; i++)
+            assertSame(pkts[i], batch.get(i));
+    }
+
+    /**
+     * Tests that a <tt>TransformEngineChain</tt> hands a batch of many
+     * sources as a whole to its <tt>ParallelTransformEngine</tt> only and one
+     * packet at a time to the engines which assume a single source per call
+     * (e.g. FEC).
+     */
+    @Test
+    public void testChainSplitsBatchesForOtherEngines()
+    {
+        final List<RawPacket> fecOut = new ArrayList<>();
+        PacketTransformer fec
+            = new BatchPacketTransformer()
+            {
+                @Override
+                public void close()
+                {
+                }
+
+                @Override
+                public RawPacket[] reverseTransform(RawPacket[] pkts)
+                {
+                    return pkts;
+                }
+
+                @Override
+                public void reverseTransform(PacketBatch batch)
+                {
+                }
+
+                @Override
+                public RawPacket[] transform(RawPacket[] pkts)
+                {
+                    PacketBatch batch = new PacketBatch(pkts);
+
+                    transform(batch);
+                    return batch.getPackets();
+                }
+
+                @Override
+                public void transform(PacketBatch batch)
+                {
+                    assertEquals(1, batch.getValidCount());
+
+                    RawPacket pkt = getValidPackets(batch).get(0);
+                    // Protect the packet with a packet of its SSRC.
+                    RawPacket protection
+                        = newPacket(pkt.getSSRC(), pkt.getSequenceNumber());
+
+                    fecOut.add(protection);
+                    batch.add(protection);
+                }
+            };
+        final Set<Integer> srtpBatchSizes = new HashSet<>();
+        PacketTransformer srtp
+            = new PacketTransformer()
+            {
+                @Override
+                public void close()
+                {
+                }
+
+                @Override
+                public RawPacket[] reverseTransform(RawPacket[] pkts)
+                {
+                    return pkts;
+                }
+
+                @Override
+                public RawPacket[] transform(RawPacket[] pkts)
+                {
+                    int count = 0;
+
+                    for (RawPacket pkt : pkts)
+                    {
+                        if (pkt != null)
+                            count++;
+                    }
+                    synchronized (srtpBatchSizes)
+                    {
+                        srtpBatchSizes.add(count);
+                    }
+                    return pkts;
+                }
+            };
+        TransformEngineChain chain
+            = new TransformEngineChain(
+                    new TransformEngine[]
+                        {
+                            newEngine(fec),
+                            new ParallelTransformEngine(newEngine(srtp))
+                        });
+        TransformEngineChain.PacketTransformerChain rtp
+            = (TransformEngineChain.PacketTransformerChain)
+                chain.getRTPTransformer();
+        PacketBatch batch = newBatch(16);
+        RawPacket[] pkts = batch.getPackets().clone();
+
+        assertTrue(rtp.isParallel());
+        rtp.transform(batch);
+
+        // Every packet is followed by its protection.
+        List<RawPacket> out = getValidPackets(batch);
+
+        assertEquals(32, out.size());
+        for (int i = 0; i < 16; i++)
+        {
+            assertSame(pkts[i], out.get(2 * i));
+            assertSame(fecOut.get(i), out.get(2 * i + 1));
+        }
+
+        // The SRTP stage got more than a packet per call.
+        int max = 0;
+
+        for (int size : srtpBatchSizes)
+            max = Math.max(max, size);
+        assertTrue(max > 1);
+    }
+}
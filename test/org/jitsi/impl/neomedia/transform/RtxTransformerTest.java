@@ -0,0 +1,318 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.rtcp.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.rtp.*;
+import org.junit.*;
+
+/**
+ * Tests {@link RtxTransformer}.
+ */
+public class RtxTransformerTest
+{
+    /**
+     * The default maximum bitrate of the retransmissions in bits per second.
+     */
+    private static final long MAX_BITRATE = 2000000L;
+
+    private static final byte PT = 96;
+
+    private static final long RTT_MS = 50;
+
+    private static final byte RTX_PT = 97;
+
+    private static final long RTX_SSRC = 0x87654321L;
+
+    private static final long SSRC = 0x12345678L;
+
+    /**
+     * The packets in the cache of the stream by sequence number.
+     */
+    private final Map<Integer, RawPacket> cache = new HashMap<>();
+
+    /**
+     * The packets injected by {@link #transformer}.
+     */
+    private final List<RawPacket> injected = new ArrayList<>();
+
+    private RtxTransformer transformer;
+
+    @BeforeClass
+    public static void setUpClass()
+    {
+        LibJitsi.start();
+    }
+
+    @Before
+    public void setUp()
+    {
+        final RawPacketCache packetCache
+            = newProxy(
+                    RawPacketCache.class,
+                    new InvocationHandler()
+                    {
+                        @Override
+                        public Object invoke(
+                                Object proxy, Method method, Object[] args)
+                        {
+                            if ("get".equals(method.getName()))
+                            {
+                                return
+                                    SSRC == (Long) args[0]
+                                        ? cache.get(args[1])
+                                        : null;
+                            }
+                            return defaultValue(method);
+                        }
+                    });
+        final MediaStreamStats stats
+            = newProxy(
+                    MediaStreamStats.class,
+                    new InvocationHandler()
+                    {
+                        @Override
+                        public Object invoke(
+                                Object proxy, Method method, Object[] args)
+                        {
+                            if ("getRttMs".equals(method.getName()))
+                                return RTT_MS;
+                            return defaultValue(method);
+                        }
+                    });
+        MediaStream stream
+            = newProxy(
+                    MediaStream.class,
+                    new InvocationHandler()
+                    {
+                        @Override
+                        public Object invoke(
+                                Object proxy, Method method, Object[] args)
+                        {
+                            switch (method.getName())
+                            {
+                            case "getMediaStreamStats":
+                                return stats;
+                            case "getPacketCache":
+                                return packetCache;
+                            case "injectPacket":
+                                injected.add((RawPacket) args[0]);
+                                return null;
+                            default:
+                                return defaultValue(method);
+                            }
+                        }
+                    });
+
+        transformer = new RtxTransformer(stream);
+        transformer.addRtxPayloadType(RTX_PT, PT);
+        transformer.setRtxSsrcs(Collections.singletonMap(SSRC, RTX_SSRC));
+    }
+
+    @Test
+    public void testEncapsulate()
+    {
+        RawPacket pkt = createPacket(PT, 65535, 10);
+        byte[] original = getBytes(pkt);
+
+        cache.put(65535, pkt);
+        cache.put(0, createPacket(PT, 0, 10));
+        transformer.nackReceived(nack(65535, 0), 1000);
+
+        assertEquals(2, injected.size());
+
+        RawPacket rtx = injected.get(0);
+        int headerLength = pkt.getHeaderLength();
+
+        // The header (with its extension) is the one of the original packet
+        // save for the payload type, the sequence number and the SSRC.
+        assertEquals(20, headerLength);
+        assertEquals(headerLength, rtx.getHeaderLength());
+        assertEquals(RTX_PT, rtx.getPayloadType());
+        assertEquals((int) RTX_SSRC, rtx.getSSRC());
+        assertTrue(rtx.getExtensionBit());
+        assertArrayEquals(
+                Arrays.copyOfRange(original, 12, headerLength),
+                Arrays.copyOfRange(getBytes(rtx), 12, headerLength));
+
+        // The original sequence number precedes the payload.
+        assertEquals(original.length + 2, rtx.getLength());
+        assertEquals(65535, rtx.getOriginalSequenceNumber());
+        assertArrayEquals(
+                Arrays.copyOfRange(original, headerLength, original.length),
+                Arrays.copyOfRange(
+                        getBytes(rtx), headerLength + 2, rtx.getLength()));
+
+        // The retransmission stream has sequence numbers of its own.
+        assertEquals(0, injected.get(1).getOriginalSequenceNumber());
+        assertEquals(
+                (rtx.getSequenceNumber() + 1) & 0xffff,
+                injected.get(1).getSequenceNumber());
+
+        // The cached packet is left intact.
+        assertArrayEquals(original, getBytes(pkt));
+        assertEquals(2, transformer.getRetransmittedPackets());
+    }
+
+    @Test
+    public void testPayloadTypeWithoutRtx()
+    {
+        cache.put(1, createPacket((byte) (PT + 2), 1, 10));
+        cache.put(2, createPacket(PT, 2, 10));
+        transformer.nackReceived(nack(1, 2), 1000);
+
+        assertEquals(1, injected.size());
+        assertEquals(2, injected.get(0).getOriginalSequenceNumber());
+
+        cache.put(3, createPacket(PT, 3, 10));
+        transformer.clearRtxPayloadTypes();
+        transformer.nackReceived(nack(3), 2000);
+        assertEquals(1, injected.size());
+    }
+
+    @Test
+    public void testDuplicates()
+    {
+        cache.put(1, createPacket(PT, 1, 10));
+
+        transformer.nackReceived(nack(1), 1000);
+        assertEquals(1, injected.size());
+
+        // The request is repeated before the retransmission can have arrived.
+        transformer.nackReceived(nack(1), 1000 + RTT_MS - 1);
+        assertEquals(1, injected.size());
+        assertEquals(1, transformer.getDuplicates());
+
+        // The retransmission has been lost.
+        transformer.nackReceived(nack(1), 1000 + RTT_MS);
+        assertEquals(2, injected.size());
+        assertEquals(1, transformer.getDuplicates());
+    }
+
+    @Test
+    public void testBudget()
+    {
+        // 1250 bytes per retransmission.
+        int payloadLength = 1250 - 2 - 20;
+        List<Integer> seqs = new ArrayList<>();
+
+        for (int seq = 0; seq < 100; seq++)
+        {
+            cache.put(seq, createPacket(PT, seq, payloadLength));
+            seqs.add(seq);
+        }
+
+        // The burst is limited to 200 ms worth of the bitrate.
+        long burst = MAX_BITRATE * 200 / 8000 / 1250;
+
+        transformer.nackReceived(nack(seqs), 1000);
+        assertEquals(burst, injected.size());
+        assertEquals(100 - burst, transformer.getBudgetDrops());
+
+        // The budget is replenished at the bitrate.
+        long replenished = MAX_BITRATE * 100 / 8000 / 1250;
+
+        transformer.nackReceived(nack(seqs), 1100);
+        assertEquals(burst + replenished, injected.size());
+        assertEquals(
+                (burst + replenished) * 1250,
+                transformer.getRetransmittedBytes());
+
+        // The unused budget does not accumulate beyond the burst.
+        injected.clear();
+        cache.clear();
+        for (int seq = 100; seq < 200; seq++)
+            cache.put(seq, createPacket(PT, seq, payloadLength));
+        transformer.nackReceived(nack(new ArrayList<>(cache.keySet())), 60000);
+        assertEquals(burst, injected.size());
+    }
+
+    /**
+     * Initializes a new RTP packet of {@link #SSRC} with a one-byte header
+     * extension.
+     */
+    private static RawPacket createPacket(byte pt, int seq, int payloadLength)
+    {
+        byte[] buf = new byte[20 + payloadLength];
+
+        buf[0] = (byte) 0x90;
+        buf[12] = (byte) 0xbe;
+        buf[13] = (byte) 0xde;
+        buf[15] = 1;
+        buf[16] = 0x10;
+        buf[17] = 0x2a;
+        for (int i = 20; i < buf.length; i++)
+            buf[i] = (byte) i;
+
+        RawPacket pkt = new RawPacket(buf, 0, buf.length);
+
+        pkt.setPayloadType(pt);
+        pkt.setSequenceNumber(seq);
+        pkt.setSSRC((int) SSRC);
+        return pkt;
+    }
+
+    private static Object defaultValue(Method method)
+    {
+        Class<?> type = method.getReturnType();
+
+        if (type == boolean.class)
+            return false;
+        else if (type == int.class)
+            return 0;
+        else if (type == long.class)
+            return 0L;
+        else
+            return null;
+    }
+
+    private static byte[] getBytes(RawPacket pkt)
+    {
+        return
+            Arrays.copyOfRange(
+                    pkt.getBuffer(),
+                    pkt.getOffset(),
+                    pkt.getOffset() + pkt.getLength());
+    }
+
+    private static NACKPacket nack(Integer... seqs)
+    {
+        return nack(Arrays.asList(seqs));
+    }
+
+    private static NACKPacket nack(Collection<Integer> seqs)
+    {
+        return new NACKPacket(1, SSRC, seqs);
+    }
+
+    private static <T> T newProxy(Class<T> iface, InvocationHandler handler)
+    {
+        return
+            iface.cast(
+                    Proxy.newProxyInstance(
+                            iface.getClassLoader(),
+                            new Class<?>[] { iface },
+                            handler));
+    }
+}
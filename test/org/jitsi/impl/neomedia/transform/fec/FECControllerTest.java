@@ -0,0 +1,338 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.fec;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.util.*;
+
+import net.sf.fmj.media.rtp.*;
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.rtcp.*;
+import org.jitsi.impl.neomedia.transform.sdes.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.rtp.*;
+import org.jitsi.service.neomedia.stats.*;
+import org.junit.*;
+
+public class FECControllerTest
+{
+    private static final long SSRC = 0x12345678L;
+
+    private FECController controller;
+
+    private FECTransformEngine engine;
+
+    private long extendedHighestSeqNum = 0;
+
+    private final Set<NACKListener> nackListeners = new HashSet<>();
+
+    private long rttMs = 200;
+
+    @BeforeClass
+    public static void setUpClass()
+    {
+        LibJitsi.start();
+        // Before FECController reads it. Not FECController.ENABLED_PNAME
+        // which would initialize the class.
+        LibJitsi.getConfigurationService().setProperty(
+                "org.jitsi.impl.neomedia.transform.fec.FECController.ENABLED",
+                "true");
+    }
+
+    @Before
+    public void setUp()
+    {
+        final SendTrackStats sendStats
+            = newProxy(
+                    SendTrackStats.class,
+                    new InvocationHandler()
+                    {
+                        @Override
+                        public Object invoke(
+                                Object proxy, Method method, Object[] args)
+                        {
+                            switch (method.getName())
+                            {
+                            case "getBitrate":
+                                return 1000000L;
+                            case "getPacketRate":
+                                return 100L;
+                            default:
+                                return defaultValue(method);
+                            }
+                        }
+                    });
+        final RTCPReports rtcpReports = new RTCPReports();
+        final MediaStreamStats2 stats
+            = newProxy(
+                    MediaStreamStats2.class,
+                    new InvocationHandler()
+                    {
+                        @Override
+                        public Object invoke(
+                                Object proxy, Method method, Object[] args)
+                        {
+                            switch (method.getName())
+                            {
+                            case "addNackListener":
+                                nackListeners.add((NACKListener) args[0]);
+                                return null;
+                            case "getRTCPReports":
+                                return rtcpReports;
+                            case "getRttMs":
+                                return rttMs;
+                            case "getSendStats":
+                                return sendStats;
+                            case "removeNackListener":
+                                nackListeners.remove(args[0]);
+                                return null;
+                            default:
+                                return defaultValue(method);
+                            }
+                        }
+                    });
+        MediaStream stream
+            = newProxy(
+                    MediaStream.class,
+                    new InvocationHandler()
+                    {
+                        @Override
+                        public Object invoke(
+                                Object proxy, Method method, Object[] args)
+                        {
+                            switch (method.getName())
+                            {
+                            case "getMediaStreamStats":
+                                return stats;
+                            case "toString":
+                                return "stream";
+                            default:
+                                return defaultValue(method);
+                            }
+                        }
+                    });
+
+        engine = new FECTransformEngine();
+        controller = new FECController(stream, engine);
+    }
+
+    @After
+    public void tearDown()
+    {
+        controller.close();
+    }
+
+    @Test
+    public void testLevel()
+    {
+        receiverReports(0, 5);
+        assertEquals(0, engine.getFecRate());
+
+        // Below the loss at which the protection is switched on.
+        receiverReports(1, 10);
+        assertEquals(0, engine.getFecRate());
+
+        receiverReports(4, 10);
+        assertEquals(5, engine.getFecRate());
+        assertEquals(0, engine.getFecColumns());
+
+        receiverReports(10, 10);
+        assertEquals(3, engine.getFecRate());
+    }
+
+    @Test
+    public void testLowRtt()
+    {
+        // The packets lost on a path with a short round-trip time are
+        // retransmitted rather than protected.
+        rttMs = 20;
+        receiverReports(10, 10);
+        assertEquals(0, engine.getFecRate());
+    }
+
+    @Test
+    public void testHysteresis()
+    {
+        receiverReports(4, 10);
+        assertEquals(5, engine.getFecRate());
+
+        // The protection is decreased only after the loss has required less
+        // of it for a while.
+        receiverReports(0, 10);
+        assertEquals(5, engine.getFecRate());
+
+        // It is increased at once.
+        receiverReports(10, 10);
+        assertEquals(3, engine.getFecRate());
+    }
+
+    @Test
+    public void testColumns()
+    {
+        receiverReports(10, 10);
+        assertEquals(3, engine.getFecRate());
+        assertEquals(0, engine.getFecColumns());
+
+        // Isolated losses keep the protection of consecutive packets.
+        for (int i = 0; i < 10; i++)
+            nack(10, 12, 14, 16);
+        receiverReports(10, 1);
+        assertEquals(0, engine.getFecColumns());
+
+        // Bursts of 4 packets are protected by the columns of a matrix with
+        // the same overhead.
+        for (int i = 0; i < 10; i++)
+            nack(10, 11, 12, 13, 20, 21, 22, 23);
+        receiverReports(10, 1);
+        assertEquals(3, engine.getFecRate());
+        assertEquals(4, engine.getFecColumns());
+
+        // Back to isolated losses.
+        for (int i = 0; i < 10; i++)
+            nack(30, 32, 34, 36);
+        receiverReports(10, 1);
+        assertEquals(3, engine.getFecRate());
+        assertEquals(0, engine.getFecColumns());
+    }
+
+    @Test
+    public void testClose()
+    {
+        assertTrue(nackListeners.contains(controller));
+        controller.close();
+        assertFalse(nackListeners.contains(controller));
+    }
+
+    @Test
+    public void testStreamWithConnector()
+        throws SocketException
+    {
+        // The transform engine chain of a stream initialized with a connector
+        // is created before its statistics.
+        StreamConnector connector
+            = new DefaultStreamConnector(
+                    new DatagramSocket(0), new DatagramSocket(0));
+        MediaStreamImpl stream
+            = new MediaStreamImpl(connector, null, new SDesControlImpl())
+            {
+                private FECTransformEngine fecTransformEngine;
+
+                @Override
+                protected FECTransformEngine getFecTransformEngine()
+                {
+                    if (fecTransformEngine == null)
+                        fecTransformEngine = new FECTransformEngine();
+                    return fecTransformEngine;
+                }
+            };
+
+        try
+        {
+            assertEquals(
+                    FECController.isEnabled(),
+                    stream.getFecController() != null);
+        }
+        finally
+        {
+            stream.close();
+            connector.close();
+        }
+    }
+
+    private static Object defaultValue(Method method)
+    {
+        Class<?> type = method.getReturnType();
+
+        if (type == boolean.class)
+            return false;
+        else if (type == int.class)
+            return 0;
+        else if (type == long.class)
+            return 0L;
+        else if (type == double.class)
+            return 0D;
+        else
+            return null;
+    }
+
+    private void nack(Integer... lostPackets)
+    {
+        NACKPacket nack
+            = new NACKPacket(1, SSRC, Arrays.asList(lostPackets));
+
+        for (NACKListener listener : new ArrayList<>(nackListeners))
+            listener.nackReceived(nack);
+    }
+
+    private static <T> T newProxy(Class<T> iface, InvocationHandler handler)
+    {
+        return
+            iface.cast(
+                    Proxy.newProxyInstance(
+                            iface.getClassLoader(),
+                            new Class<?>[] { iface },
+                            handler));
+    }
+
+    /**
+     * Feeds a number of RTCP receiver reports, each of which covers 100
+     * packets, with a specific fraction lost to the controller.
+     */
+    private void receiverReports(int percentLost, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            extendedHighestSeqNum += 100;
+
+            // An RR with a single report block.
+            byte[] buf = new byte[32];
+
+            buf[0] = (byte) 0x81;
+            buf[1] = (byte) 201;
+            buf[3] = 7;
+            writeInt(buf, 4, 1);
+            writeInt(buf, 8, (int) SSRC);
+            buf[12] = (byte) (percentLost * 256 / 100);
+            writeInt(buf, 16, (int) extendedHighestSeqNum);
+
+            RTCPReport report;
+
+            try
+            {
+                report = new RTCPReceiverReport(buf, 0, buf.length);
+            }
+            catch (IOException ioe)
+            {
+                throw new AssertionError(ioe);
+            }
+            controller.rtcpReportReceived(report);
+        }
+    }
+
+    private static void writeInt(byte[] buf, int off, int value)
+    {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.fec;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * JMH benchmark of the reverse-transform of {@link FECReceiver} for a video
+ * stream protected by ulpfec packets produced by {@link FECSender} from which
+ * a percentage of the packets (media and ulpfec alike) is dropped at random.
+ * Each operation reverse-transforms a single received packet and, if a media
+ * packet is recovered, returns its buffer to the pool as the rest of the
+ * receive chain would.
+ *
+ * Run it (with the allocations per operation reported as
+ * <tt>gc.alloc.rate.norm</tt>) with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.jitsi.impl.neomedia.transform.fec.FECReceiverBenchmark \
+ *     -Dexec.args="-p lossPercent=5"
+ * </pre>
+ *
+ * The <tt>FECReceiver</tt> is replaced after every {@link #RING_SIZE}
+ * packets because the packets are produced in advance and their sequence
+ * numbers do not continue when they are replayed. The replacement is
+ * amortized over the packets.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class FECReceiverBenchmark
+{
+    /**
+     * The number of media packets protected by an ulpfec packet.
+     */
+    private static final int FEC_RATE = 5;
+
+    /**
+     * The number of packets (media and ulpfec) produced in advance.
+     */
+    private static final int RING_SIZE = 4096;
+
+    /**
+     * The SSRC of the video stream.
+     */
+    private static final long SSRC = 0x12345678L;
+
+    /**
+     * The payload type of the ulpfec packets.
+     */
+    private static final byte ULPFEC_PT = 117;
+
+    /**
+     * The payload type of the media packets.
+     */
+    private static final byte VP8_PT = 100;
+
+    /**
+     * Runs the benchmark with the JMH command line options <tt>args</tt> and
+     * the GC profiler.
+     *
+     * @param args the JMH command line options
+     */
+    public static void main(String[] args)
+        throws CommandLineOptionException, RunnerException
+    {
+        Options options
+            = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(FECReceiverBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+
+    /**
+     * The batch in which the received packets are reverse-transformed.
+     */
+    private final PacketBatch batch = new PacketBatch(4);
+
+    /**
+     * The percentage of the packets which are dropped before they reach
+     * the <tt>FECReceiver</tt>.
+     */
+    @Param({ "0", "5", "20" })
+    public int lossPercent;
+
+    /**
+     * The index in {@link #packets} of the next packet to be
+     * reverse-transformed.
+     */
+    private int next;
+
+    /**
+     * The packet into which the next received packet is copied (as the
+     * receiving side reuses its buffers).
+     */
+    private final RawPacket pkt
+        = new RawPacket(
+                new byte[FECTransformEngine.INITIAL_BUFFER_SIZE + 64],
+                0,
+                0);
+
+    /**
+     * The (received i.e. not dropped) packets produced in advance.
+     */
+    private byte[][] packets;
+
+    /**
+     * The <tt>FECReceiver</tt> which reverse-transforms {@link #packets}.
+     */
+    private FECReceiver receiver;
+
+    /**
+     * The number of media packets which have been recovered.
+     */
+    private long recovered;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        Random random = new Random(0);
+        FECSender sender = new FECSender(SSRC, FEC_RATE, ULPFEC_PT);
+        List<byte[]> received = new ArrayList<>();
+        PacketBatch out = new PacketBatch(4);
+        int sent = 0;
+
+        for (int seq = 0; sent < RING_SIZE; seq++)
+        {
+            // Video packets of varying lengths, mostly close to the MTU.
+            int length = 12 + 800 + random.nextInt(400);
+            byte[] buf = new byte[length];
+
+            random.nextBytes(buf);
+
+            RawPacket media = new RawPacket(buf, 0, length);
+
+            buf[0] = (byte) 0x80;
+            buf[1] = VP8_PT;
+            media.setSequenceNumber(seq);
+            media.setTimestamp((seq / 4) * 3000L);
+            media.setSSRC((int) SSRC);
+
+            out.clear();
+            out.add(media);
+            sender.transform(out);
+            for (int i = 0, size = out.size(); i < size; i++)
+            {
+                RawPacket p = out.get(i);
+
+                if (p == null || sent == RING_SIZE)
+                    continue;
+                sent++;
+                if (random.nextInt(100) < lossPercent)
+                    continue;
+                received.add(
+                        Arrays.copyOfRange(
+                                p.getBuffer(),
+                                p.getOffset(),
+                                p.getOffset() + p.getLength()));
+            }
+        }
+        sender.close();
+
+        packets = received.toArray(new byte[received.size()][]);
+        receiver = new FECReceiver(SSRC, ULPFEC_PT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        receiver.close();
+    }
+
+    @Benchmark
+    public long reverseTransform()
+    {
+        if (next == packets.length)
+        {
+            next = 0;
+            receiver.close();
+            receiver = new FECReceiver(SSRC, ULPFEC_PT);
+        }
+
+        byte[] buf = packets[next++];
+
+        System.arraycopy(buf, 0, pkt.getBuffer(), 0, buf.length);
+        pkt.setLength(buf.length);
+
+        batch.clear();
+        batch.add(pkt);
+        receiver.reverseTransform(batch);
+
+        for (int i = 0, size = batch.size(); i < size; i++)
+        {
+            RawPacket p = batch.get(i);
+
+            if (p != null && p != pkt)
+            {
+                recovered++;
+                p.releaseBuffer();
+            }
+        }
+        return recovered;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.fec;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.libjitsi.*;
+import org.junit.*;
+
+/**
+ * Sends media packets through a {@link FECSender}, drops some of the media
+ * and ulpfec packets and checks that a {@link FECReceiver} recovers the lost
+ * media packets byte for byte. The sequence numbers start right before they
+ * wrap.
+ */
+public class FECReceiverTest
+{
+    private static final int MEDIA_PACKET_COUNT = 2000;
+
+    private static final int FIRST_SEQ = 65500;
+
+    private static final long SSRC = 9;
+
+    private static final byte ULPFEC_PT = 117;
+
+    private static final byte VP8_PT = 100;
+
+    @BeforeClass
+    public static void setUpClass()
+    {
+        LibJitsi.start();
+    }
+
+    @Test
+    public void testConsecutive()
+    {
+        // A single loss among the 4 packets protected by an ulpfec packet.
+        Result result = run(4, 0, 0, false, 7, 1);
+
+        assertTrue(result.lost > 0);
+        assertEquals(result.lost, result.recovered);
+        assertEquals(0, result.mismatched);
+    }
+
+    @Test
+    public void testColumns()
+    {
+        // A burst of 4 packets hits the 4 columns once each.
+        Result result = run(0, 4, 4, false, 40, 4);
+
+        assertTrue(result.lost > 0);
+        assertEquals(result.lost, result.recovered);
+        assertEquals(0, result.mismatched);
+
+        result = run(0, 10, 4, false, 61, 10);
+        assertTrue(result.lost > 0);
+        assertEquals(result.lost, result.recovered);
+        assertEquals(0, result.mismatched);
+    }
+
+    @Test
+    public void testConsecutiveBurst()
+    {
+        // A burst of 4 packets is not recoverable from the ulpfec packets of
+        // consecutive packets which the columns above recover.
+        Result result = run(4, 0, 0, false, 40, 4);
+
+        assertTrue(result.lost > 0);
+        assertEquals(0, result.recovered);
+    }
+
+    @Test
+    public void test2D()
+    {
+        Result result = run(0, 4, 4, true, 40, 4);
+
+        assertTrue(result.lost > 0);
+        assertEquals(result.lost, result.recovered);
+        assertEquals(0, result.mismatched);
+
+        // A burst longer than the columns leaves two losses in a column which
+        // the rows resolve.
+        result = run(0, 5, 5, true, 53, 6);
+        assertTrue(result.lost > 0);
+        assertEquals(result.lost, result.recovered);
+        assertEquals(0, result.mismatched);
+
+        result = run(0, 4, 4, true, 7, 1);
+        assertTrue(result.lost > 0);
+        assertEquals(result.lost, result.recovered);
+        assertEquals(0, result.mismatched);
+    }
+
+    @Test
+    public void testSequenceNumberWrap()
+    {
+        for (Result result
+                : new Result[]
+                    {
+                        run(4, 0, 0, false, 7, 1),
+                        run(0, 4, 4, false, 40, 4),
+                        run(0, 4, 4, true, 7, 1)
+                    })
+        {
+            assertEquals(result.lost, result.recovered);
+            assertEquals(0, result.mismatched);
+
+            // Packets on both sides of the wrap have been recovered.
+            boolean beforeWrap = false, afterWrap = false;
+
+            for (int seq : result.recoveredSeqs)
+            {
+                if (seq >= FIRST_SEQ)
+                    beforeWrap = true;
+                else if (seq < 100)
+                    afterWrap = true;
+            }
+            assertTrue(beforeWrap);
+            assertTrue(afterWrap);
+        }
+    }
+
+    private static RawPacket createMediaPacket(int i)
+    {
+        int length = 100 + (i * 37) % 900;
+        byte[] buf = new byte[length];
+
+        buf[0] = (byte) 0x80;
+        buf[1] = VP8_PT;
+        for (int k = 12; k < length; k++)
+            buf[k] = (byte) (i * k);
+
+        RawPacket pkt = new RawPacket(buf, 0, length);
+
+        pkt.setSequenceNumber((FIRST_SEQ + i) & 0xffff);
+        pkt.setTimestamp(i * 3000L);
+        pkt.setSSRC((int) SSRC);
+        return pkt;
+    }
+
+    private static byte[] getBytes(RawPacket pkt)
+    {
+        return
+            Arrays.copyOfRange(
+                    pkt.getBuffer(),
+                    pkt.getOffset(),
+                    pkt.getOffset() + pkt.getLength());
+    }
+
+    /**
+     * Protects {@link #MEDIA_PACKET_COUNT} media packets with the consecutive
+     * or the matrix protection and drops <tt>burstLength</tt> packets out of
+     * every <tt>burstInterval</tt> packets on the wire.
+     */
+    private static Result run(
+            int fecRate,
+            int columns,
+            int rows,
+            boolean rowParity,
+            int burstInterval,
+            int burstLength)
+    {
+        FECSender sender = new FECSender(SSRC, fecRate, ULPFEC_PT);
+        FECReceiver receiver = new FECReceiver(SSRC, ULPFEC_PT);
+        Map<Integer,byte[]> sent = new HashMap<>();
+        Set<Integer> lostSeqs = new HashSet<>();
+        Result result = new Result();
+        int wireCount = 0;
+
+        if (columns != 0)
+            sender.setFecMatrix(columns, rows, rowParity);
+
+        for (int i = 0; i < MEDIA_PACKET_COUNT; i++)
+        {
+            PacketBatch out = new PacketBatch(4);
+
+            out.add(createMediaPacket(i));
+            sender.transform(out);
+
+            for (int j = 0, size = out.size(); j < size; j++)
+            {
+                RawPacket pkt = out.get(j);
+
+                if (pkt == null)
+                    continue;
+
+                boolean fec = pkt.getPayloadType() == ULPFEC_PT;
+                int seq = pkt.getSequenceNumber();
+
+                if (!fec)
+                    sent.put(seq, getBytes(pkt));
+                if ((wireCount++ % burstInterval) < burstLength)
+                {
+                    if (!fec)
+                    {
+                        result.lost++;
+                        lostSeqs.add(seq);
+                    }
+                    continue;
+                }
+
+                byte[] buf = getBytes(pkt);
+                PacketBatch in = new PacketBatch(4);
+
+                in.add(new RawPacket(buf, 0, buf.length));
+                receiver.reverseTransform(in);
+
+                for (int k = 0, inSize = in.size(); k < inSize; k++)
+                {
+                    RawPacket recovered = in.get(k);
+
+                    if (recovered == null)
+                        continue;
+
+                    int recoveredSeq = recovered.getSequenceNumber();
+
+                    if (lostSeqs.remove(recoveredSeq))
+                    {
+                        result.recovered++;
+                        result.recoveredSeqs.add(recoveredSeq);
+                        if (!Arrays.equals(
+                                sent.get(recoveredSeq),
+                                getBytes(recovered)))
+                        {
+                            result.mismatched++;
+                        }
+                    }
+                }
+            }
+        }
+        sender.close();
+        receiver.close();
+        return result;
+    }
+
+    private static class Result
+    {
+        int lost;
+
+        int mismatched;
+
+        int recovered;
+
+        final Set<Integer> recoveredSeqs = new HashSet<>();
+    }
+}
@@ -0,0 +1,109 @@
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import static org.junit.Assert.*;
+import java.util.Arrays;
+import javax.xml.bind.DatatypeConverter;
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.junit.Test;
+
+public class HMACSHA1JCETest
+{
+    // RFC 2202 HMAC-SHA1 test vectors: key, data, digest
+    public static final String[][] TV_HMAC_SHA1 =
+        {
+            {
+                repeat("0B", 20),
+                DatatypeConverter.printHexBinary("Hi There".getBytes()),
+                "B617318655057264E28BC0B6FB378C8EF146BE00"
+            },
+            {
+                DatatypeConverter.printHexBinary("Jefe".getBytes()),
+                DatatypeConverter.printHexBinary(
+                    "what do ya want for nothing?".getBytes()),
+                "EFFCDF6AE5EB2FA2D27416D5F184DF9C259A7C79"
+            },
+            {
+                repeat("AA", 20),
+                repeat("DD", 50),
+                "125D7342B9AC11CD91A39AF48AA17B4F63F175D3"
+            },
+            {
+                "0102030405060708090A0B0C0D0E0F10111213141516171819",
+                repeat("CD", 50),
+                "4C9007F4026250C6BC8414F9BF50C86C2D7235DA"
+            },
+            {
+                repeat("0C", 20),
+                DatatypeConverter.printHexBinary(
+                    "Test With Truncation".getBytes()),
+                "4C1A03424B55E07FE7F27BE1D58BB9324A9A5A04"
+            },
+            {
+                repeat("AA", 80),
+                DatatypeConverter.printHexBinary(
+                    "Test Using Larger Than Block-Size Key - Hash Key First"
+                        .getBytes()),
+                "AA4AE5E15272D00E95705637CE8A3B55ED402112"
+            },
+            {
+                repeat("AA", 80),
+                DatatypeConverter.printHexBinary(
+                    ("Test Using Larger Than Block-Size Key and Larger Than"
+                            + " One Block-Size Data")
+                        .getBytes()),
+                "E8E99D0F45237D786D6BBAA7965C7808BBFF1A91"
+            }
+        };
+
+    private static String repeat(String hex, int count)
+    {
+        StringBuilder s = new StringBuilder();
+
+        for (int i = 0; i < count; i++)
+            s.append(hex);
+        return s.toString();
+    }
+
+    @Test
+    public void testHMACSHA1JCE()
+    {
+        if (!HMACSHA1JCE.isSupported())
+        {
+            return;
+        }
+
+        testMac(new HMACSHA1JCE());
+    }
+
+    @Test
+    public void testHMACSHA1()
+    {
+        testMac(HMACSHA1.createMac());
+    }
+
+    private static void testMac(Mac mac)
+    {
+        for (String[] tv : TV_HMAC_SHA1)
+        {
+            byte[] key = DatatypeConverter.parseHexBinary(tv[0]);
+            byte[] data = DatatypeConverter.parseHexBinary(tv[1]);
+            byte[] digest = DatatypeConverter.parseHexBinary(tv[2]);
+            byte[] out = new byte[mac.getMacSize() + 3];
+
+            mac.init(new KeyParameter(key));
+
+            // doFinal leaves the Mac reset for the next message with the
+            // same key.
+            for (int i = 0; i < 2; i++)
+            {
+                mac.update(data[0]);
+                mac.update(data, 1, data.length - 1);
+                assertEquals(digest.length, mac.doFinal(out, 3));
+                assertArrayEquals(
+                        digest,
+                        Arrays.copyOfRange(out, 3, 3 + digest.length));
+            }
+        }
+    }
+}
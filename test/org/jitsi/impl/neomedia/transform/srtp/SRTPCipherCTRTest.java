@@ -2,6 +2,7 @@
 
 import static org.junit.Assert.*;
 import java.util.Arrays;
+import javax.crypto.Cipher;
 import javax.xml.bind.DatatypeConverter;
 import org.bouncycastle.crypto.engines.AESFastEngine;
 import org.jitsi.util.OSUtils;
@@ -47,6 +48,50 @@ public void testJavaCTRAES()
         assertArrayEquals(data, TV_Cipher_AES_2);
     }
 
+    @Test
+    public void testJCECTRAES()
+        throws Exception
+    {
+        SRTPCipherCTR cipher
+            = new SRTPCipherCTRJCE(
+                    Cipher.getInstance(SRTPCipherCTRJCE.TRANSFORMATION));
+        cipher.init(TV_Key);
+        byte[] data = new byte[TV_Cipher_AES_1.length];
+
+        Arrays.fill(data, (byte) 0);
+        byte[] iv = Arrays.copyOf(TV_IV_1, TV_IV_1.length);
+        cipher.process(data, 0, data.length, iv);
+        assertArrayEquals(data, TV_Cipher_AES_1);
+
+        Arrays.fill(data, (byte) 0);
+        iv = Arrays.copyOf(TV_IV_2, TV_IV_2.length);
+        cipher.process(data, 0, data.length, iv);
+        assertArrayEquals(data, TV_Cipher_AES_2);
+
+        // The keystream of a payload of many blocks (at an offset) generated
+        // in bulk is the one generated a block at a time.
+        SRTPCipherCTR javaCipher
+            = new SRTPCipherCTRJava(new AESFastEngine());
+        javaCipher.init(TV_Key);
+
+        for (byte[] tvIV : new byte[][] { TV_IV_1, TV_IV_2 })
+        {
+            byte[] expected = new byte[1200 + 7];
+            byte[] actual = new byte[expected.length];
+
+            for (int i = 0; i < expected.length; i++)
+                expected[i] = actual[i] = (byte) i;
+
+            javaCipher.process(
+                    expected, 7, expected.length - 7,
+                    Arrays.copyOf(tvIV, tvIV.length));
+            cipher.process(
+                    actual, 7, actual.length - 7,
+                    Arrays.copyOf(tvIV, tvIV.length));
+            assertArrayEquals(expected, actual);
+        }
+    }
+
     @Test
     public void testOpenSSLCTRAES()
     {
@@ -0,0 +1,298 @@
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import static org.junit.Assert.*;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import javax.xml.bind.DatatypeConverter;
+import org.jitsi.impl.neomedia.RawPacket;
+import org.junit.Test;
+
+public class SRTPCipherGCMTest
+{
+    // RFC 7714 AEAD_AES_128_GCM and AEAD_AES_256_GCM test vectors (sections
+    // 16 and 17)
+    public static final byte[] TV_Key_128 =
+        DatatypeConverter.parseHexBinary("000102030405060708090A0B0C0D0E0F");
+
+    public static final byte[] TV_Key_256 =
+        DatatypeConverter.parseHexBinary("000102030405060708090A0B0C0D0E0F"
+            + "101112131415161718191A1B1C1D1E1F");
+
+    public static final byte[] TV_Salt =
+        DatatypeConverter.parseHexBinary("517569642070726F2071756F");
+
+    public static final byte[] TV_RTP =
+        DatatypeConverter.parseHexBinary("8040F17B8041F8D35501A0B2"
+            + "47616C6C696120657374206F6D6E6973206469766973612069"
+            + "6E207061727465732074726573");
+
+    public static final byte[] TV_SRTP_128 =
+        DatatypeConverter.parseHexBinary("8040F17B8041F8D35501A0B2"
+            + "F24DE3A3FB34DE6CACBA861C9D7E4BCABE633BD50D294E6F42A5F47A"
+            + "51C7D19B36DE3ADF8833899D7F27BEB16A9152CF765EE4390CCE");
+
+    public static final byte[] TV_SRTP_256 =
+        DatatypeConverter.parseHexBinary("8040F17B8041F8D35501A0B2"
+            + "32B1DE78A822FE12EF9F78FA332E33AAB18012389A58E2F3B50B2A02"
+            + "76FFAE0F1BA63799B87B7AA3DB36DFFFD6B0F9BB7878D7A76C13");
+
+    public static final byte[] TV_RTCP =
+        DatatypeConverter.parseHexBinary("81C8000D4D617273"
+            + "4E5450314E545032525450200000042A0000E9304C756E61"
+            + "DEADBEEFDEADBEEFDEADBEEFDEADBEEFDEADBEEFDEADBEEF");
+
+    public static final int TV_SRTCP_Index = 0x5D4;
+
+    public static final byte[] TV_SRTCP_128 =
+        DatatypeConverter.parseHexBinary("81C8000D4D617273"
+            + "63E94885DCDAB67CA727D7662F6B7E997FF5C0F76C06F32DC676A5F1"
+            + "730D6FDA4CE09B4686303DED0BB9275B3EB9C6FA6924798E44F3D042"
+            + "AD45AEABBC7D6019" + "800005D4");
+
+    public static final byte[] TV_SRTCP_256 =
+        DatatypeConverter.parseHexBinary("81C8000D4D617273"
+            + "D50AE4D1F5CE5D304BA297E47D470C282C3ECE5DBFFE0A50A2EAA5C1"
+            + "110555BE8415F658C61DE0476F1B6FADE5D987BAED4F8777D0D056A2"
+            + "BDA4D9438D3A0DC8" + "800005D4");
+
+    @Test
+    public void testCipherGCM()
+    {
+        if (!SRTPCipherGCM.isSupported())
+        {
+            return;
+        }
+
+        // The IV of the RTP packet (RFC 7714 section 8.1): the SSRC, the ROC
+        // (0) and the SEQ XORed with the salt.
+        byte[] iv = new byte[SRTPCipherGCM.IV_LENGTH];
+
+        System.arraycopy(TV_RTP, 8, iv, 2, 4);
+        iv[10] = TV_RTP[2];
+        iv[11] = TV_RTP[3];
+        for (int i = 0; i < iv.length; i++)
+            iv[i] ^= TV_Salt[i];
+
+        for (byte[][] tv
+                : new byte[][][]
+                    {
+                        { TV_Key_128, TV_SRTP_128 },
+                        { TV_Key_256, TV_SRTP_256 }
+                    })
+        {
+            SRTPCipherGCM cipher = new SRTPCipherGCM();
+            cipher.init(tv[0]);
+
+            byte[] data = Arrays.copyOf(TV_RTP, tv[1].length);
+
+            assertTrue(cipher.start(true, iv));
+            cipher.updateAAD(data, 0, 12);
+            assertEquals(
+                    tv[1].length - 12,
+                    cipher.doFinal(data, 12, TV_RTP.length - 12));
+            assertArrayEquals(tv[1], data);
+
+            assertTrue(cipher.start(false, iv));
+            cipher.updateAAD(data, 0, 12);
+            assertEquals(
+                    TV_RTP.length - 12,
+                    cipher.doFinal(data, 12, tv[1].length - 12));
+            assertArrayEquals(
+                    TV_RTP,
+                    Arrays.copyOf(data, TV_RTP.length));
+
+            // A modified packet fails the authentication.
+            data = tv[1].clone();
+            data[20] ^= 1;
+            assertTrue(cipher.start(false, iv));
+            cipher.updateAAD(data, 0, 12);
+            assertEquals(-1, cipher.doFinal(data, 12, tv[1].length - 12));
+        }
+    }
+
+    @Test
+    public void testSRTPCryptoContextGCM()
+    {
+        if (!SRTPCipherGCM.isSupported())
+        {
+            return;
+        }
+
+        for (byte[][] tv
+                : new byte[][][]
+                    {
+                        { TV_Key_128, TV_SRTP_128 },
+                        { TV_Key_256, TV_SRTP_256 }
+                    })
+        {
+            SRTPCryptoContext sender = createSRTPCryptoContext(true, tv[0]);
+            RawPacket pkt = new RawPacket(TV_RTP.clone(), 0, TV_RTP.length);
+
+            assertTrue(sender.transformPacket(pkt));
+            assertArrayEquals(tv[1], getBytes(pkt));
+
+            SRTPCryptoContext receiver = createSRTPCryptoContext(false, tv[0]);
+
+            assertTrue(receiver.reverseTransformPacket(pkt));
+            assertArrayEquals(TV_RTP, getBytes(pkt));
+
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testSRTCPCryptoContextGCM()
+    {
+        if (!SRTPCipherGCM.isSupported())
+        {
+            return;
+        }
+
+        for (byte[][] tv
+                : new byte[][][]
+                    {
+                        { TV_Key_128, TV_SRTCP_128 },
+                        { TV_Key_256, TV_SRTCP_256 }
+                    })
+        {
+            SRTCPCryptoContext sender = createSRTCPCryptoContext(tv[0]);
+
+            // Advance the SRTCP index of the sender to the one of the vector.
+            for (int i = 0; i < TV_SRTCP_Index; i++)
+            {
+                assertTrue(
+                        sender.transformPacket(
+                                new RawPacket(
+                                        TV_RTCP.clone(),
+                                        0,
+                                        TV_RTCP.length)));
+            }
+
+            RawPacket pkt = new RawPacket(TV_RTCP.clone(), 0, TV_RTCP.length);
+
+            assertTrue(sender.transformPacket(pkt));
+            assertArrayEquals(tv[1], getBytes(pkt));
+
+            SRTCPCryptoContext receiver = createSRTCPCryptoContext(tv[0]);
+
+            assertTrue(receiver.reverseTransformPacket(pkt));
+            assertArrayEquals(TV_RTCP, getBytes(pkt));
+
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testCloseWhileAnotherThreadProcesses()
+        throws Exception
+    {
+        if (!SRTPCipherGCM.isSupported())
+        {
+            return;
+        }
+
+        final SRTPCryptoContext sender
+            = createSRTPCryptoContext(true, TV_Key_128);
+        final boolean[] transformed = new boolean[2];
+        final CountDownLatch used = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        Thread thread
+            = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    transformed[0] = sender.transformPacket(createRTP(0));
+                    used.countDown();
+                    try
+                    {
+                        closed.await();
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        return;
+                    }
+                    transformed[1] = sender.transformPacket(createRTP(1));
+                }
+            };
+
+        thread.start();
+        used.await();
+        // The other thread keeps its cipher state until its next use.
+        sender.close();
+        closed.countDown();
+        thread.join();
+
+        assertTrue(transformed[0]);
+        assertFalse(transformed[1]);
+        assertFalse(sender.transformPacket(createRTP(2)));
+    }
+
+    private static RawPacket createRTP(int seq)
+    {
+        RawPacket pkt = new RawPacket(TV_RTP.clone(), 0, TV_RTP.length);
+
+        pkt.setSequenceNumber(pkt.getSequenceNumber() + seq);
+        return pkt;
+    }
+
+    private static SRTPPolicy createPolicy(byte[] key)
+    {
+        return
+            new SRTPPolicy(
+                    SRTPPolicy.AESGCM_ENCRYPTION, key.length,
+                    SRTPPolicy.NULL_AUTHENTICATION, 0,
+                    SRTPCipherGCM.TAG_LENGTH,
+                    TV_Salt.length);
+    }
+
+    /**
+     * Sets the session keys of a specific crypto context to the ones of the
+     * test vectors (which specify the session keys rather than the master
+     * keys).
+     */
+    private static void setSessionKeys(BaseSRTPCryptoContext cc, byte[] key)
+    {
+        System.arraycopy(key, 0, cc.encKey, 0, key.length);
+        System.arraycopy(TV_Salt, 0, cc.saltKey, 0, TV_Salt.length);
+    }
+
+    private static SRTPCryptoContext createSRTPCryptoContext(
+            boolean sender,
+            byte[] key)
+    {
+        SRTPCryptoContext cc
+            = new SRTPCryptoContext(
+                    sender, 0x5501A0B2, 0, 0,
+                    new byte[key.length], new byte[TV_Salt.length],
+                    createPolicy(key));
+
+        cc.deriveSrtpKeys(0);
+        setSessionKeys(cc, key);
+        return cc;
+    }
+
+    private static SRTCPCryptoContext createSRTCPCryptoContext(byte[] key)
+    {
+        SRTCPCryptoContext cc
+            = new SRTCPCryptoContext(
+                    0x4D617273,
+                    new byte[key.length], new byte[TV_Salt.length],
+                    createPolicy(key));
+
+        cc.deriveSrtcpKeys();
+        setSessionKeys(cc, key);
+        return cc;
+    }
+
+    private static byte[] getBytes(RawPacket pkt)
+    {
+        return
+            Arrays.copyOfRange(
+                    pkt.getBuffer(),
+                    pkt.getOffset(),
+                    pkt.getOffset() + pkt.getLength());
+    }
+}
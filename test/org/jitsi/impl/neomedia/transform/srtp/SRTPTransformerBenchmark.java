@@ -0,0 +1,638 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * JMH benchmark of the transform and reverse-transform of
+ * {@link SRTPTransformer} and {@link SRTCPTransformer} for the protection
+ * profiles (i.e. combinations of <tt>SRTPPolicy</tt> encryption and
+ * authentication), the <tt>BlockCipherFactory</tt> implementations elected
+ * by {@link AES}, packet lengths and numbers of SSRCs. The number of threads
+ * is specified with the JMH option <tt>-t</tt>. Each thread sends and
+ * receives its own SSRCs and the threads share the sending transformers.
+ *
+ * Run it (with the allocations per operation reported as
+ * <tt>gc.alloc.rate.norm</tt>) with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.jitsi.impl.neomedia.transform.srtp.SRTPTransformerBenchmark \
+ *     -Dexec.args="-p profile=AES_CM_128_HMAC_SHA1_80 -t 4"
+ * </pre>
+ *
+ * The receiving transformers are replaced after every
+ * {@link #RING_SIZE} packets because the packets are encrypted in advance
+ * and their replay would be rejected. The replacement is amortized over the
+ * packets.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+public class SRTPTransformerBenchmark
+{
+    /**
+     * The number of packets encrypted in advance for the reverse-transform
+     * benchmarks of a thread.
+     */
+    private static final int RING_SIZE = 4096;
+
+    /**
+     * The capacity in bytes of a buffer of a packet beyond its length for the
+     * authentication tag and the SRTCP index which the transform appends.
+     */
+    private static final int TRAILER_CAPACITY = 32;
+
+    /**
+     * Creates the <tt>SRTPPolicy</tt> of a protection profile. The NULL
+     * cipher is not benchmarked because the contexts cannot derive keys
+     * without a cipher and the NULL authentication (of a counter mode) is not
+     * because SRTCP does not carry the SRTCP index without authentication.
+     *
+     * @param profile the name of the protection profile
+     * @return the <tt>SRTPPolicy</tt> of <tt>profile</tt>
+     */
+    private static SRTPPolicy createPolicy(String profile)
+    {
+        switch (profile)
+        {
+        case "AES_CM_128_HMAC_SHA1_80":
+            return
+                new SRTPPolicy(
+                        SRTPPolicy.AESCM_ENCRYPTION, 16,
+                        SRTPPolicy.HMACSHA1_AUTHENTICATION, 20, 10,
+                        14);
+        case "AES_CM_128_HMAC_SHA1_32":
+            return
+                new SRTPPolicy(
+                        SRTPPolicy.AESCM_ENCRYPTION, 16,
+                        SRTPPolicy.HMACSHA1_AUTHENTICATION, 20, 4,
+                        14);
+        case "AES_256_CM_HMAC_SHA1_80":
+            return
+                new SRTPPolicy(
+                        SRTPPolicy.AESCM_ENCRYPTION, 32,
+                        SRTPPolicy.HMACSHA1_AUTHENTICATION, 20, 10,
+                        14);
+        case "AES_F8_128_HMAC_SHA1_80":
+            return
+                new SRTPPolicy(
+                        SRTPPolicy.AESF8_ENCRYPTION, 16,
+                        SRTPPolicy.HMACSHA1_AUTHENTICATION, 20, 10,
+                        14);
+        case "AES_CM_128_SKEIN_64":
+            return
+                new SRTPPolicy(
+                        SRTPPolicy.AESCM_ENCRYPTION, 16,
+                        SRTPPolicy.SKEIN_AUTHENTICATION, 32, 8,
+                        14);
+        case "TWOFISH_CM_128_HMAC_SHA1_80":
+            return
+                new SRTPPolicy(
+                        SRTPPolicy.TWOFISH_ENCRYPTION, 16,
+                        SRTPPolicy.HMACSHA1_AUTHENTICATION, 20, 10,
+                        14);
+        case "TWOFISH_F8_128_HMAC_SHA1_80":
+            return
+                new SRTPPolicy(
+                        SRTPPolicy.TWOFISHF8_ENCRYPTION, 16,
+                        SRTPPolicy.HMACSHA1_AUTHENTICATION, 20, 10,
+                        14);
+        case "AEAD_AES_128_GCM":
+            return
+                new SRTPPolicy(
+                        SRTPPolicy.AESGCM_ENCRYPTION, 16,
+                        SRTPPolicy.NULL_AUTHENTICATION, 0,
+                        SRTPCipherGCM.TAG_LENGTH,
+                        12);
+        case "AEAD_AES_256_GCM":
+            return
+                new SRTPPolicy(
+                        SRTPPolicy.AESGCM_ENCRYPTION, 32,
+                        SRTPPolicy.NULL_AUTHENTICATION, 0,
+                        SRTPCipherGCM.TAG_LENGTH,
+                        12);
+        default:
+            throw new IllegalArgumentException("profile " + profile);
+        }
+    }
+
+    /**
+     * Runs the benchmark with the JMH command line options <tt>args</tt> and
+     * the GC profiler.
+     *
+     * @param args the JMH command line options
+     */
+    public static void main(String[] args)
+        throws CommandLineOptionException, RunnerException
+    {
+        Options options
+            = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(SRTPTransformerBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(options).run();
+    }
+
+    /**
+     * The simple name of the <tt>BlockCipherFactory</tt> implementation to
+     * be used by <tt>AES</tt>. <tt>AES</tt> falls back to the
+     * fastest-performing implementation if the specified one is not
+     * functional (e.g. SunPKCS11 is not available).
+     */
+    @Param({ "BouncyCastle", "SunJCE", "SunPKCS11" })
+    public String factory;
+
+    /**
+     * The master key of the protection profile.
+     */
+    private byte[] masterKey;
+
+    /**
+     * The master salt of the protection profile.
+     */
+    private byte[] masterSalt;
+
+    /**
+     * The number which is to be assigned to the next thread in order to
+     * determine its SSRCs.
+     */
+    private final AtomicInteger nextThreadNumber = new AtomicInteger();
+
+    /**
+     * The length in bytes of the (S)RTP and (S)RTCP packets without the
+     * authentication tag and the SRTCP index.
+     */
+    @Param({ "60", "160", "480", "960", "1400" })
+    public int packetLength;
+
+    /**
+     * The <tt>SRTPPolicy</tt> of {@link #profile}.
+     */
+    private SRTPPolicy policy;
+
+    /**
+     * The name of the protection profile.
+     */
+    @Param({
+            "AES_CM_128_HMAC_SHA1_80",
+            "AES_CM_128_HMAC_SHA1_32",
+            "AES_256_CM_HMAC_SHA1_80",
+            "AES_F8_128_HMAC_SHA1_80",
+            "AES_CM_128_SKEIN_64",
+            "TWOFISH_CM_128_HMAC_SHA1_80",
+            "TWOFISH_F8_128_HMAC_SHA1_80",
+            "AEAD_AES_128_GCM",
+            "AEAD_AES_256_GCM"
+        })
+    public String profile;
+
+    /**
+     * The <tt>SRTPContextFactory</tt> of the receiving transformers.
+     */
+    private SRTPContextFactory reverseFactory;
+
+    /**
+     * The sending <tt>SRTCPTransformer</tt> shared by the threads.
+     */
+    private SRTCPTransformer srtcpTransformer;
+
+    /**
+     * The sending <tt>SRTPTransformer</tt> shared by the threads.
+     */
+    private SRTPTransformer srtpTransformer;
+
+    /**
+     * The number of SSRCs of each thread.
+     */
+    @Param({ "1", "16" })
+    public int ssrcs;
+
+    /**
+     * Initializes a new <tt>SRTPContextFactory</tt> with the protection
+     * profile of this benchmark.
+     *
+     * @param sender <tt>true</tt> for a sender or <tt>false</tt> for a
+     * receiver
+     * @return a new <tt>SRTPContextFactory</tt> with the protection profile of
+     * this benchmark
+     */
+    private SRTPContextFactory createContextFactory(boolean sender)
+    {
+        return
+            new SRTPContextFactory(
+                    sender,
+                    masterKey,
+                    masterSalt,
+                    policy,
+                    policy);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        // AES reads the property once and JMH forks a JVM for each
+        // combination of parameters.
+        System.setProperty(
+                AES.class.getName() + ".factoryClassName",
+                factory);
+
+        policy = createPolicy(profile);
+
+        Random random = new Random(0);
+
+        masterKey = new byte[policy.getEncKeyLength()];
+        random.nextBytes(masterKey);
+        masterSalt = new byte[policy.getSaltKeyLength()];
+        random.nextBytes(masterSalt);
+
+        srtpTransformer = new SRTPTransformer(createContextFactory(true));
+        srtcpTransformer = new SRTCPTransformer(srtpTransformer);
+        reverseFactory = createContextFactory(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        srtcpTransformer.close();
+        srtpTransformer.close();
+        reverseFactory.close();
+    }
+
+    @Benchmark
+    public RawPacket reverseTransformRTCP(Receiver receiver)
+    {
+        return receiver.reverseTransformRTCP();
+    }
+
+    @Benchmark
+    public RawPacket reverseTransformRTP(Receiver receiver)
+    {
+        return receiver.reverseTransformRTP();
+    }
+
+    @Benchmark
+    public RawPacket transformRTCP(Sender sender)
+    {
+        return srtcpTransformer.transform(sender.nextRTCP());
+    }
+
+    @Benchmark
+    public RawPacket transformRTP(Sender sender)
+    {
+        return srtpTransformer.transform(sender.nextRTP());
+    }
+
+    /**
+     * The packets of a thread which are reverse-transformed and the (private)
+     * receiving transformers which reverse-transform them.
+     */
+    @State(Scope.Thread)
+    public static class Receiver
+    {
+        /**
+         * The <tt>SRTPTransformerBenchmark</tt> which employs this instance.
+         */
+        private SRTPTransformerBenchmark benchmark;
+
+        /**
+         * The index in {@link #srtcpPackets} of the next packet to be
+         * reverse-transformed.
+         */
+        private int nextSrtcp;
+
+        /**
+         * The index in {@link #srtpPackets} of the next packet to be
+         * reverse-transformed.
+         */
+        private int nextSrtp;
+
+        /**
+         * The packet which is reverse-transformed in place.
+         */
+        private final RawPacket pkt = new RawPacket();
+
+        /**
+         * The lengths of the {@link #srtcpPackets}.
+         */
+        private int srtcpLength;
+
+        /**
+         * The SRTCP packets encrypted in advance.
+         */
+        private byte[][] srtcpPackets;
+
+        /**
+         * The receiving <tt>SRTCPTransformer</tt> of the thread.
+         */
+        private SRTCPTransformer srtcpTransformer;
+
+        /**
+         * The lengths of the {@link #srtpPackets}.
+         */
+        private int srtpLength;
+
+        /**
+         * The SRTP packets encrypted in advance.
+         */
+        private byte[][] srtpPackets;
+
+        /**
+         * The receiving <tt>SRTPTransformer</tt> of the thread.
+         */
+        private SRTPTransformer srtpTransformer;
+
+        /**
+         * Reverse-transforms a copy of a packet encrypted in advance.
+         *
+         * @param packets the packets encrypted in advance
+         * @param index the index in <tt>packets</tt> of the packet to copy
+         * @param length the length of the packet to copy
+         * @return the <tt>RawPacket</tt> which holds the copy
+         */
+        private RawPacket copy(byte[][] packets, int index, int length)
+        {
+            byte[] buf = pkt.getBuffer();
+
+            System.arraycopy(packets[index], 0, buf, 0, length);
+            pkt.setOffset(0);
+            pkt.setLength(length);
+            return pkt;
+        }
+
+        /**
+         * Encrypts {@link #RING_SIZE} packets in advance with a private sender
+         * and verifies that a receiver accepts them.
+         *
+         * @param packets the plain packets which are encrypted in place
+         * @param rtcp <tt>true</tt> if <tt>packets</tt> are RTCP packets
+         * @return the length of the encrypted packets
+         */
+        private int encrypt(byte[][] packets, boolean rtcp)
+        {
+            SRTPTransformer srtpTransformer
+                = new SRTPTransformer(benchmark.createContextFactory(true));
+            SRTCPTransformer srtcpTransformer
+                = new SRTCPTransformer(srtpTransformer);
+            int length = 0;
+
+            try
+            {
+                for (byte[] packet : packets)
+                {
+                    RawPacket p
+                        = new RawPacket(
+                                packet,
+                                0,
+                                benchmark.packetLength);
+
+                    p = rtcp
+                        ? srtcpTransformer.transform(p)
+                        : srtpTransformer.transform(p);
+                    if (p == null || p.getBuffer() != packet)
+                        throw new IllegalStateException("transform");
+                    length = p.getLength();
+                }
+            }
+            finally
+            {
+                srtcpTransformer.close();
+                srtpTransformer.close();
+            }
+            return length;
+        }
+
+        /**
+         * Reverse-transforms the next SRTCP packet.
+         *
+         * @return the reverse-transformed packet or <tt>null</tt> if it was
+         * rejected
+         */
+        RawPacket reverseTransformRTCP()
+        {
+            if (nextSrtcp == srtcpPackets.length)
+            {
+                nextSrtcp = 0;
+                srtcpTransformer
+                    = new SRTCPTransformer(benchmark.reverseFactory);
+            }
+            return
+                srtcpTransformer.reverseTransform(
+                        copy(srtcpPackets, nextSrtcp++, srtcpLength));
+        }
+
+        /**
+         * Reverse-transforms the next SRTP packet.
+         *
+         * @return the reverse-transformed packet or <tt>null</tt> if it was
+         * rejected
+         */
+        RawPacket reverseTransformRTP()
+        {
+            if (nextSrtp == srtpPackets.length)
+            {
+                nextSrtp = 0;
+                srtpTransformer = new SRTPTransformer(benchmark.reverseFactory);
+            }
+            return
+                srtpTransformer.reverseTransform(
+                        copy(srtpPackets, nextSrtp++, srtpLength));
+        }
+
+        @Setup(Level.Trial)
+        public void setUp(SRTPTransformerBenchmark benchmark)
+        {
+            this.benchmark = benchmark;
+
+            Sender sender = new Sender();
+
+            sender.setUp(benchmark);
+
+            int capacity = benchmark.packetLength + TRAILER_CAPACITY;
+
+            pkt.setBuffer(new byte[capacity]);
+            srtpPackets = new byte[RING_SIZE][];
+            srtcpPackets = new byte[RING_SIZE][];
+            for (int i = 0; i < RING_SIZE; i++)
+            {
+                srtpPackets[i]
+                    = Arrays.copyOf(sender.nextRTP().getBuffer(), capacity);
+                srtcpPackets[i]
+                    = Arrays.copyOf(sender.nextRTCP().getBuffer(), capacity);
+            }
+            srtpLength = encrypt(srtpPackets, false);
+            srtcpLength = encrypt(srtcpPackets, true);
+
+            srtpTransformer = new SRTPTransformer(benchmark.reverseFactory);
+            srtcpTransformer = new SRTCPTransformer(benchmark.reverseFactory);
+            if (srtpTransformer.reverseTransform(
+                        copy(srtpPackets, 0, srtpLength))
+                    == null
+                    || srtcpTransformer.reverseTransform(
+                            copy(srtcpPackets, 0, srtcpLength))
+                        == null)
+            {
+                throw new IllegalStateException("reverseTransform");
+            }
+            srtpTransformer = new SRTPTransformer(benchmark.reverseFactory);
+            srtcpTransformer = new SRTCPTransformer(benchmark.reverseFactory);
+        }
+    }
+
+    /**
+     * The plain packets of a thread which are transformed. The sequence
+     * numbers advance per SSRC and the SSRCs are used in turn.
+     */
+    @State(Scope.Thread)
+    public static class Sender
+    {
+        /**
+         * The index in {@link #ssrcs} of the SSRC of the next packet.
+         */
+        private int next;
+
+        /**
+         * The packet which is transformed in place.
+         */
+        private RawPacket pkt;
+
+        /**
+         * The payload (and, in the case of RTCP, the report blocks) of the
+         * packets.
+         */
+        private byte[] plain;
+
+        /**
+         * The next sequence number of each of the {@link #ssrcs}.
+         */
+        private int[] seqs;
+
+        /**
+         * The SSRCs of the thread.
+         */
+        private int[] ssrcs;
+
+        /**
+         * Gets the index in {@link #ssrcs} of the SSRC of the next packet.
+         *
+         * @return the index in <tt>ssrcs</tt> of the SSRC of the next packet
+         */
+        private int nextIndex()
+        {
+            int i = next;
+
+            if (++next == ssrcs.length)
+                next = 0;
+            return i;
+        }
+
+        /**
+         * Prepares the next plain RTCP (sender report) packet.
+         *
+         * @return the next plain RTCP packet
+         */
+        RawPacket nextRTCP()
+        {
+            int length = plain.length;
+            byte[] buf = reset(length);
+            int ssrc = ssrcs[nextIndex()];
+            int words = length / 4 - 1;
+
+            buf[0] = (byte) 0x80;
+            buf[1] = (byte) 200;
+            buf[2] = (byte) (words >> 8);
+            buf[3] = (byte) words;
+            buf[4] = (byte) (ssrc >> 24);
+            buf[5] = (byte) (ssrc >> 16);
+            buf[6] = (byte) (ssrc >> 8);
+            buf[7] = (byte) ssrc;
+            return pkt;
+        }
+
+        /**
+         * Prepares the next plain RTP packet.
+         *
+         * @return the next plain RTP packet
+         */
+        RawPacket nextRTP()
+        {
+            byte[] buf = reset(plain.length);
+            int i = nextIndex();
+            int seq = seqs[i];
+            int ssrc = ssrcs[i];
+
+            seqs[i] = (seq + 1) & 0xffff;
+            buf[0] = (byte) 0x80;
+            buf[1] = (byte) 111;
+            buf[2] = (byte) (seq >> 8);
+            buf[3] = (byte) seq;
+            buf[8] = (byte) (ssrc >> 24);
+            buf[9] = (byte) (ssrc >> 16);
+            buf[10] = (byte) (ssrc >> 8);
+            buf[11] = (byte) ssrc;
+            return pkt;
+        }
+
+        /**
+         * Resets {@link #pkt} to the plain bytes.
+         *
+         * @param length the length of the packet
+         * @return the buffer of <tt>pkt</tt>
+         */
+        private byte[] reset(int length)
+        {
+            byte[] buf = pkt.getBuffer();
+
+            System.arraycopy(plain, 0, buf, 0, length);
+            pkt.setOffset(0);
+            pkt.setLength(length);
+            return buf;
+        }
+
+        @Setup(Level.Trial)
+        public void setUp(SRTPTransformerBenchmark benchmark)
+        {
+            int n = benchmark.ssrcs;
+            int first = benchmark.nextThreadNumber.getAndIncrement() * n;
+
+            ssrcs = new int[n];
+            seqs = new int[n];
+            for (int i = 0; i < n; i++)
+                ssrcs[i] = 0x10000 + first + i;
+
+            plain = new byte[benchmark.packetLength];
+            new Random(first).nextBytes(plain);
+            pkt
+                = new RawPacket(
+                        new byte[plain.length + TRAILER_CAPACITY],
+                        0,
+                        plain.length);
+        }
+    }
+}
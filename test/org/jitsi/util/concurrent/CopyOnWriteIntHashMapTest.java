@@ -0,0 +1,174 @@
+/*
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.util.concurrent;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+/**
+ * Tests {@link CopyOnWriteIntHashMap}.
+ */
+public class CopyOnWriteIntHashMapTest
+{
+    @Test
+    public void testPutGetRemove()
+    {
+        CopyOnWriteIntHashMap<String> map = new CopyOnWriteIntHashMap<>();
+
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0));
+
+        assertNull(map.put(0, "zero"));
+        assertNull(map.put(-1, "minus one"));
+        assertNull(map.put(Integer.MIN_VALUE, "min"));
+        assertEquals(3, map.size());
+        assertEquals("zero", map.get(0));
+        assertEquals("minus one", map.get(-1));
+        assertEquals("min", map.get(Integer.MIN_VALUE));
+        assertNull(map.get(1));
+
+        assertEquals("zero", map.put(0, "0"));
+        assertEquals("0", map.get(0));
+        assertEquals(3, map.size());
+
+        assertEquals("0", map.putIfAbsent(0, "zero"));
+        assertEquals("0", map.get(0));
+        assertNull(map.putIfAbsent(1, "one"));
+        assertEquals("one", map.get(1));
+        assertEquals(4, map.size());
+
+        assertEquals("minus one", map.remove(-1));
+        assertNull(map.remove(-1));
+        assertNull(map.get(-1));
+        assertEquals(3, map.size());
+
+        List<String> values = map.values();
+
+        Collections.sort(values);
+        assertEquals(Arrays.asList("0", "min", "one"), values);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testPutNull()
+    {
+        new CopyOnWriteIntHashMap<String>().put(1, null);
+    }
+
+    @Test
+    public void testAgainstHashMap()
+    {
+        CopyOnWriteIntHashMap<Integer> map = new CopyOnWriteIntHashMap<>();
+        Map<Integer,Integer> expected = new HashMap<>();
+        Random random = new Random(0);
+
+        for (int i = 0; i < 20000; i++)
+        {
+            // Keys which differ in their high bits only (as SSRCs may) and
+            // collide in the low bits.
+            int key = random.nextInt(64) << 24 | random.nextInt(4);
+            Integer value = i;
+
+            switch (random.nextInt(3))
+            {
+            case 0:
+                assertEquals(expected.put(key, value), map.put(key, value));
+                break;
+            case 1:
+                assertEquals(
+                        expected.containsKey(key) ? expected.get(key) : null,
+                        map.putIfAbsent(key, value));
+                if (!expected.containsKey(key))
+                    expected.put(key, value);
+                break;
+            default:
+                assertEquals(expected.remove(key), map.remove(key));
+                break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Integer,Integer> e : expected.entrySet())
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        assertEquals(
+                new HashSet<>(expected.values()),
+                new HashSet<>(map.values()));
+    }
+
+    @Test
+    public void testConcurrentGet()
+        throws InterruptedException
+    {
+        final CopyOnWriteIntHashMap<Integer> map
+            = new CopyOnWriteIntHashMap<>();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        // The even keys are never removed, the odd ones come and go.
+        for (int key = 0; key < 64; key += 2)
+            map.put(key, key);
+
+        Thread[] readers = new Thread[2];
+
+        for (int i = 0; i < readers.length; i++)
+        {
+            readers[i]
+                = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        while (!stop.get())
+                        {
+                            for (int key = 0; key < 64; key++)
+                            {
+                                Integer value = map.get(key);
+
+                                if ((value == null)
+                                        ? (key % 2 == 0)
+                                        : (value != key))
+                                {
+                                    error.compareAndSet(
+                                            null,
+                                            "key=" + key + " value=" + value);
+                                }
+                            }
+                        }
+                    }
+                };
+            readers[i].start();
+        }
+        for (int i = 0; i < 2000; i++)
+        {
+            int key = 2 * (i % 32) + 1;
+
+            map.put(key, key);
+            map.remove(key);
+        }
+        stop.set(true);
+        for (Thread reader : readers)
+            reader.join();
+
+        assertNull(error.get(), error.get());
+        assertEquals(32, map.size());
+    }
+}